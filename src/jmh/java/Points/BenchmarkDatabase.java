@@ -0,0 +1,58 @@
+package Points;
+
+import org.flywaydb.core.Flyway;
+import org.testcontainers.containers.MySQLContainer;
+
+/**
+ * Database the benchmarks run against, migrated with the Flyway migrations of the project.
+ *
+ * A local MySQL is used when -Dpoints.benchmark.url is given (with points.benchmark.user and
+ * points.benchmark.password), otherwise a throwaway MySQL 8 container is started.
+ */
+final class BenchmarkDatabase implements AutoCloseable {
+    private static final String DRIVER_PARAMETERS = "useServerPrepStmts=true&" +
+                                                    "useLocalTransactionState=true&" +
+                                                    "rewriteBatchedStatements=true&" +
+                                                    "serverTimezone=UTC";
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    static BenchmarkDatabase start() {
+        String url = System.getProperty("points.benchmark.url");
+        String user = System.getProperty("points.benchmark.user", "points_driver");
+        String password = System.getProperty("points.benchmark.password", "points_password");
+        MySQLContainer container = null;
+        if (url == null) {
+            container = new MySQLContainer("mysql:8.0").withDatabaseName("Points")
+                                                       .withUsername(user)
+                                                       .withPassword(password);
+            container.start();
+            url = container.getJdbcUrl();
+        }
+
+        Flyway.configure().dataSource(url, user, password).schemas("Points").load().migrate();
+        return new BenchmarkDatabase(url + (url.contains("?") ? "&" : "?") +
+                                     "user=" + user + "&" +
+                                     "password=" + password + "&" +
+                                     DRIVER_PARAMETERS,
+                                     container);
+    }
+
+    private BenchmarkDatabase(String url, MySQLContainer<?> container) {
+        this.url = url;
+        this.container = container;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    @Override
+    public void close() {
+        if (container != null) {
+            container.stop();
+        }
+    }
+
+    private final String url;
+    private final MySQLContainer<?> container;
+}
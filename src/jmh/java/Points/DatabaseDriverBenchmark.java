@@ -0,0 +1,189 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput and latency percentiles of every public {@link DatabaseDriver} operation.
+ *
+ * The roundTrips secondary result is the rate of statements sent to the database, divided by the
+ * primary throughput it gives round trips per operation.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class DatabaseDriverBenchmark {
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"10000"})
+        public int userCount;
+
+        @Param({"0", "4"})
+        public int temporaryPointsPerUser;
+
+        @Param({"16"})
+        public int poolSize;
+
+        DatabaseDriver driver;
+        UUID[] users;
+        private BenchmarkDatabase database;
+
+        @Setup(Level.Trial)
+        public void setUp() throws SQLException {
+            database = BenchmarkDatabase.start();
+            Logger logger = Logger.getLogger("DatabaseDriverBenchmark");
+            logger.setLevel(java.util.logging.Level.SEVERE);
+            driver = new DatabaseDriver(new ConnectionPoolConfiguration(database.getUrl(), poolSize), logger);
+
+            users = new UUID[userCount];
+            for (int i = 0; i < userCount; ++i) {
+                users[i] = UUID.randomUUID();
+                driver.addUser(new AddUserParameters(users[i], 1_000_000_000));
+            }
+            Timestamp expiry = new Timestamp(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30));
+            List<AddTemporaryPointsParameters> grants = new ArrayList<>();
+            for (int i = 0; i < temporaryPointsPerUser; ++i) {
+                for (UUID user : users) {
+                    grants.add(new AddTemporaryPointsParameters(user, 1, new Timestamp(expiry.getTime() + i)));
+                }
+            }
+            driver.addTemporaryPointsBatch(grants);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            driver.close();
+            database.close();
+        }
+
+        UUID randomUser(Random random) {
+            return users[random.nextInt(users.length)];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final Random random = new Random();
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class RoundTrips {
+        public long roundTrips;
+        private long counted;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            roundTrips = 0;
+            counted = RoundTripCounter.current();
+        }
+
+        /**
+         * Leaves out round trips of invocation level setup.
+         */
+        void skip() {
+            counted = RoundTripCounter.current();
+        }
+
+        void count() {
+            long current = RoundTripCounter.current();
+            roundTrips += current - counted;
+            counted = current;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Reservation {
+        long transactionId;
+
+        @Setup(Level.Invocation)
+        public void reserve(Database database, Caller caller) throws SQLException {
+            UUID user = database.randomUser(caller.random);
+            transactionId = database.driver.reservePoints(new ReservePointsParameters(user, 1)).getTransactionId();
+        }
+    }
+
+    @Benchmark
+    public void addUser(Database database, RoundTrips roundTrips) throws SQLException {
+        database.driver.addUser(new AddUserParameters(UUID.randomUUID(), 0));
+        roundTrips.count();
+    }
+
+    @Benchmark
+    public void addPoints(Database database, Caller caller, RoundTrips roundTrips) throws SQLException {
+        database.driver.addPoints(new AddPointsParameters(database.randomUser(caller.random), 1));
+        roundTrips.count();
+    }
+
+    @Benchmark
+    public void addTemporaryPoints(Database database, Caller caller, RoundTrips roundTrips) throws SQLException {
+        Timestamp expiry = new Timestamp(System.currentTimeMillis() + TimeUnit.DAYS.toMillis(30));
+        database.driver.addTemporaryPoints(new AddTemporaryPointsParameters(database.randomUser(caller.random), 1, expiry));
+        roundTrips.count();
+    }
+
+    @Benchmark
+    public long reservePoints(Database database, Caller caller, RoundTrips roundTrips) throws SQLException {
+        long transactionId = database.driver.reservePoints(new ReservePointsParameters(database.randomUser(caller.random), 1)).getTransactionId();
+        roundTrips.count();
+        return transactionId;
+    }
+
+    @Benchmark
+    public void writeOffPoints(Database database, Reservation reservation, RoundTrips roundTrips) throws SQLException {
+        roundTrips.skip();
+        database.driver.writeOffPoints(reservation.transactionId);
+        roundTrips.count();
+    }
+
+    @Benchmark
+    public void cancelTransaction(Database database, Reservation reservation, RoundTrips roundTrips) throws SQLException {
+        roundTrips.skip();
+        database.driver.cancelTransaction(reservation.transactionId);
+        roundTrips.count();
+    }
+
+    @Benchmark
+    public void getUserInfo(Database database, Caller caller, RoundTrips roundTrips, Blackhole blackhole) throws SQLException {
+        blackhole.consume(database.driver.getUserInfo(new GetUserInfoParameters(database.randomUser(caller.random))));
+        roundTrips.count();
+    }
+
+    @Benchmark
+    public void getTransactionInfo(Database database, Reservation reservation, RoundTrips roundTrips, Blackhole blackhole) throws SQLException {
+        roundTrips.skip();
+        blackhole.consume(database.driver.getTransactionInfo(new GetTransactionInfoParameters(reservation.transactionId)));
+        roundTrips.count();
+    }
+
+    @Benchmark
+    public void updateTemporaryPoints(Database database, Caller caller, RoundTrips roundTrips) throws SQLException {
+        database.driver.updateTemporaryPoints(new UpdateTemporaryPointsParameters(database.randomUser(caller.random), new Timestamp(System.currentTimeMillis())));
+        roundTrips.count();
+    }
+}
@@ -0,0 +1,84 @@
+package Points;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import java.sql.SQLException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link InMemoryPointsStore}, with {@code userCount} 1 every caller contends on the same user.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class InMemoryPointsStoreBenchmark {
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"1", "10000"})
+        public int userCount;
+
+        InMemoryPointsStore store;
+        UUID[] users;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Logger logger = Logger.getLogger("InMemoryPointsStoreBenchmark");
+            logger.setLevel(java.util.logging.Level.SEVERE);
+            store = new InMemoryPointsStore(new InMemoryPointsStoreConfiguration(0), logger);
+            users = new UUID[userCount];
+            for (int i = 0; i < userCount; ++i) {
+                users[i] = UUID.randomUUID();
+                store.addUser(new AddUserParameters(users[i], 1_000_000_000));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            store.close();
+        }
+
+        UUID randomUser(Random random) {
+            return users[random.nextInt(users.length)];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final Random random = new Random();
+    }
+
+    @Benchmark
+    public void addPoints(Store store, Caller caller) {
+        store.store.addPoints(new AddPointsParameters(store.randomUser(caller.random), 1));
+    }
+
+    @Benchmark
+    public long reserveAndWriteOff(Store store, Caller caller) throws SQLException {
+        long transactionId = store.store.reservePoints(new ReservePointsParameters(store.randomUser(caller.random), 1)).getTransactionId();
+        store.store.writeOffPoints(new WriteOffPointsParameters(transactionId));
+        return transactionId;
+    }
+
+    @Benchmark
+    public GetUserInfoReturn getUserInfo(Store store, Caller caller) {
+        return store.store.getUserInfo(new GetUserInfoParameters(store.randomUser(caller.random)));
+    }
+}
@@ -0,0 +1,142 @@
+package Points;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Append throughput of {@link JournaledPointsStore} and the time it takes to reopen a journal of
+ * {@code entries} entries. The whole ledger is restored into memory, recovering 100M entries needs a heap
+ * of some 40 GB, e.g. -Pjmh.heap=48g.
+ */
+@Fork(1)
+public class JournaledPointsStoreBenchmark {
+    private static final int USERS = 10_000;
+
+    private static Logger quietLogger() {
+        Logger logger = Logger.getLogger("JournaledPointsStoreBenchmark");
+        logger.setLevel(java.util.logging.Level.SEVERE);
+        return logger;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try(Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Journal {
+        @Param({"true", "false"})
+        public boolean waitForSync;
+
+        JournaledPointsStore store;
+        UUID[] users;
+        private Path directory;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("points-journal");
+            store = new JournaledPointsStore(new JournalConfiguration(directory.toString(), 256 << 20, 2, waitForSync), quietLogger());
+            users = new UUID[USERS];
+            for (int i = 0; i < USERS; ++i) {
+                users[i] = UUID.randomUUID();
+                store.addUser(new AddUserParameters(users[i], 0));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            store.close();
+            delete(directory);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final Random random = new Random();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2, time = 5)
+    @Measurement(iterations = 5, time = 10)
+    public void addPoints(Journal journal, Caller caller) {
+        journal.store.addPoints(new AddPointsParameters(journal.users[caller.random.nextInt(USERS)], 1));
+    }
+
+    @State(Scope.Benchmark)
+    public static class WrittenJournal {
+        @Param({"10000000", "100000000"})
+        public long entries;
+
+        @Param({"false", "true"})
+        public boolean snapshotted;
+
+        JournalConfiguration configuration;
+        JournaledPointsStore reopened;
+        private Path directory;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("points-journal");
+            configuration = new JournalConfiguration(directory.toString(), 256 << 20, 2, false, snapshotted ? 1 : Integer.MAX_VALUE);
+            try(JournaledPointsStore store = new JournaledPointsStore(configuration, quietLogger())) {
+                UUID[] users = new UUID[USERS];
+                for (int i = 0; i < USERS; ++i) {
+                    users[i] = UUID.randomUUID();
+                    store.addUser(new AddUserParameters(users[i], 0));
+                }
+                for (long entry = USERS; entry < entries; ++entry) {
+                    store.addPoints(new AddPointsParameters(users[(int) (entry % USERS)], 1));
+                }
+                // Closing lets the snapshots started so far finish.
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void closeReopened() {
+            if (reopened != null) {
+                reopened.close();
+                reopened = null;
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public void recover(WrittenJournal journal) throws IOException {
+        journal.reopened = new JournaledPointsStore(journal.configuration, quietLogger());
+    }
+}
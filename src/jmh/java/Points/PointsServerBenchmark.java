@@ -0,0 +1,126 @@
+package Points;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Requests per second of {@link PointsServer} on loopback, every caller with its own connection pipelining
+ * {@link #PIPELINE} requests. {@code store} database serves the benchmark database, memory an {@link InMemoryPointsStore}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class PointsServerBenchmark {
+    private static final int PIPELINE = 64;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({"memory", "database"})
+        public String store;
+
+        @Param({"10000"})
+        public int userCount;
+
+        BenchmarkDatabase database;
+        PointsStore points;
+        PointsServer server;
+        UUID[] users;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            Logger logger = Logger.getLogger("PointsServerBenchmark");
+            logger.setLevel(java.util.logging.Level.SEVERE);
+            if (store.equals("database")) {
+                database = BenchmarkDatabase.start();
+                points = new DatabaseDriver(new ConnectionPoolConfiguration(database.getUrl(), 32), logger);
+            } else {
+                points = new InMemoryPointsStore(logger);
+            }
+            AsyncPointsDriverConfiguration async = new AsyncPointsDriverConfiguration(32);
+            server = new PointsServer(points, new PointsServerConfiguration("127.0.0.1", 0, 1024 * 1024, 4L * 1024 * 1024, 1024, 10_000, async), logger);
+            server.start();
+            users = new UUID[userCount];
+            for (int i = 0; i < userCount; ++i) {
+                users[i] = UUID.randomUUID();
+                points.addUser(new AddUserParameters(users[i], 1_000_000_000));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            server.close();
+            points.close();
+            if (database != null) {
+                database.close();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final Random random = new Random();
+        final CompletableFuture<?>[] calls = new CompletableFuture<?>[PIPELINE];
+        PointsClient client;
+
+        @Setup(Level.Trial)
+        public void setUp(Server server) throws IOException {
+            client = new PointsClient(new InetSocketAddress("127.0.0.1", server.server.getAddress().getPort()),
+                                      Logger.getLogger("PointsServerBenchmark"));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            client.close();
+        }
+
+        UUID randomUser(Server server) {
+            return server.users[random.nextInt(server.users.length)];
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public void getUserInfo(Server server, Caller caller) {
+        for (int i = 0; i < PIPELINE; ++i) {
+            caller.calls[i] = caller.client.getUserInfo(new GetUserInfoParameters(caller.randomUser(server)));
+        }
+        CompletableFuture.allOf(caller.calls).join();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PIPELINE)
+    public void addPoints(Server server, Caller caller) {
+        for (int i = 0; i < PIPELINE; ++i) {
+            caller.calls[i] = caller.client.addPoints(new AddPointsParameters(caller.randomUser(server), 1));
+        }
+        CompletableFuture.allOf(caller.calls).join();
+    }
+
+    @Benchmark
+    public GetUserInfoReturn getUserInfoRoundTrip(Server server, Caller caller) {
+        return caller.client.getUserInfo(new GetUserInfoParameters(caller.randomUser(server))).join();
+    }
+}
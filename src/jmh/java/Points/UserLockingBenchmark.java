@@ -0,0 +1,98 @@
+package Points;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import java.sql.SQLException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of a Zipfian-skewed mix of additions and reservations written off or canceled, without and with user locking.
+ * Run it with many threads, e.g. -Pjmh.threads=32, contention on the hot users is what it measures.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class UserLockingBenchmark {
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"1000"})
+        public int userCount;
+
+        @Param({"false", "true"})
+        public boolean userLocking;
+
+        @Param({"32"})
+        public int poolSize;
+
+        DatabaseDriver driver;
+        UUID[] users;
+        ZipfianGenerator zipfian;
+        private BenchmarkDatabase database;
+
+        @Setup(Level.Trial)
+        public void setUp() throws SQLException {
+            database = BenchmarkDatabase.start();
+            Logger logger = Logger.getLogger("UserLockingBenchmark");
+            logger.setLevel(java.util.logging.Level.SEVERE);
+            UserLockingConfiguration locking = userLocking ? new UserLockingConfiguration() : new UserLockingConfiguration(0, false);
+            driver = new DatabaseDriver(new DatabaseDriverConfiguration(new ConnectionPoolConfiguration(database.getUrl(), poolSize), locking), logger);
+
+            users = new UUID[userCount];
+            for (int i = 0; i < userCount; ++i) {
+                users[i] = UUID.randomUUID();
+                driver.addUser(new AddUserParameters(users[i], 1_000_000_000));
+            }
+            zipfian = new ZipfianGenerator(userCount);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            driver.close();
+            database.close();
+        }
+
+        UUID zipfianUser(Random random) {
+            return users[zipfian.next(random)];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Caller {
+        final Random random = new Random();
+    }
+
+    @Benchmark
+    public void addPoints(Database database, Caller caller) throws SQLException {
+        database.driver.addPoints(new AddPointsParameters(database.zipfianUser(caller.random), 1));
+    }
+
+    @Benchmark
+    public void reserveAndWriteOff(Database database, Caller caller) throws SQLException {
+        long transactionId = database.driver.reservePoints(new ReservePointsParameters(database.zipfianUser(caller.random), 1)).getTransactionId();
+        database.driver.writeOffPoints(transactionId);
+    }
+
+    @Benchmark
+    public void reserveAndCancel(Database database, Caller caller) throws SQLException {
+        long transactionId = database.driver.reservePoints(new ReservePointsParameters(database.zipfianUser(caller.random), 1)).getTransactionId();
+        database.driver.cancelTransaction(transactionId);
+    }
+}
@@ -1,9 +1,12 @@
 package Points;
 
+import java.util.Arrays;
 import java.util.UUID;
 import java.util.logging.Logger;
 import java.util.logging.Handler;
 
+import java.io.IOException;
+
 import java.sql.SQLException;
 import java.sql.Timestamp;
 
@@ -12,7 +15,17 @@ public class App {
         return "App greets you!";
     }
 
-    public static void main(String[] args) throws SQLException {
+    public static void main(String[] args) throws SQLException, IOException, InterruptedException {
+        if (args.length > 0 && args[0].equals("serve")) {
+            serve(args);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("load")) {
+            // load [jdbc-url] [key=value ...]: see WorkloadGenerator.
+            WorkloadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         // DatabaseInitializer databaseInitializer = new DatabaseInitializer();
         DatabaseDriver driver = new DatabaseDriver();
 
@@ -36,4 +49,20 @@ public class App {
         driver.writeOffPoints(new WriteOffPointsParameters(transactionId));
         driver.writeOffPoints(new WriteOffPointsParameters(transactionId));
     }
+
+    /**
+     * serve [port [jdbc-url]]: serves the points database over {@link PointsServer}, drains on shutdown.
+     */
+    private static void serve(String[] args) throws IOException {
+        Logger logger = Logger.getLogger("Points");
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : new PointsServerConfiguration().getPort();
+        DatabaseDriver driver = args.length > 2 ? new DatabaseDriver(new ConnectionPoolConfiguration(args[2]), logger)
+                                                : new DatabaseDriver(logger);
+        PointsServer server = new PointsServer(driver, new PointsServerConfiguration("0.0.0.0", port), logger);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            driver.close();
+        }, "points-server-shutdown"));
+        server.start();
+    }
 }
@@ -0,0 +1,196 @@
+package Points;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Non-blocking facade over a {@link PointsStore}.
+ *
+ * Calls run on virtual threads when the runtime has them and on a fixed pool otherwise, at most
+ * {@code maxConcurrency} of them talk to the database at once. When {@code maxPending} calls are already
+ * waiting the returned future fails right away with {@link RejectedExecutionException}.
+ *
+ * Every future times out after {@code timeoutMillis}. Timing out or canceling a future, including with
+ * {@link CompletableFuture#orTimeout} for a shorter per-call deadline, interrupts the call if it is still running.
+ */
+public class AsyncPointsDriver implements AutoCloseable {
+    public AsyncPointsDriver(@NotNull PointsStore driver, @NotNull AsyncPointsDriverConfiguration configuration) {
+        this.driver = driver;
+        this.configuration = configuration;
+        this.concurrency = new Semaphore(configuration.getMaxConcurrency());
+        this.pending = new Semaphore(configuration.getMaxPending());
+        ExecutorService virtualThreads = configuration.getUseVirtualThreads() ? newVirtualThreadExecutor() : null;
+        this.executor = virtualThreads != null ? virtualThreads : Executors.newFixedThreadPool(configuration.getMaxConcurrency());
+    }
+
+    public CompletableFuture<Void> addUser(@NotNull AddUserParameters parameters) {
+        return submit(() -> {
+            driver.addUser(parameters);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> addPoints(@NotNull AddPointsParameters parameters) {
+        return submit(() -> {
+            driver.addPoints(parameters);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<BatchItemResult>> addPointsBatch(@NotNull List<AddPointsParameters> parameters) {
+        return submit(() -> driver.addPointsBatch(parameters));
+    }
+
+    public CompletableFuture<List<BatchItemResult>> addPointsBatch(@NotNull Iterator<AddPointsParameters> parameters, int chunkSize) {
+        return submit(() -> driver.addPointsBatch(parameters, chunkSize));
+    }
+
+    public CompletableFuture<GetUserInfoReturn> getUserInfo(@NotNull GetUserInfoParameters parameters) {
+        return submit(() -> driver.getUserInfo(parameters));
+    }
+
+    public CompletableFuture<GetTransactionInfoReturn> getTransactionInfo(@NotNull GetTransactionInfoParameters parameters) {
+        return submit(() -> driver.getTransactionInfo(parameters));
+    }
+
+    /**
+     * First {@code pageSize} transactions of the history, in the order of {@link PointsStore#streamUserHistory}.
+     */
+    public CompletableFuture<List<GetTransactionInfoReturn>> userHistoryPage(@NotNull UserHistoryParameters parameters) {
+        return submit(() -> {
+            try(Stream<GetTransactionInfoReturn> history = driver.streamUserHistory(parameters)) {
+                return history.limit(parameters.getPageSize()).collect(Collectors.toList());
+            }
+        });
+    }
+
+    public CompletableFuture<Void> updateTemporaryPoints(@NotNull UpdateTemporaryPointsParameters parameters) {
+        return submit(() -> {
+            driver.updateTemporaryPoints(parameters);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> addTemporaryPoints(@NotNull AddTemporaryPointsParameters parameters) {
+        return submit(() -> {
+            driver.addTemporaryPoints(parameters);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<BatchItemResult>> addTemporaryPointsBatch(@NotNull List<AddTemporaryPointsParameters> parameters) {
+        return submit(() -> driver.addTemporaryPointsBatch(parameters));
+    }
+
+    public CompletableFuture<List<BatchItemResult>> addTemporaryPointsBatch(@NotNull Iterator<AddTemporaryPointsParameters> parameters, int chunkSize) {
+        return submit(() -> driver.addTemporaryPointsBatch(parameters, chunkSize));
+    }
+
+    public CompletableFuture<ReservePointsReturn> reservePoints(@NotNull ReservePointsParameters parameters) {
+        return submit(() -> driver.reservePoints(parameters));
+    }
+
+    public CompletableFuture<Void> cancelTransaction(@NotNull CancelTransactionParameters parameters) {
+        return submit(() -> {
+            driver.cancelTransaction(parameters);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> writeOffPoints(@NotNull WriteOffPointsParameters parameters) {
+        return submit(() -> {
+            driver.writeOffPoints(parameters);
+            return null;
+        });
+    }
+
+    /**
+     * Stops accepting calls and waits for the running ones. The wrapped store stays open.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(configuration.getTimeoutMillis(), TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private <T> CompletableFuture<T> submit(@NotNull Callable<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (!pending.tryAcquire()) {
+            logger.warning("Rejecting a call, " + configuration.getMaxPending() + " calls are already pending!!");
+            result.completeExceptionally(new RejectedExecutionException("Points driver is saturated!!"));
+            return result;
+        }
+
+        Future<?> task;
+        try {
+            task = executor.submit(() -> run(call, result));
+        } catch (RejectedExecutionException ex) {
+            pending.release();
+            result.completeExceptionally(ex);
+            return result;
+        }
+        result.whenComplete((value, ex) -> {
+            pending.release();
+            if (ex instanceof CancellationException || ex instanceof TimeoutException) {
+                task.cancel(true);
+            }
+        });
+        return result.orTimeout(configuration.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private <T> void run(@NotNull Callable<T> call, @NotNull CompletableFuture<T> result) {
+        try {
+            concurrency.acquire();
+        } catch (InterruptedException ex) {
+            result.completeExceptionally(ex);
+            return;
+        }
+        try {
+            if (!result.isDone()) {
+                result.complete(call.call());
+            }
+        } catch (Exception ex) {
+            result.completeExceptionally(ex);
+        } finally {
+            concurrency.release();
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+    private final PointsStore driver;
+    private final AsyncPointsDriverConfiguration configuration;
+    private final Semaphore concurrency;
+    private final Semaphore pending;
+    private final ExecutorService executor;
+    private final Logger logger = Logger.getLogger("AsyncPointsDriver");
+}
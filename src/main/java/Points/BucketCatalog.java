@@ -0,0 +1,208 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Shard of every bucket of a {@link ShardedPointsStore}, kept in the {@code bucket_shards} table of its catalog database.
+ *
+ * Every operation reads the shards of its buckets with a shared lock on their rows, held until it is done,
+ * while a move locks the row of its bucket exclusively. So all processes serving the same shards route by one map
+ * and an operation on a bucket waits for its move, wherever either runs. The version of a row grows with every move
+ * and a move only updates the row at the version it locked.
+ */
+final class BucketCatalog implements AutoCloseable {
+    BucketCatalog(@NotNull ConnectionPoolConfiguration configuration,
+                  int buckets,
+                  int shards,
+                  @NotNull List<Integer> initialShards,
+                  @NotNull Logger logger) {
+        this.buckets = buckets;
+        connectionPool = new ConnectionPool(configuration, logger);
+        try {
+            initialize(shards, initialShards);
+        } catch (SQLException ex) {
+            connectionPool.close();
+            throw new UncheckedSQLException(ex);
+        }
+    }
+
+    private static final String CATALOG_SEED = "INSERT IGNORE INTO Points.bucket_shards " +
+                                               "(bucket, shard) " +
+                                               "VALUES (?, ?)";
+    private static final String CATALOG_CHECK = "SELECT COUNT(*), COALESCE(MAX(bucket), -1), COALESCE(MAX(shard), -1) " +
+                                                "FROM Points.bucket_shards";
+    /**
+     * Maps the buckets by {@code initialShards} unless the catalog maps them already.
+     */
+    private void initialize(int shards, @NotNull List<Integer> initialShards) throws SQLException {
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statementSeed = connection.prepareStatement(CATALOG_SEED);
+            for (int bucket = 0; bucket < buckets; ++bucket) {
+                statementSeed.setInt(1, bucket);
+                statementSeed.setInt(2, initialShards.get(bucket));
+                statementSeed.addBatch();
+            }
+            statementSeed.executeBatch();
+            connection.commit();
+
+            PreparedStatement statementCheck = connection.prepareStatement(CATALOG_CHECK);
+            try(ResultSet result = statementCheck.executeQuery()) {
+                result.next();
+                if (result.getInt(1) != buckets || result.getInt(2) != buckets - 1) {
+                    throw new IllegalStateException("Catalog maps " + result.getInt(1) + " buckets, " + buckets + " are configured!!");
+                }
+                if (result.getInt(3) >= shards) {
+                    throw new IllegalStateException("Catalog maps buckets to shard " + result.getInt(3) + ", " + shards + " are configured!!");
+                }
+            }
+            connection.commit();
+        }
+    }
+
+    /**
+     * Shards of some buckets, locked against moves until the lease is closed.
+     */
+    final class Lease implements AutoCloseable {
+        private Lease(@NotNull PooledConnection connection, @NotNull int[] buckets, @NotNull int[] shards, @NotNull long[] versions) {
+            this.connection = connection;
+            this.buckets = buckets;
+            this.shards = shards;
+            this.versions = versions;
+        }
+
+        int shardOf(int bucket) {
+            return shards[index(bucket)];
+        }
+
+        private int index(int bucket) {
+            int index = Arrays.binarySearch(buckets, bucket);
+            if (index < 0) {
+                throw new IllegalArgumentException("Bucket " + bucket + " is not leased!!");
+            }
+            return index;
+        }
+
+        @Override
+        public void close() {
+            connection.close();
+        }
+
+        private final PooledConnection connection;
+        private final int[] buckets;
+        private final int[] shards;
+        private final long[] versions;
+    }
+
+    private static final String CATALOG_LEASE = "SELECT bucket, shard, version " +
+                                                "FROM Points.bucket_shards " +
+                                                "WHERE bucket IN (%s) " +
+                                                "ORDER BY bucket " +
+                                                "%s";
+    /**
+     * Reads the shards of distinct buckets, sorted ascending, with a shared lock.
+     */
+    Lease lease(@NotNull int[] buckets) throws SQLException {
+        return lease(buckets, "LOCK IN SHARE MODE");
+    }
+
+    /**
+     * Reads the shard of a bucket with an exclusive lock, for {@link #moveTo}.
+     */
+    Lease leaseForMove(int bucket) throws SQLException {
+        return lease(new int[]{bucket}, "FOR UPDATE");
+    }
+
+    private Lease lease(@NotNull int[] buckets, @NotNull String lock) throws SQLException {
+        PooledConnection connection = connectionPool.acquire();
+        try {
+            String sql = String.format(CATALOG_LEASE, String.join(", ", Collections.nCopies(buckets.length, "?")), lock);
+            // Single buckets are the common case and reuse the cached statement.
+            PreparedStatement statement = buckets.length == 1 ? connection.prepareStatement(sql)
+                                                              : connection.getConnection().prepareStatement(sql);
+            try {
+                for (int i = 0; i < buckets.length; ++i) {
+                    statement.setInt(i + 1, buckets[i]);
+                }
+                int[] shards = new int[buckets.length];
+                long[] versions = new long[buckets.length];
+                int rows = 0;
+                try(ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        if (rows == buckets.length || result.getInt(1) != buckets[rows]) {
+                            break;
+                        }
+                        shards[rows] = result.getInt(2);
+                        versions[rows] = result.getLong(3);
+                        ++rows;
+                    }
+                }
+                if (rows != buckets.length) {
+                    throw new IllegalStateException("Catalog does not map bucket " + buckets[rows] + "!!");
+                }
+                return new Lease(connection, buckets, shards, versions);
+            } finally {
+                if (buckets.length != 1) {
+                    statement.close();
+                }
+            }
+        } catch (SQLException | RuntimeException ex) {
+            connection.close();
+            throw ex;
+        }
+    }
+
+    private static final String CATALOG_MOVE = "UPDATE Points.bucket_shards " +
+                                               "SET shard = ?, version = version + 1 " +
+                                               "WHERE bucket = ? AND version = ?";
+    /**
+     * Maps the bucket leased for a move to another shard and commits, which ends the lease.
+     */
+    void moveTo(@NotNull Lease lease, int bucket, int shard) throws SQLException {
+        int index = lease.index(bucket);
+        PreparedStatement statement = lease.connection.prepareStatement(CATALOG_MOVE);
+        statement.setInt(1, shard);
+        statement.setInt(2, bucket);
+        statement.setLong(3, lease.versions[index]);
+        if (statement.executeUpdate() != 1) {
+            throw new IllegalStateException("Bucket " + bucket + " changed since version " + lease.versions[index] + "!!");
+        }
+        lease.connection.commit();
+        lease.shards[index] = shard;
+        ++lease.versions[index];
+    }
+
+    private static final String CATALOG_SHARDS = "SELECT shard " +
+                                                 "FROM Points.bucket_shards " +
+                                                 "ORDER BY bucket";
+    List<Integer> getShards() throws SQLException {
+        try(PooledConnection connection = connectionPool.acquire()) {
+            List<Integer> shards = new ArrayList<>(buckets);
+            try(ResultSet result = connection.prepareStatement(CATALOG_SHARDS).executeQuery()) {
+                while (result.next()) {
+                    shards.add(result.getInt(1));
+                }
+            }
+            connection.commit();
+            return shards;
+        }
+    }
+
+    @Override
+    public void close() {
+        connectionPool.close();
+    }
+
+    private final ConnectionPool connectionPool;
+    private final int buckets;
+}
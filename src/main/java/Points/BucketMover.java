@@ -0,0 +1,179 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Copies users with their ledger and temporary points from one shard to another and deletes them from the first,
+ * see {@link ShardedPointsStore#moveBucket}.
+ *
+ * Rows are copied with all their stored columns and ids, shards share the schema. The users and their rows stay
+ * locked on the source until all of them are copied and deleted, so background jobs of the source cannot change
+ * them halfway. Every chunk is committed on the target on its own, a failed move leaves copies there that are
+ * replaced when the move is repeated.
+ */
+final class BucketMover {
+    BucketMover(@NotNull ConnectionPool source,
+                @NotNull ConnectionPool target,
+                int chunkSize,
+                @NotNull Logger logger) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Move chunk size has to be positive!!");
+        }
+        this.source = source;
+        this.target = target;
+        this.chunkSize = chunkSize;
+        this.logger = logger;
+    }
+
+    // Parents first on the target, children first on the source: temporary_points keeps its foreign key to points.
+    private static final String[] TABLES = {"points", "transaction", "transaction_archive", "temporary_points"};
+    private static final String MOVE_COLUMNS = "SELECT COLUMN_NAME " +
+                                               "FROM information_schema.COLUMNS " +
+                                               "WHERE TABLE_SCHEMA = 'Points' AND TABLE_NAME = ? AND GENERATION_EXPRESSION = '' " +
+                                               "ORDER BY ORDINAL_POSITION";
+    interface Handover {
+        void run() throws SQLException;
+    }
+
+    private static final String MOVE_SCAN_USERS = "SELECT user_id " +
+                                                  "FROM Points.points " +
+                                                  "WHERE user_hash >= ? AND user_hash < ? " +
+                                                  "FOR UPDATE";
+    /**
+     * Moves every user of the source whose {@code user_hash} is in {@code [hashFrom, hashTo)}.
+     * {@code handover} runs once the users are on the target and before they are gone from the source.
+     *
+     * @return ids of the moved users
+     */
+    List<UUID> move(long hashFrom, long hashTo, @NotNull Handover handover) throws SQLException {
+        List<UUID> moved = new ArrayList<>();
+        try(PooledConnection sourceConnection = source.acquire()) {
+            List<List<String>> columns = new ArrayList<>(TABLES.length);
+            PreparedStatement statementColumns = sourceConnection.prepareStatement(MOVE_COLUMNS);
+            for (String table : TABLES) {
+                statementColumns.setString(1, table);
+                List<String> tableColumns = new ArrayList<>();
+                try(ResultSet result = statementColumns.executeQuery()) {
+                    while (result.next()) {
+                        tableColumns.add("`" + result.getString(1) + "`");
+                    }
+                }
+                columns.add(tableColumns);
+            }
+
+            // Reads an index range and locks it, users added meanwhile wait for the move.
+            List<byte[]> userIds = new ArrayList<>();
+            PreparedStatement statementScan = sourceConnection.prepareStatement(MOVE_SCAN_USERS);
+            statementScan.setLong(1, hashFrom);
+            statementScan.setLong(2, hashTo);
+            try(ResultSet result = statementScan.executeQuery()) {
+                while (result.next()) {
+                    userIds.add(result.getBytes(1));
+                }
+            }
+
+            for (int from = 0; from < userIds.size(); from += chunkSize) {
+                copyChunk(userIds.subList(from, Math.min(from + chunkSize, userIds.size())), columns, sourceConnection);
+            }
+            for (int from = 0; from < userIds.size(); from += chunkSize) {
+                List<byte[]> chunk = userIds.subList(from, Math.min(from + chunkSize, userIds.size()));
+                String placeholders = String.join(", ", Collections.nCopies(chunk.size(), "?"));
+                for (int i = TABLES.length - 1; i >= 0; --i) {
+                    try(PreparedStatement statementDelete = sourceConnection.getConnection().prepareStatement(String.format(MOVE_DELETE, TABLES[i], placeholders))) {
+                        setUserIds(statementDelete, chunk);
+                        statementDelete.executeUpdate();
+                    }
+                }
+            }
+            handover.run();
+            try {
+                sourceConnection.commit();
+            } catch (SQLException ex) {
+                logger.severe("Moved users are left on the source, delete " + userIds.size() + " users with user_hash from "
+                              + hashFrom + " to " + hashTo + " there: " + ex);
+                throw ex;
+            }
+
+            for (byte[] userId : userIds) {
+                moved.add(UuidBinary.fromBytes(userId));
+            }
+        }
+        return moved;
+    }
+
+    private static final String MOVE_SELECT = "SELECT %s " +
+                                              "FROM Points.%s " +
+                                              "WHERE user_id IN (%s) " +
+                                              "%s";
+    private static final String MOVE_COPY = "INSERT INTO Points.%s (%s) " +
+                                            "VALUES (%s) " +
+                                            "ON DUPLICATE KEY UPDATE %s";
+    private static final String MOVE_DELETE = "DELETE FROM Points.%s " +
+                                              "WHERE user_id IN (%s)";
+    private void copyChunk(@NotNull List<byte[]> userIds, @NotNull List<List<String>> columns, @NotNull PooledConnection sourceConnection) throws SQLException {
+        String placeholders = String.join(", ", Collections.nCopies(userIds.size(), "?"));
+        try(PooledConnection targetConnection = target.acquire()) {
+            // Rows left by a failed move may be gone from the source since, points rows are overwritten in place.
+            for (int i = TABLES.length - 1; i > 0; --i) {
+                try(PreparedStatement statementDelete = targetConnection.getConnection().prepareStatement(String.format(MOVE_DELETE, TABLES[i], placeholders))) {
+                    setUserIds(statementDelete, userIds);
+                    statementDelete.executeUpdate();
+                }
+            }
+            for (int i = 0; i < TABLES.length; ++i) {
+                // The archive is only appended to, the other tables are locked until the source commits.
+                String lock = TABLES[i].equals("transaction_archive") ? "" : "FOR UPDATE";
+                String select = String.format(MOVE_SELECT, String.join(", ", columns.get(i)), TABLES[i], placeholders, lock);
+                try(PreparedStatement statementSelect = sourceConnection.getConnection().prepareStatement(select)) {
+                    setUserIds(statementSelect, userIds);
+                    try(ResultSet rows = statementSelect.executeQuery()) {
+                        copyRows(rows, TABLES[i], columns.get(i), targetConnection);
+                    }
+                }
+            }
+            targetConnection.commit();
+        }
+        logger.fine("Copied " + userIds.size() + " users!");
+    }
+
+    private static void setUserIds(@NotNull PreparedStatement statement, @NotNull List<byte[]> userIds) throws SQLException {
+        int index = 1;
+        for (byte[] userId : userIds) {
+            statement.setBytes(index++, userId);
+        }
+    }
+
+    private static void copyRows(@NotNull ResultSet rows, @NotNull String table, @NotNull List<String> columns, @NotNull PooledConnection target) throws SQLException {
+        List<String> updates = new ArrayList<>(columns.size());
+        for (String column : columns) {
+            updates.add(column + " = VALUES(" + column + ")");
+        }
+        String copy = String.format(MOVE_COPY, table, String.join(", ", columns),
+                                    String.join(", ", Collections.nCopies(columns.size(), "?")), String.join(", ", updates));
+        try(PreparedStatement statementCopy = target.getConnection().prepareStatement(copy)) {
+            while (rows.next()) {
+                for (int column = 1; column <= columns.size(); ++column) {
+                    statementCopy.setObject(column, rows.getObject(column));
+                }
+                statementCopy.addBatch();
+            }
+            statementCopy.executeBatch();
+        }
+    }
+
+    private final ConnectionPool source;
+    private final ConnectionPool target;
+    private final int chunkSize;
+    private final Logger logger;
+}
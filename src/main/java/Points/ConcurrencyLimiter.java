@@ -0,0 +1,88 @@
+package Points;
+
+/**
+ * Limit of concurrent calls that adapts to their latency, additive increase and multiplicative decrease.
+ *
+ * Latency is judged once per window of {@code windowSize} calls against the no-load latency, the lowest window
+ * minimum seen, which drifts up a tenth of the way to every higher window minimum so it follows a slower database.
+ * A window averaging over {@code latencyTolerance} times the no-load latency, or having a call fail on contention,
+ * multiplies the limit by {@code backoffRatio}. A window that used at least half of the limit otherwise raises it by one.
+ */
+final class ConcurrencyLimiter {
+    ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double latencyTolerance, double backoffRatio, int windowSize) {
+        if (minLimit < 1 || initialLimit < minLimit || maxLimit < initialLimit) {
+            throw new IllegalArgumentException("Concurrency limits have to satisfy 1 <= min <= initial <= max!!");
+        }
+        if (latencyTolerance <= 1 || backoffRatio <= 0 || backoffRatio >= 1 || windowSize <= 0) {
+            throw new IllegalArgumentException("Latency tolerance has to be above 1, backoff ratio between 0 and 1 and window positive!!");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @return false if the limit is reached, otherwise the call has to be finished with {@link #release}
+     */
+    synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        ++inFlight;
+        windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+        return true;
+    }
+
+    /**
+     * @param contended the call failed on a deadlock or lock wait timeout
+     */
+    synchronized void release(long latencyNanos, boolean contended) {
+        --inFlight;
+        windowMin = Math.min(windowMin, latencyNanos);
+        windowSum += latencyNanos;
+        windowContended |= contended;
+        if (++windowCount < windowSize) {
+            return;
+        }
+        if (noLoadLatency == 0 || windowMin < noLoadLatency) {
+            noLoadLatency = windowMin;
+        } else {
+            noLoadLatency += (windowMin - noLoadLatency) / 10;
+        }
+        if (windowContended || windowSum / windowCount > latencyTolerance * noLoadLatency) {
+            limit = Math.max(minLimit, limit * backoffRatio);
+        } else if (windowMaxInFlight * 2 >= (int) limit) {
+            limit = Math.min(maxLimit, limit + 1);
+        }
+        windowCount = 0;
+        windowSum = 0;
+        windowMin = Long.MAX_VALUE;
+        windowContended = false;
+        windowMaxInFlight = inFlight;
+    }
+
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private final double backoffRatio;
+    private final int windowSize;
+    private double limit;
+    private int inFlight = 0;
+    private long noLoadLatency = 0;
+    private int windowCount = 0;
+    private long windowSum = 0;
+    private long windowMin = Long.MAX_VALUE;
+    private boolean windowContended = false;
+    private int windowMaxInFlight = 0;
+}
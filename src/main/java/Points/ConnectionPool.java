@@ -0,0 +1,173 @@
+package Points;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import java.sql.DriverManager;
+
+import java.sql.Connection;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Bounded pool of JDBC connections to the points database.
+ *
+ * At most {@code maxSize} connections are handed out at once, callers wait up to
+ * {@code acquireTimeoutMillis} for a free one. Idle connections are reused most recently
+ * released first and are validated before reuse when they have been idle longer
+ * than {@code validationIntervalMillis}.
+ *
+ * Connections are opened with {@link RoundTripCounter} installed, unless the url sets queryInterceptors itself,
+ * then its interceptors are used alone and operations report no round trips.
+ */
+public class ConnectionPool implements AutoCloseable {
+    public ConnectionPool(@NotNull ConnectionPoolConfiguration configuration,
+                          @NotNull PointsMetrics metrics,
+                          @NotNull Logger logger) {
+        this.configuration = configuration;
+        this.metrics = metrics;
+        this.logger = logger;
+        this.permits = new Semaphore(configuration.getMaxSize(), true);
+    }
+
+    public ConnectionPool(@NotNull ConnectionPoolConfiguration configuration, @NotNull Logger logger) {
+        this(configuration, PointsMetrics.NONE, logger);
+    }
+
+    public PooledConnection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed!!");
+        }
+
+        long waitStart = System.nanoTime();
+        boolean acquired;
+        try {
+            acquired = permits.tryAcquire(configuration.getAcquireTimeoutMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a connection!!", ex);
+        }
+        recordWait(System.nanoTime() - waitStart);
+        if (!acquired) {
+            acquireTimeouts.increment();
+            logger.warning("Timed out waiting " + configuration.getAcquireTimeoutMillis() + " ms for a connection!!");
+            throw new SQLTransientConnectionException("Timed out waiting for a connection!!");
+        }
+
+        try {
+            PooledConnection connection;
+            while ((connection = idle.pollFirst()) != null) {
+                if (isValid(connection)) {
+                    break;
+                }
+                validationFailures.increment();
+                logger.warning("Discarding invalid pooled connection!");
+                connection.destroy();
+            }
+            if (connection == null) {
+                connection = open();
+            }
+            active.incrementAndGet();
+            return connection;
+        } catch (SQLException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    void release(@NotNull PooledConnection connection, boolean broken) {
+        active.decrementAndGet();
+        if (broken || closed) {
+            connection.destroy();
+        } else {
+            connection.touch();
+            idle.offerFirst(connection);
+        }
+        permits.release();
+    }
+
+    public ConnectionPoolStatistics getStatistics() {
+        return new ConnectionPoolStatistics(acquireCount.sum(),
+                                            acquireWaitNanos.sum(),
+                                            maxAcquireWaitNanos.get(),
+                                            acquireTimeouts.sum(),
+                                            active.get(),
+                                            idle.size(),
+                                            openedConnections.sum(),
+                                            validationFailures.sum());
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection connection;
+        while ((connection = idle.pollFirst()) != null) {
+            connection.destroy();
+        }
+    }
+
+    PointsMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static final Pattern URL_QUERY_INTERCEPTORS = Pattern.compile("[?&]queryInterceptors=", Pattern.CASE_INSENSITIVE);
+    private PooledConnection open() throws SQLException {
+        Properties properties = new Properties();
+        if (!URL_QUERY_INTERCEPTORS.matcher(configuration.getUrl()).find()) {
+            properties.setProperty("queryInterceptors", RoundTripCounter.class.getName());
+        }
+        Connection connection = DriverManager.getConnection(configuration.getUrl(), properties);
+        connection.setAutoCommit(false);
+        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        openedConnections.increment();
+        metrics.recordConnectionOpened();
+        return new PooledConnection(this, connection);
+    }
+
+    private boolean isValid(@NotNull PooledConnection connection) {
+        if (System.currentTimeMillis() - connection.getLastUsed() < configuration.getValidationIntervalMillis()) {
+            return true;
+        }
+        try {
+            return connection.getConnection().isValid(configuration.getValidationTimeoutSeconds());
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private void recordWait(long waitNanos) {
+        acquireCount.increment();
+        acquireWaitNanos.add(waitNanos);
+        metrics.recordConnectionAcquire(waitNanos);
+        long max;
+        while (waitNanos > (max = maxAcquireWaitNanos.get())
+               && !maxAcquireWaitNanos.compareAndSet(max, waitNanos)) {
+        }
+    }
+
+    private final ConnectionPoolConfiguration configuration;
+    private final PointsMetrics metrics;
+    private final Logger logger;
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireWaitNanos = new LongAdder();
+    private final AtomicLong maxAcquireWaitNanos = new AtomicLong();
+    private final LongAdder acquireTimeouts = new LongAdder();
+    private final LongAdder openedConnections = new LongAdder();
+    private final LongAdder validationFailures = new LongAdder();
+
+    private volatile boolean closed = false;
+}
@@ -0,0 +1,458 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Points issued, spent and expired per UTC day, so that reports need not scan the ledger.
+ *
+ * Write transactions add their points to daily_points, and to user_daily_points when kept per user, before they commit.
+ * Every day and action has {@code slots} rows chosen by user, so that transactions of different users rarely wait for
+ * each other, rows are updated in key order. Spent points count on the day of the write-off, but only for reservations
+ * made from {@code since} on; events before {@code since} are left to {@link #backfill}. A report sums the slots of its
+ * days, and of all days before it for the opening balance, which reads a few rows per day.
+ */
+final class DailyAggregates {
+    private static final int EXPIRY_SLOT = 0;
+
+    DailyAggregates(@NotNull ConnectionPool connectionPool,
+                    @NotNull DailyAggregatesConfiguration configuration,
+                    @NotNull Logger logger) {
+        if (configuration.getSlots() <= 0 || configuration.getBackfillChunkSize() <= 0 || configuration.getBackfillParallelism() <= 0) {
+            throw new IllegalArgumentException("Daily aggregate slots, backfill chunk size and parallelism have to be positive!!");
+        }
+        this.connectionPool = connectionPool;
+        this.configuration = configuration;
+        this.logger = logger;
+        this.since = configuration.getSince().getTime();
+    }
+
+    boolean isEnabled() {
+        return configuration.getEnabled();
+    }
+
+    static String day(long millis) {
+        return LocalDate.ofEpochDay(Math.floorDiv(millis, 86_400_000L)).toString();
+    }
+
+    /**
+     * Adds an event of the transaction of {@code connection}, see {@link Batch#add}.
+     */
+    void record(@NotNull PooledConnection connection, @NotNull UUID userId, @NotNull DailyAction action, long amount, long timeMillis) throws SQLException {
+        if (!isEnabled() || amount == 0) {
+            return;
+        }
+        Batch batch = new Batch();
+        batch.add(userId, action, amount, timeMillis);
+        batch.write(connection);
+    }
+
+    Batch newBatch() {
+        return new Batch();
+    }
+
+    private static final class Key implements Comparable<Key> {
+        Key(@Nullable byte[] userId, @NotNull String day, @NotNull DailyAction action, int slot) {
+            this.userId = userId;
+            this.day = day;
+            this.action = action;
+            this.slot = slot;
+        }
+
+        @Override
+        public int compareTo(@NotNull Key other) {
+            if (userId != null) {
+                for (int i = 0; i < userId.length; ++i) {
+                    int bytes = Integer.compare(userId[i] & 0xff, other.userId[i] & 0xff);
+                    if (bytes != 0) {
+                        return bytes;
+                    }
+                }
+            }
+            int days = day.compareTo(other.day);
+            if (days != 0) {
+                return days;
+            }
+            int actions = action.compareTo(other.action);
+            return actions != 0 ? actions : Integer.compare(slot, other.slot);
+        }
+
+        final byte[] userId;
+        final String day;
+        final DailyAction action;
+        final int slot;
+    }
+
+    private static final String UPSERT_DAILY_POINTS = "INSERT INTO Points.daily_points " +
+                                                      "(day, action, slot, amount) " +
+                                                      "VALUES (?, ?, ?, ?) " +
+                                                      "ON DUPLICATE KEY UPDATE amount = amount + VALUES(amount)";
+    private static final String UPSERT_USER_DAILY_POINTS = "INSERT INTO Points.user_daily_points " +
+                                                           "(user_id, day, action, amount) " +
+                                                           "VALUES (?, ?, ?, ?) " +
+                                                           "ON DUPLICATE KEY UPDATE amount = amount + VALUES(amount)";
+    /**
+     * Events of one transaction, summed per row and written in key order.
+     */
+    final class Batch {
+        private Batch() {
+        }
+
+        void add(@NotNull UUID userId, @NotNull DailyAction action, long amount, long timeMillis) {
+            add(userId, action, amount, timeMillis, timeMillis);
+        }
+
+        /**
+         * @param originMillis time of the ledger row behind the event, events of rows older than {@code since} are skipped
+         */
+        void add(@NotNull UUID userId, @NotNull DailyAction action, long amount, long timeMillis, long originMillis) {
+            if (!isEnabled() || amount == 0 || originMillis < since) {
+                return;
+            }
+            String day = day(timeMillis);
+            put(null, day, action, Math.floorMod(userId.hashCode(), configuration.getSlots()), amount);
+            if (configuration.getPerUser()) {
+                put(UuidBinary.toBytes(userId), day, action, 0, amount);
+            }
+        }
+
+        void put(@Nullable byte[] userId, @NotNull String day, @NotNull DailyAction action, int slot, long amount) {
+            (userId == null ? totals : userTotals).merge(new Key(userId, day, action, slot), amount, Long::sum);
+        }
+
+        void write(@NotNull PooledConnection connection) throws SQLException {
+            if (!totals.isEmpty()) {
+                PreparedStatement statement = connection.prepareStatement(UPSERT_DAILY_POINTS);
+                statement.clearBatch();
+                for (Map.Entry<Key, Long> total : totals.entrySet()) {
+                    statement.setString(1, total.getKey().day);
+                    statement.setString(2, total.getKey().action.getColumn());
+                    statement.setInt(3, total.getKey().slot);
+                    statement.setLong(4, total.getValue());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+            if (!userTotals.isEmpty()) {
+                PreparedStatement statement = connection.prepareStatement(UPSERT_USER_DAILY_POINTS);
+                statement.clearBatch();
+                for (Map.Entry<Key, Long> total : userTotals.entrySet()) {
+                    statement.setBytes(1, total.getKey().userId);
+                    statement.setString(2, total.getKey().day);
+                    statement.setString(3, total.getKey().action.getColumn());
+                    statement.setLong(4, total.getValue());
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+
+        private final TreeMap<Key, Long> totals = new TreeMap<>();
+        private final TreeMap<Key, Long> userTotals = new TreeMap<>();
+    }
+
+    private static final String REPORT_OPENING = "SELECT action + 0, SUM(amount) " +
+                                                 "FROM Points.daily_points " +
+                                                 "WHERE day < ? " +
+                                                 "GROUP BY action";
+    private static final String REPORT_DAYS = "SELECT day, action + 0, SUM(amount) " +
+                                              "FROM Points.daily_points " +
+                                              "WHERE day >= ? and day < ? " +
+                                              "GROUP BY day, action";
+    private static final String REPORT_USER_OPENING = "SELECT action + 0, SUM(amount) " +
+                                                      "FROM Points.user_daily_points " +
+                                                      "WHERE user_id = ? and day < ? " +
+                                                      "GROUP BY action";
+    private static final String REPORT_USER_DAYS = "SELECT day, action + 0, SUM(amount) " +
+                                                   "FROM Points.user_daily_points " +
+                                                   "WHERE user_id = ? and day >= ? and day < ? " +
+                                                   "GROUP BY day, action";
+    /**
+     * Every day from the day of {@code from} up to the day of {@code to}, that is excluded.
+     */
+    List<DailyPointsReturn> report(@NotNull DailyPointsParameters parameters) throws SQLException {
+        if (parameters.getUserId() != null && !configuration.getPerUser()) {
+            throw new IllegalStateException("Daily aggregates are not kept per user!!");
+        }
+        String first = day(parameters.getFrom().getTime());
+        String end = day(parameters.getTo().getTime());
+        long outstanding = 0;
+        Map<String, long[]> days = new TreeMap<>();
+        try(PooledConnection connection = connectionPool.acquire()) {
+            boolean perUser = parameters.getUserId() != null;
+            PreparedStatement statementOpening = connection.prepareStatement(perUser ? REPORT_USER_OPENING : REPORT_OPENING);
+            PreparedStatement statementDays = connection.prepareStatement(perUser ? REPORT_USER_DAYS : REPORT_DAYS);
+            int index = 1;
+            if (perUser) {
+                statementOpening.setBytes(index, UuidBinary.toBytes(parameters.getUserId()));
+                statementDays.setBytes(index, UuidBinary.toBytes(parameters.getUserId()));
+                ++index;
+            }
+            statementOpening.setString(index, first);
+            try(ResultSet result = statementOpening.executeQuery()) {
+                while (result.next()) {
+                    outstanding += balanceChange(DailyAction.fromIndex(result.getInt(1)), result.getLong(2));
+                }
+            }
+            statementDays.setString(index, first);
+            statementDays.setString(index + 1, end);
+            try(ResultSet result = statementDays.executeQuery()) {
+                while (result.next()) {
+                    days.computeIfAbsent(result.getString(1), day -> new long[DailyAction.values().length])
+                        [DailyAction.fromIndex(result.getInt(2)).ordinal()] += result.getLong(3);
+                }
+            }
+        }
+
+        List<DailyPointsReturn> report = new ArrayList<>();
+        for (LocalDate day = LocalDate.parse(first); day.isBefore(LocalDate.parse(end)); day = day.plusDays(1)) {
+            long[] amounts = days.getOrDefault(day.toString(), new long[DailyAction.values().length]);
+            for (DailyAction action : DailyAction.values()) {
+                outstanding += balanceChange(action, amounts[action.ordinal()]);
+            }
+            report.add(new DailyPointsReturn(Timestamp.from(day.atStartOfDay(ZoneOffset.UTC).toInstant()),
+                                             amounts[DailyAction.ISSUED.ordinal()],
+                                             amounts[DailyAction.TEMPORARY_ISSUED.ordinal()],
+                                             amounts[DailyAction.SPENT.ordinal()],
+                                             amounts[DailyAction.EXPIRED.ordinal()],
+                                             outstanding));
+        }
+        return report;
+    }
+
+    private static long balanceChange(@NotNull DailyAction action, long amount) {
+        return action == DailyAction.ISSUED || action == DailyAction.TEMPORARY_ISSUED ? amount : -amount;
+    }
+
+    private static final String BACKFILL_OPEN_RESERVATIONS = "SELECT id " +
+                                                             "FROM Points.transaction " +
+                                                             "WHERE action = \"reserve\" and time < ? " +
+                                                             "LIMIT 1";
+    private static final String BACKFILL_ID_RANGE = "SELECT MIN(id), MAX(id) " +
+                                                    "FROM Points.%s";
+    /**
+     * Aggregates the ledger rows older than {@code since}, in chunks of ids run in parallel with connections of the pool.
+     * Then books the points expired before {@code since}, which the ledger does not record, as the difference between
+     * the balance that the aggregates imply and the actual balance of all users, both read in one snapshot.
+     * Chunks already aggregated are skipped, so a failed backfill can be run again.
+     *
+     * Reservations made before {@code since} have to be settled first, they are counted as the ledger shows them.
+     * The ledger keeps the time of the reservation only, so backfilled write-offs are spent on the day of their
+     * reservation, while write-offs from {@code since} on are spent on the day of the write-off.
+     * Per-user aggregates get no expiries before {@code since}.
+     */
+    DailyAggregatesBackfillStatistics backfill() throws SQLException {
+        if (!isEnabled()) {
+            throw new IllegalStateException("Daily aggregates are not enabled!!");
+        }
+        long start = System.nanoTime();
+        List<long[]> chunks = new ArrayList<>();
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statementOpen = connection.prepareStatement(BACKFILL_OPEN_RESERVATIONS);
+            statementOpen.setTimestamp(1, configuration.getSince());
+            try(ResultSet result = statementOpen.executeQuery()) {
+                if (result.next()) {
+                    throw new IllegalStateException("Reservation " + result.getLong(1) + " made before the daily aggregates is still open, backfill once it is settled!!");
+                }
+            }
+            for (BackfillSource source : BackfillSource.values()) {
+                try(PreparedStatement statementRange = connection.getConnection().prepareStatement(String.format(BACKFILL_ID_RANGE, source.table));
+                    ResultSet result = statementRange.executeQuery()) {
+                    if (result.next() && result.getObject(1) != null) {
+                        long chunkSize = configuration.getBackfillChunkSize();
+                        // Chunks are aligned to their size, so that reruns find the chunks of earlier runs.
+                        for (long first = result.getLong(1) / chunkSize * chunkSize; first <= result.getLong(2); first += chunkSize) {
+                            chunks.add(new long[]{source.ordinal(), first});
+                        }
+                    }
+                }
+            }
+        }
+
+        logger.info("Backfilling daily aggregates from " + chunks.size() + " ledger chunks...");
+        ExecutorService executor = Executors.newFixedThreadPool(configuration.getBackfillParallelism());
+        long rows = 0;
+        int aggregated = 0;
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (long[] chunk : chunks) {
+                results.add(executor.submit(() -> backfillChunk(BackfillSource.values()[(int) chunk[0]], chunk[1])));
+            }
+            for (Future<Long> result : results) {
+                long chunkRows = result.get();
+                if (chunkRows >= 0) {
+                    rows += chunkRows;
+                    ++aggregated;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted backfilling daily aggregates!!", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            }
+            throw new SQLException(ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long expired = backfillExpiries();
+        DailyAggregatesBackfillStatistics statistics = new DailyAggregatesBackfillStatistics(aggregated, rows, expired, System.nanoTime() - start);
+        logger.info("Backfilled daily aggregates from " + statistics.getLedgerRows() + " ledger rows in " + statistics.getChunks() + " chunks, " + expired + " points expired before!");
+        return statistics;
+    }
+
+    private enum BackfillSource {
+        TRANSACTION("transaction"),
+        TRANSACTION_ARCHIVE("transaction_archive");
+
+        BackfillSource(@NotNull String table) {
+            this.table = table;
+        }
+
+        final String table;
+    }
+
+    private static final String BACKFILL_MARK = "INSERT INTO Points.daily_points_backfill " +
+                                                "(source, first_id) " +
+                                                "VALUES (?, ?)";
+    private static final String BACKFILL_SELECT = "SELECT DATE_FORMAT(time, '%%Y-%%m-%%d'), action + 0, SUM(amount), COUNT(*) " +
+                                                  "FROM Points.%s " +
+                                                  "WHERE id >= ? and id < ? and time < ? " +
+                                                        "and action IN (\"add user\", \"add points\", \"temporary points addition\", \"committed\") " +
+                                                  "GROUP BY 1, 2";
+    private static final String BACKFILL_SELECT_USERS = "SELECT DATE_FORMAT(time, '%%Y-%%m-%%d'), action + 0, SUM(amount), COUNT(*), user_id " +
+                                                        "FROM Points.%s " +
+                                                        "WHERE id >= ? and id < ? and time < ? " +
+                                                              "and action IN (\"add user\", \"add points\", \"temporary points addition\", \"committed\") " +
+                                                        "GROUP BY 5, 1, 2";
+    /**
+     * @return ledger rows aggregated, -1 if the chunk was aggregated before
+     */
+    private long backfillChunk(@NotNull BackfillSource source, long first) throws SQLException {
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statementMark = connection.prepareStatement(BACKFILL_MARK);
+            statementMark.setString(1, source.table);
+            statementMark.setLong(2, first);
+            try {
+                statementMark.executeUpdate();
+            } catch (SQLIntegrityConstraintViolationException ex) {
+                logger.fine(() -> "Chunk " + first + " of " + source.table + " is aggregated already!");
+                return -1;
+            }
+
+            boolean perUser = configuration.getPerUser();
+            // Chunks run in parallel update the same days, so they take turns over the slots.
+            int slot = (int) Math.floorMod(first / configuration.getBackfillChunkSize(), (long) configuration.getSlots());
+            Batch batch = new Batch();
+            long rows = 0;
+            try(PreparedStatement statementSelect = connection.getConnection().prepareStatement(String.format(perUser ? BACKFILL_SELECT_USERS : BACKFILL_SELECT, source.table))) {
+                statementSelect.setLong(1, first);
+                statementSelect.setLong(2, first + configuration.getBackfillChunkSize());
+                statementSelect.setTimestamp(3, configuration.getSince());
+                try(ResultSet result = statementSelect.executeQuery()) {
+                    while (result.next()) {
+                        String day = result.getString(1);
+                        DailyAction action = dailyAction(TransactionAction.fromIndex(result.getInt(2)));
+                        long amount = result.getLong(3);
+                        rows += result.getLong(4);
+                        batch.put(null, day, action, slot, amount);
+                        if (perUser) {
+                            batch.put(result.getBytes(5), day, action, 0, amount);
+                        }
+                    }
+                }
+            }
+            batch.write(connection);
+            connection.commit();
+            return rows;
+        }
+    }
+
+    private static DailyAction dailyAction(@NotNull TransactionAction action) {
+        switch (action) {
+            case ADD_USER:
+            case ADD_POINTS:
+                return DailyAction.ISSUED;
+            case TEMPORARY_POINTS_ADDITION:
+                return DailyAction.TEMPORARY_ISSUED;
+            case COMMITTED:
+                return DailyAction.SPENT;
+            default:
+                throw new IllegalArgumentException("Transaction action " + action + " is not aggregated!!");
+        }
+    }
+
+    private static final String BACKFILL_EXPIRY_MARK = "INSERT INTO Points.daily_points_backfill " +
+                                                       "(source, first_id) " +
+                                                       "VALUES (\"expiry\", 0)";
+    private static final String BACKFILL_OUTSTANDING = "SELECT COALESCE(SUM(total + total_temporary), 0) " +
+                                                       "FROM Points.points";
+    private static final String BACKFILL_TOTALS = "SELECT action + 0, SUM(amount) " +
+                                                  "FROM Points.daily_points " +
+                                                  "GROUP BY action";
+    /**
+     * @return points booked as expired before {@code since}
+     */
+    private long backfillExpiries() throws SQLException {
+        try(PooledConnection connection = connectionPool.acquire()) {
+            try {
+                connection.prepareStatement(BACKFILL_EXPIRY_MARK).executeUpdate();
+            } catch (SQLIntegrityConstraintViolationException ex) {
+                logger.fine("Expiries before the daily aggregates are booked already!");
+                return 0;
+            }
+            // Both reads come from the snapshot taken by the first one, aggregates change with balances in one transaction.
+            long outstanding;
+            try(ResultSet result = connection.prepareStatement(BACKFILL_OUTSTANDING).executeQuery()) {
+                result.next();
+                outstanding = result.getLong(1);
+            }
+            long aggregated = 0;
+            try(ResultSet result = connection.prepareStatement(BACKFILL_TOTALS).executeQuery()) {
+                while (result.next()) {
+                    aggregated += balanceChange(DailyAction.fromIndex(result.getInt(1)), result.getLong(2));
+                }
+            }
+            long expired = aggregated - outstanding;
+            if (expired < 0) {
+                logger.warning("Users have " + (-expired) + " points more than the ledger gave them, booking them as negative expiry!!");
+            }
+            Batch batch = new Batch();
+            batch.put(null, day(configuration.getSince().getTime() - 1), DailyAction.EXPIRED, EXPIRY_SLOT, expired);
+            if (expired != 0) {
+                batch.write(connection);
+            }
+            connection.commit();
+            return expired;
+        }
+    }
+
+    private final ConnectionPool connectionPool;
+    private final DailyAggregatesConfiguration configuration;
+    private final Logger logger;
+    private final long since;
+}
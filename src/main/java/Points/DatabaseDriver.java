@@ -1,14 +1,37 @@
 package Points;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.logging.Handler;
 import java.util.logging.ConsoleHandler;
 
-import java.sql.DriverManager;
+import java.nio.ByteBuffer;
 
-import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -17,14 +40,38 @@ import java.sql.Timestamp;
 
 import java.sql.SQLException;
 import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTimeoutException;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-public class DatabaseDriver {
-    public DatabaseDriver(@NotNull Logger parentLogger) {
+public class DatabaseDriver implements PointsStore {
+    public DatabaseDriver(@NotNull DatabaseDriverConfiguration configuration, @NotNull Logger parentLogger) {
         logger.setParent(parentLogger);
         logger.setLevel(null);
+        this.configuration = configuration;
+        metrics = configuration.getMetrics();
+        connectionPool = new ConnectionPool(configuration.getConnectionPool(), metrics, logger);
+        userLocks = new UserLocks(configuration.getUserLocking().getStripes());
+        userInfoCache = new UserInfoCache(configuration.getUserInfoCache());
+        replicaRouter = new ReplicaRouter(connectionPool, configuration.getReplicas(), metrics, logger);
+        replicaRouter.start();
+        transactions = new TransactionExecutor(configuration.getTransactions(), logger);
+        dailyAggregates = new DailyAggregates(connectionPool, configuration.getDailyAggregates(), logger);
+        if (configuration.getGroupCommit().getEnabled()) {
+            groupCommitter = new GroupCommitter(connectionPool, userInfoCache, dailyAggregates, configuration.getGroupCommit(), logger);
+            groupCommitter.start();
+        } else {
+            groupCommitter = null;
+        }
+    }
+
+    public DatabaseDriver(@NotNull ConnectionPoolConfiguration poolConfiguration, @NotNull Logger parentLogger) {
+        this(new DatabaseDriverConfiguration(poolConfiguration), parentLogger);
+    }
+
+    public DatabaseDriver(@NotNull Logger parentLogger) {
+        this(new ConnectionPoolConfiguration(DBADRESS), parentLogger);
     }
 
     public DatabaseDriver() {
@@ -33,6 +80,15 @@ public class DatabaseDriver {
         ConsoleHandler consoleHandler = new ConsoleHandler();
         consoleHandler.setLevel(Level.ALL);
         logger.addHandler(consoleHandler);
+        configuration = new DatabaseDriverConfiguration(new ConnectionPoolConfiguration(DBADRESS));
+        metrics = configuration.getMetrics();
+        connectionPool = new ConnectionPool(configuration.getConnectionPool(), metrics, logger);
+        userLocks = new UserLocks(configuration.getUserLocking().getStripes());
+        userInfoCache = new UserInfoCache(configuration.getUserInfoCache());
+        replicaRouter = new ReplicaRouter(connectionPool, configuration.getReplicas(), metrics, logger);
+        transactions = new TransactionExecutor(configuration.getTransactions(), logger);
+        dailyAggregates = new DailyAggregates(connectionPool, configuration.getDailyAggregates(), logger);
+        groupCommitter = null;
     }
 
     private static final String DBADRESS = "jdbc:mysql://localhost/Points?" +
@@ -40,46 +96,241 @@ public class DatabaseDriver {
                                            "password=points_password&" +
                                            "useJDBCCompliantTimezoneShift=true&" +
                                            "useLegacyDatetimeCode=false&" +
+                                           "useServerPrepStmts=true&" +
+                                           "useLocalTransactionState=true&" +
+                                           "rewriteBatchedStatements=true&" +
                                            "serverTimezone=UTC";
 
-    private static Connection getConnection() throws SQLException {
-        Connection connection = DriverManager.getConnection(DBADRESS);
-        connection.setAutoCommit(false);
-        connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
-        return connection;
+    private final DatabaseDriverConfiguration configuration;
+    private final ConnectionPool connectionPool;
+    private final UserLocks userLocks;
+    private final UserInfoCache userInfoCache;
+    private final PointsMetrics metrics;
+    private final GroupCommitter groupCommitter;
+    private final ReplicaRouter replicaRouter;
+    private final TransactionExecutor transactions;
+    private final DailyAggregates dailyAggregates;
+
+    private static final int DEFAULT_BATCH_CHUNK_SIZE = 1_000;
+
+    public ConnectionPoolStatistics getConnectionPoolStatistics() {
+        return connectionPool.getStatistics();
+    }
+
+    public UserInfoCacheStatistics getUserInfoCacheStatistics() {
+        return userInfoCache.getStatistics();
+    }
+
+    public PointsMetrics getMetrics() {
+        return metrics;
+    }
+
+    ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * Drops the cached info of a user changed through this driver and keeps reads of the user on the primary
+     * until a replica has the change.
+     */
+    void userChanged(@NotNull UUID userId) {
+        userInfoCache.invalidate(userId);
+        replicaRouter.pinUser(userId);
+    }
+
+    private volatile TemporaryPointsSweeper temporaryPointsSweeper = null;
+
+    private boolean isSweepingTemporaryPoints() {
+        TemporaryPointsSweeper sweeper = temporaryPointsSweeper;
+        return sweeper != null && sweeper.isRunning();
+    }
+
+    /**
+     * Starts expiring temporary points in the background. The sweeper workers
+     * take their connections from the pool of the driver.
+     */
+    public synchronized TemporaryPointsSweeper startTemporaryPointsSweeper(@NotNull TemporaryPointsSweeperConfiguration configuration) {
+        if (temporaryPointsSweeper != null) {
+            throw new IllegalStateException("Temporary points sweeper is already started!!");
+        }
+        temporaryPointsSweeper = new TemporaryPointsSweeper(connectionPool, userInfoCache, dailyAggregates, configuration, logger);
+        temporaryPointsSweeper.start();
+        return temporaryPointsSweeper;
+    }
+
+    private ReservationReaper reservationReaper = null;
+
+    /**
+     * Starts canceling expired reservations in the background.
+     */
+    public synchronized ReservationReaper startReservationReaper(@NotNull ReservationReaperConfiguration configuration) {
+        if (reservationReaper != null) {
+            throw new IllegalStateException("Reservation reaper is already started!!");
+        }
+        reservationReaper = new ReservationReaper(connectionPool, userInfoCache, configuration, logger);
+        reservationReaper.start();
+        return reservationReaper;
+    }
+
+    private TransactionArchiver transactionArchiver = null;
+
+    /**
+     * Starts archiving finished transactions and adding monthly partitions of the transaction table in the background.
+     */
+    public synchronized TransactionArchiver startTransactionArchiver(@NotNull TransactionArchiverConfiguration configuration) {
+        if (transactionArchiver != null) {
+            throw new IllegalStateException("Transaction archiver is already started!!");
+        }
+        transactionArchiver = new TransactionArchiver(connectionPool, configuration, logger);
+        transactionArchiver.start();
+        return transactionArchiver;
+    }
+
+    /**
+     * Points issued, spent and expired on every day of the range, read from the daily aggregates.
+     * Days are UTC, from the day of {@code from} up to the day of {@code to}, that is excluded.
+     */
+    public List<DailyPointsReturn> getDailyPoints(@NotNull DailyPointsParameters parameters) throws SQLException {
+        if (!dailyAggregates.isEnabled()) {
+            throw new IllegalStateException("Daily aggregates are not enabled!!");
+        }
+        try {
+            return dailyAggregates.report(parameters);
+        } catch (SQLException ex) {
+            logAndThrow(ex);
+            throw new RuntimeException("Unreacheable code!");
+        }
+    }
+
+    /**
+     * Aggregates the history from before the daily aggregates were enabled, see {@link DailyAggregates#backfill}.
+     */
+    public DailyAggregatesBackfillStatistics backfillDailyAggregates() throws SQLException {
+        try {
+            return dailyAggregates.backfill();
+        } catch (SQLException ex) {
+            logAndThrow(ex);
+            throw new RuntimeException("Unreacheable code!");
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+        if (temporaryPointsSweeper != null) {
+            temporaryPointsSweeper.close();
+        }
+        if (reservationReaper != null) {
+            reservationReaper.close();
+        }
+        if (transactionArchiver != null) {
+            transactionArchiver.close();
+        }
+        replicaRouter.close();
+        connectionPool.close();
     }
 
     private <T extends Exception> void logAndThrow(@NotNull T ex) throws T {
-        logger.severe​(ex.getMessage());
+        if (ex instanceof SQLException && TransactionExecutor.isContention((SQLException) ex)) {
+            // Retried by the transaction executor, which logs the last failure.
+            logger.fine(ex.getMessage());
+        } else {
+            logger.severe(ex.getMessage());
+        }
         throw ex;
     }
 
+    private interface SqlCall<T> {
+        T call() throws SQLException;
+    }
+
+    private interface SqlAction {
+        void run() throws SQLException;
+    }
+
+    private static final ThreadLocal<PointsMetrics.Outcome> operationOutcome = new ThreadLocal<>();
+
+    /**
+     * Records latency, round trips and outcome of a public operation. Outcomes other than
+     * success and error are reported by the operation itself with {@link #reportOutcome}.
+     */
+    private <T> T measureCall(@NotNull PointsMetrics.Operation operation, @NotNull SqlCall<T> call) throws SQLException {
+        long start = System.nanoTime();
+        long roundTrips = RoundTripCounter.current();
+        operationOutcome.set(PointsMetrics.Outcome.SUCCESS);
+        PointsMetrics.Outcome outcome = PointsMetrics.Outcome.ERROR;
+        try {
+            T result = call.call();
+            outcome = operationOutcome.get();
+            return result;
+        } catch (PointsOverloadedException ex) {
+            outcome = PointsMetrics.Outcome.OVERLOADED;
+            throw ex;
+        } finally {
+            metrics.recordOperation(operation, outcome, System.nanoTime() - start, RoundTripCounter.current() - roundTrips);
+        }
+    }
+
+    private void measure(@NotNull PointsMetrics.Operation operation, @NotNull SqlAction action) throws SQLException {
+        measureCall(operation, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    private static void reportOutcome(@NotNull PointsMetrics.Outcome outcome) {
+        operationOutcome.set(outcome);
+    }
+
+    /**
+     * Runs a write transaction, retrying it on contention and subject to admission control of the operation.
+     */
+    private <T> T executeCall(@NotNull PointsMetrics.Operation operation, @NotNull SqlCall<T> call) throws SQLException {
+        return transactions.execute(operation, call::call);
+    }
+
+    private void execute(@NotNull PointsMetrics.Operation operation, @NotNull SqlAction action) throws SQLException {
+        executeCall(operation, () -> {
+            action.run();
+            return null;
+        });
+    }
+
     private static final String ADD_USER_QUERY = "INSERT INTO Points.points " +
                                                  "(user_id, total, total_temporary) " +
-                                                 "VALUES (UUID_TO_BIN(?), ?, ?)";
+                                                 "VALUES (?, ?, ?)";
     private static final String ADD_USER_QUERY_HISTORY = "INSERT INTO transaction " +
                                                          "(user_id, amount, action)" +
-                                                         "VALUES(UUID_TO_BIN(?), ?, \"add user\")";
+                                                         "VALUES(?, ?, \"add user\")";
     public void addUser(@NotNull AddUserParameters parameters) throws SQLException {
-        String userIdString = parameters.getUserId().toString();
-        logger.fine("Adding a new user " + userIdString + "...");
-        try(Connection connection = getConnection();
+        measure(PointsMetrics.Operation.ADD_USER, () -> execute(PointsMetrics.Operation.ADD_USER, () -> insertUser(parameters)));
+    }
+
+    private void insertUser(@NotNull AddUserParameters parameters) throws SQLException {
+        logger.fine(() -> "Adding a new user " + parameters.getUserId() + "...");
+        try(PooledConnection connection = connectionPool.acquire()) {
+            byte[] userIdBytes = connection.userIdBytes(parameters.getUserId());
             PreparedStatement statement = connection.prepareStatement(ADD_USER_QUERY);
-            PreparedStatement statementHistory = connection.prepareStatement(ADD_USER_QUERY_HISTORY)) {
-            statement.setString(1, userIdString);
+            PreparedStatement statementHistory = connection.prepareStatement(ADD_USER_QUERY_HISTORY);
+            statement.setBytes(1, userIdBytes);
             statement.setInt(2, parameters.getTotal());
             statement.setInt(3, 0);
             statement.executeUpdate();
 
-            statementHistory.setString(1, userIdString);
+            statementHistory.setBytes(1, userIdBytes);
             statementHistory.setInt(2, parameters.getTotal());
             statementHistory.executeUpdate();
 
+            dailyAggregates.record(connection, parameters.getUserId(), DailyAction.ISSUED, parameters.getTotal(), System.currentTimeMillis());
             connection.commit();
-            logger.fine("New user " + userIdString + " succefully added!");
+            userChanged(parameters.getUserId());
+            logger.fine(() -> "New user " + parameters.getUserId() + " succefully added!");
         } catch (SQLIntegrityConstraintViolationException ex) {
             if (ex.getMessage().startsWith("Duplicate entry '")) {
-                logger.warning("Attempt to add already added user " + userIdString + "!!");
+                logger.warning("Attempt to add already added user " + parameters.getUserId() + "!!");
+                reportOutcome(PointsMetrics.Outcome.INVALID_USER);
             } else {
                 logAndThrow(ex);
             }
@@ -88,40 +339,261 @@ public class DatabaseDriver {
         }
     }
 
-    private static final String ADD_POINTS_QUERY = "UPDATE Points.points " +
+    static final String ADD_POINTS_QUERY = "UPDATE Points.points " +
                                                    "SET total = total + ? " +
-                                                   "WHERE user_id = UUID_TO_BIN(?)";
-    private static final String ADD_POINTS_QUERY_HISTORY = "INSERT INTO transaction " +
+                                                   "WHERE user_id = ?";
+    static final String ADD_POINTS_QUERY_HISTORY = "INSERT INTO transaction " +
                                                            "(user_id, amount, action)" +
-                                                           "VALUES(UUID_TO_BIN(?), ?, \"add points\")";
+                                                           "VALUES(?, ?, \"add points\")";
     public void addPoints(@NotNull AddPointsParameters parameters) throws SQLException {
-        String userIdString = parameters.getUserId().toString();
-        logger.fine("Adding points " + parameters.getAmount() + " to " + userIdString + "...");
+        if (groupCommitter != null) {
+            measure(PointsMetrics.Operation.ADD_POINTS,
+                    () -> execute(PointsMetrics.Operation.ADD_POINTS, () -> awaitGroupCommit(groupCommitter.addPoints(parameters))));
+            replicaRouter.pinUser(parameters.getUserId());
+        } else {
+            measure(PointsMetrics.Operation.ADD_POINTS, () -> execute(PointsMetrics.Operation.ADD_POINTS, () -> addOrCoalescePoints(parameters)));
+        }
+    }
+
+    /**
+     * Waits up to {@code awaitTimeoutMillis} for the group commit of an addition, whose warnings are logged by the committer.
+     * An addition that timed out may still be committed with its group.
+     */
+    private void awaitGroupCommit(@NotNull CompletableFuture<BatchItemResult> result) throws SQLException {
+        try {
+            if (result.get(configuration.getGroupCommit().getAwaitTimeoutMillis(), TimeUnit.MILLISECONDS) == BatchItemResult.INVALID_USER) {
+                reportOutcome(PointsMetrics.Outcome.INVALID_USER);
+            }
+        } catch (TimeoutException ex) {
+            logAndThrow(new SQLTimeoutException("Timed out waiting for a group commit, the addition may still be applied!!", ex));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            logAndThrow(new SQLException("Interrupted waiting for a group commit!!", ex));
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof SQLException) {
+                throw (SQLException) ex.getCause();
+            }
+            logAndThrow(new SQLException(ex.getCause()));
+        }
+    }
 
-        GetUserInfoReturn userInfo = getUserInfo(parameters.getUserId());
-        if (userInfo == null) {
-            logger.warning("Attempt to add points to invalid user " + userIdString + "!!");
+    private void addOrCoalescePoints(@NotNull AddPointsParameters parameters) throws SQLException {
+        UUID userId = parameters.getUserId();
+        if (!userLocks.isEnabled() || !configuration.getUserLocking().getCoalesceAddPoints()) {
+            userLocks.lock(userId);
+            try {
+                if (!addPointsOfUser(Collections.singletonList(parameters))) {
+                    reportOutcome(PointsMetrics.Outcome.INVALID_USER);
+                }
+            } finally {
+                userLocks.unlock(userId);
+            }
             return;
         }
 
-        try(Connection connection = getConnection();
+        // Whoever holds the user lock applies every addition queued for the user so far in one transaction.
+        PendingAddPoints pending = new PendingAddPoints(parameters);
+        Queue<PendingAddPoints> queue = pendingAddPoints.computeIfAbsent(userId, id -> new ConcurrentLinkedQueue<>());
+        queue.add(pending);
+        userLocks.lock(userId);
+        try {
+            if (!pending.done) {
+                List<PendingAddPoints> coalesced = new ArrayList<>();
+                for (PendingAddPoints next = queue.poll(); next != null; next = queue.poll()) {
+                    coalesced.add(next);
+                }
+                pendingAddPoints.remove(userId, queue);
+
+                if (!coalesced.isEmpty()) {
+                    List<AddPointsParameters> additions = new ArrayList<>(coalesced.size());
+                    for (PendingAddPoints addition : coalesced) {
+                        additions.add(addition.parameters);
+                    }
+                    boolean validUser = false;
+                    Exception failure = null;
+                    try {
+                        validUser = addPointsOfUser(additions);
+                    } catch (SQLException | RuntimeException ex) {
+                        // Every caller of the group gets the failure, none of them may be left waiting.
+                        failure = ex;
+                    }
+                    for (PendingAddPoints addition : coalesced) {
+                        addition.invalidUser = !validUser;
+                        addition.failure = failure;
+                        addition.done = true;
+                    }
+                }
+            }
+        } finally {
+            userLocks.unlock(userId);
+        }
+        if (pending.failure instanceof SQLException) {
+            throw (SQLException) pending.failure;
+        }
+        if (pending.failure != null) {
+            throw (RuntimeException) pending.failure;
+        }
+        if (pending.invalidUser) {
+            reportOutcome(PointsMetrics.Outcome.INVALID_USER);
+        }
+    }
+
+    private static final class PendingAddPoints {
+        PendingAddPoints(@NotNull AddPointsParameters parameters) {
+            this.parameters = parameters;
+        }
+
+        final AddPointsParameters parameters;
+        // Guarded by the user lock.
+        boolean done = false;
+        boolean invalidUser = false;
+        // SQLException or RuntimeException
+        Exception failure = null;
+    }
+
+    private final ConcurrentHashMap<UUID, Queue<PendingAddPoints>> pendingAddPoints = new ConcurrentHashMap<>();
+
+    /**
+     * Applies additions to one user in a single transaction.
+     *
+     * @return false if the user is invalid
+     */
+    private boolean addPointsOfUser(@NotNull List<AddPointsParameters> additions) throws SQLException {
+        UUID userId = additions.get(0).getUserId();
+        int amount = 0;
+        for (AddPointsParameters parameters : additions) {
+            amount += parameters.getAmount();
+        }
+        int totalAmount = amount;
+        logger.fine(() -> "Adding points " + totalAmount + " to " + userId + "...");
+
+        try(PooledConnection connection = connectionPool.acquire()) {
+            byte[] userIdBytes = connection.userIdBytes(userId);
             PreparedStatement statement = connection.prepareStatement(ADD_POINTS_QUERY);
-            PreparedStatement statementHistory = connection.prepareStatement(ADD_POINTS_QUERY_HISTORY)) {
-            statement.setInt(1, parameters.getAmount());
-            statement.setString(2, userIdString);
-            statement.executeUpdate();
+            PreparedStatement statementHistory = connection.prepareStatement(ADD_POINTS_QUERY_HISTORY);
+            statement.setInt(1, amount);
+            statement.setBytes(2, userIdBytes);
+            if (statement.executeUpdate() == 0) {
+                logger.warning("Attempt to add points to invalid user " + userId + "!!");
+                return false;
+            }
 
-            statementHistory.setString(1, userIdString);
-            statementHistory.setInt(2, parameters.getAmount());
-            statementHistory.executeUpdate();
+            statementHistory.clearBatch();
+            for (AddPointsParameters parameters : additions) {
+                statementHistory.setBytes(1, userIdBytes);
+                statementHistory.setInt(2, parameters.getAmount());
+                statementHistory.addBatch();
+            }
+            statementHistory.executeBatch();
+
+            dailyAggregates.record(connection, userId, DailyAction.ISSUED, amount, System.currentTimeMillis());
+            connection.commit();
+            userChanged(userId);
+            logger.fine(() -> totalAmount + " points successfully added to " + userId + "!");
+            return true;
+        } catch (SQLException ex) {
+            logAndThrow(ex);
+            throw new RuntimeException("Unreacheable code!");
+        }
+    }
+
+    public List<BatchItemResult> addPointsBatch(@NotNull List<AddPointsParameters> parameters) throws SQLException {
+        return addPointsBatch(parameters.iterator(), DEFAULT_BATCH_CHUNK_SIZE);
+    }
+
+    /**
+     * Adds points to many users with JDBC batches, committing every {@code chunkSize} grants.
+     * Grants to invalid users are reported as {@link BatchItemResult#INVALID_USER} and skipped.
+     * If a chunk fails, the chunks committed before it stay applied and a {@link PartialBatchException} reports them.
+     */
+    public List<BatchItemResult> addPointsBatch(@NotNull Iterator<AddPointsParameters> parameters, int chunkSize) throws SQLException {
+        return measureCall(PointsMetrics.Operation.ADD_POINTS_BATCH, () -> addPointsChunks(parameters, chunkSize));
+    }
+
+    private List<BatchItemResult> addPointsChunks(@NotNull Iterator<AddPointsParameters> parameters, int chunkSize) throws SQLException {
+        List<BatchItemResult> results = new ArrayList<>();
+        List<AddPointsParameters> chunk = new ArrayList<>(chunkSize);
+        while (parameters.hasNext()) {
+            chunk.add(parameters.next());
+            if (chunk.size() == chunkSize || !parameters.hasNext()) {
+                try {
+                    execute(PointsMetrics.Operation.ADD_POINTS_BATCH, () -> addPointsChunk(chunk, results));
+                } catch (SQLException ex) {
+                    throw partialBatch(results, chunk.size(), ex);
+                }
+                chunk.clear();
+            }
+        }
+        return results;
+    }
+
+    private void addPointsChunk(@NotNull List<AddPointsParameters> chunk, @NotNull List<BatchItemResult> results) throws SQLException {
+        logger.fine(() -> "Adding points to a batch of " + chunk.size() + " users...");
+
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement(ADD_POINTS_QUERY);
+            PreparedStatement statementHistory = connection.prepareStatement(ADD_POINTS_QUERY_HISTORY);
+            DailyAggregates.Batch aggregates = dailyAggregates.newBatch();
+            long now = System.currentTimeMillis();
+            statement.clearBatch();
+            statementHistory.clearBatch();
+            for (AddPointsParameters parameters : chunk) {
+                statement.setInt(1, parameters.getAmount());
+                statement.setBytes(2, UuidBinary.toBytes(parameters.getUserId()));
+                statement.addBatch();
+            }
+            int[] updated = statement.executeBatch();
 
+            for (int i = 0; i < chunk.size(); ++i) {
+                if (updated[i] == 0) {
+                    continue;
+                }
+                statementHistory.setBytes(1, UuidBinary.toBytes(chunk.get(i).getUserId()));
+                statementHistory.setInt(2, chunk.get(i).getAmount());
+                statementHistory.addBatch();
+                aggregates.add(chunk.get(i).getUserId(), DailyAction.ISSUED, chunk.get(i).getAmount(), now);
+            }
+            statementHistory.executeBatch();
+
+            aggregates.write(connection);
             connection.commit();
-            logger.fine("" + parameters.getAmount() + " points successfully added to " + userIdString + "!");
+            for (AddPointsParameters parameters : chunk) {
+                userChanged(parameters.getUserId());
+            }
+            addBatchResults(chunk.size(), updated, results, "Attempt to add points to invalid user ", i -> chunk.get(i).getUserId());
+            logger.fine(() -> "Points successfully added to a batch of " + chunk.size() + " users!");
         } catch (SQLException ex) {
             logAndThrow(ex);
         }
     }
 
+    /**
+     * The failure of a chunk, with the results of the chunks committed before it when there are any.
+     */
+    private static SQLException partialBatch(@NotNull List<BatchItemResult> committed, int failed, @NotNull SQLException ex) {
+        if (committed.isEmpty()) {
+            return ex;
+        }
+        List<BatchItemResult> results = new ArrayList<>(committed);
+        results.addAll(Collections.nCopies(failed, null));
+        return new PartialBatchException(results, ex);
+    }
+
+    private void addBatchResults(int size,
+                                 @NotNull int[] updated,
+                                 @NotNull List<BatchItemResult> results,
+                                 @NotNull String invalidUserWarning,
+                                 @NotNull IntFunction<UUID> userId) {
+        for (int i = 0; i < size; ++i) {
+            if (updated[i] == 0) {
+                logger.warning(invalidUserWarning + userId.apply(i) + "!!");
+                results.add(BatchItemResult.INVALID_USER);
+            } else {
+                results.add(BatchItemResult.APPLIED);
+            }
+        }
+    }
+
     private static final String GET_USER_INFO_QUERY = "SELECT total, " +
                                                               "total_temporary, " +
                                                               "payed_temporary, " +
@@ -129,101 +601,355 @@ public class DatabaseDriver {
                                                               "earliest_expiry_date, " +
                                                               "earliest_expiry_amount " +
                                                       "FROM Points.points " +
-                                                      "WHERE user_id = UUID_TO_BIN(?)";
-    private GetUserInfoReturn getUserInfo(@NotNull UUID userId) throws SQLException {
-        logger.fine("Requesting info of user " + userId.toString() + "...");
-
-        try(Connection connection = getConnection();
-            PreparedStatement statement = connection.prepareStatement(GET_USER_INFO_QUERY)) {
-            statement.setString(1, userId.toString());
-            while (true) {
-                try(ResultSet result = statement.executeQuery()) {
-                    if (!result.next()) {
-                        logger.warning("Requested user " + userId.toString() + " is invalid!!");
-                        return null;
-                    }
-
-                    Timestamp earliestExpiryDate = result.getTimestamp(5);
-                    if (earliestExpiryDate == null
-                        || earliestExpiryDate.before(new Timestamp(System.currentTimeMillis()))) {
-                        int total = result.getInt(1);
-                        int totalTemporary = result.getInt(2);
-                        int payedTemporary = result.getInt(3);
-                        int reserved = result.getInt(4);
-                        int earliestExpiryAmount = result.getInt(6);
-                        logger.fine("Requesting info of user " + userId.toString() + " is successful!");
-                        return new GetUserInfoReturn(userId,
-                                                     total,
-                                                     totalTemporary,
-                                                     payedTemporary,
-                                                     reserved,
-                                                     earliestExpiryDate,
-                                                     earliestExpiryAmount);
-                    } else {
-                        logger.warning("Requesting user " + userId.toString() + " needs update, waiting...");
-                        updateTemporaryPoints(userId);
-                        continue;
-                    }
-                }
+                                                      "WHERE user_id = ?";
+    private GetUserInfoReturn getUserInfo(@NotNull UUID userId, @NotNull ConnectionPool pool) throws SQLException {
+        logger.fine(() -> "Requesting info of user " + userId + "...");
+
+        try(PooledConnection connection = pool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement(GET_USER_INFO_QUERY);
+            statement.setBytes(1, connection.userIdBytes(userId));
+            GetUserInfoReturn userInfo = readUserInfo(statement, userId);
+            if (userInfo == null) {
+                logger.warning("Requested user " + userId + " is invalid!!");
+                reportOutcome(PointsMetrics.Outcome.INVALID_USER);
+                return null;
             }
+            logger.fine(() -> "Requesting info of user " + userId + " is successful!");
+            return userInfo;
         } catch (SQLException ex) {
             logAndThrow(ex);
             throw new RuntimeException("Unreacheable code!");
         }
     }
 
+    private static GetUserInfoReturn readUserInfo(@NotNull PreparedStatement statement, @NotNull UUID userId) throws SQLException {
+        try(ResultSet result = statement.executeQuery()) {
+            if (!result.next()) {
+                return null;
+            }
+            return new GetUserInfoReturn(userId,
+                                         result.getInt(1),
+                                         result.getInt(2),
+                                         result.getInt(3),
+                                         result.getInt(4),
+                                         result.getTimestamp(5),
+                                         result.getInt(6));
+        }
+    }
+
+    /**
+     * Serves the user info from the cache when it is enabled, unless {@code consistent} is requested.
+     * Consistent reads go to the primary database and refresh the cache, callers about to reserve points should use them.
+     * Other reads go to a replica when replicas are configured, unless the user was changed through this driver and
+     * no replica has applied the change yet. What replicas answer is not cached.
+     * While a {@link TemporaryPointsSweeper} runs, due temporary points are left to it and the returned
+     * earliestExpiryDate may be in the past; without one they are expired before the user info is returned.
+     */
     public GetUserInfoReturn getUserInfo(@NotNull GetUserInfoParameters parameters) throws SQLException {
-        return getUserInfo(parameters.getUserId());
+        return measureCall(PointsMetrics.Operation.GET_USER_INFO, () -> getUserInfo(parameters.getUserId(), parameters.getConsistent()));
+    }
+
+    private GetUserInfoReturn getUserInfo(@NotNull UUID userId, boolean consistent) throws SQLException {
+        GetUserInfoReturn userInfo = fetchUserInfo(userId, consistent);
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        if (userInfo != null && userInfo.getEarliestExpiryDate() != null && userInfo.getEarliestExpiryDate().before(now)
+                && !isSweepingTemporaryPoints()) {
+            logger.fine(() -> "Requested user " + userId + " needs update of temporary points...");
+            execute(PointsMetrics.Operation.GET_USER_INFO, () -> updateTemporaryPoints(userId, now));
+            userInfo = fetchUserInfo(userId, true);
+        }
+        return userInfo;
     }
 
-    private static final String GET_TRANSACTION_INFO_QUERY = "SELECT BIN_TO_UUID(user_id), " +
+    private GetUserInfoReturn fetchUserInfo(@NotNull UUID userId, boolean consistent) throws SQLException {
+        if (!consistent) {
+            GetUserInfoReturn cached = userInfoCache.get(userId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        long stamp = userInfoCache.stamp(userId);
+        ConnectionPool pool = consistent ? connectionPool : replicaRouter.forUser(userId);
+        GetUserInfoReturn userInfo;
+        try {
+            userInfo = getUserInfo(userId, pool);
+        } catch (SQLException ex) {
+            if (pool == connectionPool) {
+                throw ex;
+            }
+            replicaRouter.markFailed(pool);
+            pool = connectionPool;
+            userInfo = getUserInfo(userId, pool);
+        }
+        if (pool != connectionPool) {
+            // A replica may be behind the writes of other processes, the cache only keeps what the primary said.
+            metrics.recordReplicaRead();
+        } else if (userInfo != null) {
+            userInfoCache.put(userId, userInfo, stamp);
+        }
+        return userInfo;
+    }
+
+    private static final String GET_TRANSACTION_INFO_QUERY = "SELECT user_id, " +
                                                                     "amount, " +
                                                                     "time, " +
                                                                     "expiry_time, " +
-                                                                    "action " +
+                                                                    "action + 0 " +
                                                               "FROM Points.transaction " +
                                                               "WHERE id = ?";
+    private static final String GET_ARCHIVED_TRANSACTION_INFO_QUERY = "SELECT user_id, " +
+                                                                             "amount, " +
+                                                                             "time, " +
+                                                                             "expiry_time, " +
+                                                                             "action + 0 " +
+                                                                      "FROM Points.transaction_archive " +
+                                                                      "WHERE id = ?";
+    /**
+     * Transactions moved away by {@link TransactionArchiver} are looked up in the archive.
+     */
+    private GetTransactionInfoReturn getTransactionInfo(long transactionId, @NotNull ConnectionPool pool) throws SQLException {
+        logger.fine(() -> "Requesting info of transaction " + transactionId + "...");
+        try(PooledConnection connection = pool.acquire()) {
+            GetTransactionInfoReturn transactionInfo = readTransactionInfo(connection.prepareStatement(GET_TRANSACTION_INFO_QUERY), transactionId);
+            if (transactionInfo == null) {
+                transactionInfo = readTransactionInfo(connection.prepareStatement(GET_ARCHIVED_TRANSACTION_INFO_QUERY), transactionId);
+            }
+            if (transactionInfo == null) {
+                logger.warning("Requested transaction " + transactionId + " is invalid!!");
+                reportOutcome(PointsMetrics.Outcome.INVALID_TRANSACTION);
+                return null;
+            }
+            logger.fine(() -> "Requesting info of transaction " + transactionId + " is successful!");
+            return transactionInfo;
+        } catch (SQLException ex) {
+            logAndThrow(ex);
+            throw new RuntimeException("Unreacheable code!");
+        }
+    }
+
+    private static GetTransactionInfoReturn readTransactionInfo(@NotNull PreparedStatement statement, long transactionId) throws SQLException {
+        statement.setLong(1, transactionId);
+        try(ResultSet result = statement.executeQuery()) {
+            if (!result.next()) {
+                return null;
+            }
+            return new GetTransactionInfoReturn(transactionId,
+                                                UuidBinary.fromBytes(result.getBytes(1)),
+                                                result.getInt(2),
+                                                result.getTimestamp(3),
+                                                result.getTimestamp(4),
+                                                TransactionAction.fromIndex(result.getInt(5)));
+        }
+    }
+
+    public GetTransactionInfoReturn getTransactionInfo(@NotNull GetTransactionInfoParameters parameters) throws SQLException {
+        return measureCall(PointsMetrics.Operation.GET_TRANSACTION_INFO, () -> getTransactionInfo(parameters.getTransactionId()));
+    }
+
+    /**
+     * Reads from a replica when replicas are configured, unless the transaction was changed through this driver and
+     * no replica has applied the change yet.
+     */
     private GetTransactionInfoReturn getTransactionInfo(long transactionId) throws SQLException {
-        logger.fine("Requesting info of transaction " + transactionId + "...");
-        try(Connection connection = getConnection();
-            PreparedStatement statement = connection.prepareStatement(GET_TRANSACTION_INFO_QUERY)) {
-            statement.setLong(1, transactionId);
-            try(ResultSet result = statement.executeQuery()) {
-                if (!result.next()) {
-                    logger.warning("Requested transaction " + transactionId + " is invalid!!");
-                    return null;
-                }
+        ConnectionPool pool = replicaRouter.forTransaction(transactionId);
+        try {
+            GetTransactionInfoReturn transactionInfo = getTransactionInfo(transactionId, pool);
+            if (pool != connectionPool) {
+                metrics.recordReplicaRead();
+            }
+            return transactionInfo;
+        } catch (SQLException ex) {
+            if (pool == connectionPool) {
+                throw ex;
+            }
+            replicaRouter.markFailed(pool);
+            return getTransactionInfo(transactionId, connectionPool);
+        }
+    }
+
+    // Keyset pagination on the (user_id, time, id) indexes of both the ledger and its archive,
+    // the cursor is the (time, id) of the last row read. A row is in exactly one of them at a time.
+    private static final String USER_HISTORY_QUERY = "SELECT id, " +
+                                                            "amount, " +
+                                                            "time, " +
+                                                            "expiry_time, " +
+                                                            "action + 0 " +
+                                                     "FROM ((SELECT id, amount, time, expiry_time, action " +
+                                                            "FROM Points.transaction " +
+                                                            "WHERE user_id = ? " +
+                                                                  "and time < ? " +
+                                                                  "and (time > ? or (time = ? and id > ?)) " +
+                                                            "ORDER BY time, id " +
+                                                            "LIMIT ?) " +
+                                                           "UNION ALL " +
+                                                           "(SELECT id, amount, time, expiry_time, action " +
+                                                            "FROM Points.transaction_archive " +
+                                                            "WHERE user_id = ? " +
+                                                                  "and time < ? " +
+                                                                  "and (time > ? or (time = ? and id > ?)) " +
+                                                            "ORDER BY time, id " +
+                                                            "LIMIT ?)) history " +
+                                                     "ORDER BY time, id " +
+                                                     "LIMIT ?";
+    /**
+     * Lazily streams the transactions of the user from {@code from} inclusive to {@code to} exclusive, oldest first.
+     *
+     * Every page of {@code pageSize} transactions is read with its own pooled connection when the stream reaches it,
+     * so no connection is held between pages and memory use does not depend on the length of the history.
+     * Pages are separate reads, transactions committed while streaming may show up if they are not past the cursor yet.
+     * Database errors are thrown from the stream as {@link UncheckedSQLException}.
+     */
+    public Stream<GetTransactionInfoReturn> streamUserHistory(@NotNull UserHistoryParameters parameters) {
+        return streamUserHistoryPages(parameters, (cursorTime, cursorId) -> readUserHistoryPage(parameters, cursorTime, cursorId));
+    }
 
-                UUID userId = UUID.fromString(result.getString(1));
-                int amount = result.getInt(2);
-                Timestamp time = result.getTimestamp(3);
-                Timestamp expiryTime = result.getTimestamp(4);
-                String action = result.getString(5);
+    public Stream<GetTransactionInfoReturn> streamUserHistory(@NotNull UUID userId,
+                                                              @NotNull Timestamp from,
+                                                              @NotNull Timestamp to,
+                                                              int pageSize) {
+        return streamUserHistory(new UserHistoryParameters(userId, from, to, pageSize));
+    }
 
-                logger.fine("Requesting info of transaction " + transactionId + " is successful!");
-                return new GetTransactionInfoReturn(transactionId,
-                                                    userId,
-                                                    amount,
-                                                    time,
-                                                    expiryTime,
-                                                    action);
+    interface UserHistoryPages {
+        List<GetTransactionInfoReturn> read(@NotNull Timestamp cursorTime, long cursorId) throws SQLException;
+    }
+
+    /**
+     * Streams the history like {@link #streamUserHistory(UserHistoryParameters)} from the pages {@code pages} reads
+     * after the time and id of the last transaction streamed.
+     */
+    static Stream<GetTransactionInfoReturn> streamUserHistoryPages(@NotNull UserHistoryParameters parameters, @NotNull UserHistoryPages pages) {
+        if (parameters.getPageSize() <= 0) {
+            throw new IllegalArgumentException("History page size has to be positive!!");
+        }
+        Iterator<GetTransactionInfoReturn> iterator = new UserHistoryIterator(parameters, pages);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    private static final class UserHistoryIterator implements Iterator<GetTransactionInfoReturn> {
+        UserHistoryIterator(@NotNull UserHistoryParameters parameters, @NotNull UserHistoryPages pages) {
+            this.parameters = parameters;
+            this.pages = pages;
+            this.cursorTime = parameters.getFrom();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (page.hasNext()) {
+                return true;
             }
+            if (lastPage) {
+                return false;
+            }
+            List<GetTransactionInfoReturn> rows;
+            try {
+                rows = pages.read(cursorTime, cursorId);
+            } catch (SQLException ex) {
+                throw new UncheckedSQLException(ex);
+            }
+            lastPage = rows.size() < parameters.getPageSize();
+            if (!rows.isEmpty()) {
+                GetTransactionInfoReturn last = rows.get(rows.size() - 1);
+                cursorTime = last.getTime();
+                cursorId = last.getTransactionId();
+            }
+            page = rows.iterator();
+            return page.hasNext();
+        }
+
+        @Override
+        public GetTransactionInfoReturn next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.next();
+        }
+
+        private final UserHistoryParameters parameters;
+        private final UserHistoryPages pages;
+        private Timestamp cursorTime;
+        private long cursorId = 0;
+        private Iterator<GetTransactionInfoReturn> page = Collections.emptyIterator();
+        private boolean lastPage = false;
+    }
+
+    /**
+     * The {@code pageSize} transactions of the history after {@code cursorTime} and {@code cursorId}.
+     */
+    List<GetTransactionInfoReturn> readUserHistoryPage(@NotNull UserHistoryParameters parameters,
+                                                       @NotNull Timestamp cursorTime,
+                                                       long cursorId) throws SQLException {
+        return measureCall(PointsMetrics.Operation.USER_HISTORY_PAGE, () -> queryUserHistoryPage(parameters, cursorTime, cursorId));
+    }
+
+    private List<GetTransactionInfoReturn> queryUserHistoryPage(@NotNull UserHistoryParameters parameters,
+                                                                @NotNull Timestamp cursorTime,
+                                                                long cursorId) throws SQLException {
+        UUID userId = parameters.getUserId();
+        logger.fine(() -> "Reading history of user " + userId + " after " + cursorTime + "...");
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement(USER_HISTORY_QUERY);
+            statement.setFetchSize(parameters.getPageSize());
+            byte[] userIdBytes = UuidBinary.toBytes(userId);
+            for (int offset = 0; offset <= 6; offset += 6) {
+                statement.setBytes(offset + 1, userIdBytes);
+                statement.setTimestamp(offset + 2, parameters.getTo());
+                statement.setTimestamp(offset + 3, cursorTime);
+                statement.setTimestamp(offset + 4, cursorTime);
+                statement.setLong(offset + 5, cursorId);
+                statement.setInt(offset + 6, parameters.getPageSize());
+            }
+            statement.setInt(13, parameters.getPageSize());
+            List<GetTransactionInfoReturn> rows = new ArrayList<>(parameters.getPageSize());
+            try(ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    rows.add(new GetTransactionInfoReturn(result.getLong(1),
+                                                          userId,
+                                                          result.getInt(2),
+                                                          result.getTimestamp(3),
+                                                          result.getTimestamp(4),
+                                                          TransactionAction.fromIndex(result.getInt(5))));
+                }
+            }
+            logger.fine(() -> "Read " + rows.size() + " transactions of user " + userId + "!");
+            return rows;
         } catch (SQLException ex) {
             logAndThrow(ex);
             throw new RuntimeException("Unreacheable code!");
         }
     }
 
-    public GetTransactionInfoReturn getTransactionInfo(@NotNull GetTransactionInfoParameters parameters) throws SQLException {
-        return getTransactionInfo(parameters.getTransactionId());
+    private static final String TRANSACTION_USER_QUERY = "SELECT user_id " +
+                                                         "FROM Points.transaction " +
+                                                         "WHERE id = ?";
+    /**
+     * Looks up the user of a transaction to take the user lock before working with the transaction.
+     */
+    private UUID getTransactionUser(long transactionId) throws SQLException {
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement(TRANSACTION_USER_QUERY);
+            statement.setLong(1, transactionId);
+            try(ResultSet result = statement.executeQuery()) {
+                return result.next() ? UuidBinary.fromBytes(result.getBytes(1)) : null;
+            }
+        } catch (SQLException ex) {
+            logAndThrow(ex);
+            throw new RuntimeException("Unreacheable code!");
+        }
     }
 
+    private static final String UPDATE_TEMPORARY_POINTS_LOCK = "SELECT total_temporary, " +
+                                                                      "payed_temporary, " +
+                                                                      "earliest_expiry_date " +
+                                                               "FROM Points.points " +
+                                                               "WHERE user_id = ? " +
+                                                               "FOR UPDATE";
     private static final String UPDATE_TEMPORARY_POINTS_SELECT_DELETED = "SELECT amount " +
                                                                          "FROM Points.temporary_points " +
-                                                                         "WHERE user_id = UUID_TO_BIN(?) and expiry_time < ?";
+                                                                         "WHERE user_id = ? and expiry_time < ?";
     private static final String UPDATE_TEMPORARY_POINTS_NEW = "SELECT amount, expiry_time " +
                                                               "FROM Points.temporary_points " +
-                                                              "WHERE user_id = UUID_TO_BIN(?) and expiry_time >= ? " +
+                                                              "WHERE user_id = ? and expiry_time >= ? " +
                                                               "ORDER BY expiry_time " +
                                                               "LIMIT 1";
     private static final String UPDATE_TEMPORARY_POINTS = "UPDATE Points.points " +
@@ -231,112 +957,168 @@ public class DatabaseDriver {
                                                               "payed_temporary = ?, " +
                                                               "earliest_expiry_date = ?, " +
                                                               "earliest_expiry_amount = ? " +
-                                                          "WHERE user_id = UUID_TO_BIN(?)";
+                                                          "WHERE user_id = ?";
     private static final String UPDATE_TEMPORARY_POINTS_DELETE = "DELETE FROM Points.temporary_points " +
-                                                                 "WHERE user_id = UUID_TO_BIN(?) and expiry_time < ?";
-    private void updateTemporaryPoints(@NotNull UUID userId, @NotNull Timestamp now) throws SQLException {
-        logger.fine("Updating temporary points of user " + userId.toString() + "...");
-
-        GetUserInfoReturn userInfo = getUserInfo(userId);
-        if (userInfo == null) {
-            logger.warning("Attempt to update temporary points of an invalid user " + userId.toString() + "!!");
-            return;
+                                                                 "WHERE user_id = ? and expiry_time < ?";
+    /**
+     * Expires temporary points of the user that are due at {@code now} inside the transaction of {@code connection}.
+     * The user row stays locked until the caller commits.
+     *
+     * @return false if the user is invalid
+     */
+    private boolean expireTemporaryPoints(@NotNull PooledConnection connection,
+                                          @NotNull UUID userId,
+                                          @NotNull byte[] userIdBytes,
+                                          @NotNull Timestamp now) throws SQLException {
+        long start = System.nanoTime();
+        try {
+            return expireDueTemporaryPoints(connection, userId, userIdBytes, now);
+        } finally {
+            metrics.recordTemporaryPointsExpiry(System.nanoTime() - start);
         }
+    }
 
-        if (userInfo.getEarliestExpiryDate() == null
-            || userInfo.getEarliestExpiryDate().after(now)) {
-            logger.fine("User " + userId.toString() + " temporary points are up to date!");
-            return;
+    private boolean expireDueTemporaryPoints(@NotNull PooledConnection connection,
+                                             @NotNull UUID userId,
+                                             @NotNull byte[] userIdBytes,
+                                             @NotNull Timestamp now) throws SQLException {
+        PreparedStatement statementLock = connection.prepareStatement(UPDATE_TEMPORARY_POINTS_LOCK);
+        statementLock.setBytes(1, userIdBytes);
+        int initialTotalTemporary;
+        int totalTemporary;
+        int payedTemporary;
+        try (ResultSet resultLock = statementLock.executeQuery()) {
+            if (!resultLock.next()) {
+                return false;
+            }
+            Timestamp earliestExpiryDate = resultLock.getTimestamp(3);
+            if (earliestExpiryDate == null || !earliestExpiryDate.before(now)) {
+                logger.fine(() -> "User " + userId + " temporary points are up to date!");
+                return true;
+            }
+            totalTemporary = resultLock.getInt(1);
+            payedTemporary = resultLock.getInt(2);
         }
-        int total = userInfo.getTotal();
-        int totalTemporary = userInfo.getTotalTemporary();
-        int payedTemporary = userInfo.getPayedTemporary();
-        try(Connection connection = getConnection();
-            PreparedStatement statementSelect = connection.prepareStatement(UPDATE_TEMPORARY_POINTS_SELECT_DELETED);
-            PreparedStatement statementSelectNew = connection.prepareStatement(UPDATE_TEMPORARY_POINTS_NEW);
-            PreparedStatement statement = connection.prepareStatement(UPDATE_TEMPORARY_POINTS);
-            PreparedStatement statementDelete = connection.prepareStatement(UPDATE_TEMPORARY_POINTS_DELETE)) {
-
-            statementSelect.setString(1, userId.toString());
-            statementSelect.setTimestamp(2, now);
-            try (ResultSet resultSelect = statementSelect.executeQuery()) {
-                while (resultSelect.next()) {
-                    int amount = resultSelect.getInt(1);
-                    if (payedTemporary >= amount) {
-                        payedTemporary -= amount;
-                    } else {
-                        if (payedTemporary > 0) {
-                            amount -= payedTemporary;
-                            payedTemporary = 0;
-                        }
-                        totalTemporary -= amount;
+        initialTotalTemporary = totalTemporary;
+
+        PreparedStatement statementSelect = connection.prepareStatement(UPDATE_TEMPORARY_POINTS_SELECT_DELETED);
+        PreparedStatement statementSelectNew = connection.prepareStatement(UPDATE_TEMPORARY_POINTS_NEW);
+        PreparedStatement statement = connection.prepareStatement(UPDATE_TEMPORARY_POINTS);
+        PreparedStatement statementDelete = connection.prepareStatement(UPDATE_TEMPORARY_POINTS_DELETE);
+
+        statementSelect.setBytes(1, userIdBytes);
+        statementSelect.setTimestamp(2, now);
+        try (ResultSet resultSelect = statementSelect.executeQuery()) {
+            while (resultSelect.next()) {
+                int amount = resultSelect.getInt(1);
+                if (payedTemporary >= amount) {
+                    payedTemporary -= amount;
+                } else {
+                    if (payedTemporary > 0) {
+                        amount -= payedTemporary;
+                        payedTemporary = 0;
                     }
+                    totalTemporary -= amount;
                 }
             }
+        }
 
-            Timestamp earliestExpiryDate = null;
-            int earliestExpiryAmount = 0;
+        Timestamp earliestExpiryDate = null;
+        int earliestExpiryAmount = 0;
 
-            statementSelectNew.setString(1, userId.toString());
-            statementSelectNew.setTimestamp(2, now);
-            try (ResultSet resultSelectNew = statementSelectNew.executeQuery()) {
-                if (resultSelectNew.next()) {
-                    earliestExpiryAmount = resultSelectNew.getInt(1);
-                    earliestExpiryDate = resultSelectNew.getTimestamp(2);
-                }
+        statementSelectNew.setBytes(1, userIdBytes);
+        statementSelectNew.setTimestamp(2, now);
+        try (ResultSet resultSelectNew = statementSelectNew.executeQuery()) {
+            if (resultSelectNew.next()) {
+                earliestExpiryAmount = resultSelectNew.getInt(1);
+                earliestExpiryDate = resultSelectNew.getTimestamp(2);
             }
+        }
 
-            statement.setInt(1, totalTemporary);
-            statement.setInt(2, payedTemporary);
-            statement.setTimestamp(3, earliestExpiryDate);
-            statement.setInt(4, earliestExpiryAmount);
-            statement.setString(5, userId.toString());
-            statement.executeUpdate();
+        statement.setInt(1, totalTemporary);
+        statement.setInt(2, payedTemporary);
+        statement.setTimestamp(3, earliestExpiryDate);
+        statement.setInt(4, earliestExpiryAmount);
+        statement.setBytes(5, userIdBytes);
+        statement.executeUpdate();
 
-            statementDelete.setString(1, userId.toString());
-            statementDelete.setTimestamp(2, now);
-            statementDelete.executeUpdate();
+        statementDelete.setBytes(1, userIdBytes);
+        statementDelete.setTimestamp(2, now);
+        statementDelete.executeUpdate();
 
+        dailyAggregates.record(connection, userId, DailyAction.EXPIRED, initialTotalTemporary - totalTemporary, now.getTime());
+        return true;
+    }
+
+    private void updateTemporaryPoints(@NotNull UUID userId, @NotNull Timestamp now) throws SQLException {
+        logger.fine(() -> "Updating temporary points of user " + userId + "...");
+
+        userLocks.lock(userId);
+        try(PooledConnection connection = connectionPool.acquire()) {
+            if (!expireTemporaryPoints(connection, userId, connection.userIdBytes(userId), now)) {
+                logger.warning("Attempt to update temporary points of an invalid user " + userId + "!!");
+                reportOutcome(PointsMetrics.Outcome.INVALID_USER);
+                return;
+            }
             connection.commit();
-            logger.fine("User " + userId.toString() + " temporary points successfully updated!");
+            userChanged(userId);
+            logger.fine(() -> "User " + userId + " temporary points successfully updated!");
         } catch (SQLException ex) {
             logAndThrow(ex);
+        } finally {
+            userLocks.unlock(userId);
         }
     }
 
     public void updateTemporaryPoints(@NotNull UpdateTemporaryPointsParameters parameters) throws SQLException {
-        updateTemporaryPoints(parameters.getUserId(), parameters.getUpdateTime());
-    }
-
-    private void updateTemporaryPoints(@NotNull UUID userId) throws SQLException {
-        updateTemporaryPoints(userId, new Timestamp(System.currentTimeMillis()));
+        measure(PointsMetrics.Operation.UPDATE_TEMPORARY_POINTS,
+                () -> execute(PointsMetrics.Operation.UPDATE_TEMPORARY_POINTS, () -> updateTemporaryPoints(parameters.getUserId(), parameters.getUpdateTime())));
     }
 
-    private static final String ADD_TEMPORARY_POINTS_HISTORY = "INSERT INTO Points.transaction " +
+    static final String ADD_TEMPORARY_POINTS_HISTORY = "INSERT INTO Points.transaction " +
                                                                "(user_id, amount, expiry_time, action) " +
-                                                               "VALUES (UUID_TO_BIN(?), ?, ?, \"temporary points addition\")";
-    private static final String ADD_TEMPORARY_POINTS_TEMP = "INSERT INTO Points.temporary_points " +
+                                                               "VALUES (?, ?, ?, \"temporary points addition\")";
+    static final String ADD_TEMPORARY_POINTS_TEMP = "INSERT INTO Points.temporary_points " +
                                                             "(user_id, transaction_id, amount, expiry_time) " +
-                                                            "VALUES (UUID_TO_BIN(?), ?, ?, ?)";
-    private static final String ADD_TEMPORARY_POINTS_USER = "UPDATE Points.points " +
+                                                            "VALUES (?, ?, ?, ?)";
+    // earliest_expiry_amount has to be assigned before earliest_expiry_date, MySQL applies assignments left to right.
+    static final String ADD_TEMPORARY_POINTS_USER = "UPDATE Points.points " +
                                                             "SET total_temporary = total_temporary + ?, " +
-                                                                "earliest_expiry_date = ?, " +
-                                                                "earliest_expiry_amount = ? " +
-                                                            "WHERE user_id = UUID_TO_BIN(?)";
+                                                                "earliest_expiry_amount = IF(earliest_expiry_date IS NULL or earliest_expiry_date >= ?, ?, earliest_expiry_amount), " +
+                                                                "earliest_expiry_date = IF(earliest_expiry_date IS NULL or earliest_expiry_date >= ?, ?, earliest_expiry_date) " +
+                                                            "WHERE user_id = ?";
     public void addTemporaryPoints(@NotNull AddTemporaryPointsParameters parameters) throws SQLException {
-        String userIdString = parameters.getUserId().toString();
-        logger.fine("Adding temporary points " + parameters.getAmount() + " to user " + userIdString + "...");
-
-        GetUserInfoReturn userInfo = getUserInfo(parameters.getUserId());
-        if (userInfo == null) {
-            logger.warning("Attempt to add temporary points to an invalid user " + userIdString + "!!");
-            return;
+        if (groupCommitter != null) {
+            measure(PointsMetrics.Operation.ADD_TEMPORARY_POINTS,
+                    () -> execute(PointsMetrics.Operation.ADD_TEMPORARY_POINTS, () -> awaitGroupCommit(groupCommitter.addTemporaryPoints(parameters))));
+            replicaRouter.pinUser(parameters.getUserId());
+        } else {
+            measure(PointsMetrics.Operation.ADD_TEMPORARY_POINTS, () -> execute(PointsMetrics.Operation.ADD_TEMPORARY_POINTS, () -> insertTemporaryPoints(parameters)));
         }
-        try(Connection connection = getConnection();
+    }
+
+    private void insertTemporaryPoints(@NotNull AddTemporaryPointsParameters parameters) throws SQLException {
+        logger.fine(() -> "Adding temporary points " + parameters.getAmount() + " to user " + parameters.getUserId() + "...");
+
+        userLocks.lock(parameters.getUserId());
+        try(PooledConnection connection = connectionPool.acquire()) {
+            byte[] userIdBytes = connection.userIdBytes(parameters.getUserId());
+            PreparedStatement statementUsers = connection.prepareStatement(ADD_TEMPORARY_POINTS_USER);
             PreparedStatement statementHistory = connection.prepareStatement(ADD_TEMPORARY_POINTS_HISTORY, Statement.RETURN_GENERATED_KEYS);
             PreparedStatement statementTemporary = connection.prepareStatement(ADD_TEMPORARY_POINTS_TEMP);
-            PreparedStatement statementUsers = connection.prepareStatement(ADD_TEMPORARY_POINTS_USER)) {
-            statementHistory.setString(1, parameters.getUserId().toString());
+            statementUsers.setInt(1, parameters.getAmount());
+            statementUsers.setTimestamp(2, parameters.getExpiryDate());
+            statementUsers.setInt(3, parameters.getAmount());
+            statementUsers.setTimestamp(4, parameters.getExpiryDate());
+            statementUsers.setTimestamp(5, parameters.getExpiryDate());
+            statementUsers.setBytes(6, userIdBytes);
+            if (statementUsers.executeUpdate() == 0) {
+                logger.warning("Attempt to add temporary points to an invalid user " + parameters.getUserId() + "!!");
+                reportOutcome(PointsMetrics.Outcome.INVALID_USER);
+                return;
+            }
+
+            statementHistory.setBytes(1, userIdBytes);
             statementHistory.setInt(2, parameters.getAmount());
             statementHistory.setTimestamp(3, parameters.getExpiryDate());
             statementHistory.executeUpdate();
@@ -348,61 +1130,168 @@ public class DatabaseDriver {
                 transactionId = resultHistory.getLong(1);
             }
 
-            statementTemporary.setString(1, parameters.getUserId().toString());
+            statementTemporary.setBytes(1, userIdBytes);
             statementTemporary.setLong(2, transactionId);
             statementTemporary.setInt(3, parameters.getAmount());
             statementTemporary.setTimestamp(4, parameters.getExpiryDate());
             statementTemporary.executeUpdate();
 
-            Timestamp earliestExpiryDate = parameters.getExpiryDate();
-            int earliestExpiryAmount = parameters.getAmount();
-            if (userInfo.getEarliestExpiryDate() != null
-                && userInfo.getEarliestExpiryDate().before(earliestExpiryDate)) {
-                earliestExpiryDate = userInfo.getEarliestExpiryDate();
-                earliestExpiryAmount = userInfo.getEarliestExpiryAmount();
+            dailyAggregates.record(connection, parameters.getUserId(), DailyAction.TEMPORARY_ISSUED, parameters.getAmount(), System.currentTimeMillis());
+            connection.commit();
+            userChanged(parameters.getUserId());
+            logger.fine(() -> "Added temporary points " + parameters.getAmount() + " to user " + parameters.getUserId() + "!");
+        } catch (SQLException ex) {
+            logAndThrow(ex);
+        } finally {
+            userLocks.unlock(parameters.getUserId());
+        }
+    }
+
+    public List<BatchItemResult> addTemporaryPointsBatch(@NotNull List<AddTemporaryPointsParameters> parameters) throws SQLException {
+        return addTemporaryPointsBatch(parameters.iterator(), DEFAULT_BATCH_CHUNK_SIZE);
+    }
+
+    /**
+     * Adds temporary points to many users with JDBC batches, committing every {@code chunkSize} grants.
+     * Grants to invalid users are reported as {@link BatchItemResult#INVALID_USER} and skipped.
+     * If a chunk fails, the chunks committed before it stay applied and a {@link PartialBatchException} reports them.
+     */
+    public List<BatchItemResult> addTemporaryPointsBatch(@NotNull Iterator<AddTemporaryPointsParameters> parameters, int chunkSize) throws SQLException {
+        return measureCall(PointsMetrics.Operation.ADD_TEMPORARY_POINTS_BATCH, () -> addTemporaryPointsChunks(parameters, chunkSize));
+    }
+
+    private List<BatchItemResult> addTemporaryPointsChunks(@NotNull Iterator<AddTemporaryPointsParameters> parameters, int chunkSize) throws SQLException {
+        List<BatchItemResult> results = new ArrayList<>();
+        List<AddTemporaryPointsParameters> chunk = new ArrayList<>(chunkSize);
+        while (parameters.hasNext()) {
+            chunk.add(parameters.next());
+            if (chunk.size() == chunkSize || !parameters.hasNext()) {
+                try {
+                    execute(PointsMetrics.Operation.ADD_TEMPORARY_POINTS_BATCH, () -> addTemporaryPointsChunk(chunk, results));
+                } catch (SQLException ex) {
+                    throw partialBatch(results, chunk.size(), ex);
+                }
+                chunk.clear();
             }
+        }
+        return results;
+    }
 
-            statementUsers.setInt(1, parameters.getAmount());
-            statementUsers.setTimestamp(2, earliestExpiryDate);
-            statementUsers.setInt(3, earliestExpiryAmount);
-            statementUsers.setString(4, parameters.getUserId().toString());
-            statementUsers.executeUpdate();
+    private void addTemporaryPointsChunk(@NotNull List<AddTemporaryPointsParameters> chunk, @NotNull List<BatchItemResult> results) throws SQLException {
+        logger.fine(() -> "Adding temporary points to a batch of " + chunk.size() + " users...");
 
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statementUsers = connection.prepareStatement(ADD_TEMPORARY_POINTS_USER);
+            PreparedStatement statementHistory = connection.prepareStatement(ADD_TEMPORARY_POINTS_HISTORY, Statement.RETURN_GENERATED_KEYS);
+            PreparedStatement statementTemporary = connection.prepareStatement(ADD_TEMPORARY_POINTS_TEMP);
+            DailyAggregates.Batch aggregates = dailyAggregates.newBatch();
+            long now = System.currentTimeMillis();
+            statementUsers.clearBatch();
+            statementHistory.clearBatch();
+            statementTemporary.clearBatch();
+            for (AddTemporaryPointsParameters parameters : chunk) {
+                statementUsers.setInt(1, parameters.getAmount());
+                statementUsers.setTimestamp(2, parameters.getExpiryDate());
+                statementUsers.setInt(3, parameters.getAmount());
+                statementUsers.setTimestamp(4, parameters.getExpiryDate());
+                statementUsers.setTimestamp(5, parameters.getExpiryDate());
+                statementUsers.setBytes(6, UuidBinary.toBytes(parameters.getUserId()));
+                statementUsers.addBatch();
+            }
+            int[] updated = statementUsers.executeBatch();
+
+            for (int i = 0; i < chunk.size(); ++i) {
+                if (updated[i] == 0) {
+                    continue;
+                }
+                statementHistory.setBytes(1, UuidBinary.toBytes(chunk.get(i).getUserId()));
+                statementHistory.setInt(2, chunk.get(i).getAmount());
+                statementHistory.setTimestamp(3, chunk.get(i).getExpiryDate());
+                statementHistory.addBatch();
+            }
+            statementHistory.executeBatch();
+
+            try(ResultSet resultHistory = statementHistory.getGeneratedKeys()) {
+                for (int i = 0; i < chunk.size(); ++i) {
+                    if (updated[i] == 0) {
+                        continue;
+                    }
+                    Boolean hasAnswer = resultHistory.next();
+                    assert hasAnswer;
+                    statementTemporary.setBytes(1, UuidBinary.toBytes(chunk.get(i).getUserId()));
+                    statementTemporary.setLong(2, resultHistory.getLong(1));
+                    statementTemporary.setInt(3, chunk.get(i).getAmount());
+                    statementTemporary.setTimestamp(4, chunk.get(i).getExpiryDate());
+                    statementTemporary.addBatch();
+                    aggregates.add(chunk.get(i).getUserId(), DailyAction.TEMPORARY_ISSUED, chunk.get(i).getAmount(), now);
+                }
+            }
+            statementTemporary.executeBatch();
+
+            aggregates.write(connection);
             connection.commit();
-            logger.fine("Added temporary points " + parameters.getAmount() + " to user " + userIdString + "!");
+            for (AddTemporaryPointsParameters parameters : chunk) {
+                userChanged(parameters.getUserId());
+            }
+            addBatchResults(chunk.size(), updated, results, "Attempt to add temporary points to an invalid user ", i -> chunk.get(i).getUserId());
+            logger.fine(() -> "Temporary points successfully added to a batch of " + chunk.size() + " users!");
         } catch (SQLException ex) {
             logAndThrow(ex);
         }
     }
 
     private static final String RESERVE_POINTS_QUERY_HISTORY = "INSERT INTO transaction " +
-                                                               "(user_id, amount, time, action)" +
-                                                               "VALUES(UUID_TO_BIN(?), ?, ?, \"reserve\")";
+                                                               "(user_id, amount, time, expiry_time, action)" +
+                                                               "VALUES(?, ?, ?, ?, \"reserve\")";
     private static final String RESERVE_POINTS_QUERY_USER = "UPDATE Points.points " +
-                                                            "SET reserved = ? " +
-                                                            "WHERE user_id = UUID_TO_BIN(?)";
+                                                            "SET reserved = reserved + ? " +
+                                                            "WHERE user_id = ? " +
+                                                                  "and total + total_temporary >= reserved + ? " +
+                                                                  "and (earliest_expiry_date IS NULL or earliest_expiry_date >= ?)";
+    /**
+     * Reservations expire after their ttlMillis, or the reservationTtlMillis of the driver when it is not given.
+     * Expired reservations are canceled by {@link ReservationReaper}, until then they can still be written off.
+     */
     public ReservePointsReturn reservePoints(@NotNull ReservePointsParameters parameters) throws SQLException {
-        String userIdString = parameters.getUserId().toString();
-        logger.fine("Reserving points " + parameters.getAmount() + " of user " + userIdString + "...");
-
-        GetUserInfoReturn userInfo = getUserInfo(parameters.getUserId());
-        if (userInfo == null) {
-            logger.warning("Attempt to reserve points of an invalid user " + userIdString + "!!");
-            return null;
-        }
+        return measureCall(PointsMetrics.Operation.RESERVE_POINTS, () -> executeCall(PointsMetrics.Operation.RESERVE_POINTS, () -> reserve(parameters)));
+    }
 
-        updateTemporaryPoints(parameters.getUserId());
+    private ReservePointsReturn reserve(@NotNull ReservePointsParameters parameters) throws SQLException {
+        logger.fine(() -> "Reserving points " + parameters.getAmount() + " of user " + parameters.getUserId() + "...");
 
-        if (userInfo.getTotal() + userInfo.getTotalTemporary() < userInfo.getReserved() + parameters.getAmount()) {
-            logger.warning("Selected user " + userIdString + " does not have points enough (total: " + userInfo.getTotal() + ", temporary: " + userInfo.getTotalTemporary() + ", reserved: " + userInfo.getReserved() + ") to make a reservation of " + parameters.getAmount() + "!!");
-            return new ReservePointsReturn(-1);
-        }
-        try(Connection connection = getConnection();
+        userLocks.lock(parameters.getUserId());
+        try(PooledConnection connection = connectionPool.acquire()) {
+            byte[] userIdBytes = connection.userIdBytes(parameters.getUserId());
+            PreparedStatement statementUsers = connection.prepareStatement(RESERVE_POINTS_QUERY_USER);
             PreparedStatement statementHistory = connection.prepareStatement(RESERVE_POINTS_QUERY_HISTORY, Statement.RETURN_GENERATED_KEYS);
-            PreparedStatement statementUsers = connection.prepareStatement(RESERVE_POINTS_QUERY_USER)) {
-            statementHistory.setString(1, parameters.getUserId().toString());
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            statementUsers.setInt(1, parameters.getAmount());
+            statementUsers.setBytes(2, userIdBytes);
+            statementUsers.setInt(3, parameters.getAmount());
+            statementUsers.setTimestamp(4, now);
+            if (statementUsers.executeUpdate() == 0) {
+                // The user is invalid, has not got points enough or has temporary points to expire first.
+                if (!expireTemporaryPoints(connection, parameters.getUserId(), userIdBytes, now)) {
+                    logger.warning("Attempt to reserve points of an invalid user " + parameters.getUserId() + "!!");
+                    reportOutcome(PointsMetrics.Outcome.INVALID_USER);
+                    return null;
+                }
+                if (statementUsers.executeUpdate() == 0) {
+                    PreparedStatement statementInfo = connection.prepareStatement(GET_USER_INFO_QUERY);
+                    statementInfo.setBytes(1, userIdBytes);
+                    GetUserInfoReturn userInfo = readUserInfo(statementInfo, parameters.getUserId());
+                    connection.commit();
+                    userChanged(parameters.getUserId());
+                    logger.warning("Selected user " + parameters.getUserId() + " does not have points enough (total: " + userInfo.getTotal() + ", temporary: " + userInfo.getTotalTemporary() + ", reserved: " + userInfo.getReserved() + ") to make a reservation of " + parameters.getAmount() + "!!");
+                    reportOutcome(PointsMetrics.Outcome.INSUFFICIENT_POINTS);
+                    return new ReservePointsReturn(-1);
+                }
+            }
+
+            statementHistory.setBytes(1, userIdBytes);
             statementHistory.setInt(2, parameters.getAmount());
-            statementHistory.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+            statementHistory.setTimestamp(3, now);
+            statementHistory.setTimestamp(4, reservationExpiry(parameters, now));
             statementHistory.executeUpdate();
 
             long transactionId = -1;
@@ -413,62 +1302,82 @@ public class DatabaseDriver {
                 transactionId = result_history.getLong(1);
             }
 
-            statementUsers.setInt(1, userInfo.getReserved() + parameters.getAmount());
-            statementUsers.setString(2, userIdString);
-            statementUsers.executeUpdate();
-
             connection.commit();
-            logger.fine("Reserved successfully points " + parameters.getAmount() + " of user " + userIdString + " in transaction " + transactionId + "!");
+            userChanged(parameters.getUserId());
+            replicaRouter.pinTransaction(transactionId);
+            long reservedTransactionId = transactionId;
+            logger.fine(() -> "Reserved successfully points " + parameters.getAmount() + " of user " + parameters.getUserId() + " in transaction " + reservedTransactionId + "!");
             return new ReservePointsReturn(transactionId);
         } catch (SQLException ex) {
             logAndThrow(ex);
             throw new RuntimeException("Unreacheable code!");
+        } finally {
+            userLocks.unlock(parameters.getUserId());
         }
     }
 
-    private static final String CANCEL_TRANSACTION_QUERY_HISTORY = "UPDATE transaction " +
-                                                                   "SET action = \"canceled\"" +
-                                                                   "WHERE id = ?";
-    private static final String CANCEL_TRANSACTION_QUERY_USER = "UPDATE Points.points " +
-                                                                "SET reserved = ? " +
-                                                                "WHERE user_id = UUID_TO_BIN(?)";
-    public void cancelTransaction(long transactionId) throws SQLException {
-        logger.fine("Canceling transaction " + transactionId + "...");
-        GetTransactionInfoReturn transactionInfo = getTransactionInfo(transactionId);
-        if (transactionInfo == null) {
-            logger.warning("Attempt to cancel an invalid transaction " + transactionId + "!!");
-            return;
-        }
-        if (transactionInfo.getAction().equals("committed")) {
-            logger.severe("Canceling committed transaction " + transactionId + "!!");
-            throw new SQLException("Canceling committed transaction!!");
-        } else if (transactionInfo.getAction().equals("canceled")) {
-            logger.warning("Canceling already canceled transaction " + transactionId + "!");
-            return;
-        } else if (!transactionInfo.getAction().equals("reserve")) {
-            logger.severe("Canceling transaction " + transactionId + " of wrong type!!");
-            throw new SQLException("Wrong type transaction calcelation!!");
-        }
-
-        try(Connection connection = getConnection();
-            PreparedStatement statementHistory = connection.prepareStatement(CANCEL_TRANSACTION_QUERY_HISTORY);
-            PreparedStatement statementUser = connection.prepareStatement(CANCEL_TRANSACTION_QUERY_USER)) {
+    private Timestamp reservationExpiry(@NotNull ReservePointsParameters parameters, @NotNull Timestamp now) {
+        long ttlMillis = parameters.getTtlMillis() > 0 ? parameters.getTtlMillis() : configuration.getReservationTtlMillis();
+        return ttlMillis > 0 ? new Timestamp(now.getTime() + ttlMillis) : null;
+    }
 
-            statementHistory.setLong(1, transactionId);
-            statementHistory.executeUpdate();
+    private static final String CANCEL_TRANSACTION_QUERY = "UPDATE Points.transaction t " +
+                                                           "JOIN Points.points p ON p.user_id = t.user_id " +
+                                                           "SET t.action = \"canceled\", " +
+                                                               "p.reserved = p.reserved - t.amount " +
+                                                           "WHERE t.id = ? and t.action = \"reserve\"";
+    private static final String CANCEL_TRANSACTION_QUERY_ACTION = "SELECT action + 0 " +
+                                                                  "FROM Points.transaction " +
+                                                                  "WHERE id = ? " +
+                                                                  "UNION ALL " +
+                                                                  "SELECT action + 0 " +
+                                                                  "FROM Points.transaction_archive " +
+                                                                  "WHERE id = ?";
+    public void cancelTransaction(long transactionId) throws SQLException {
+        measure(PointsMetrics.Operation.CANCEL_TRANSACTION, () -> execute(PointsMetrics.Operation.CANCEL_TRANSACTION, () -> cancel(transactionId)));
+    }
 
-            GetUserInfoReturn userInfo = getUserInfo(transactionInfo.getUserId());
-            int reserved = userInfo.getReserved();
-            reserved -= transactionInfo.getAmount();
+    private void cancel(long transactionId) throws SQLException {
+        logger.fine(() -> "Canceling transaction " + transactionId + "...");
+        // The user is only needed to lock it, to drop its cached info or to pin its reads to the primary.
+        UUID userId = userLocks.isEnabled() || userInfoCache.isEnabled() || replicaRouter.hasReplicas() ? getTransactionUser(transactionId) : null;
 
-            statementUser.setInt(1, reserved);
-            statementUser.setString(2, transactionInfo.getUserId().toString());
-            statementUser.executeUpdate();
+        userLocks.lock(userId);
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statement = connection.prepareStatement(CANCEL_TRANSACTION_QUERY);
+            statement.setLong(1, transactionId);
+            if (statement.executeUpdate() > 0) {
+                connection.commit();
+                if (userId != null) {
+                    userChanged(userId);
+                }
+                replicaRouter.pinTransaction(transactionId);
+                logger.fine(() -> "Canceled transaction " + transactionId + " successfully!");
+                return;
+            }
 
-            connection.commit();
-            logger.fine("Canceled transaction " + transactionId + " successfully!");
+            PreparedStatement statementAction = connection.prepareStatement(CANCEL_TRANSACTION_QUERY_ACTION);
+            statementAction.setLong(1, transactionId);
+            statementAction.setLong(2, transactionId);
+            try(ResultSet result = statementAction.executeQuery()) {
+                if (!result.next()) {
+                    logger.warning("Attempt to cancel an invalid transaction " + transactionId + "!!");
+                    reportOutcome(PointsMetrics.Outcome.INVALID_TRANSACTION);
+                    return;
+                }
+                TransactionAction action = TransactionAction.fromIndex(result.getInt(1));
+                if (action == TransactionAction.COMMITTED) {
+                    throw new SQLException("Canceling committed transaction " + transactionId + "!!");
+                } else if (action == TransactionAction.CANCELED) {
+                    logger.warning("Canceling already canceled transaction " + transactionId + "!");
+                } else {
+                    throw new SQLException("Canceling transaction " + transactionId + " of wrong type!!");
+                }
+            }
         } catch (SQLException ex) {
             logAndThrow(ex);
+        } finally {
+            userLocks.unlock(userId);
         }
     }
 
@@ -476,82 +1385,431 @@ public class DatabaseDriver {
         cancelTransaction(parameters.getTransactionId());
     }
 
+    private static final String WRITE_OFF_QUERY_LOCK = "SELECT user_id, " +
+                                                              "amount, " +
+                                                              "action + 0, " +
+                                                              "time " +
+                                                       "FROM Points.transaction " +
+                                                       "WHERE id = ? " +
+                                                       "FOR UPDATE";
+    private static final String WRITE_OFF_QUERY_ARCHIVED = "SELECT action + 0 " +
+                                                           "FROM Points.transaction_archive " +
+                                                           "WHERE id = ?";
     private static final String WRITE_OFF_QUERY_HISTORY = "UPDATE transaction " +
                                                           "SET action = \"committed\"" +
                                                           "WHERE id = ?";
+    // Temporary points are spent first. total_temporary has to be assigned last,
+    // MySQL applies assignments left to right.
     private static final String WRITE_OFF_QUERY_USER = "UPDATE Points.points " +
-                                                       "SET total = ?, " +
-                                                       "total_temporary = ?, " +
-                                                       "payed_temporary = ?, " +
-                                                       "reserved = ? " +
-                                                       "WHERE user_id = UUID_TO_BIN(?)";
+                                                       "SET payed_temporary = payed_temporary + LEAST(?, total_temporary), " +
+                                                           "total = total - (? - LEAST(?, total_temporary)), " +
+                                                           "reserved = reserved - ?, " +
+                                                           "total_temporary = total_temporary - LEAST(?, total_temporary) " +
+                                                       "WHERE user_id = ? " +
+                                                             "and total + total_temporary >= ? " +
+                                                             "and (earliest_expiry_date IS NULL or earliest_expiry_date >= ?)";
     public void writeOffPoints(long transactionId) throws SQLException {
-        logger.fine("Writing off points from transaction " + transactionId + "...");
+        measure(PointsMetrics.Operation.WRITE_OFF_POINTS, () -> execute(PointsMetrics.Operation.WRITE_OFF_POINTS, () -> writeOff(transactionId)));
+    }
 
-        GetTransactionInfoReturn transactionInfo = getTransactionInfo(transactionId);
-        if (transactionInfo == null) {
-            logger.warning("Attempt to commit an invalid transaction " + transactionId + "!!");
-            return;
+    private void writeOff(long transactionId) throws SQLException {
+        logger.fine(() -> "Writing off points from transaction " + transactionId + "...");
+        UUID lockedUserId = userLocks.isEnabled() ? getTransactionUser(transactionId) : null;
+
+        userLocks.lock(lockedUserId);
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statementLock = connection.prepareStatement(WRITE_OFF_QUERY_LOCK);
+            statementLock.setLong(1, transactionId);
+            UUID userId = null;
+            int amount = 0;
+            TransactionAction action = null;
+            Timestamp reserved = null;
+            try(ResultSet result = statementLock.executeQuery()) {
+                if (result.next()) {
+                    userId = UuidBinary.fromBytes(result.getBytes(1));
+                    amount = result.getInt(2);
+                    action = TransactionAction.fromIndex(result.getInt(3));
+                    reserved = result.getTimestamp(4);
+                }
+            }
+            if (action == null) {
+                // Archived transactions are finished, committing them again is diagnosed like for live ones.
+                PreparedStatement statementArchived = connection.prepareStatement(WRITE_OFF_QUERY_ARCHIVED);
+                statementArchived.setLong(1, transactionId);
+                try(ResultSet result = statementArchived.executeQuery()) {
+                    if (!result.next()) {
+                        logger.warning("Attempt to commit an invalid transaction " + transactionId + "!!");
+                        reportOutcome(PointsMetrics.Outcome.INVALID_TRANSACTION);
+                        return;
+                    }
+                    action = TransactionAction.fromIndex(result.getInt(1));
+                }
+            }
+            if (action == TransactionAction.COMMITTED) {
+                logger.warning("Commiting already committed transaction " + transactionId + "!");
+                return;
+            } else if (action == TransactionAction.CANCELED) {
+                throw new SQLException("Commiting canceled transaction " + transactionId + "!!");
+            } else if (action != TransactionAction.RESERVE) {
+                throw new SQLException("Commiting transaction " + transactionId + " of wrong type!!");
+            }
+
+            PreparedStatement statementUser = connection.prepareStatement(WRITE_OFF_QUERY_USER);
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            statementUser.setInt(1, amount);
+            statementUser.setInt(2, amount);
+            statementUser.setInt(3, amount);
+            statementUser.setInt(4, amount);
+            statementUser.setInt(5, amount);
+            statementUser.setBytes(6, connection.userIdBytes(userId));
+            statementUser.setInt(7, amount);
+            statementUser.setTimestamp(8, now);
+            if (statementUser.executeUpdate() == 0) {
+                // Either temporary points are to expire first or the user has not got points enough.
+                expireTemporaryPoints(connection, userId, connection.userIdBytes(userId), now);
+                if (statementUser.executeUpdate() == 0) {
+                    logger.warning("Selected user " + userId + " does not have points enough to commit transaction " + transactionId + ", that requires " + amount + " points!!");
+                    PreparedStatement statementCancel = connection.prepareStatement(CANCEL_TRANSACTION_QUERY);
+                    statementCancel.setLong(1, transactionId);
+                    statementCancel.executeUpdate();
+                    connection.commit();
+                    userChanged(userId);
+                    replicaRouter.pinTransaction(transactionId);
+                    reportOutcome(PointsMetrics.Outcome.INSUFFICIENT_POINTS);
+                    logger.fine(() -> "Canceled transaction " + transactionId + " successfully!");
+                    return;
+                }
+            }
+
+            PreparedStatement statementHistory = connection.prepareStatement(WRITE_OFF_QUERY_HISTORY);
+            statementHistory.setLong(1, transactionId);
+            statementHistory.executeUpdate();
+
+            DailyAggregates.Batch aggregates = dailyAggregates.newBatch();
+            aggregates.add(userId, DailyAction.SPENT, amount, now.getTime(), reserved.getTime());
+            aggregates.write(connection);
+            connection.commit();
+            userChanged(userId);
+            replicaRouter.pinTransaction(transactionId);
+            logger.fine(() -> "Committed transaction " + transactionId + " successfully!");
+        } catch (SQLException ex) {
+            logAndThrow(ex);
+        } finally {
+            userLocks.unlock(lockedUserId);
         }
+    }
 
-        if (transactionInfo.getAction().equals("committed")) {
-            logger.warning("Commiting already committed transaction " + transactionId + "!");
-            return;
-        } else if (transactionInfo.getAction().equals("canceled")) {
-            logger.severe("Commiting canceled transaction " + transactionId + "!!");
-            throw new SQLException("Commiting canceled transaction!!");
-        } else if (!transactionInfo.getAction().equals("reserve")) {
-            logger.severe("Commiting transaction " + transactionId + " of wrong type!!");
-            throw new SQLException("Wrong transaction commiting!!");
-        }
-        updateTemporaryPoints(transactionInfo.getUserId());
-
-        GetUserInfoReturn userInfo = getUserInfo(transactionInfo.getUserId());
-        if (userInfo.getTotal() + userInfo.getTotalTemporary() < transactionInfo.getAmount()) {
-            logger.warning("Selected user " + userInfo.getUserId().toString() + " does not have points enough (total: " + userInfo.getTotal() + ", temporary: " + userInfo.getTotalTemporary() + ", reserved: " + userInfo.getReserved() + ") to commit transaction " + transactionId + ", that requires " + transactionInfo.getAmount() + " points!!");
-            cancelTransaction(transactionId);
-        } else {
-            int amount = transactionInfo.getAmount();
-            int total = userInfo.getTotal();
-            int totalTemporary = userInfo.getTotalTemporary();
-            int payedTemporary = userInfo.getPayedTemporary();
-            int reserved = userInfo.getReserved();
-            if (amount < totalTemporary) {
-                totalTemporary -= amount;
-                payedTemporary += amount;
-            } else if (totalTemporary == 0) {
-                total -= amount;
-                assert total >= 0;
-            } else {
-                total -= amount - totalTemporary;
-                totalTemporary = 0;
-                payedTemporary += totalTemporary;
-            }
-            try(Connection connection = getConnection();
-                PreparedStatement statementHistory = connection.prepareStatement(WRITE_OFF_QUERY_HISTORY);
-                PreparedStatement statementUser = connection.prepareStatement(WRITE_OFF_QUERY_USER)) {
-                statementHistory.setLong(1, transactionId);
-                statementHistory.executeUpdate();
-
-                statementUser.setInt(1, total);
-                statementUser.setInt(2, totalTemporary);
-                statementUser.setInt(3, payedTemporary);
-                statementUser.setInt(4, reserved);
-                statementUser.setString(5, userInfo.getUserId().toString());
-                statementUser.executeUpdate();
+    public void writeOffPoints(@NotNull WriteOffPointsParameters parameters) throws SQLException {
+        writeOffPoints(parameters.getTransactionId());
+    }
 
-                connection.commit();
-                logger.fine("Committed transaction " + transactionId + " successfully!");
+    private static final String SETTLE_BATCH_LOCK = "SELECT id, " +
+                                                           "user_id, " +
+                                                           "amount, " +
+                                                           "action + 0, " +
+                                                           "time " +
+                                                    "FROM Points.transaction " +
+                                                    "WHERE id IN (%s) " +
+                                                    "ORDER BY id " +
+                                                    "FOR UPDATE";
+    private static final String SETTLE_BATCH_ARCHIVED = "SELECT id, " +
+                                                               "action + 0 " +
+                                                        "FROM Points.transaction_archive " +
+                                                        "WHERE id IN (%s)";
+    /**
+     * Writes off many reservations with a few statements per chunk of {@code DEFAULT_BATCH_CHUNK_SIZE} transactions,
+     * each chunk in its own database transaction.
+     *
+     * The reservations of a user are committed in id order while the user has points enough, the rest are canceled
+     * like a single write-off does. Settling a transaction in a way its state forbids is reported, not thrown.
+     * Users are not locked in the process, their rows are locked in the database.
+     *
+     * @return outcome of every transaction, in the order of {@code transactionIds}
+     */
+    public List<SettlementResult> writeOffPointsBatch(@NotNull List<Long> transactionIds) throws SQLException {
+        return writeOffPointsBatch(transactionIds, DEFAULT_BATCH_CHUNK_SIZE);
+    }
+
+    /**
+     * Writes off many reservations in chunks of {@code chunkSize} transactions. If a chunk fails, the chunks committed
+     * before it stay settled and a {@link PartialBatchException} reports them.
+     */
+    public List<SettlementResult> writeOffPointsBatch(@NotNull List<Long> transactionIds, int chunkSize) throws SQLException {
+        return measureCall(PointsMetrics.Operation.WRITE_OFF_POINTS_BATCH, () -> settleChunks(transactionIds, true, chunkSize));
+    }
+
+    /**
+     * Cancels many reservations, in chunks like {@link #writeOffPointsBatch}.
+     *
+     * @return outcome of every transaction, in the order of {@code transactionIds}
+     */
+    public List<SettlementResult> cancelTransactionBatch(@NotNull List<Long> transactionIds) throws SQLException {
+        return cancelTransactionBatch(transactionIds, DEFAULT_BATCH_CHUNK_SIZE);
+    }
+
+    /**
+     * Cancels many reservations in chunks of {@code chunkSize} transactions, failures are reported like by
+     * {@link #writeOffPointsBatch(List, int)}.
+     */
+    public List<SettlementResult> cancelTransactionBatch(@NotNull List<Long> transactionIds, int chunkSize) throws SQLException {
+        return measureCall(PointsMetrics.Operation.CANCEL_TRANSACTION_BATCH, () -> settleChunks(transactionIds, false, chunkSize));
+    }
+
+    private List<SettlementResult> settleChunks(@NotNull List<Long> transactionIds, boolean writeOff, int chunkSize) throws SQLException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Batch chunk size has to be positive!!");
+        }
+        Map<Long, SettlementResult> outcomes = new HashMap<>();
+        List<Long> distinctIds = new ArrayList<>(new LinkedHashSet<>(transactionIds));
+        for (int from = 0; from < distinctIds.size(); from += chunkSize) {
+            List<Long> chunk = distinctIds.subList(from, Math.min(distinctIds.size(), from + chunkSize));
+            // Outcomes are put before the commit, so only those of committed chunks are kept.
+            Map<Long, SettlementResult> chunkOutcomes = new HashMap<>();
+            try {
+                execute(writeOff ? PointsMetrics.Operation.WRITE_OFF_POINTS_BATCH : PointsMetrics.Operation.CANCEL_TRANSACTION_BATCH,
+                        () -> {
+                            chunkOutcomes.clear();
+                            settleChunk(chunk, writeOff, chunkOutcomes);
+                        });
             } catch (SQLException ex) {
-                logAndThrow(ex);
+                if (outcomes.isEmpty()) {
+                    throw ex;
+                }
+                throw new PartialBatchException(settlementResults(transactionIds, outcomes), ex);
             }
+            outcomes.putAll(chunkOutcomes);
         }
+        return settlementResults(transactionIds, outcomes);
+    }
 
+    private static List<SettlementResult> settlementResults(@NotNull List<Long> transactionIds, @NotNull Map<Long, SettlementResult> outcomes) {
+        List<SettlementResult> results = new ArrayList<>(transactionIds.size());
+        for (long transactionId : transactionIds) {
+            results.add(outcomes.get(transactionId));
+        }
+        return results;
     }
 
-    public void writeOffPoints(@NotNull WriteOffPointsParameters parameters) throws SQLException {
-        writeOffPoints(parameters.getTransactionId());
+    private static final class Reservation {
+        Reservation(long transactionId, int amount, @NotNull Timestamp time) {
+            this.transactionId = transactionId;
+            this.amount = amount;
+            this.time = time;
+        }
+
+        final long transactionId;
+        final int amount;
+        final Timestamp time;
+    }
+
+    private void settleChunk(@NotNull List<Long> transactionIds,
+                             boolean writeOff,
+                             @NotNull Map<Long, SettlementResult> outcomes) throws SQLException {
+        logger.fine(() -> "Settling " + transactionIds.size() + " transactions...");
+        // Users are settled in key order, so that concurrent batches lock them in the same order.
+        Map<ByteBuffer, List<Reservation>> reservationsByUser = new TreeMap<>();
+        try(PooledConnection connection = connectionPool.acquire()) {
+            Set<Long> missingIds = new HashSet<>(transactionIds);
+            try(PreparedStatement statementLock = connection.getConnection().prepareStatement(String.format(SETTLE_BATCH_LOCK, placeholders(transactionIds.size())))) {
+                setLongs(statementLock, 1, transactionIds);
+                try(ResultSet result = statementLock.executeQuery()) {
+                    while (result.next()) {
+                        long transactionId = result.getLong(1);
+                        missingIds.remove(transactionId);
+                        TransactionAction action = TransactionAction.fromIndex(result.getInt(4));
+                        if (action == TransactionAction.RESERVE) {
+                            reservationsByUser.computeIfAbsent(ByteBuffer.wrap(result.getBytes(2)), user -> new ArrayList<>())
+                                              .add(new Reservation(transactionId, result.getInt(3), result.getTimestamp(5)));
+                        } else {
+                            outcomes.put(transactionId, settledOutcome(transactionId, action, writeOff));
+                        }
+                    }
+                }
+            }
+            if (!missingIds.isEmpty()) {
+                try(PreparedStatement statementArchived = connection.getConnection().prepareStatement(String.format(SETTLE_BATCH_ARCHIVED, placeholders(missingIds.size())))) {
+                    setLongs(statementArchived, 1, missingIds);
+                    try(ResultSet result = statementArchived.executeQuery()) {
+                        while (result.next()) {
+                            long transactionId = result.getLong(1);
+                            missingIds.remove(transactionId);
+                            outcomes.put(transactionId, settledOutcome(transactionId, TransactionAction.fromIndex(result.getInt(2)), writeOff));
+                        }
+                    }
+                }
+                for (long transactionId : missingIds) {
+                    logger.warning("Attempt to settle an invalid transaction " + transactionId + "!!");
+                    outcomes.put(transactionId, SettlementResult.INVALID_TRANSACTION);
+                }
+            }
+            if (reservationsByUser.isEmpty()) {
+                return;
+            }
+
+            if (writeOff) {
+                writeOffReservations(connection, reservationsByUser, outcomes);
+            } else {
+                cancelReservations(connection, reservationsByUser, outcomes);
+            }
+            connection.commit();
+            for (Map.Entry<ByteBuffer, List<Reservation>> user : reservationsByUser.entrySet()) {
+                userChanged(UuidBinary.fromBytes(user.getKey().array()));
+                for (Reservation reservation : user.getValue()) {
+                    replicaRouter.pinTransaction(reservation.transactionId);
+                }
+            }
+            logger.fine(() -> "Settled " + transactionIds.size() + " transactions successfully!");
+        } catch (SQLException ex) {
+            logAndThrow(ex);
+        }
+    }
+
+    private SettlementResult settledOutcome(long transactionId, @NotNull TransactionAction action, boolean writeOff) {
+        if (action == (writeOff ? TransactionAction.COMMITTED : TransactionAction.CANCELED)) {
+            logger.warning("Settling already settled transaction " + transactionId + "!");
+            return SettlementResult.ALREADY_SETTLED;
+        }
+        logger.warning("Attempt to " + (writeOff ? "commit " : "cancel ") + action.getColumn() + " transaction " + transactionId + "!!");
+        return SettlementResult.CONFLICTING_STATE;
+    }
+
+    private static final String WRITE_OFF_BATCH_USERS = "SELECT user_id, " +
+                                                               "total, " +
+                                                               "total_temporary, " +
+                                                               "earliest_expiry_date " +
+                                                        "FROM Points.points " +
+                                                        "WHERE user_id IN (%s) " +
+                                                        "ORDER BY user_id " +
+                                                        "FOR UPDATE";
+    // Same as WRITE_OFF_QUERY_USER for the sum of the committed reservations of a user,
+    // with the canceled ones released from reserved as well.
+    private static final String WRITE_OFF_BATCH_USER = "UPDATE Points.points " +
+                                                       "SET payed_temporary = payed_temporary + LEAST(?, total_temporary), " +
+                                                           "total = total - (? - LEAST(?, total_temporary)), " +
+                                                           "reserved = reserved - ?, " +
+                                                           "total_temporary = total_temporary - LEAST(?, total_temporary) " +
+                                                       "WHERE user_id = ?";
+    private static final String WRITE_OFF_BATCH_ACTION = "UPDATE Points.transaction " +
+                                                         "SET action = IF(id IN (%s), \"committed\", \"canceled\") " +
+                                                         "WHERE id IN (%s)";
+    private void writeOffReservations(@NotNull PooledConnection connection,
+                                      @NotNull Map<ByteBuffer, List<Reservation>> reservationsByUser,
+                                      @NotNull Map<Long, SettlementResult> outcomes) throws SQLException {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Map<ByteBuffer, Long> available = new HashMap<>();
+        List<UUID> expiring = new ArrayList<>();
+        try(PreparedStatement statementUsers = connection.getConnection().prepareStatement(String.format(WRITE_OFF_BATCH_USERS, placeholders(reservationsByUser.size())))) {
+            int index = 1;
+            for (ByteBuffer userId : reservationsByUser.keySet()) {
+                statementUsers.setBytes(index++, userId.array());
+            }
+            try(ResultSet result = statementUsers.executeQuery()) {
+                while (result.next()) {
+                    Timestamp earliestExpiryDate = result.getTimestamp(4);
+                    if (earliestExpiryDate != null && earliestExpiryDate.before(now)) {
+                        expiring.add(UuidBinary.fromBytes(result.getBytes(1)));
+                    } else {
+                        available.put(ByteBuffer.wrap(result.getBytes(1)), (long) result.getInt(2) + result.getInt(3));
+                    }
+                }
+            }
+        }
+        // Due temporary points expire before the balance is used, as for a single write-off.
+        // Several users in one transaction, so their ids are not bound from the buffer of the connection.
+        for (UUID userId : expiring) {
+            byte[] userIdBytes = UuidBinary.toBytes(userId);
+            expireTemporaryPoints(connection, userId, userIdBytes, now);
+            PreparedStatement statementInfo = connection.prepareStatement(GET_USER_INFO_QUERY);
+            statementInfo.setBytes(1, userIdBytes);
+            GetUserInfoReturn userInfo = readUserInfo(statementInfo, userId);
+            available.put(ByteBuffer.wrap(userIdBytes), (long) userInfo.getTotal() + userInfo.getTotalTemporary());
+        }
+
+        List<Long> committedIds = new ArrayList<>();
+        List<Long> settledIds = new ArrayList<>();
+        DailyAggregates.Batch aggregates = dailyAggregates.newBatch();
+        PreparedStatement statementUser = connection.prepareStatement(WRITE_OFF_BATCH_USER);
+        statementUser.clearBatch();
+        for (Map.Entry<ByteBuffer, List<Reservation>> user : reservationsByUser.entrySet()) {
+            UUID userId = UuidBinary.fromBytes(user.getKey().array());
+            long left = available.getOrDefault(user.getKey(), 0L);
+            int spent = 0;
+            int released = 0;
+            for (Reservation reservation : user.getValue()) {
+                settledIds.add(reservation.transactionId);
+                released += reservation.amount;
+                if (reservation.amount <= left) {
+                    left -= reservation.amount;
+                    spent += reservation.amount;
+                    committedIds.add(reservation.transactionId);
+                    outcomes.put(reservation.transactionId, SettlementResult.SETTLED);
+                    aggregates.add(userId, DailyAction.SPENT, reservation.amount, now.getTime(), reservation.time.getTime());
+                } else {
+                    logger.warning("Selected user " + userId + " does not have points enough to commit transaction " + reservation.transactionId + ", that requires " + reservation.amount + " points!!");
+                    outcomes.put(reservation.transactionId, SettlementResult.INSUFFICIENT_POINTS);
+                }
+            }
+            statementUser.setInt(1, spent);
+            statementUser.setInt(2, spent);
+            statementUser.setInt(3, spent);
+            statementUser.setInt(4, released);
+            statementUser.setInt(5, spent);
+            statementUser.setBytes(6, user.getKey().array());
+            statementUser.addBatch();
+        }
+        statementUser.executeBatch();
+
+        // id IN (NULL) matches nothing when every reservation is canceled.
+        String committed = committedIds.isEmpty() ? "NULL" : placeholders(committedIds.size());
+        try(PreparedStatement statementAction = connection.getConnection().prepareStatement(String.format(WRITE_OFF_BATCH_ACTION, committed, placeholders(settledIds.size())))) {
+            int index = setLongs(statementAction, 1, committedIds);
+            setLongs(statementAction, index, settledIds);
+            statementAction.executeUpdate();
+        }
+        aggregates.write(connection);
+    }
+
+    private static final String CANCEL_BATCH_USER = "UPDATE Points.points " +
+                                                    "SET reserved = reserved - ? " +
+                                                    "WHERE user_id = ?";
+    private static final String CANCEL_BATCH_ACTION = "UPDATE Points.transaction " +
+                                                      "SET action = \"canceled\" " +
+                                                      "WHERE id IN (%s)";
+    private void cancelReservations(@NotNull PooledConnection connection,
+                                    @NotNull Map<ByteBuffer, List<Reservation>> reservationsByUser,
+                                    @NotNull Map<Long, SettlementResult> outcomes) throws SQLException {
+        List<Long> canceledIds = new ArrayList<>();
+        PreparedStatement statementUser = connection.prepareStatement(CANCEL_BATCH_USER);
+        statementUser.clearBatch();
+        for (Map.Entry<ByteBuffer, List<Reservation>> user : reservationsByUser.entrySet()) {
+            int released = 0;
+            for (Reservation reservation : user.getValue()) {
+                released += reservation.amount;
+                canceledIds.add(reservation.transactionId);
+                outcomes.put(reservation.transactionId, SettlementResult.SETTLED);
+            }
+            statementUser.setInt(1, released);
+            statementUser.setBytes(2, user.getKey().array());
+            statementUser.addBatch();
+        }
+        statementUser.executeBatch();
+
+        try(PreparedStatement statementAction = connection.getConnection().prepareStatement(String.format(CANCEL_BATCH_ACTION, placeholders(canceledIds.size())))) {
+            setLongs(statementAction, 1, canceledIds);
+            statementAction.executeUpdate();
+        }
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    private static int setLongs(@NotNull PreparedStatement statement, int index, @NotNull Collection<Long> values) throws SQLException {
+        for (long value : values) {
+            statement.setLong(index++, value);
+        }
+        return index;
     }
 
-    private Logger logger = Logger.getLogger​("DatabaseDriver");
+    private Logger logger = Logger.getLogger("DatabaseDriver");
 }
@@ -0,0 +1,379 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Savepoint;
+import java.sql.Statement;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Applies points additions of concurrent callers in shared transactions, so that one commit serves many of them.
+ *
+ * A committer thread takes the queued additions once {@code maxBatchSize} of them are waiting or
+ * {@code maxDelayMillis} after the first one came, locks the points rows of their users with one statement
+ * in user id order and applies them with JDBC batches. If a statement of the batch fails, the transaction is rolled back and the additions are applied one by one,
+ * each behind a savepoint, so that only the failing caller gets the error. Additions to invalid users
+ * are reported as {@link BatchItemResult#INVALID_USER} to their callers.
+ */
+final class GroupCommitter implements AutoCloseable {
+    GroupCommitter(@NotNull ConnectionPool connectionPool,
+                   @NotNull UserInfoCache userInfoCache,
+                   @NotNull DailyAggregates dailyAggregates,
+                   @NotNull GroupCommitConfiguration configuration,
+                   @NotNull Logger logger) {
+        if (configuration.getMaxBatchSize() <= 0) {
+            throw new IllegalArgumentException("Group commit batch size has to be positive!!");
+        }
+        this.connectionPool = connectionPool;
+        this.userInfoCache = userInfoCache;
+        this.dailyAggregates = dailyAggregates;
+        this.configuration = configuration;
+        this.logger = logger;
+        this.committer = new Thread(this::commitGroups, "group-committer");
+        this.committer.setDaemon(true);
+    }
+
+    void start() {
+        committer.start();
+    }
+
+    private static final class Pending {
+        Pending(@NotNull UUID userId, @NotNull AddPointsParameters points) {
+            this.userId = userId;
+            this.points = points;
+            this.temporaryPoints = null;
+        }
+
+        Pending(@NotNull UUID userId, @NotNull AddTemporaryPointsParameters temporaryPoints) {
+            this.userId = userId;
+            this.points = null;
+            this.temporaryPoints = temporaryPoints;
+        }
+
+        final UUID userId;
+        final AddPointsParameters points;
+        final AddTemporaryPointsParameters temporaryPoints;
+        final CompletableFuture<BatchItemResult> result = new CompletableFuture<>();
+    }
+
+    CompletableFuture<BatchItemResult> addPoints(@NotNull AddPointsParameters parameters) {
+        return enqueue(new Pending(parameters.getUserId(), parameters));
+    }
+
+    CompletableFuture<BatchItemResult> addTemporaryPoints(@NotNull AddTemporaryPointsParameters parameters) {
+        return enqueue(new Pending(parameters.getUserId(), parameters));
+    }
+
+    private synchronized CompletableFuture<BatchItemResult> enqueue(@NotNull Pending pending) {
+        if (closed) {
+            pending.result.completeExceptionally(new SQLException("Group committer is closed!!"));
+        } else {
+            queue.add(pending);
+        }
+        return pending.result;
+    }
+
+    /**
+     * Stops taking additions and commits the ones already queued.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        committer.interrupt();
+        try {
+            committer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        List<Pending> group = new ArrayList<>();
+        queue.drainTo(group);
+        if (!group.isEmpty()) {
+            commit(group);
+        }
+    }
+
+    private void commitGroups() {
+        List<Pending> group = new ArrayList<>(configuration.getMaxBatchSize());
+        while (!closed) {
+            try {
+                group.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(configuration.getMaxDelayMillis());
+                while (group.size() < configuration.getMaxBatchSize()) {
+                    if (queue.drainTo(group, configuration.getMaxBatchSize() - group.size()) > 0) {
+                        continue;
+                    }
+                    Pending next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+            } catch (InterruptedException ex) {
+                // Closing, what is taken is committed and the rest is left to close.
+            }
+            if (!group.isEmpty()) {
+                commit(group);
+                group.clear();
+            }
+        }
+    }
+
+    private static final Comparator<Pending> USER_ORDER = (left, right) -> UuidBinary.compare(left.userId, right.userId);
+
+    private void commit(@NotNull List<Pending> group) {
+        // Users are updated in key order, so that concurrent transactions lock them in the same order.
+        group.sort(USER_ORDER);
+        List<Pending> points = new ArrayList<>();
+        List<Pending> temporaryPoints = new ArrayList<>();
+        for (Pending pending : group) {
+            (pending.points != null ? points : temporaryPoints).add(pending);
+        }
+        logger.fine(() -> "Committing a group of " + group.size() + " additions...");
+
+        List<Object> results;
+        try(PooledConnection connection = connectionPool.acquire()) {
+            try {
+                lockUsers(connection, group);
+                results = new ArrayList<>(group.size());
+                for (int updated : addPoints(connection, points)) {
+                    results.add(updated == 0 ? BatchItemResult.INVALID_USER : BatchItemResult.APPLIED);
+                }
+                for (int updated : addTemporaryPoints(connection, temporaryPoints)) {
+                    results.add(updated == 0 ? BatchItemResult.INVALID_USER : BatchItemResult.APPLIED);
+                }
+            } catch (SQLTransactionRollbackException ex) {
+                throw ex;
+            } catch (SQLException ex) {
+                logger.warning("Group of " + group.size() + " additions failed, applying them one by one: " + ex.getMessage());
+                connection.rollback();
+                lockUsers(connection, group);
+                results = commitOneByOne(connection, points, temporaryPoints);
+            }
+            recordAggregates(connection, points, temporaryPoints, results);
+            connection.commit();
+        } catch (SQLException | RuntimeException ex) {
+            logger.severe("Committing a group of " + group.size() + " additions failed: " + ex.getMessage());
+            for (Pending pending : group) {
+                pending.result.completeExceptionally(ex);
+            }
+            return;
+        }
+
+        List<Pending> ordered = new ArrayList<>(points);
+        ordered.addAll(temporaryPoints);
+        for (int i = 0; i < ordered.size(); ++i) {
+            Pending pending = ordered.get(i);
+            userInfoCache.invalidate(pending.userId);
+            Object result = results.get(i);
+            if (result instanceof SQLException) {
+                pending.result.completeExceptionally((SQLException) result);
+            } else {
+                if (result == BatchItemResult.INVALID_USER) {
+                    logger.warning((pending.points != null ? "Attempt to add points to invalid user " : "Attempt to add temporary points to an invalid user ") + pending.userId.toString() + "!!");
+                }
+                pending.result.complete((BatchItemResult) result);
+            }
+        }
+        logger.fine(() -> "Committed a group of " + group.size() + " additions!");
+    }
+
+    private static final String LOCK_USERS = "SELECT user_id " +
+                                             "FROM Points.points " +
+                                             "WHERE user_id IN (%s) " +
+                                             "ORDER BY user_id " +
+                                             "FOR UPDATE";
+    /**
+     * Locks the points row of every user of the sorted group at once, in key order, before any of them is updated.
+     * The passes over points and temporary points then only update rows the transaction holds already.
+     */
+    private static void lockUsers(@NotNull PooledConnection connection, @NotNull List<Pending> group) throws SQLException {
+        List<UUID> users = new ArrayList<>(group.size());
+        for (Pending pending : group) {
+            if (users.isEmpty() || !users.get(users.size() - 1).equals(pending.userId)) {
+                users.add(pending.userId);
+            }
+        }
+        String placeholders = String.join(", ", Collections.nCopies(users.size(), "?"));
+        try(PreparedStatement statement = connection.getConnection().prepareStatement(String.format(LOCK_USERS, placeholders))) {
+            for (int i = 0; i < users.size(); ++i) {
+                statement.setBytes(i + 1, UuidBinary.toBytes(users.get(i)));
+            }
+            // Users missing from the result are invalid, their additions update no row.
+            statement.executeQuery().close();
+        }
+    }
+
+    /**
+     * Applies every addition behind a savepoint of its own.
+     *
+     * @return result or failure of every addition, additions of points first
+     */
+    private List<Object> commitOneByOne(@NotNull PooledConnection connection,
+                                        @NotNull List<Pending> points,
+                                        @NotNull List<Pending> temporaryPoints) throws SQLException {
+        List<Object> results = new ArrayList<>(points.size() + temporaryPoints.size());
+        for (Pending pending : points) {
+            results.add(applyBehindSavepoint(connection, pending, () -> addPoints(connection, Collections.singletonList(pending))));
+        }
+        for (Pending pending : temporaryPoints) {
+            results.add(applyBehindSavepoint(connection, pending, () -> addTemporaryPoints(connection, Collections.singletonList(pending))));
+        }
+        return results;
+    }
+
+    private void recordAggregates(@NotNull PooledConnection connection,
+                                  @NotNull List<Pending> points,
+                                  @NotNull List<Pending> temporaryPoints,
+                                  @NotNull List<Object> results) throws SQLException {
+        DailyAggregates.Batch aggregates = dailyAggregates.newBatch();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < points.size(); ++i) {
+            if (results.get(i) == BatchItemResult.APPLIED) {
+                aggregates.add(points.get(i).userId, DailyAction.ISSUED, points.get(i).points.getAmount(), now);
+            }
+        }
+        for (int i = 0; i < temporaryPoints.size(); ++i) {
+            if (results.get(points.size() + i) == BatchItemResult.APPLIED) {
+                aggregates.add(temporaryPoints.get(i).userId, DailyAction.TEMPORARY_ISSUED, temporaryPoints.get(i).temporaryPoints.getAmount(), now);
+            }
+        }
+        aggregates.write(connection);
+    }
+
+    private interface Addition {
+        int[] apply() throws SQLException;
+    }
+
+    private static Object applyBehindSavepoint(@NotNull PooledConnection connection,
+                                               @NotNull Pending pending,
+                                               @NotNull Addition addition) throws SQLException {
+        Savepoint savepoint = connection.getConnection().setSavepoint();
+        try {
+            int[] updated = addition.apply();
+            connection.getConnection().releaseSavepoint(savepoint);
+            return updated[0] == 0 ? BatchItemResult.INVALID_USER : BatchItemResult.APPLIED;
+        } catch (SQLTransactionRollbackException ex) {
+            // The whole transaction is gone, so are the additions applied before.
+            throw ex;
+        } catch (SQLException ex) {
+            connection.getConnection().rollback(savepoint);
+            return ex;
+        }
+    }
+
+    /**
+     * @return updated points rows of every addition, 0 for invalid users
+     */
+    private static int[] addPoints(@NotNull PooledConnection connection, @NotNull List<Pending> additions) throws SQLException {
+        if (additions.isEmpty()) {
+            return new int[0];
+        }
+        PreparedStatement statement = connection.prepareStatement(DatabaseDriver.ADD_POINTS_QUERY);
+        PreparedStatement statementHistory = connection.prepareStatement(DatabaseDriver.ADD_POINTS_QUERY_HISTORY);
+        statement.clearBatch();
+        statementHistory.clearBatch();
+        for (Pending pending : additions) {
+            statement.setInt(1, pending.points.getAmount());
+            statement.setBytes(2, UuidBinary.toBytes(pending.userId));
+            statement.addBatch();
+        }
+        int[] updated = statement.executeBatch();
+
+        for (int i = 0; i < additions.size(); ++i) {
+            if (updated[i] == 0) {
+                continue;
+            }
+            statementHistory.setBytes(1, UuidBinary.toBytes(additions.get(i).userId));
+            statementHistory.setInt(2, additions.get(i).points.getAmount());
+            statementHistory.addBatch();
+        }
+        statementHistory.executeBatch();
+        return updated;
+    }
+
+    /**
+     * @return updated points rows of every addition, 0 for invalid users
+     */
+    private static int[] addTemporaryPoints(@NotNull PooledConnection connection, @NotNull List<Pending> additions) throws SQLException {
+        if (additions.isEmpty()) {
+            return new int[0];
+        }
+        PreparedStatement statementUsers = connection.prepareStatement(DatabaseDriver.ADD_TEMPORARY_POINTS_USER);
+        PreparedStatement statementHistory = connection.prepareStatement(DatabaseDriver.ADD_TEMPORARY_POINTS_HISTORY, Statement.RETURN_GENERATED_KEYS);
+        PreparedStatement statementTemporary = connection.prepareStatement(DatabaseDriver.ADD_TEMPORARY_POINTS_TEMP);
+        statementUsers.clearBatch();
+        statementHistory.clearBatch();
+        statementTemporary.clearBatch();
+        for (Pending pending : additions) {
+            AddTemporaryPointsParameters parameters = pending.temporaryPoints;
+            statementUsers.setInt(1, parameters.getAmount());
+            statementUsers.setTimestamp(2, parameters.getExpiryDate());
+            statementUsers.setInt(3, parameters.getAmount());
+            statementUsers.setTimestamp(4, parameters.getExpiryDate());
+            statementUsers.setTimestamp(5, parameters.getExpiryDate());
+            statementUsers.setBytes(6, UuidBinary.toBytes(pending.userId));
+            statementUsers.addBatch();
+        }
+        int[] updated = statementUsers.executeBatch();
+
+        for (int i = 0; i < additions.size(); ++i) {
+            if (updated[i] == 0) {
+                continue;
+            }
+            AddTemporaryPointsParameters parameters = additions.get(i).temporaryPoints;
+            statementHistory.setBytes(1, UuidBinary.toBytes(parameters.getUserId()));
+            statementHistory.setInt(2, parameters.getAmount());
+            statementHistory.setTimestamp(3, parameters.getExpiryDate());
+            statementHistory.addBatch();
+        }
+        statementHistory.executeBatch();
+
+        try(ResultSet resultHistory = statementHistory.getGeneratedKeys()) {
+            for (int i = 0; i < additions.size(); ++i) {
+                if (updated[i] == 0) {
+                    continue;
+                }
+                AddTemporaryPointsParameters parameters = additions.get(i).temporaryPoints;
+                Boolean hasAnswer = resultHistory.next();
+                assert hasAnswer;
+                statementTemporary.setBytes(1, UuidBinary.toBytes(parameters.getUserId()));
+                statementTemporary.setLong(2, resultHistory.getLong(1));
+                statementTemporary.setInt(3, parameters.getAmount());
+                statementTemporary.setTimestamp(4, parameters.getExpiryDate());
+                statementTemporary.addBatch();
+            }
+        }
+        statementTemporary.executeBatch();
+        return updated;
+    }
+
+    private final ConnectionPool connectionPool;
+    private final UserInfoCache userInfoCache;
+    private final DailyAggregates dailyAggregates;
+    private final GroupCommitConfiguration configuration;
+    private final Logger logger;
+    private final Thread committer;
+    private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+    private volatile boolean closed = false;
+}
@@ -0,0 +1,662 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import java.sql.Timestamp;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * {@link PointsStore} kept in the heap, for edge caches, load tests and fast unit tests.
+ *
+ * Every user has an immutable balance record updated with compare-and-set, so adding, reserving and settling points
+ * never block. Temporary points of a user are kept in a min-heap by expiry time, which is guarded by the user record,
+ * and only adding and expiring them lock it. Reserving and settling a single transaction is serialized on the
+ * transaction. The ledger is kept for the lifetime of the store.
+ */
+public class InMemoryPointsStore implements PointsStore {
+    public InMemoryPointsStore(@NotNull InMemoryPointsStoreConfiguration configuration, @NotNull Logger parentLogger) {
+        this(configuration, parentLogger, null);
+    }
+
+    public InMemoryPointsStore(@NotNull Logger parentLogger) {
+        this(new InMemoryPointsStoreConfiguration(), parentLogger);
+    }
+
+    public InMemoryPointsStore() {
+        this.configuration = new InMemoryPointsStoreConfiguration();
+        this.journal = null;
+    }
+
+    /**
+     * Every change is passed to {@code journal} right after it is applied, replaying the entries in the same order
+     * with {@link #replay} restores the store. Changes of the temporary points of a user and of a transaction are
+     * passed holding the user and the transaction, the rest are plain additions and commute.
+     */
+    InMemoryPointsStore(@NotNull InMemoryPointsStoreConfiguration configuration,
+                        @NotNull Logger parentLogger,
+                        @Nullable Consumer<JournalEntry> journal) {
+        logger.setParent(parentLogger);
+        logger.setLevel(null);
+        this.configuration = configuration;
+        this.journal = journal;
+    }
+
+    private final InMemoryPointsStoreConfiguration configuration;
+    private final Consumer<JournalEntry> journal;
+    private final ConcurrentHashMap<UUID, UserRecord> users = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Transaction> transactions = new ConcurrentHashMap<>();
+    private final AtomicLong lastTransactionId = new AtomicLong();
+
+    private static final class Balance {
+        Balance(int total, int totalTemporary, int payedTemporary, int reserved, @Nullable Timestamp earliestExpiryDate, int earliestExpiryAmount) {
+            this.total = total;
+            this.totalTemporary = totalTemporary;
+            this.payedTemporary = payedTemporary;
+            this.reserved = reserved;
+            this.earliestExpiryDate = earliestExpiryDate;
+            this.earliestExpiryAmount = earliestExpiryAmount;
+        }
+
+        boolean hasDueTemporaryPoints(@NotNull Timestamp now) {
+            return earliestExpiryDate != null && earliestExpiryDate.before(now);
+        }
+
+        Balance adjust(int total, int totalTemporary, int payedTemporary, int reserved) {
+            return new Balance(this.total + total,
+                               this.totalTemporary + totalTemporary,
+                               this.payedTemporary + payedTemporary,
+                               this.reserved + reserved,
+                               earliestExpiryDate,
+                               earliestExpiryAmount);
+        }
+
+        Balance withEarliestExpiry(@Nullable Timestamp earliestExpiryDate, int earliestExpiryAmount) {
+            return new Balance(total, totalTemporary, payedTemporary, reserved, earliestExpiryDate, earliestExpiryAmount);
+        }
+
+        final int total;
+        final int totalTemporary;
+        final int payedTemporary;
+        final int reserved;
+        final Timestamp earliestExpiryDate;
+        final int earliestExpiryAmount;
+    }
+
+    private static final class TemporaryGrant {
+        TemporaryGrant(long transactionId, int amount, @NotNull Timestamp expiryDate) {
+            this.transactionId = transactionId;
+            this.amount = amount;
+            this.expiryDate = expiryDate;
+        }
+
+        final long transactionId;
+        final int amount;
+        final Timestamp expiryDate;
+    }
+
+    private static final Comparator<Transaction> HISTORY_ORDER = Comparator.<Transaction>comparingLong(transaction -> transaction.time.getTime())
+                                                                           .thenComparingLong(transaction -> transaction.id);
+
+    private static final class UserRecord {
+        UserRecord(@NotNull UUID userId, int total) {
+            this.userId = userId;
+            this.balance = new AtomicReference<>(new Balance(total, 0, 0, 0, null, 0));
+        }
+
+        GetUserInfoReturn toUserInfo() {
+            Balance current = balance.get();
+            return new GetUserInfoReturn(userId,
+                                         current.total,
+                                         current.totalTemporary,
+                                         current.payedTemporary,
+                                         current.reserved,
+                                         current.earliestExpiryDate,
+                                         current.earliestExpiryAmount);
+        }
+
+        final UUID userId;
+        final AtomicReference<Balance> balance;
+        // Guarded by the record.
+        final PriorityQueue<TemporaryGrant> grants = new PriorityQueue<>(Comparator.comparing(grant -> grant.expiryDate));
+        final ConcurrentSkipListSet<Transaction> history = new ConcurrentSkipListSet<>(HISTORY_ORDER);
+    }
+
+    private static final class Transaction {
+        Transaction(long id, @NotNull UUID userId, int amount, @NotNull Timestamp time, @Nullable Timestamp expiryTime, @NotNull TransactionAction action) {
+            this.id = id;
+            this.userId = userId;
+            this.amount = amount;
+            this.time = time;
+            this.expiryTime = expiryTime;
+            this.action = action;
+        }
+
+        GetTransactionInfoReturn toTransactionInfo() {
+            return new GetTransactionInfoReturn(id, userId, amount, time, expiryTime, action);
+        }
+
+        final long id;
+        final UUID userId;
+        final int amount;
+        final Timestamp time;
+        final Timestamp expiryTime;
+        // Changed only while holding the transaction.
+        volatile TransactionAction action;
+    }
+
+    private Transaction record(@NotNull UserRecord user, int amount, @NotNull Timestamp time, @Nullable Timestamp expiryTime, @NotNull TransactionAction action) {
+        return addTransaction(user, new Transaction(lastTransactionId.incrementAndGet(), user.userId, amount, time, expiryTime, action));
+    }
+
+    private Transaction addTransaction(@NotNull UserRecord user, @NotNull Transaction transaction) {
+        transactions.put(transaction.id, transaction);
+        user.history.add(transaction);
+        return transaction;
+    }
+
+    private <T extends Exception> void logAndThrow(@NotNull T ex) throws T {
+        logger.severe(ex.getMessage());
+        throw ex;
+    }
+
+    @Override
+    public void addUser(@NotNull AddUserParameters parameters) {
+        UserRecord user = new UserRecord(parameters.getUserId(), parameters.getTotal());
+        if (users.putIfAbsent(parameters.getUserId(), user) != null) {
+            logger.warning("Attempt to add already added user " + parameters.getUserId().toString() + "!!");
+            return;
+        }
+        Transaction transaction = record(user, parameters.getTotal(), now(), null, TransactionAction.ADD_USER);
+        if (journal != null) {
+            journal.accept(JournalEntry.addUser(transaction.id, user.userId, parameters.getTotal(), transaction.time));
+        }
+    }
+
+    @Override
+    public void addPoints(@NotNull AddPointsParameters parameters) {
+        if (!applyPoints(parameters)) {
+            logger.warning("Attempt to add points to invalid user " + parameters.getUserId().toString() + "!!");
+        }
+    }
+
+    private boolean applyPoints(@NotNull AddPointsParameters parameters) {
+        UserRecord user = users.get(parameters.getUserId());
+        if (user == null) {
+            return false;
+        }
+        adjust(user, parameters.getAmount(), 0, 0, 0);
+        Transaction transaction = record(user, parameters.getAmount(), now(), null, TransactionAction.ADD_POINTS);
+        if (journal != null) {
+            journal.accept(JournalEntry.addPoints(transaction.id, user.userId, parameters.getAmount(), transaction.time));
+        }
+        return true;
+    }
+
+    private static void adjust(@NotNull UserRecord user, int total, int totalTemporary, int payedTemporary, int reserved) {
+        Balance current;
+        do {
+            current = user.balance.get();
+        } while (!user.balance.compareAndSet(current, current.adjust(total, totalTemporary, payedTemporary, reserved)));
+    }
+
+    @Override
+    public List<BatchItemResult> addPointsBatch(@NotNull List<AddPointsParameters> parameters) {
+        return addPointsBatch(parameters.iterator(), parameters.size());
+    }
+
+    /**
+     * Every grant is applied on its own, {@code chunkSize} does not matter.
+     */
+    @Override
+    public List<BatchItemResult> addPointsBatch(@NotNull Iterator<AddPointsParameters> parameters, int chunkSize) {
+        List<BatchItemResult> results = new ArrayList<>();
+        while (parameters.hasNext()) {
+            AddPointsParameters grant = parameters.next();
+            if (applyPoints(grant)) {
+                results.add(BatchItemResult.APPLIED);
+            } else {
+                logger.warning("Attempt to add points to invalid user " + grant.getUserId().toString() + "!!");
+                results.add(BatchItemResult.INVALID_USER);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public GetUserInfoReturn getUserInfo(@NotNull GetUserInfoParameters parameters) {
+        UserRecord user = users.get(parameters.getUserId());
+        if (user == null) {
+            logger.warning("Requested user " + parameters.getUserId().toString() + " is invalid!!");
+            return null;
+        }
+        return user.toUserInfo();
+    }
+
+    @Override
+    public GetTransactionInfoReturn getTransactionInfo(@NotNull GetTransactionInfoParameters parameters) {
+        Transaction transaction = transactions.get(parameters.getTransactionId());
+        if (transaction == null) {
+            logger.warning("Requested transaction " + parameters.getTransactionId() + " is invalid!!");
+            return null;
+        }
+        return transaction.toTransactionInfo();
+    }
+
+    @Override
+    public Stream<GetTransactionInfoReturn> streamUserHistory(@NotNull UserHistoryParameters parameters) {
+        if (parameters.getPageSize() <= 0) {
+            throw new IllegalArgumentException("History page size has to be positive!!");
+        }
+        UserRecord user = users.get(parameters.getUserId());
+        if (user == null || !parameters.getFrom().before(parameters.getTo())) {
+            return Stream.empty();
+        }
+        Transaction from = new Transaction(Long.MIN_VALUE, user.userId, 0, parameters.getFrom(), null, TransactionAction.ADD_USER);
+        Transaction to = new Transaction(Long.MIN_VALUE, user.userId, 0, parameters.getTo(), null, TransactionAction.ADD_USER);
+        return user.history.subSet(from, to).stream().map(Transaction::toTransactionInfo);
+    }
+
+    @Override
+    public void updateTemporaryPoints(@NotNull UpdateTemporaryPointsParameters parameters) {
+        UserRecord user = users.get(parameters.getUserId());
+        if (user == null) {
+            logger.warning("Attempt to update temporary points of an invalid user " + parameters.getUserId().toString() + "!!");
+            return;
+        }
+        expireTemporaryPoints(user, parameters.getUpdateTime());
+    }
+
+    private void expireTemporaryPoints(@NotNull UserRecord user, @NotNull Timestamp now) {
+        if (!user.balance.get().hasDueTemporaryPoints(now)) {
+            return;
+        }
+        synchronized (user) {
+            int expired = popDueGrants(user, now);
+            // Same as the expiry in the database: points already payed are expired first.
+            Balance current;
+            int expiredPayed;
+            do {
+                current = user.balance.get();
+                expiredPayed = Math.min(expired, current.payedTemporary);
+            } while (!user.balance.compareAndSet(current, current.adjust(0, -(expired - expiredPayed), -expiredPayed, 0)));
+            refreshEarliestExpiry(user);
+            if (journal != null && expired > 0) {
+                journal.accept(JournalEntry.expireTemporaryPoints(user.userId, now, expiredPayed, expired - expiredPayed));
+            }
+        }
+    }
+
+    /**
+     * Called holding the user.
+     */
+    private static int popDueGrants(@NotNull UserRecord user, @NotNull Timestamp now) {
+        int expired = 0;
+        while (!user.grants.isEmpty() && user.grants.peek().expiryDate.before(now)) {
+            expired += user.grants.poll().amount;
+        }
+        return expired;
+    }
+
+    /**
+     * Sets the earliest expiry from the grants, called holding the user.
+     */
+    private static void refreshEarliestExpiry(@NotNull UserRecord user) {
+        Timestamp earliestExpiryDate = null;
+        int earliestExpiryAmount = 0;
+        if (!user.grants.isEmpty()) {
+            earliestExpiryDate = user.grants.peek().expiryDate;
+            for (TemporaryGrant grant : user.grants) {
+                if (grant.expiryDate.equals(earliestExpiryDate)) {
+                    earliestExpiryAmount += grant.amount;
+                }
+            }
+        }
+        Balance current;
+        do {
+            current = user.balance.get();
+        } while (!user.balance.compareAndSet(current, current.withEarliestExpiry(earliestExpiryDate, earliestExpiryAmount)));
+    }
+
+    @Override
+    public void addTemporaryPoints(@NotNull AddTemporaryPointsParameters parameters) {
+        if (!applyTemporaryPoints(parameters)) {
+            logger.warning("Attempt to add temporary points to an invalid user " + parameters.getUserId().toString() + "!!");
+        }
+    }
+
+    private boolean applyTemporaryPoints(@NotNull AddTemporaryPointsParameters parameters) {
+        UserRecord user = users.get(parameters.getUserId());
+        if (user == null) {
+            return false;
+        }
+        synchronized (user) {
+            Transaction transaction = record(user, parameters.getAmount(), now(), parameters.getExpiryDate(), TransactionAction.TEMPORARY_POINTS_ADDITION);
+            user.grants.add(new TemporaryGrant(transaction.id, parameters.getAmount(), parameters.getExpiryDate()));
+            adjust(user, 0, parameters.getAmount(), 0, 0);
+            refreshEarliestExpiry(user);
+            if (journal != null) {
+                journal.accept(JournalEntry.addTemporaryPoints(transaction.id, user.userId, parameters.getAmount(), transaction.time, parameters.getExpiryDate()));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public List<BatchItemResult> addTemporaryPointsBatch(@NotNull List<AddTemporaryPointsParameters> parameters) {
+        return addTemporaryPointsBatch(parameters.iterator(), parameters.size());
+    }
+
+    /**
+     * Every grant is applied on its own, {@code chunkSize} does not matter.
+     */
+    @Override
+    public List<BatchItemResult> addTemporaryPointsBatch(@NotNull Iterator<AddTemporaryPointsParameters> parameters, int chunkSize) {
+        List<BatchItemResult> results = new ArrayList<>();
+        while (parameters.hasNext()) {
+            AddTemporaryPointsParameters grant = parameters.next();
+            if (applyTemporaryPoints(grant)) {
+                results.add(BatchItemResult.APPLIED);
+            } else {
+                logger.warning("Attempt to add temporary points to an invalid user " + grant.getUserId().toString() + "!!");
+                results.add(BatchItemResult.INVALID_USER);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public ReservePointsReturn reservePoints(@NotNull ReservePointsParameters parameters) {
+        UserRecord user = users.get(parameters.getUserId());
+        if (user == null) {
+            logger.warning("Attempt to reserve points of an invalid user " + parameters.getUserId().toString() + "!!");
+            return null;
+        }
+        Timestamp now = now();
+        if (!tryReserve(user, parameters.getAmount(), now)) {
+            // The user has not got points enough or has temporary points to expire first.
+            expireTemporaryPoints(user, now);
+            if (!tryReserve(user, parameters.getAmount(), now)) {
+                Balance current = user.balance.get();
+                logger.warning("Selected user " + user.userId.toString() + " does not have points enough (total: " + current.total + ", temporary: " + current.totalTemporary + ", reserved: " + current.reserved + ") to make a reservation of " + parameters.getAmount() + "!!");
+                return new ReservePointsReturn(-1);
+            }
+        }
+        long ttlMillis = parameters.getTtlMillis() > 0 ? parameters.getTtlMillis() : configuration.getReservationTtlMillis();
+        Timestamp expiryTime = ttlMillis > 0 ? new Timestamp(now.getTime() + ttlMillis) : null;
+        Transaction transaction = new Transaction(lastTransactionId.incrementAndGet(), user.userId, parameters.getAmount(), now, expiryTime, TransactionAction.RESERVE);
+        // Published holding the transaction, so that a settlement or the reaper can only journal after the reservation.
+        synchronized (transaction) {
+            addTransaction(user, transaction);
+            if (journal != null) {
+                journal.accept(JournalEntry.reserve(transaction.id, user.userId, parameters.getAmount(), now, expiryTime));
+            }
+        }
+        return new ReservePointsReturn(transaction.id);
+    }
+
+    private static boolean tryReserve(@NotNull UserRecord user, int amount, @NotNull Timestamp now) {
+        Balance current;
+        do {
+            current = user.balance.get();
+            if (current.hasDueTemporaryPoints(now) || current.total + current.totalTemporary < current.reserved + amount) {
+                return false;
+            }
+        } while (!user.balance.compareAndSet(current, current.adjust(0, 0, 0, amount)));
+        return true;
+    }
+
+    /**
+     * Called holding the transaction.
+     */
+    private void cancel(@NotNull Transaction transaction) {
+        adjust(users.get(transaction.userId), 0, 0, 0, -transaction.amount);
+        transaction.action = TransactionAction.CANCELED;
+        if (journal != null) {
+            journal.accept(JournalEntry.cancel(transaction.id));
+        }
+    }
+
+    @Override
+    public void cancelTransaction(@NotNull CancelTransactionParameters parameters) throws SQLException {
+        long transactionId = parameters.getTransactionId();
+        Transaction transaction = transactions.get(transactionId);
+        if (transaction == null) {
+            logger.warning("Attempt to cancel an invalid transaction " + transactionId + "!!");
+            return;
+        }
+        synchronized (transaction) {
+            TransactionAction action = transaction.action;
+            if (action == TransactionAction.RESERVE) {
+                cancel(transaction);
+            } else if (action == TransactionAction.COMMITTED) {
+                logAndThrow(new SQLException("Canceling committed transaction " + transactionId + "!!"));
+            } else if (action == TransactionAction.CANCELED) {
+                logger.warning("Canceling already canceled transaction " + transactionId + "!");
+            } else {
+                logAndThrow(new SQLException("Canceling transaction " + transactionId + " of wrong type!!"));
+            }
+        }
+    }
+
+    @Override
+    public void writeOffPoints(@NotNull WriteOffPointsParameters parameters) throws SQLException {
+        long transactionId = parameters.getTransactionId();
+        Transaction transaction = transactions.get(transactionId);
+        if (transaction == null) {
+            logger.warning("Attempt to commit an invalid transaction " + transactionId + "!!");
+            return;
+        }
+        synchronized (transaction) {
+            TransactionAction action = transaction.action;
+            if (action == TransactionAction.COMMITTED) {
+                logger.warning("Commiting already committed transaction " + transactionId + "!");
+                return;
+            } else if (action == TransactionAction.CANCELED) {
+                logAndThrow(new SQLException("Commiting canceled transaction " + transactionId + "!!"));
+            } else if (action != TransactionAction.RESERVE) {
+                logAndThrow(new SQLException("Commiting transaction " + transactionId + " of wrong type!!"));
+            }
+
+            UserRecord user = users.get(transaction.userId);
+            Timestamp now = now();
+            int spentTemporary = tryWriteOff(user, transaction.amount, now);
+            if (spentTemporary < 0) {
+                // Either temporary points are to expire first or the user has not got points enough.
+                expireTemporaryPoints(user, now);
+                spentTemporary = tryWriteOff(user, transaction.amount, now);
+                if (spentTemporary < 0) {
+                    logger.warning("Selected user " + user.userId.toString() + " does not have points enough to commit transaction " + transactionId + ", that requires " + transaction.amount + " points!!");
+                    cancel(transaction);
+                    return;
+                }
+            }
+            transaction.action = TransactionAction.COMMITTED;
+            if (journal != null) {
+                journal.accept(JournalEntry.commit(transaction.id, spentTemporary));
+            }
+        }
+    }
+
+    /**
+     * Same as the write-off in the database: temporary points are spent first.
+     *
+     * @return temporary points spent, -1 if the write-off is not possible
+     */
+    private static int tryWriteOff(@NotNull UserRecord user, int amount, @NotNull Timestamp now) {
+        Balance current;
+        int spentTemporary;
+        do {
+            current = user.balance.get();
+            if (current.hasDueTemporaryPoints(now) || current.total + current.totalTemporary < amount) {
+                return -1;
+            }
+            spentTemporary = Math.min(amount, current.totalTemporary);
+        } while (!user.balance.compareAndSet(current, current.adjust(-(amount - spentTemporary), -spentTemporary, spentTemporary, -amount)));
+        return spentTemporary;
+    }
+
+    /**
+     * Cancels reservations whose expiry time has passed, scanning the whole ledger.
+     *
+     * @return number of canceled reservations
+     */
+    public int reapExpiredReservations(@NotNull Timestamp now) {
+        int reaped = 0;
+        for (Transaction transaction : transactions.values()) {
+            if (transaction.expiryTime == null || !transaction.expiryTime.before(now) || transaction.action != TransactionAction.RESERVE) {
+                continue;
+            }
+            synchronized (transaction) {
+                if (transaction.action == TransactionAction.RESERVE) {
+                    cancel(transaction);
+                    ++reaped;
+                }
+            }
+        }
+        return reaped;
+    }
+
+    /**
+     * Applies an entry passed to the journal before. Entries of a user may come before the user itself,
+     * additions commute, so such users are created empty and the user entry adds its total.
+     */
+    void replay(@NotNull JournalEntry entry) {
+        lastTransactionId.accumulateAndGet(entry.getTransactionId(), Math::max);
+        switch (entry.getType()) {
+            case JournalEntry.ADD_USER:
+            case JournalEntry.ADD_POINTS: {
+                UserRecord user = users.computeIfAbsent(entry.getUserId(), userId -> new UserRecord(userId, 0));
+                adjust(user, entry.getAmount(), 0, 0, 0);
+                TransactionAction action = entry.getType() == JournalEntry.ADD_USER ? TransactionAction.ADD_USER : TransactionAction.ADD_POINTS;
+                addTransaction(user, new Transaction(entry.getTransactionId(), user.userId, entry.getAmount(), entry.getTime(), null, action));
+                break;
+            }
+            case JournalEntry.ADD_TEMPORARY_POINTS: {
+                UserRecord user = users.computeIfAbsent(entry.getUserId(), userId -> new UserRecord(userId, 0));
+                synchronized (user) {
+                    user.grants.add(new TemporaryGrant(entry.getTransactionId(), entry.getAmount(), entry.getExpiryTime()));
+                    adjust(user, 0, entry.getAmount(), 0, 0);
+                    refreshEarliestExpiry(user);
+                }
+                addTransaction(user, new Transaction(entry.getTransactionId(), user.userId, entry.getAmount(), entry.getTime(), entry.getExpiryTime(), TransactionAction.TEMPORARY_POINTS_ADDITION));
+                break;
+            }
+            case JournalEntry.EXPIRE_TEMPORARY_POINTS: {
+                UserRecord user = users.computeIfAbsent(entry.getUserId(), userId -> new UserRecord(userId, 0));
+                synchronized (user) {
+                    popDueGrants(user, entry.getTime());
+                    adjust(user, 0, -entry.getExtra(), -entry.getAmount(), 0);
+                    refreshEarliestExpiry(user);
+                }
+                break;
+            }
+            case JournalEntry.RESERVE: {
+                UserRecord user = users.computeIfAbsent(entry.getUserId(), userId -> new UserRecord(userId, 0));
+                adjust(user, 0, 0, 0, entry.getAmount());
+                addTransaction(user, new Transaction(entry.getTransactionId(), user.userId, entry.getAmount(), entry.getTime(), entry.getExpiryTime(), TransactionAction.RESERVE));
+                break;
+            }
+            case JournalEntry.COMMIT: {
+                Transaction transaction = transactions.get(entry.getTransactionId());
+                int spentTemporary = entry.getExtra();
+                adjust(users.get(transaction.userId), -(transaction.amount - spentTemporary), -spentTemporary, spentTemporary, -transaction.amount);
+                transaction.action = TransactionAction.COMMITTED;
+                break;
+            }
+            case JournalEntry.CANCEL: {
+                Transaction transaction = transactions.get(entry.getTransactionId());
+                adjust(users.get(transaction.userId), 0, 0, 0, -transaction.amount);
+                transaction.action = TransactionAction.CANCELED;
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown journal entry type " + entry.getType() + "!!");
+        }
+    }
+
+    /**
+     * Receives the whole state of a store, e.g. to write a snapshot or to load it into the database.
+     */
+    interface Visitor {
+        void user(@NotNull GetUserInfoReturn user) throws Exception;
+
+        void temporaryPoints(@NotNull UUID userId, long transactionId, int amount, @NotNull Timestamp expiryDate) throws Exception;
+
+        void transaction(@NotNull GetTransactionInfoReturn transaction) throws Exception;
+    }
+
+    /**
+     * Passes every user with its temporary points and then every transaction to {@code visitor},
+     * the store must not change meanwhile.
+     */
+    void visit(@NotNull Visitor visitor) throws Exception {
+        for (UserRecord user : users.values()) {
+            visitor.user(user.toUserInfo());
+            synchronized (user) {
+                for (TemporaryGrant grant : user.grants) {
+                    visitor.temporaryPoints(user.userId, grant.transactionId, grant.amount, grant.expiryDate);
+                }
+            }
+        }
+        for (Transaction transaction : transactions.values()) {
+            visitor.transaction(transaction.toTransactionInfo());
+        }
+    }
+
+    /**
+     * Restores a user passed to a {@link Visitor}, before its temporary points and transactions.
+     */
+    void restoreUser(@NotNull GetUserInfoReturn user) {
+        UserRecord record = new UserRecord(user.getUserId(), 0);
+        record.balance.set(new Balance(user.getTotal(),
+                                       user.getTotalTemporary(),
+                                       user.getPayedTemporary(),
+                                       user.getReserved(),
+                                       user.getEarliestExpiryDate(),
+                                       user.getEarliestExpiryAmount()));
+        users.put(user.getUserId(), record);
+    }
+
+    void restoreTemporaryPoints(@NotNull UUID userId, long transactionId, int amount, @NotNull Timestamp expiryDate) {
+        UserRecord user = users.get(userId);
+        synchronized (user) {
+            user.grants.add(new TemporaryGrant(transactionId, amount, expiryDate));
+        }
+    }
+
+    void restoreTransaction(@NotNull GetTransactionInfoReturn transaction) {
+        lastTransactionId.accumulateAndGet(transaction.getTransactionId(), Math::max);
+        addTransaction(users.get(transaction.getUserId()), new Transaction(transaction.getTransactionId(),
+                                                                            transaction.getUserId(),
+                                                                            transaction.getAmount(),
+                                                                            transaction.getTime(),
+                                                                            transaction.getExpiry_time(),
+                                                                            transaction.getAction()));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private static Timestamp now() {
+        return new Timestamp(System.currentTimeMillis());
+    }
+
+    private Logger logger = Logger.getLogger("InMemoryPointsStore");
+}
@@ -0,0 +1,191 @@
+package Points;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Default {@link PointsMetrics}, keeps counters and latency histograms in memory.
+ *
+ * Recording is a few atomic increments without locks or allocation, cheap enough to stay on in production.
+ * The numbers are read through {@link PointsMetricsMXBean} once {@link #registerMBean} is called.
+ */
+public class InProcessPointsMetrics implements PointsMetrics, PointsMetricsMXBean {
+    private static final PointsMetrics.Operation[] OPERATIONS = PointsMetrics.Operation.values();
+    private static final PointsMetrics.Outcome[] OUTCOMES = PointsMetrics.Outcome.values();
+    private static final String DOMAIN = "Points";
+
+    public InProcessPointsMetrics() {
+        operationCounts = new LongAdder[OPERATIONS.length][OUTCOMES.length];
+        operationLatencies = new LatencyHistogram[OPERATIONS.length];
+        operationRoundTrips = new LongAdder[OPERATIONS.length];
+        for (int i = 0; i < OPERATIONS.length; ++i) {
+            for (int j = 0; j < OUTCOMES.length; ++j) {
+                operationCounts[i][j] = new LongAdder();
+            }
+            operationLatencies[i] = new LatencyHistogram();
+            operationRoundTrips[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as Points:type=PointsMetrics,name={@code name}.
+     */
+    public ObjectName registerMBean(@NotNull String name) throws JMException {
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=PointsMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    @Override
+    public void recordOperation(@NotNull PointsMetrics.Operation operation,
+                                @NotNull PointsMetrics.Outcome outcome,
+                                long latencyNanos,
+                                long roundTrips) {
+        operationCounts[operation.ordinal()][outcome.ordinal()].increment();
+        operationLatencies[operation.ordinal()].record(latencyNanos);
+        operationRoundTrips[operation.ordinal()].add(roundTrips);
+    }
+
+    @Override
+    public void recordConnectionAcquire(long waitNanos) {
+        connectionAcquire.record(waitNanos);
+    }
+
+    @Override
+    public void recordConnectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    @Override
+    public void recordCommit(long latencyNanos) {
+        commitLatency.record(latencyNanos);
+    }
+
+    @Override
+    public void recordTemporaryPointsExpiry(long latencyNanos) {
+        temporaryPointsExpiry.record(latencyNanos);
+    }
+
+    @Override
+    public void recordTemporaryPointsSweep(int users, long latencyNanos) {
+        temporaryPointsSweep.record(latencyNanos);
+        temporaryPointsSweptUsers.add(users);
+    }
+
+    @Override
+    public void recordReplicaRead() {
+        replicaReads.increment();
+    }
+
+    @Override
+    public Map<String, Long> getOperationCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (PointsMetrics.Operation operation : OPERATIONS) {
+            for (PointsMetrics.Outcome outcome : OUTCOMES) {
+                long count = operationCounts[operation.ordinal()][outcome.ordinal()].sum();
+                if (count > 0) {
+                    counts.put(operation + "." + outcome, count);
+                }
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getOperationLatencyMillis() {
+        Map<String, Double> latencies = new LinkedHashMap<>();
+        for (PointsMetrics.Operation operation : OPERATIONS) {
+            LatencyHistogram histogram = operationLatencies[operation.ordinal()];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            for (Map.Entry<String, Double> entry : histogram.toMillis().entrySet()) {
+                latencies.put(operation + "." + entry.getKey(), entry.getValue());
+            }
+        }
+        return latencies;
+    }
+
+    @Override
+    public Map<String, Double> getOperationRoundTrips() {
+        Map<String, Double> roundTrips = new LinkedHashMap<>();
+        for (PointsMetrics.Operation operation : OPERATIONS) {
+            long calls = operationLatencies[operation.ordinal()].getCount();
+            if (calls > 0) {
+                roundTrips.put(operation.toString(), (double) operationRoundTrips[operation.ordinal()].sum() / calls);
+            }
+        }
+        return roundTrips;
+    }
+
+    @Override
+    public Map<String, Double> getConnectionAcquireMillis() {
+        return connectionAcquire.toMillis();
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public Map<String, Double> getCommitLatencyMillis() {
+        return commitLatency.toMillis();
+    }
+
+    @Override
+    public Map<String, Double> getTemporaryPointsExpiryMillis() {
+        return temporaryPointsExpiry.toMillis();
+    }
+
+    @Override
+    public Map<String, Double> getTemporaryPointsSweepMillis() {
+        return temporaryPointsSweep.toMillis();
+    }
+
+    @Override
+    public long getTemporaryPointsSweptUsers() {
+        return temporaryPointsSweptUsers.sum();
+    }
+
+    @Override
+    public long getReplicaReads() {
+        return replicaReads.sum();
+    }
+
+    @Override
+    public void reset() {
+        for (int i = 0; i < OPERATIONS.length; ++i) {
+            for (int j = 0; j < OUTCOMES.length; ++j) {
+                operationCounts[i][j].reset();
+            }
+            operationLatencies[i].reset();
+            operationRoundTrips[i].reset();
+        }
+        connectionAcquire.reset();
+        connectionsOpened.reset();
+        commitLatency.reset();
+        temporaryPointsExpiry.reset();
+        temporaryPointsSweep.reset();
+        temporaryPointsSweptUsers.reset();
+        replicaReads.reset();
+    }
+
+    private final LongAdder[][] operationCounts;
+    private final LatencyHistogram[] operationLatencies;
+    private final LongAdder[] operationRoundTrips;
+    private final LatencyHistogram connectionAcquire = new LatencyHistogram();
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+    private final LatencyHistogram temporaryPointsExpiry = new LatencyHistogram();
+    private final LatencyHistogram temporaryPointsSweep = new LatencyHistogram();
+    private final LongAdder temporaryPointsSweptUsers = new LongAdder();
+    private final LongAdder replicaReads = new LongAdder();
+}
@@ -0,0 +1,125 @@
+package Points;
+
+import java.util.UUID;
+
+import java.nio.ByteBuffer;
+
+import java.sql.Timestamp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * One change of an {@link InMemoryPointsStore}, as written to the {@link PointsJournal}.
+ *
+ * Balance changes carry their outcome, e.g. how much of a write-off was taken from temporary points,
+ * so replaying does not depend on the order concurrent changes of a user were journaled in.
+ */
+final class JournalEntry {
+    static final byte ADD_USER = 1;
+    static final byte ADD_POINTS = 2;
+    static final byte ADD_TEMPORARY_POINTS = 3;
+    // amount is the expired payed temporary points, extra the expired unpayed ones.
+    static final byte EXPIRE_TEMPORARY_POINTS = 4;
+    static final byte RESERVE = 5;
+    // extra is the temporary points spent.
+    static final byte COMMIT = 6;
+    static final byte CANCEL = 7;
+
+    // type, transaction id, user id, amount, time, expiry time, extra
+    static final int SIZE = 1 + 8 + 16 + 4 + 8 + 8 + 4;
+
+    private JournalEntry(byte type, long transactionId, @Nullable UUID userId, int amount, long time, long expiryTime, int extra) {
+        this.type = type;
+        this.transactionId = transactionId;
+        this.userId = userId;
+        this.amount = amount;
+        this.time = time;
+        this.expiryTime = expiryTime;
+        this.extra = extra;
+    }
+
+    static JournalEntry addUser(long transactionId, @NotNull UUID userId, int total, @NotNull Timestamp time) {
+        return new JournalEntry(ADD_USER, transactionId, userId, total, time.getTime(), -1, 0);
+    }
+
+    static JournalEntry addPoints(long transactionId, @NotNull UUID userId, int amount, @NotNull Timestamp time) {
+        return new JournalEntry(ADD_POINTS, transactionId, userId, amount, time.getTime(), -1, 0);
+    }
+
+    static JournalEntry addTemporaryPoints(long transactionId, @NotNull UUID userId, int amount, @NotNull Timestamp time, @NotNull Timestamp expiryTime) {
+        return new JournalEntry(ADD_TEMPORARY_POINTS, transactionId, userId, amount, time.getTime(), expiryTime.getTime(), 0);
+    }
+
+    static JournalEntry expireTemporaryPoints(@NotNull UUID userId, @NotNull Timestamp now, int expiredPayed, int expiredUnpayed) {
+        return new JournalEntry(EXPIRE_TEMPORARY_POINTS, 0, userId, expiredPayed, now.getTime(), -1, expiredUnpayed);
+    }
+
+    static JournalEntry reserve(long transactionId, @NotNull UUID userId, int amount, @NotNull Timestamp time, @Nullable Timestamp expiryTime) {
+        return new JournalEntry(RESERVE, transactionId, userId, amount, time.getTime(), expiryTime == null ? -1 : expiryTime.getTime(), 0);
+    }
+
+    static JournalEntry commit(long transactionId, int spentTemporary) {
+        return new JournalEntry(COMMIT, transactionId, null, 0, 0, -1, spentTemporary);
+    }
+
+    static JournalEntry cancel(long transactionId) {
+        return new JournalEntry(CANCEL, transactionId, null, 0, 0, -1, 0);
+    }
+
+    void writeTo(@NotNull ByteBuffer buffer) {
+        buffer.put(type);
+        buffer.putLong(transactionId);
+        buffer.putLong(userId == null ? 0 : userId.getMostSignificantBits());
+        buffer.putLong(userId == null ? 0 : userId.getLeastSignificantBits());
+        buffer.putInt(amount);
+        buffer.putLong(time);
+        buffer.putLong(expiryTime);
+        buffer.putInt(extra);
+    }
+
+    static JournalEntry readFrom(@NotNull ByteBuffer buffer) {
+        byte type = buffer.get();
+        long transactionId = buffer.getLong();
+        long mostSignificantBits = buffer.getLong();
+        long leastSignificantBits = buffer.getLong();
+        UUID userId = type == COMMIT || type == CANCEL ? null : new UUID(mostSignificantBits, leastSignificantBits);
+        return new JournalEntry(type, transactionId, userId, buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getInt());
+    }
+
+    byte getType() {
+        return type;
+    }
+
+    long getTransactionId() {
+        return transactionId;
+    }
+
+    UUID getUserId() {
+        return userId;
+    }
+
+    int getAmount() {
+        return amount;
+    }
+
+    Timestamp getTime() {
+        return new Timestamp(time);
+    }
+
+    Timestamp getExpiryTime() {
+        return expiryTime < 0 ? null : new Timestamp(expiryTime);
+    }
+
+    int getExtra() {
+        return extra;
+    }
+
+    private final byte type;
+    private final long transactionId;
+    private final UUID userId;
+    private final int amount;
+    private final long time;
+    private final long expiryTime;
+    private final int extra;
+}
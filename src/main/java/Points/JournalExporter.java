@@ -0,0 +1,116 @@
+package Points;
+
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Inserts the state of an {@link InMemoryPointsStore} into empty points, temporary_points and transaction tables.
+ *
+ * Rows are sent in batches of {@link #BATCH_SIZE} and committed together, users before their temporary points.
+ */
+final class JournalExporter implements InMemoryPointsStore.Visitor {
+    private static final int BATCH_SIZE = 1_000;
+
+    JournalExporter(@NotNull ConnectionPool connectionPool, @NotNull Logger logger) {
+        this.connectionPool = connectionPool;
+        this.logger = logger;
+    }
+
+    private static final String EXPORT_USER = "INSERT INTO Points.points " +
+                                              "(user_id, total, total_temporary, payed_temporary, reserved, earliest_expiry_date, earliest_expiry_amount) " +
+                                              "VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private static final String EXPORT_TEMPORARY_POINTS = "INSERT INTO Points.temporary_points " +
+                                                          "(user_id, transaction_id, amount, expiry_time) " +
+                                                          "VALUES (?, ?, ?, ?)";
+    private static final String EXPORT_TRANSACTION = "INSERT INTO Points.transaction " +
+                                                     "(id, user_id, amount, time, expiry_time, action) " +
+                                                     "VALUES (?, ?, ?, ?, ?, ?)";
+    /**
+     * @return number of inserted rows
+     */
+    long export(@NotNull InMemoryPointsStore state) throws SQLException {
+        long start = System.nanoTime();
+        try(PooledConnection connection = connectionPool.acquire()) {
+            this.connection = connection;
+            statementUser = connection.prepareStatement(EXPORT_USER);
+            statementTemporaryPoints = connection.prepareStatement(EXPORT_TEMPORARY_POINTS);
+            statementTransaction = connection.prepareStatement(EXPORT_TRANSACTION);
+            try {
+                state.visit(this);
+            } catch (SQLException | RuntimeException ex) {
+                throw ex;
+            } catch (Exception ex) {
+                throw new SQLException(ex);
+            }
+            flush();
+        }
+        logger.info("Exported " + rows + " journal rows to the database in " + (System.nanoTime() - start) / 1_000_000 + " ms!");
+        return rows;
+    }
+
+    @Override
+    public void user(@NotNull GetUserInfoReturn user) throws SQLException {
+        statementUser.setBytes(1, UuidBinary.toBytes(user.getUserId()));
+        statementUser.setInt(2, user.getTotal());
+        statementUser.setInt(3, user.getTotalTemporary());
+        statementUser.setInt(4, user.getPayedTemporary());
+        statementUser.setInt(5, user.getReserved());
+        statementUser.setTimestamp(6, user.getEarliestExpiryDate());
+        statementUser.setInt(7, user.getEarliestExpiryAmount());
+        statementUser.addBatch();
+        added();
+    }
+
+    @Override
+    public void temporaryPoints(@NotNull UUID userId, long transactionId, int amount, @NotNull Timestamp expiryDate) throws SQLException {
+        statementTemporaryPoints.setBytes(1, UuidBinary.toBytes(userId));
+        statementTemporaryPoints.setLong(2, transactionId);
+        statementTemporaryPoints.setInt(3, amount);
+        statementTemporaryPoints.setTimestamp(4, expiryDate);
+        statementTemporaryPoints.addBatch();
+        added();
+    }
+
+    @Override
+    public void transaction(@NotNull GetTransactionInfoReturn transaction) throws SQLException {
+        statementTransaction.setLong(1, transaction.getTransactionId());
+        statementTransaction.setBytes(2, UuidBinary.toBytes(transaction.getUserId()));
+        statementTransaction.setInt(3, transaction.getAmount());
+        statementTransaction.setTimestamp(4, transaction.getTime());
+        statementTransaction.setTimestamp(5, transaction.getExpiry_time());
+        statementTransaction.setString(6, transaction.getAction().getColumn());
+        statementTransaction.addBatch();
+        added();
+    }
+
+    private void added() throws SQLException {
+        if (++batched == BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    private void flush() throws SQLException {
+        statementUser.executeBatch();
+        statementTemporaryPoints.executeBatch();
+        statementTransaction.executeBatch();
+        connection.commit();
+        rows += batched;
+        batched = 0;
+    }
+
+    private final ConnectionPool connectionPool;
+    private final Logger logger;
+    private PooledConnection connection;
+    private PreparedStatement statementUser;
+    private PreparedStatement statementTemporaryPoints;
+    private PreparedStatement statementTransaction;
+    private int batched = 0;
+    private long rows = 0;
+}
@@ -0,0 +1,170 @@
+package Points;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import java.io.IOException;
+
+import java.sql.Timestamp;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * {@link InMemoryPointsStore} whose changes are appended to a memory-mapped journal, for high volume earning events.
+ *
+ * An operation appends one fixed size record instead of running statements in MySQL. With {@code waitForSync}
+ * it returns once the journal has been synced, which happens for all callers at once every
+ * {@code syncIntervalMillis}. Its effect is visible to other callers right after it is applied, before the sync.
+ * Opening the store restores the latest snapshot and replays the journal after it.
+ * {@link #exportToDatabase} loads a journal into the points, transaction and temporary_points tables.
+ */
+public class JournaledPointsStore implements PointsStore {
+    public JournaledPointsStore(@NotNull JournalConfiguration configuration, @NotNull Logger parentLogger) throws IOException {
+        logger.setParent(parentLogger);
+        logger.setLevel(null);
+        this.configuration = configuration;
+        journal = new PointsJournal(configuration, logger);
+        store = new InMemoryPointsStore(configuration.getStore(), logger, journal::append);
+        long start = System.nanoTime();
+        long replayed = journal.recover(store);
+        logger.info("Replayed " + replayed + " journal entries in " + (System.nanoTime() - start) / 1_000_000 + " ms!");
+        journal.start();
+    }
+
+    private void sync() {
+        if (configuration.getWaitForSync()) {
+            journal.awaitDurable();
+        }
+    }
+
+    @Override
+    public void addUser(@NotNull AddUserParameters parameters) {
+        store.addUser(parameters);
+        sync();
+    }
+
+    @Override
+    public void addPoints(@NotNull AddPointsParameters parameters) {
+        store.addPoints(parameters);
+        sync();
+    }
+
+    @Override
+    public List<BatchItemResult> addPointsBatch(@NotNull List<AddPointsParameters> parameters) {
+        List<BatchItemResult> results = store.addPointsBatch(parameters);
+        sync();
+        return results;
+    }
+
+    @Override
+    public List<BatchItemResult> addPointsBatch(@NotNull Iterator<AddPointsParameters> parameters, int chunkSize) {
+        List<BatchItemResult> results = store.addPointsBatch(parameters, chunkSize);
+        sync();
+        return results;
+    }
+
+    @Override
+    public GetUserInfoReturn getUserInfo(@NotNull GetUserInfoParameters parameters) {
+        return store.getUserInfo(parameters);
+    }
+
+    @Override
+    public GetTransactionInfoReturn getTransactionInfo(@NotNull GetTransactionInfoParameters parameters) {
+        return store.getTransactionInfo(parameters);
+    }
+
+    @Override
+    public Stream<GetTransactionInfoReturn> streamUserHistory(@NotNull UserHistoryParameters parameters) {
+        return store.streamUserHistory(parameters);
+    }
+
+    @Override
+    public void updateTemporaryPoints(@NotNull UpdateTemporaryPointsParameters parameters) {
+        store.updateTemporaryPoints(parameters);
+        sync();
+    }
+
+    @Override
+    public void addTemporaryPoints(@NotNull AddTemporaryPointsParameters parameters) {
+        store.addTemporaryPoints(parameters);
+        sync();
+    }
+
+    @Override
+    public List<BatchItemResult> addTemporaryPointsBatch(@NotNull List<AddTemporaryPointsParameters> parameters) {
+        List<BatchItemResult> results = store.addTemporaryPointsBatch(parameters);
+        sync();
+        return results;
+    }
+
+    @Override
+    public List<BatchItemResult> addTemporaryPointsBatch(@NotNull Iterator<AddTemporaryPointsParameters> parameters, int chunkSize) {
+        List<BatchItemResult> results = store.addTemporaryPointsBatch(parameters, chunkSize);
+        sync();
+        return results;
+    }
+
+    @Override
+    public ReservePointsReturn reservePoints(@NotNull ReservePointsParameters parameters) {
+        ReservePointsReturn reservation = store.reservePoints(parameters);
+        sync();
+        return reservation;
+    }
+
+    @Override
+    public void cancelTransaction(@NotNull CancelTransactionParameters parameters) throws SQLException {
+        store.cancelTransaction(parameters);
+        sync();
+    }
+
+    @Override
+    public void writeOffPoints(@NotNull WriteOffPointsParameters parameters) throws SQLException {
+        store.writeOffPoints(parameters);
+        sync();
+    }
+
+    /**
+     * Cancels reservations whose expiry time has passed, see {@link InMemoryPointsStore#reapExpiredReservations}.
+     */
+    public int reapExpiredReservations(@NotNull Timestamp now) {
+        int reaped = store.reapExpiredReservations(now);
+        sync();
+        return reaped;
+    }
+
+    /**
+     * Syncs the journal and stops its background threads.
+     */
+    @Override
+    public void close() {
+        journal.close();
+    }
+
+    /**
+     * Restores the journal in {@code journalConfiguration}, which must not be open meanwhile, and inserts its
+     * users, temporary points and transactions into the empty tables of the database.
+     *
+     * @return number of inserted rows
+     */
+    public static long exportToDatabase(@NotNull JournalConfiguration journalConfiguration,
+                                        @NotNull ConnectionPoolConfiguration poolConfiguration,
+                                        @NotNull Logger parentLogger) throws IOException, SQLException {
+        Logger logger = Logger.getLogger("JournaledPointsStore");
+        logger.setParent(parentLogger);
+        InMemoryPointsStore state = new InMemoryPointsStore(journalConfiguration.getStore(), logger);
+        try(PointsJournal journal = new PointsJournal(journalConfiguration, logger);
+            ConnectionPool connectionPool = new ConnectionPool(poolConfiguration, logger)) {
+            journal.recover(state);
+            return new JournalExporter(connectionPool, logger).export(state);
+        }
+    }
+
+    private final JournalConfiguration configuration;
+    private final PointsJournal journal;
+    private final InMemoryPointsStore store;
+    private Logger logger = Logger.getLogger("JournaledPointsStore");
+}
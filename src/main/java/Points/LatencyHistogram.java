@@ -0,0 +1,100 @@
+package Points;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free log-linear histogram of nanosecond latencies.
+ *
+ * Every power of two is split into 8 buckets, so reported percentiles are at most 12.5% above the recorded values.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(index(value));
+        count.increment();
+        sum.add(value);
+        long max;
+        while (value > (max = this.max.get()) && !this.max.compareAndSet(max, value)) {
+        }
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return upper bound of the bucket holding the {@code quantile}, 0 when nothing is recorded
+     */
+    long getValueAtQuantile(double quantile) {
+        long[] snapshot = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < snapshot.length; ++i) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < snapshot.length; ++i) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    Map<String, Double> toMillis() {
+        Map<String, Double> summary = new LinkedHashMap<>();
+        long recorded = count.sum();
+        summary.put("count", (double) recorded);
+        summary.put("mean", recorded == 0 ? 0 : sum.sum() / NANOS_PER_MILLI / recorded);
+        summary.put("p50", getValueAtQuantile(0.5) / NANOS_PER_MILLI);
+        summary.put("p99", getValueAtQuantile(0.99) / NANOS_PER_MILLI);
+        summary.put("p999", getValueAtQuantile(0.999) / NANOS_PER_MILLI);
+        summary.put("max", max.get() / NANOS_PER_MILLI);
+        return summary;
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); ++i) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+}
@@ -0,0 +1,480 @@
+package Points;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.nio.ByteBuffer;
+
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import java.sql.Timestamp;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Recomputes balances from the ledger and reports users whose points row does not match it.
+ *
+ * The user_id space is cut into {@code ranges} ranges by its leading two bytes, which a fork-join pool of
+ * {@code parallelism} workers reconciles with one connection each. A range is read in one consistent snapshot,
+ * {@code chunkUsers} users at a time with their transactions, archived transactions and temporary points,
+ * so memory does not depend on the size of the ledger. Users do not share rows, which makes every user
+ * consistent although ranges are read at different times. Run it against a replica to keep load off the primary.
+ *
+ * Checked for every user:
+ * reserved is the sum of open reservations; total_temporary + payed_temporary is the sum of live temporary points;
+ * earliest_expiry_date and earliest_expiry_amount belong to the earliest live temporary points; total is the sum of
+ * additions less write-offs, which is exact for users that never had temporary points and otherwise lies between
+ * that sum plus payed_temporary and that sum plus the temporary points that could have been spent.
+ *
+ * The report has a line per mismatch: user id, column, stored and expected value. The optional repair script updates
+ * every exactly known column, guarded by its stored value so that it leaves rows changed since alone.
+ *
+ * The partitioned transaction table can have no foreign keys, so every range is also checked for transactions
+ * of users that do not exist and temporary points whose transaction does not exist. They are reported as
+ * user id, table, id of the row and "orphaned", the repair script leaves them alone.
+ */
+public class LedgerReconciler {
+    private static final int PREFIXES = 1 << 16;
+
+    public LedgerReconciler(@NotNull ConnectionPoolConfiguration poolConfiguration,
+                            @NotNull ReconciliationConfiguration configuration,
+                            @NotNull Logger parentLogger) {
+        if (configuration.getRanges() <= 0 || configuration.getRanges() > PREFIXES) {
+            throw new IllegalArgumentException("Number of ranges has to be from 1 to " + PREFIXES + "!!");
+        }
+        if (configuration.getChunkUsers() <= 0) {
+            throw new IllegalArgumentException("Chunk size has to be positive!!");
+        }
+        logger.setParent(parentLogger);
+        logger.setLevel(null);
+        this.poolConfiguration = poolConfiguration;
+        this.configuration = configuration;
+    }
+
+    /**
+     * Reconciles all users, writing the mismatches to {@code report} and their repairs to {@code repairScript}.
+     */
+    public ReconciliationStatistics reconcile(@NotNull Writer report, @Nullable Writer repairScript) throws SQLException, IOException {
+        this.report = report;
+        this.repairScript = repairScript;
+        users.set(0);
+        ledgerRows.set(0);
+        mismatchedUsers.set(0);
+        orphanedRows.set(0);
+        long start = System.nanoTime();
+        ConnectionPoolConfiguration pool = new ConnectionPoolConfiguration(poolConfiguration.getUrl(),
+                                                                           configuration.getParallelism(),
+                                                                           poolConfiguration.getAcquireTimeoutMillis(),
+                                                                           poolConfiguration.getValidationIntervalMillis(),
+                                                                           poolConfiguration.getValidationTimeoutSeconds());
+        ForkJoinPool forkJoinPool = new ForkJoinPool(configuration.getParallelism());
+        try(ConnectionPool connectionPool = new ConnectionPool(pool, logger)) {
+            this.connectionPool = connectionPool;
+            forkJoinPool.invoke(new RangesTask(0, configuration.getRanges()));
+        } catch (RuntimeException ex) {
+            // The pool may rethrow a copy of the exception of a worker, with the original as its cause.
+            for (Throwable cause = ex; cause != null; cause = cause.getCause()) {
+                if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                } else if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+            }
+            throw ex;
+        } finally {
+            forkJoinPool.shutdown();
+        }
+        report.flush();
+        if (repairScript != null) {
+            repairScript.flush();
+        }
+        ReconciliationStatistics statistics = new ReconciliationStatistics(users.get(), ledgerRows.get(), mismatchedUsers.get(), orphanedRows.get(), System.nanoTime() - start);
+        logger.info("Reconciled " + statistics.getUsers() + " users with " + statistics.getLedgerRows() + " ledger rows, " + statistics.getMismatchedUsers()
+                    + " users do not match, " + statistics.getOrphanedRows() + " rows are orphaned!");
+        return statistics;
+    }
+
+    /**
+     * Usage: LedgerReconciler jdbc-url report-file [repair-script-file]
+     */
+    public static void main(String[] args) throws SQLException, IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: LedgerReconciler jdbc-url report-file [repair-script-file]");
+            System.exit(2);
+        }
+        LedgerReconciler reconciler = new LedgerReconciler(new ConnectionPoolConfiguration(args[0]),
+                                                           new ReconciliationConfiguration(),
+                                                           Logger.getLogger(""));
+        try(Writer report = Files.newBufferedWriter(Paths.get(args[1]));
+            Writer repairScript = args.length == 3 ? Files.newBufferedWriter(Paths.get(args[2])) : null) {
+            ReconciliationStatistics statistics = reconciler.reconcile(report, repairScript);
+            System.out.println(statistics);
+            System.exit(statistics.getMismatchedUsers() == 0 && statistics.getOrphanedRows() == 0 ? 0 : 1);
+        }
+    }
+
+    private final class RangesTask extends RecursiveAction {
+        RangesTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    reconcileRange(from);
+                } catch (SQLException ex) {
+                    throw new UncheckedSQLException(ex);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangesTask(from, middle), new RangesTask(middle, to));
+        }
+
+        private final int from;
+        private final int to;
+    }
+
+    private static byte[] firstIdOf(int range, int ranges) {
+        byte[] id = new byte[16];
+        int prefix = (int) ((long) range * PREFIXES / ranges);
+        id[0] = (byte) (prefix >>> 8);
+        id[1] = (byte) prefix;
+        return id;
+    }
+
+    private static byte[] lastIdOf(int range, int ranges) {
+        byte[] id = new byte[16];
+        Arrays.fill(id, (byte) 0xFF);
+        int prefix = (int) ((long) (range + 1) * PREFIXES / ranges) - 1;
+        id[0] = (byte) (prefix >>> 8);
+        id[1] = (byte) prefix;
+        return id;
+    }
+
+    /**
+     * @return the id right after {@code userId}, null after the last one
+     */
+    private static byte[] successor(@NotNull byte[] userId) {
+        byte[] next = userId.clone();
+        for (int i = next.length - 1; i >= 0; --i) {
+            if (++next[i] != 0) {
+                return next;
+            }
+        }
+        return null;
+    }
+
+    private static final String RECONCILE_SNAPSHOT = "START TRANSACTION WITH CONSISTENT SNAPSHOT, READ ONLY";
+    private static final String RECONCILE_USERS = "SELECT user_id, " +
+                                                         "total, " +
+                                                         "total_temporary, " +
+                                                         "payed_temporary, " +
+                                                         "reserved, " +
+                                                         "earliest_expiry_date, " +
+                                                         "earliest_expiry_amount " +
+                                                  "FROM Points.points " +
+                                                  "WHERE user_id BETWEEN ? and ? " +
+                                                  "ORDER BY user_id " +
+                                                  "LIMIT ?";
+    private static final String RECONCILE_LEDGER = "SELECT user_id, amount, action + 0 " +
+                                                   "FROM Points.transaction " +
+                                                   "WHERE user_id BETWEEN ? and ? " +
+                                                   "UNION ALL " +
+                                                   "SELECT user_id, amount, action + 0 " +
+                                                   "FROM Points.transaction_archive " +
+                                                   "WHERE user_id BETWEEN ? and ?";
+    private static final String RECONCILE_TEMPORARY_POINTS = "SELECT user_id, amount, expiry_time " +
+                                                             "FROM Points.temporary_points " +
+                                                             "WHERE user_id BETWEEN ? and ?";
+    private void reconcileRange(int range) throws SQLException, IOException {
+        byte[] from = firstIdOf(range, configuration.getRanges());
+        byte[] to = lastIdOf(range, configuration.getRanges());
+        try(PooledConnection connection = connectionPool.acquire()) {
+            try(Statement statementSnapshot = connection.getConnection().createStatement()) {
+                statementSnapshot.execute(RECONCILE_SNAPSHOT);
+            }
+            PreparedStatement statementUsers = connection.prepareStatement(RECONCILE_USERS);
+            PreparedStatement statementLedger = connection.prepareStatement(RECONCILE_LEDGER);
+            PreparedStatement statementTemporary = connection.prepareStatement(RECONCILE_TEMPORARY_POINTS);
+            // Rows are streamed instead of buffered, so a user with a huge ledger does not exhaust the heap.
+            statementLedger.setFetchSize(Integer.MIN_VALUE);
+            statementTemporary.setFetchSize(Integer.MIN_VALUE);
+
+            while (from != null) {
+                Map<ByteBuffer, Balance> balances = new LinkedHashMap<>();
+                statementUsers.setBytes(1, from);
+                statementUsers.setBytes(2, to);
+                statementUsers.setInt(3, configuration.getChunkUsers());
+                byte[] first = null;
+                byte[] last = null;
+                try(ResultSet result = statementUsers.executeQuery()) {
+                    while (result.next()) {
+                        last = result.getBytes(1);
+                        if (first == null) {
+                            first = last;
+                        }
+                        int expiryAmount = result.getInt(7);
+                        balances.put(ByteBuffer.wrap(last), new Balance(result.getInt(2),
+                                                                        result.getInt(3),
+                                                                        result.getInt(4),
+                                                                        result.getInt(5),
+                                                                        result.getTimestamp(6),
+                                                                        result.wasNull() ? null : expiryAmount));
+                    }
+                }
+                if (balances.isEmpty()) {
+                    break;
+                }
+
+                statementLedger.setBytes(1, first);
+                statementLedger.setBytes(2, last);
+                statementLedger.setBytes(3, first);
+                statementLedger.setBytes(4, last);
+                long rows = 0;
+                try(ResultSet result = statementLedger.executeQuery()) {
+                    while (result.next()) {
+                        ++rows;
+                        Balance balance = balances.get(ByteBuffer.wrap(result.getBytes(1)));
+                        if (balance != null) {
+                            balance.addTransaction(result.getInt(2), TransactionAction.fromIndex(result.getInt(3)));
+                        }
+                    }
+                }
+                statementTemporary.setBytes(1, first);
+                statementTemporary.setBytes(2, last);
+                try(ResultSet result = statementTemporary.executeQuery()) {
+                    while (result.next()) {
+                        Balance balance = balances.get(ByteBuffer.wrap(result.getBytes(1)));
+                        if (balance != null) {
+                            balance.addTemporaryPoints(result.getInt(2), result.getTimestamp(3));
+                        }
+                    }
+                }
+
+                writeMismatches(balances);
+                users.addAndGet(balances.size());
+                ledgerRows.addAndGet(rows);
+                from = balances.size() < configuration.getChunkUsers() ? null : successor(last);
+            }
+            writeOrphans(connection, firstIdOf(range, configuration.getRanges()), to);
+            connection.commit();
+        }
+    }
+
+    private static final String RECONCILE_ORPHANED_TRANSACTIONS = "SELECT transaction.user_id, transaction.id " +
+                                                                  "FROM Points.transaction " +
+                                                                  "LEFT JOIN Points.points ON points.user_id = transaction.user_id " +
+                                                                  "WHERE transaction.user_id BETWEEN ? and ? and points.user_id IS NULL";
+    private static final String RECONCILE_ORPHANED_TEMPORARY_POINTS = "SELECT temporary_points.user_id, temporary_points.transaction_id " +
+                                                                      "FROM Points.temporary_points " +
+                                                                      "LEFT JOIN Points.transaction ON transaction.id = temporary_points.transaction_id " +
+                                                                      "WHERE temporary_points.user_id BETWEEN ? and ? and transaction.id IS NULL";
+    /**
+     * Reports the rows of the range that foreign keys would have rejected, in the snapshot of the range.
+     */
+    private void writeOrphans(@NotNull PooledConnection connection, @NotNull byte[] from, @NotNull byte[] to) throws SQLException, IOException {
+        StringBuilder reportLines = new StringBuilder();
+        long orphans = 0;
+        String[] queries = {RECONCILE_ORPHANED_TRANSACTIONS, RECONCILE_ORPHANED_TEMPORARY_POINTS};
+        String[] tables = {"transaction", "temporary_points"};
+        for (int i = 0; i < queries.length; ++i) {
+            PreparedStatement statement = connection.prepareStatement(queries[i]);
+            statement.setBytes(1, from);
+            statement.setBytes(2, to);
+            try(ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    reportLines.append(UuidBinary.fromBytes(result.getBytes(1))).append('\t').append(tables[i]).append('\t')
+                               .append(result.getLong(2)).append("\torphaned\n");
+                    ++orphans;
+                }
+            }
+        }
+        if (orphans == 0) {
+            return;
+        }
+        orphanedRows.addAndGet(orphans);
+        synchronized (this) {
+            report.write(reportLines.toString());
+        }
+    }
+
+    private static final String REPAIR_UPDATE = "UPDATE Points.points SET %s = %s WHERE user_id = X'%s' and %s <=> %s;%n";
+    private void writeMismatches(@NotNull Map<ByteBuffer, Balance> balances) throws IOException {
+        StringBuilder reportLines = new StringBuilder();
+        StringBuilder repairLines = new StringBuilder();
+        int mismatched = 0;
+        for (Map.Entry<ByteBuffer, Balance> user : balances.entrySet()) {
+            String userId = UuidBinary.fromBytes(user.getKey().array()).toString();
+            String hexUserId = userId.replace("-", "").toUpperCase();
+            Balance balance = user.getValue();
+            int before = reportLines.length();
+
+            if (balance.reserved != balance.openReservations) {
+                mismatch(reportLines, repairLines, userId, hexUserId, "reserved", balance.reserved, balance.openReservations);
+            }
+            if (balance.totalTemporary + balance.payedTemporary != balance.liveTemporaryPoints) {
+                // Only the sum is known, the repair keeps payed_temporary.
+                long expected = balance.liveTemporaryPoints - balance.payedTemporary;
+                mismatch(reportLines, expected >= 0 ? repairLines : null, userId, hexUserId, "total_temporary", balance.totalTemporary, expected);
+            }
+            if (!sameTime(balance.earliestExpiryDate, balance.liveEarliestExpiry)) {
+                mismatch(reportLines, repairLines, userId, hexUserId, "earliest_expiry_date", quote(balance.earliestExpiryDate), quote(balance.liveEarliestExpiry));
+            }
+            if (balance.liveEarliestExpiry != null && balance.liveEarliestCount == 1
+                && (balance.earliestExpiryAmount == null || balance.earliestExpiryAmount != balance.liveEarliestAmount)) {
+                mismatch(reportLines, repairLines, userId, hexUserId, "earliest_expiry_amount", balance.earliestExpiryAmount, balance.liveEarliestAmount);
+            }
+            long base = balance.additions - balance.writeOffs;
+            if (balance.temporaryAdditions == 0) {
+                if (balance.total != base) {
+                    mismatch(reportLines, repairLines, userId, hexUserId, "total", balance.total, base);
+                }
+            } else {
+                long lowest = base + balance.payedTemporary;
+                long highest = base + Math.min(balance.writeOffs, balance.temporaryAdditions);
+                if (balance.total < lowest || balance.total > highest) {
+                    mismatch(reportLines, null, userId, hexUserId, "total", balance.total, lowest + ".." + highest);
+                }
+            }
+            if (reportLines.length() != before) {
+                ++mismatched;
+            }
+        }
+        if (mismatched == 0) {
+            return;
+        }
+        mismatchedUsers.addAndGet(mismatched);
+        synchronized (this) {
+            report.write(reportLines.toString());
+            if (repairScript != null) {
+                repairScript.write(repairLines.toString());
+            }
+        }
+    }
+
+    private static void mismatch(@NotNull StringBuilder reportLines,
+                                 @Nullable StringBuilder repairLines,
+                                 @NotNull String userId,
+                                 @NotNull String hexUserId,
+                                 @NotNull String column,
+                                 @Nullable Object stored,
+                                 @Nullable Object expected) {
+        reportLines.append(userId).append('\t').append(column).append('\t').append(stored).append('\t').append(expected).append('\n');
+        if (repairLines != null) {
+            repairLines.append(String.format(REPAIR_UPDATE, column, sqlValue(expected), hexUserId, column, sqlValue(stored)));
+        }
+    }
+
+    private static boolean sameTime(@Nullable Timestamp left, @Nullable Timestamp right) {
+        return left == null ? right == null : left.equals(right);
+    }
+
+    private static final DateTimeFormatter DATETIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
+    private static String quote(@Nullable Timestamp time) {
+        return time == null ? null : "'" + DATETIME.format(time.toInstant()) + "'";
+    }
+
+    private static String sqlValue(@Nullable Object value) {
+        return value == null ? "NULL" : value.toString();
+    }
+
+    /**
+     * Stored balance of a user and the sums of its ledger.
+     */
+    private static final class Balance {
+        Balance(int total, int totalTemporary, int payedTemporary, int reserved,
+                @Nullable Timestamp earliestExpiryDate, @Nullable Integer earliestExpiryAmount) {
+            this.total = total;
+            this.totalTemporary = totalTemporary;
+            this.payedTemporary = payedTemporary;
+            this.reserved = reserved;
+            this.earliestExpiryDate = earliestExpiryDate;
+            this.earliestExpiryAmount = earliestExpiryAmount;
+        }
+
+        void addTransaction(int amount, @NotNull TransactionAction action) {
+            switch (action) {
+                case ADD_USER:
+                case ADD_POINTS:
+                    additions += amount;
+                    break;
+                case TEMPORARY_POINTS_ADDITION:
+                    temporaryAdditions += amount;
+                    break;
+                case RESERVE:
+                    openReservations += amount;
+                    break;
+                case COMMITTED:
+                    writeOffs += amount;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        void addTemporaryPoints(int amount, @NotNull Timestamp expiryTime) {
+            liveTemporaryPoints += amount;
+            if (liveEarliestExpiry == null || expiryTime.before(liveEarliestExpiry)) {
+                liveEarliestExpiry = expiryTime;
+                liveEarliestAmount = amount;
+                liveEarliestCount = 1;
+            } else if (expiryTime.equals(liveEarliestExpiry)) {
+                ++liveEarliestCount;
+            }
+        }
+
+        final int total;
+        final int totalTemporary;
+        final int payedTemporary;
+        final int reserved;
+        final Timestamp earliestExpiryDate;
+        final Integer earliestExpiryAmount;
+
+        long additions = 0;
+        long temporaryAdditions = 0;
+        long openReservations = 0;
+        long writeOffs = 0;
+        long liveTemporaryPoints = 0;
+        Timestamp liveEarliestExpiry = null;
+        int liveEarliestAmount = 0;
+        int liveEarliestCount = 0;
+    }
+
+    private final ConnectionPoolConfiguration poolConfiguration;
+    private final ReconciliationConfiguration configuration;
+    private final AtomicLong users = new AtomicLong();
+    private final AtomicLong ledgerRows = new AtomicLong();
+    private final AtomicLong mismatchedUsers = new AtomicLong();
+    private final AtomicLong orphanedRows = new AtomicLong();
+    private ConnectionPool connectionPool;
+    private Writer report;
+    private Writer repairScript;
+    private Logger logger = Logger.getLogger("LedgerReconciler");
+}
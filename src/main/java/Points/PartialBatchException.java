@@ -0,0 +1,42 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown by a batch that failed after some of its chunks committed. Those stay applied, so the batch must not be
+ * retried as a whole but from the items without a result.
+ *
+ * {@link #getResults} holds a result for every item the batch read, in the order of the batch, {@code null} for
+ * the items that were not applied. Items that an iterator had not handed out yet have no entry.
+ */
+public class PartialBatchException extends SQLException {
+    public PartialBatchException(@NotNull List<?> results, @NotNull SQLException cause) {
+        super("Batch failed with " + results.stream().filter(Objects::nonNull).count() + " of " + results.size() + " items applied!!",
+              cause.getSQLState(),
+              cause.getErrorCode(),
+              cause);
+        this.results = Collections.unmodifiableList(new ArrayList<>(results));
+    }
+
+    /**
+     * {@link BatchItemResult}s of additions, {@link SettlementResult}s of settlements.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getResults() {
+        return (List<T>) results;
+    }
+
+    @Override
+    public synchronized SQLException getCause() {
+        return (SQLException) super.getCause();
+    }
+
+    private final List<?> results;
+}
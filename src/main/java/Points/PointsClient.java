@@ -0,0 +1,353 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Client of {@link PointsServer} over one connection.
+ *
+ * Calls return right away and may be issued from any number of threads, their requests are pipelined on the
+ * connection. Answers are the ones of {@link PointsStore}, null where the store returns null, errors of the server
+ * fail the future with {@link ServerException}. A {@link Batch} sends many operations in one request.
+ */
+public class PointsClient implements AutoCloseable {
+    public PointsClient(@NotNull InetSocketAddress address, @NotNull Logger parentLogger) throws IOException {
+        logger.setParent(parentLogger);
+        logger.setLevel(null);
+        channel = SocketChannel.open(address);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        input = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        reader = new Thread(this::readResponses, "points-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Error answered by the server. Retryable ones are the server or the database being saturated, draining and timeouts.
+     */
+    public static class ServerException extends RuntimeException {
+        ServerException(byte status, @NotNull String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public boolean isRetryable() {
+            return status == PointsProtocol.UNAVAILABLE;
+        }
+
+        public boolean isBadRequest() {
+            return status == PointsProtocol.BAD_REQUEST;
+        }
+
+        private final byte status;
+    }
+
+    public CompletableFuture<Void> addUser(@NotNull AddUserParameters parameters) {
+        return call(PointsProtocol.ADD_USER, parameters);
+    }
+
+    public CompletableFuture<Void> addPoints(@NotNull AddPointsParameters parameters) {
+        return call(PointsProtocol.ADD_POINTS, parameters);
+    }
+
+    public CompletableFuture<List<BatchItemResult>> addPointsBatch(@NotNull List<AddPointsParameters> parameters) {
+        return call(PointsProtocol.ADD_POINTS_BATCH, parameters);
+    }
+
+    public CompletableFuture<GetUserInfoReturn> getUserInfo(@NotNull GetUserInfoParameters parameters) {
+        return call(PointsProtocol.GET_USER_INFO, parameters);
+    }
+
+    public CompletableFuture<GetTransactionInfoReturn> getTransactionInfo(@NotNull GetTransactionInfoParameters parameters) {
+        return call(PointsProtocol.GET_TRANSACTION_INFO, parameters);
+    }
+
+    /**
+     * First {@code pageSize} transactions of the history, ask for the next page from the time of the last one.
+     */
+    public CompletableFuture<List<GetTransactionInfoReturn>> userHistoryPage(@NotNull UserHistoryParameters parameters) {
+        return call(PointsProtocol.USER_HISTORY, parameters);
+    }
+
+    public CompletableFuture<Void> updateTemporaryPoints(@NotNull UpdateTemporaryPointsParameters parameters) {
+        return call(PointsProtocol.UPDATE_TEMPORARY_POINTS, parameters);
+    }
+
+    public CompletableFuture<Void> addTemporaryPoints(@NotNull AddTemporaryPointsParameters parameters) {
+        return call(PointsProtocol.ADD_TEMPORARY_POINTS, parameters);
+    }
+
+    public CompletableFuture<List<BatchItemResult>> addTemporaryPointsBatch(@NotNull List<AddTemporaryPointsParameters> parameters) {
+        return call(PointsProtocol.ADD_TEMPORARY_POINTS_BATCH, parameters);
+    }
+
+    public CompletableFuture<ReservePointsReturn> reservePoints(@NotNull ReservePointsParameters parameters) {
+        return call(PointsProtocol.RESERVE_POINTS, parameters);
+    }
+
+    public CompletableFuture<Void> cancelTransaction(@NotNull CancelTransactionParameters parameters) {
+        return call(PointsProtocol.CANCEL_TRANSACTION, parameters);
+    }
+
+    public CompletableFuture<Void> writeOffPoints(@NotNull WriteOffPointsParameters parameters) {
+        return call(PointsProtocol.WRITE_OFF_POINTS, parameters);
+    }
+
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Operations sent together by {@link #send}, the server runs them concurrently and answers them at once.
+     * Operations of a batch may run in any order, send dependent ones in separate batches.
+     */
+    public class Batch {
+        private Batch() {
+        }
+
+        public CompletableFuture<Void> addPoints(@NotNull AddPointsParameters parameters) {
+            return add(PointsProtocol.ADD_POINTS, parameters);
+        }
+
+        public CompletableFuture<GetUserInfoReturn> getUserInfo(@NotNull GetUserInfoParameters parameters) {
+            return add(PointsProtocol.GET_USER_INFO, parameters);
+        }
+
+        public CompletableFuture<GetTransactionInfoReturn> getTransactionInfo(@NotNull GetTransactionInfoParameters parameters) {
+            return add(PointsProtocol.GET_TRANSACTION_INFO, parameters);
+        }
+
+        public CompletableFuture<Void> addTemporaryPoints(@NotNull AddTemporaryPointsParameters parameters) {
+            return add(PointsProtocol.ADD_TEMPORARY_POINTS, parameters);
+        }
+
+        public CompletableFuture<ReservePointsReturn> reservePoints(@NotNull ReservePointsParameters parameters) {
+            return add(PointsProtocol.RESERVE_POINTS, parameters);
+        }
+
+        public CompletableFuture<Void> cancelTransaction(@NotNull CancelTransactionParameters parameters) {
+            return add(PointsProtocol.CANCEL_TRANSACTION, parameters);
+        }
+
+        public CompletableFuture<Void> writeOffPoints(@NotNull WriteOffPointsParameters parameters) {
+            return add(PointsProtocol.WRITE_OFF_POINTS, parameters);
+        }
+
+        /**
+         * Completes when every operation of the batch has its answer.
+         */
+        public CompletableFuture<Void> send() {
+            List<Call<?>> batch = new ArrayList<>(calls);
+            calls.clear();
+            CompletableFuture<Void> sent = new CompletableFuture<>();
+            long requestId = nextRequestId.getAndIncrement();
+            PointsProtocol.FrameBuilder frame = new PointsProtocol.FrameBuilder(requestId, PointsProtocol.BATCH);
+            try {
+                frame.data().writeInt(batch.size());
+                for (Call<?> call : batch) {
+                    ByteArrayOutputStream payload = new ByteArrayOutputStream(32);
+                    PointsProtocol.writeParameters(call.operation, call.parameters, new DataOutputStream(payload));
+                    frame.data().writeByte(call.operation);
+                    frame.data().writeInt(payload.size());
+                    payload.writeTo(frame.data());
+                }
+            } catch (IOException ex) {
+                sent.completeExceptionally(ex);
+                return sent;
+            }
+            pending.put(requestId, new Pending(PointsProtocol.BATCH, null, batch, sent));
+            write(requestId, frame.finish());
+            return sent;
+        }
+
+        private <T> CompletableFuture<T> add(byte operation, @NotNull Object parameters) {
+            Call<T> call = new Call<>(operation, parameters);
+            calls.add(call);
+            return call.result;
+        }
+
+        private final List<Call<?>> calls = new ArrayList<>();
+    }
+
+    private static final class Call<T> {
+        Call(byte operation, @NotNull Object parameters) {
+            this.operation = operation;
+            this.parameters = parameters;
+        }
+
+        final byte operation;
+        final Object parameters;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+    }
+
+    private static final class Pending {
+        Pending(byte operation, CompletableFuture<?> result, List<Call<?>> batch, CompletableFuture<Void> sent) {
+            this.operation = operation;
+            this.result = result;
+            this.batch = batch;
+            this.sent = sent;
+        }
+
+        final byte operation;
+        final CompletableFuture<?> result;
+        final List<Call<?>> batch;
+        final CompletableFuture<Void> sent;
+    }
+
+    private <T> CompletableFuture<T> call(byte operation, @NotNull Object parameters) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long requestId = nextRequestId.getAndIncrement();
+        PointsProtocol.FrameBuilder frame = new PointsProtocol.FrameBuilder(requestId, operation);
+        try {
+            PointsProtocol.writeParameters(operation, parameters, frame.data());
+        } catch (IOException ex) {
+            result.completeExceptionally(ex);
+            return result;
+        }
+        pending.put(requestId, new Pending(operation, result, null, null));
+        write(requestId, frame.finish());
+        return result;
+    }
+
+    private void write(long requestId, @NotNull ByteBuffer frame) {
+        Throwable failure = broken;
+        if (failure != null) {
+            Pending failed = pending.remove(requestId);
+            if (failed != null) {
+                fail(failed, failure);
+            }
+            return;
+        }
+        try {
+            synchronized (channel) {
+                while (frame.hasRemaining()) {
+                    channel.write(frame);
+                }
+            }
+        } catch (IOException ex) {
+            Pending failed = pending.remove(requestId);
+            if (failed != null) {
+                fail(failed, ex);
+            }
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (true) {
+                int length = input.readInt();
+                byte[] bytes = new byte[length];
+                input.readFully(bytes);
+                ByteBuffer response = ByteBuffer.wrap(bytes);
+                long requestId = response.getLong();
+                byte status = response.get();
+                Pending call = pending.remove(requestId);
+                if (call == null) {
+                    logger.warning("Got a response to unknown request " + requestId + "!!");
+                    continue;
+                }
+                if (call.operation != PointsProtocol.BATCH) {
+                    complete(call.result, call.operation, status, response);
+                    continue;
+                }
+                if (status != PointsProtocol.OK) {
+                    fail(call, new ServerException(status, PointsProtocol.getString(response)));
+                    continue;
+                }
+                int count = response.getInt();
+                for (int i = 0; i < count; ++i) {
+                    byte operationStatus = response.get();
+                    int operationLength = response.getInt();
+                    ByteBuffer payload = response.slice();
+                    payload.limit(operationLength);
+                    response.position(response.position() + operationLength);
+                    Call<?> operation = call.batch.get(i);
+                    complete(operation.result, operation.operation, operationStatus, payload);
+                }
+                call.sent.complete(null);
+            }
+        } catch (EOFException ex) {
+            failPending(new IOException("Points server closed the connection!!"));
+        } catch (IOException | RuntimeException ex) {
+            failPending(ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void complete(@NotNull CompletableFuture<?> result, byte operation, byte status, @NotNull ByteBuffer payload) {
+        CompletableFuture<Object> future = (CompletableFuture<Object>) result;
+        switch (status) {
+            case PointsProtocol.OK:
+                future.complete(PointsProtocol.readAnswer(operation, payload));
+                break;
+            case PointsProtocol.NOT_FOUND:
+                future.complete(null);
+                break;
+            default:
+                future.completeExceptionally(new ServerException(status, PointsProtocol.getString(payload)));
+                break;
+        }
+    }
+
+    private static void fail(@NotNull Pending call, @NotNull Throwable failure) {
+        if (call.result != null) {
+            call.result.completeExceptionally(failure);
+            return;
+        }
+        for (Call<?> operation : call.batch) {
+            operation.result.completeExceptionally(failure);
+        }
+        call.sent.completeExceptionally(failure);
+    }
+
+    private void failPending(@NotNull Throwable failure) {
+        broken = failure;
+        for (Map.Entry<Long, Pending> call : pending.entrySet()) {
+            if (pending.remove(call.getKey()) != null) {
+                fail(call.getValue(), failure);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+            reader.join();
+        } catch (IOException ex) {
+            logger.warning("Closing the connection failed: " + ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final SocketChannel channel;
+    private final DataInputStream input;
+    private final Thread reader;
+    private final AtomicLong nextRequestId = new AtomicLong();
+    private final Map<Long, Pending> pending = new ConcurrentHashMap<>();
+    private volatile Throwable broken;
+    private Logger logger = Logger.getLogger("PointsClient");
+}
@@ -0,0 +1,491 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.sql.Timestamp;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Append-only journal of {@link JournalEntry}s in memory-mapped segment files with periodic snapshots.
+ *
+ * Every record is a CRC32C checksum followed by the entry, a segment is named after the sequence number of
+ * its first entry. A background thread forces written segments to disk every {@code syncIntervalMillis},
+ * callers waiting for durability share that one sync. Every {@code snapshotEverySegments} filled segments
+ * are folded into the previous snapshot in the background and deleted, the live store is not touched.
+ * Recovery loads the latest snapshot and replays the segments after it up to the first torn record.
+ */
+final class PointsJournal implements AutoCloseable {
+    static final int RECORD_SIZE = 4 + JournalEntry.SIZE;
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".bin";
+    private static final int SNAPSHOT_MAGIC = 0x504E5453;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    PointsJournal(@NotNull JournalConfiguration configuration, @NotNull Logger logger) throws IOException {
+        this.directory = Paths.get(configuration.getDirectory());
+        this.configuration = configuration;
+        this.logger = logger;
+        if (configuration.getSegmentBytes() < RECORD_SIZE) {
+            throw new IllegalArgumentException("Journal segment has to hold at least one entry!!");
+        }
+        if (configuration.getSyncIntervalMillis() <= 0) {
+            throw new IllegalArgumentException("Journal sync interval has to be positive!!");
+        }
+        Files.createDirectories(directory);
+        this.compactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "points-journal-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.syncer = new Thread(this::syncPeriodically, "points-journal-sync");
+        this.syncer.setDaemon(true);
+    }
+
+    private static final class Segment {
+        Segment(long firstSequence, @NotNull MappedByteBuffer buffer) {
+            this.firstSequence = firstSequence;
+            this.buffer = buffer;
+        }
+
+        final long firstSequence;
+        final MappedByteBuffer buffer;
+    }
+
+    /**
+     * Loads the latest snapshot into {@code store} and replays the journal after it.
+     *
+     * @return number of replayed entries
+     */
+    long recover(@NotNull InMemoryPointsStore store) throws IOException {
+        long sequence = loadSnapshot(store, latestSnapshot());
+        long replayed = 0;
+        List<Long> segments = listSegments();
+        for (int i = 0; i < segments.size(); ++i) {
+            long first = segments.get(i);
+            long end = i + 1 < segments.size() ? segments.get(i + 1) : Long.MAX_VALUE;
+            if (end <= sequence) {
+                continue;
+            }
+            if (first > sequence) {
+                logger.warning("Journal misses entries " + sequence + " to " + first + ", replay stops!!");
+                discarded.addAll(segments.subList(i, segments.size()));
+                break;
+            }
+            long next = replaySegment(store, first, sequence, end);
+            replayed += next - sequence;
+            sequence = next;
+            if (next < end && end != Long.MAX_VALUE) {
+                logger.warning("Journal segment " + first + " ends at torn entry " + next + ", later segments are discarded!!");
+                discarded.addAll(segments.subList(i + 1, segments.size()));
+                break;
+            }
+        }
+        nextSequence = sequence;
+        durableSequence = sequence;
+        return replayed;
+    }
+
+    /**
+     * Replays entries from {@code from} up to {@code end} or the first torn record of a segment.
+     *
+     * @return sequence number of the first entry not replayed
+     */
+    private long replaySegment(@NotNull InMemoryPointsStore store, long first, long from, long end) throws IOException {
+        try(FileChannel channel = FileChannel.open(segmentPath(first), StandardOpenOption.READ)) {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32C crc = new CRC32C();
+            long sequence = first;
+            for (int position = 0; position + RECORD_SIZE <= buffer.limit() && sequence < end; position += RECORD_SIZE, ++sequence) {
+                int checksum = buffer.getInt(position);
+                ByteBuffer payload = buffer.duplicate();
+                payload.position(position + 4).limit(position + RECORD_SIZE);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum || payload.get(payload.position()) == 0) {
+                    break;
+                }
+                if (sequence >= from) {
+                    store.replay(JournalEntry.readFrom(payload));
+                }
+            }
+            return Math.max(sequence, from);
+        }
+    }
+
+    /**
+     * Drops segments past the recovered end and opens a segment for new entries.
+     */
+    void start() throws IOException {
+        for (long first : discarded) {
+            Files.deleteIfExists(segmentPath(first));
+        }
+        discarded.clear();
+        current = openSegment(nextSequence);
+        syncer.start();
+    }
+
+    private Segment openSegment(long firstSequence) throws IOException {
+        try(FileChannel channel = FileChannel.open(segmentPath(firstSequence),
+                                                   StandardOpenOption.CREATE,
+                                                   StandardOpenOption.TRUNCATE_EXISTING,
+                                                   StandardOpenOption.READ,
+                                                   StandardOpenOption.WRITE)) {
+            int capacity = configuration.getSegmentBytes() / RECORD_SIZE * RECORD_SIZE;
+            return new Segment(firstSequence, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    synchronized void append(@NotNull JournalEntry entry) {
+        if (closed) {
+            throw new IllegalStateException("Journal is closed!!");
+        }
+        if (!current.buffer.hasRemaining()) {
+            rotate();
+        }
+        int position = current.buffer.position();
+        current.buffer.position(position + 4);
+        entry.writeTo(current.buffer);
+        ByteBuffer payload = current.buffer.duplicate();
+        payload.position(position + 4).limit(position + RECORD_SIZE);
+        checksum.reset();
+        checksum.update(payload);
+        current.buffer.putInt(position, (int) checksum.getValue());
+        lastAppended.get()[0] = ++nextSequence;
+    }
+
+    private void rotate() {
+        unsynced.add(current);
+        try {
+            current = openSegment(nextSequence);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        if (++segmentsSinceSnapshot >= configuration.getSnapshotEverySegments()) {
+            segmentsSinceSnapshot = 0;
+            long upTo = current.firstSequence;
+            compactor.execute(() -> compact(upTo));
+        }
+    }
+
+    /**
+     * Waits until every entry appended by the calling thread is on disk.
+     */
+    void awaitDurable() {
+        long sequence = lastAppended.get()[0];
+        synchronized (durability) {
+            while (durableSequence < sequence && syncFailure == null) {
+                try {
+                    durability.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted waiting for the journal!!", ex);
+                }
+            }
+            if (syncFailure != null) {
+                throw new UncheckedIOException("Journal can not be synced!!", syncFailure);
+            }
+        }
+    }
+
+    private void syncPeriodically() {
+        while (!closed) {
+            try {
+                Thread.sleep(configuration.getSyncIntervalMillis());
+            } catch (InterruptedException ex) {
+                break;
+            }
+            sync();
+        }
+        sync();
+    }
+
+    private void sync() {
+        List<Segment> segments;
+        long sequence;
+        synchronized (this) {
+            sequence = nextSequence;
+            if (sequence == durableSequence) {
+                return;
+            }
+            segments = new ArrayList<>(unsynced);
+            segments.add(current);
+            unsynced.clear();
+        }
+        try {
+            for (Segment segment : segments) {
+                segment.buffer.force();
+            }
+        } catch (RuntimeException ex) {
+            logger.severe("Syncing the journal failed: " + ex.getMessage());
+            synchronized (durability) {
+                syncFailure = new IOException(ex);
+                durability.notifyAll();
+            }
+            return;
+        }
+        synchronized (durability) {
+            durableSequence = sequence;
+            durability.notifyAll();
+        }
+    }
+
+    /**
+     * Folds the entries before {@code upTo} into a new snapshot and deletes what it replaces.
+     */
+    private void compact(long upTo) {
+        try {
+            long start = System.nanoTime();
+            InMemoryPointsStore state = new InMemoryPointsStore(configuration.getStore(), logger);
+            long sequence = loadSnapshot(state, latestSnapshot());
+            List<Long> segments = listSegments();
+            for (int i = 0; i < segments.size() && segments.get(i) < upTo; ++i) {
+                long end = i + 1 < segments.size() ? Math.min(segments.get(i + 1), upTo) : upTo;
+                if (end > sequence) {
+                    sequence = replaySegment(state, segments.get(i), sequence, end);
+                }
+            }
+            writeSnapshot(state, sequence);
+            for (int i = 0; i + 1 < segments.size() && segments.get(i + 1) <= sequence; ++i) {
+                Files.deleteIfExists(segmentPath(segments.get(i)));
+            }
+            for (long snapshot : listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+                if (snapshot < sequence) {
+                    Files.deleteIfExists(snapshotPath(snapshot));
+                }
+            }
+            logger.info("Snapshotted the journal up to entry " + sequence + " in " + (System.nanoTime() - start) / 1_000_000 + " ms!");
+        } catch (IOException | RuntimeException ex) {
+            logger.warning("Snapshotting the journal failed: " + ex.getMessage());
+        }
+    }
+
+    private long latestSnapshot() throws IOException {
+        List<Long> snapshots = listFiles(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+        return snapshots.isEmpty() ? -1 : snapshots.get(snapshots.size() - 1);
+    }
+
+    private static final byte USER_RECORD = 1;
+    private static final byte TEMPORARY_POINTS_RECORD = 2;
+    private static final byte TRANSACTION_RECORD = 3;
+    private static final byte END_RECORD = 0;
+
+    private void writeSnapshot(@NotNull InMemoryPointsStore state, long sequence) throws IOException {
+        Path temporary = directory.resolve(SNAPSHOT_PREFIX + "tmp");
+        CRC32C crc = new CRC32C();
+        try(FileOutputStream file = new FileOutputStream(temporary.toFile());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(file, crc), 1 << 16))) {
+            output.writeInt(SNAPSHOT_MAGIC);
+            output.writeInt(SNAPSHOT_VERSION);
+            output.writeLong(sequence);
+            state.visit(new InMemoryPointsStore.Visitor() {
+                @Override
+                public void user(@NotNull GetUserInfoReturn user) throws IOException {
+                    output.writeByte(USER_RECORD);
+                    writeUuid(output, user.getUserId());
+                    output.writeInt(user.getTotal());
+                    output.writeInt(user.getTotalTemporary());
+                    output.writeInt(user.getPayedTemporary());
+                    output.writeInt(user.getReserved());
+                    output.writeLong(user.getEarliestExpiryDate() == null ? -1 : user.getEarliestExpiryDate().getTime());
+                    output.writeInt(user.getEarliestExpiryAmount());
+                }
+
+                @Override
+                public void temporaryPoints(@NotNull UUID userId, long transactionId, int amount, @NotNull Timestamp expiryDate) throws IOException {
+                    output.writeByte(TEMPORARY_POINTS_RECORD);
+                    writeUuid(output, userId);
+                    output.writeLong(transactionId);
+                    output.writeInt(amount);
+                    output.writeLong(expiryDate.getTime());
+                }
+
+                @Override
+                public void transaction(@NotNull GetTransactionInfoReturn transaction) throws IOException {
+                    output.writeByte(TRANSACTION_RECORD);
+                    output.writeLong(transaction.getTransactionId());
+                    writeUuid(output, transaction.getUserId());
+                    output.writeInt(transaction.getAmount());
+                    output.writeLong(transaction.getTime().getTime());
+                    output.writeLong(transaction.getExpiry_time() == null ? -1 : transaction.getExpiry_time().getTime());
+                    output.writeByte(transaction.getAction().ordinal());
+                }
+            });
+            output.writeByte(END_RECORD);
+            output.flush();
+            long checksum = crc.getValue();
+            output.writeLong(checksum);
+            output.flush();
+            file.getChannel().force(true);
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+        Files.move(temporary, snapshotPath(sequence), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return sequence number of the first entry after the snapshot, 0 without one
+     */
+    private long loadSnapshot(@NotNull InMemoryPointsStore store, long snapshot) throws IOException {
+        if (snapshot < 0) {
+            return 0;
+        }
+        CRC32C crc = new CRC32C();
+        try(InputStream file = Files.newInputStream(snapshotPath(snapshot));
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(file, 1 << 16), crc);
+            DataInputStream input = new DataInputStream(checked)) {
+            if (input.readInt() != SNAPSHOT_MAGIC || input.readInt() != SNAPSHOT_VERSION) {
+                throw new IOException("Journal snapshot " + snapshot + " has a wrong format!!");
+            }
+            long sequence = input.readLong();
+            for (byte record = input.readByte(); record != END_RECORD; record = input.readByte()) {
+                if (record == USER_RECORD) {
+                    UUID userId = readUuid(input);
+                    int total = input.readInt();
+                    int totalTemporary = input.readInt();
+                    int payedTemporary = input.readInt();
+                    int reserved = input.readInt();
+                    long earliestExpiryDate = input.readLong();
+                    store.restoreUser(new GetUserInfoReturn(userId,
+                                                            total,
+                                                            totalTemporary,
+                                                            payedTemporary,
+                                                            reserved,
+                                                            earliestExpiryDate < 0 ? null : new Timestamp(earliestExpiryDate),
+                                                            input.readInt()));
+                } else if (record == TEMPORARY_POINTS_RECORD) {
+                    UUID userId = readUuid(input);
+                    long transactionId = input.readLong();
+                    int amount = input.readInt();
+                    store.restoreTemporaryPoints(userId, transactionId, amount, new Timestamp(input.readLong()));
+                } else if (record == TRANSACTION_RECORD) {
+                    long transactionId = input.readLong();
+                    UUID userId = readUuid(input);
+                    int amount = input.readInt();
+                    Timestamp time = new Timestamp(input.readLong());
+                    long expiryTime = input.readLong();
+                    store.restoreTransaction(new GetTransactionInfoReturn(transactionId,
+                                                                          userId,
+                                                                          amount,
+                                                                          time,
+                                                                          expiryTime < 0 ? null : new Timestamp(expiryTime),
+                                                                          TransactionAction.fromIndex(input.readByte() + 1)));
+                } else {
+                    throw new IOException("Journal snapshot " + snapshot + " has an unknown record " + record + "!!");
+                }
+            }
+            long checksum = crc.getValue();
+            if (input.readLong() != checksum) {
+                throw new IOException("Journal snapshot " + snapshot + " is corrupted!!");
+            }
+            return sequence;
+        }
+    }
+
+    private static void writeUuid(@NotNull DataOutputStream output, @NotNull UUID uuid) throws IOException {
+        output.writeLong(uuid.getMostSignificantBits());
+        output.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    private static UUID readUuid(@NotNull DataInputStream input) throws IOException {
+        return new UUID(input.readLong(), input.readLong());
+    }
+
+    private List<Long> listSegments() throws IOException {
+        return listFiles(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+    }
+
+    private List<Long> listFiles(@NotNull String prefix, @NotNull String suffix) throws IOException {
+        try(Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                        .filter(name -> name.startsWith(prefix) && name.endsWith(suffix))
+                        .map(name -> Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())))
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+    }
+
+    private Path segmentPath(long firstSequence) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX));
+    }
+
+    private Path snapshotPath(long sequence) {
+        return directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, sequence, SNAPSHOT_SUFFIX));
+    }
+
+    /**
+     * Syncs what was appended, lets running compactions finish and stops the background threads.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        syncer.interrupt();
+        // A compaction left running would delete segments under the next journal opened on the directory.
+        compactor.shutdown();
+        try {
+            syncer.join();
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final Path directory;
+    private final JournalConfiguration configuration;
+    private final Logger logger;
+    private final ExecutorService compactor;
+    private final Thread syncer;
+    private final CRC32C checksum = new CRC32C();
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+    private final List<Long> discarded = new ArrayList<>();
+    // Guarded by the journal.
+    private final List<Segment> unsynced = new ArrayList<>();
+    private Segment current;
+    private long nextSequence = 0;
+    private int segmentsSinceSnapshot = 0;
+    private volatile boolean closed = false;
+    // Guarded by durability.
+    private final Object durability = new Object();
+    private volatile long durableSequence = 0;
+    private IOException syncFailure = null;
+}
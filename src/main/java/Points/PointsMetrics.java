@@ -0,0 +1,93 @@
+package Points;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Receives measurements of {@link DatabaseDriver} operations and of the connection pool under it.
+ *
+ * Methods are called on the hot path of every operation, implementations must be thread safe
+ * and must not block.
+ */
+public interface PointsMetrics {
+    enum Operation {
+        ADD_USER,
+        ADD_POINTS,
+        ADD_POINTS_BATCH,
+        GET_USER_INFO,
+        GET_TRANSACTION_INFO,
+        USER_HISTORY_PAGE,
+        UPDATE_TEMPORARY_POINTS,
+        ADD_TEMPORARY_POINTS,
+        ADD_TEMPORARY_POINTS_BATCH,
+        RESERVE_POINTS,
+        CANCEL_TRANSACTION,
+        CANCEL_TRANSACTION_BATCH,
+        WRITE_OFF_POINTS,
+        WRITE_OFF_POINTS_BATCH
+    }
+
+    enum Outcome {
+        SUCCESS,
+        INSUFFICIENT_POINTS,
+        INVALID_USER,
+        INVALID_TRANSACTION,
+        OVERLOADED,
+        ERROR
+    }
+
+    /**
+     * @param roundTrips statements sent to the server by the operation, commits included
+     */
+    void recordOperation(@NotNull Operation operation, @NotNull Outcome outcome, long latencyNanos, long roundTrips);
+
+    void recordConnectionAcquire(long waitNanos);
+
+    void recordConnectionOpened();
+
+    void recordCommit(long latencyNanos);
+
+    /**
+     * Time an operation spent expiring due temporary points of its user before it could go on.
+     */
+    void recordTemporaryPointsExpiry(long latencyNanos);
+
+    /**
+     * One batch of {@link TemporaryPointsSweeper}.
+     */
+    void recordTemporaryPointsSweep(int users, long latencyNanos);
+
+    /**
+     * A read answered by a replica rather than the primary.
+     */
+    void recordReplicaRead();
+
+    PointsMetrics NONE = new PointsMetrics() {
+        @Override
+        public void recordOperation(@NotNull Operation operation, @NotNull Outcome outcome, long latencyNanos, long roundTrips) {
+        }
+
+        @Override
+        public void recordConnectionAcquire(long waitNanos) {
+        }
+
+        @Override
+        public void recordConnectionOpened() {
+        }
+
+        @Override
+        public void recordCommit(long latencyNanos) {
+        }
+
+        @Override
+        public void recordTemporaryPointsExpiry(long latencyNanos) {
+        }
+
+        @Override
+        public void recordTemporaryPointsSweep(int users, long latencyNanos) {
+        }
+
+        @Override
+        public void recordReplicaRead() {
+        }
+    };
+}
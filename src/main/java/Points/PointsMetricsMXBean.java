@@ -0,0 +1,37 @@
+package Points;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link InProcessPointsMetrics}. Latency maps are keyed by percentile
+ * (p50, p99, p999, max, mean), per operation ones by operation and percentile.
+ */
+public interface PointsMetricsMXBean {
+    /**
+     * @return calls keyed by operation and outcome, e.g. RESERVE_POINTS.INSUFFICIENT_POINTS
+     */
+    Map<String, Long> getOperationCounts();
+
+    Map<String, Double> getOperationLatencyMillis();
+
+    /**
+     * @return mean statements sent to the server per call, keyed by operation
+     */
+    Map<String, Double> getOperationRoundTrips();
+
+    Map<String, Double> getConnectionAcquireMillis();
+
+    long getConnectionsOpened();
+
+    Map<String, Double> getCommitLatencyMillis();
+
+    Map<String, Double> getTemporaryPointsExpiryMillis();
+
+    Map<String, Double> getTemporaryPointsSweepMillis();
+
+    long getTemporaryPointsSweptUsers();
+
+    long getReplicaReads();
+
+    void reset();
+}
@@ -0,0 +1,15 @@
+package Points;
+
+import java.sql.SQLTransientException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thrown without touching the database when too many transactions of the operation are in flight.
+ * Nothing was applied, the operation can be retried later.
+ */
+public class PointsOverloadedException extends SQLTransientException {
+    public PointsOverloadedException(@NotNull String message) {
+        super(message);
+    }
+}
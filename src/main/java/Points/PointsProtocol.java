@@ -0,0 +1,371 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import java.sql.Timestamp;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Length-prefixed binary protocol of {@link PointsServer} and {@link PointsClient}, big-endian throughout.
+ *
+ * A request frame is {@code int length, long requestId, byte operation, payload} and its response
+ * {@code int length, long requestId, byte status, payload}, length counting the bytes after itself. Clients may
+ * pipeline any number of requests on a connection, responses come back as they complete, matched by requestId.
+ * A BATCH request carries {@code int count} operations, each {@code byte operation, int length, payload}, and is
+ * answered by as many {@code byte status, int length, payload} in the same order.
+ *
+ * Payloads follow the classes of parameters.kt and answers.kt field by field: UUIDs as two longs, timestamps
+ * as epoch milliseconds with {@link #NULL_TIME} for null, enums as their ordinal byte, strings as a short length
+ * and UTF-8, lists as an int count.
+ * A null answer is status NOT_FOUND, errors carry their message.
+ */
+final class PointsProtocol {
+    private PointsProtocol() {
+    }
+
+    static final byte ADD_USER = 1;
+    static final byte ADD_POINTS = 2;
+    static final byte ADD_POINTS_BATCH = 3;
+    static final byte GET_USER_INFO = 4;
+    static final byte GET_TRANSACTION_INFO = 5;
+    static final byte USER_HISTORY = 6;
+    static final byte UPDATE_TEMPORARY_POINTS = 7;
+    static final byte ADD_TEMPORARY_POINTS = 8;
+    static final byte ADD_TEMPORARY_POINTS_BATCH = 9;
+    static final byte RESERVE_POINTS = 10;
+    static final byte CANCEL_TRANSACTION = 11;
+    static final byte WRITE_OFF_POINTS = 12;
+    static final byte BATCH = 13;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte ERROR = 2;
+    static final byte BAD_REQUEST = 3;
+    static final byte UNAVAILABLE = 4;
+
+    // requestId and operation or status
+    static final int HEADER_SIZE = 8 + 1;
+    static final long NULL_TIME = Long.MIN_VALUE;
+
+    static final class ProtocolException extends Exception {
+        ProtocolException(@NotNull String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Reads the parameters of a non-batch operation.
+     */
+    static Object readParameters(byte operation, @NotNull ByteBuffer payload) throws ProtocolException {
+        try {
+            switch (operation) {
+                case ADD_USER:
+                    return new AddUserParameters(getUuid(payload), payload.getInt());
+                case ADD_POINTS:
+                    return readAddPoints(payload);
+                case ADD_POINTS_BATCH: {
+                    int count = getCount(payload, 16 + 4);
+                    List<AddPointsParameters> parameters = new ArrayList<>(count);
+                    for (int i = 0; i < count; ++i) {
+                        parameters.add(readAddPoints(payload));
+                    }
+                    return parameters;
+                }
+                case GET_USER_INFO:
+                    return new GetUserInfoParameters(getUuid(payload), payload.get() != 0);
+                case GET_TRANSACTION_INFO:
+                    return new GetTransactionInfoParameters(payload.getLong());
+                case USER_HISTORY:
+                    return new UserHistoryParameters(getUuid(payload), getTime(payload), getTime(payload), payload.getInt());
+                case UPDATE_TEMPORARY_POINTS:
+                    return new UpdateTemporaryPointsParameters(getUuid(payload), getTime(payload));
+                case ADD_TEMPORARY_POINTS:
+                    return readAddTemporaryPoints(payload);
+                case ADD_TEMPORARY_POINTS_BATCH: {
+                    int count = getCount(payload, 16 + 4 + 8);
+                    List<AddTemporaryPointsParameters> parameters = new ArrayList<>(count);
+                    for (int i = 0; i < count; ++i) {
+                        parameters.add(readAddTemporaryPoints(payload));
+                    }
+                    return parameters;
+                }
+                case RESERVE_POINTS:
+                    return new ReservePointsParameters(getUuid(payload), payload.getInt(), payload.getLong());
+                case CANCEL_TRANSACTION:
+                    return new CancelTransactionParameters(payload.getLong());
+                case WRITE_OFF_POINTS:
+                    return new WriteOffPointsParameters(payload.getLong());
+                default:
+                    throw new ProtocolException("Unknown operation " + operation + "!!");
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | NullPointerException ex) {
+            throw new ProtocolException("Truncated or malformed payload of operation " + operation + "!!");
+        }
+    }
+
+    private static AddPointsParameters readAddPoints(@NotNull ByteBuffer payload) {
+        return new AddPointsParameters(getUuid(payload), payload.getInt());
+    }
+
+    private static AddTemporaryPointsParameters readAddTemporaryPoints(@NotNull ByteBuffer payload) {
+        return new AddTemporaryPointsParameters(getUuid(payload), payload.getInt(), getTime(payload));
+    }
+
+    private static int getCount(@NotNull ByteBuffer payload, int itemSize) throws ProtocolException {
+        int count = payload.getInt();
+        if (count < 0 || (long) count * itemSize > payload.remaining()) {
+            throw new ProtocolException("Invalid item count " + count + "!!");
+        }
+        return count;
+    }
+
+    static void writeParameters(byte operation, @NotNull Object parameters, @NotNull DataOutputStream out) throws IOException {
+        switch (operation) {
+            case ADD_USER: {
+                AddUserParameters addUser = (AddUserParameters) parameters;
+                putUuid(out, addUser.getUserId());
+                out.writeInt(addUser.getTotal());
+                break;
+            }
+            case ADD_POINTS: {
+                AddPointsParameters addPoints = (AddPointsParameters) parameters;
+                putUuid(out, addPoints.getUserId());
+                out.writeInt(addPoints.getAmount());
+                break;
+            }
+            case ADD_POINTS_BATCH: {
+                List<?> batch = (List<?>) parameters;
+                out.writeInt(batch.size());
+                for (Object item : batch) {
+                    writeParameters(ADD_POINTS, item, out);
+                }
+                break;
+            }
+            case GET_USER_INFO: {
+                GetUserInfoParameters getUserInfo = (GetUserInfoParameters) parameters;
+                putUuid(out, getUserInfo.getUserId());
+                out.writeByte(getUserInfo.getConsistent() ? 1 : 0);
+                break;
+            }
+            case GET_TRANSACTION_INFO:
+                out.writeLong(((GetTransactionInfoParameters) parameters).getTransactionId());
+                break;
+            case USER_HISTORY: {
+                UserHistoryParameters history = (UserHistoryParameters) parameters;
+                putUuid(out, history.getUserId());
+                putTime(out, history.getFrom());
+                putTime(out, history.getTo());
+                out.writeInt(history.getPageSize());
+                break;
+            }
+            case UPDATE_TEMPORARY_POINTS: {
+                UpdateTemporaryPointsParameters update = (UpdateTemporaryPointsParameters) parameters;
+                putUuid(out, update.getUserId());
+                putTime(out, update.getUpdateTime());
+                break;
+            }
+            case ADD_TEMPORARY_POINTS: {
+                AddTemporaryPointsParameters addTemporary = (AddTemporaryPointsParameters) parameters;
+                putUuid(out, addTemporary.getUserId());
+                out.writeInt(addTemporary.getAmount());
+                putTime(out, addTemporary.getExpiryDate());
+                break;
+            }
+            case ADD_TEMPORARY_POINTS_BATCH: {
+                List<?> batch = (List<?>) parameters;
+                out.writeInt(batch.size());
+                for (Object item : batch) {
+                    writeParameters(ADD_TEMPORARY_POINTS, item, out);
+                }
+                break;
+            }
+            case RESERVE_POINTS: {
+                ReservePointsParameters reserve = (ReservePointsParameters) parameters;
+                putUuid(out, reserve.getUserId());
+                out.writeInt(reserve.getAmount());
+                out.writeLong(reserve.getTtlMillis());
+                break;
+            }
+            case CANCEL_TRANSACTION:
+                out.writeLong(((CancelTransactionParameters) parameters).getTransactionId());
+                break;
+            case WRITE_OFF_POINTS:
+                out.writeLong(((WriteOffPointsParameters) parameters).getTransactionId());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation + "!!");
+        }
+    }
+
+    /**
+     * Writes the answer of a non-batch operation, null answers have no payload.
+     */
+    static void writeAnswer(byte operation, @Nullable Object answer, @NotNull DataOutputStream out) throws IOException {
+        if (answer == null) {
+            return;
+        }
+        switch (operation) {
+            case ADD_POINTS_BATCH:
+            case ADD_TEMPORARY_POINTS_BATCH: {
+                List<?> results = (List<?>) answer;
+                out.writeInt(results.size());
+                for (Object result : results) {
+                    out.writeByte(((BatchItemResult) result).ordinal());
+                }
+                break;
+            }
+            case GET_USER_INFO: {
+                GetUserInfoReturn userInfo = (GetUserInfoReturn) answer;
+                putUuid(out, userInfo.getUserId());
+                out.writeInt(userInfo.getTotal());
+                out.writeInt(userInfo.getTotalTemporary());
+                out.writeInt(userInfo.getPayedTemporary());
+                out.writeInt(userInfo.getReserved());
+                putTime(out, userInfo.getEarliestExpiryDate());
+                out.writeInt(userInfo.getEarliestExpiryAmount());
+                break;
+            }
+            case GET_TRANSACTION_INFO:
+                putTransaction(out, (GetTransactionInfoReturn) answer);
+                break;
+            case USER_HISTORY: {
+                List<?> history = (List<?>) answer;
+                out.writeInt(history.size());
+                for (Object transaction : history) {
+                    putTransaction(out, (GetTransactionInfoReturn) transaction);
+                }
+                break;
+            }
+            case RESERVE_POINTS:
+                out.writeLong(((ReservePointsReturn) answer).getTransactionId());
+                break;
+            default:
+                break;
+        }
+    }
+
+    static Object readAnswer(byte operation, @NotNull ByteBuffer payload) {
+        switch (operation) {
+            case ADD_POINTS_BATCH:
+            case ADD_TEMPORARY_POINTS_BATCH: {
+                int count = payload.getInt();
+                List<BatchItemResult> results = new ArrayList<>(count);
+                for (int i = 0; i < count; ++i) {
+                    results.add(BatchItemResult.values()[payload.get()]);
+                }
+                return results;
+            }
+            case GET_USER_INFO:
+                return new GetUserInfoReturn(getUuid(payload),
+                                             payload.getInt(),
+                                             payload.getInt(),
+                                             payload.getInt(),
+                                             payload.getInt(),
+                                             getTime(payload),
+                                             payload.getInt());
+            case GET_TRANSACTION_INFO:
+                return getTransaction(payload);
+            case USER_HISTORY: {
+                int count = payload.getInt();
+                List<GetTransactionInfoReturn> history = new ArrayList<>(count);
+                for (int i = 0; i < count; ++i) {
+                    history.add(getTransaction(payload));
+                }
+                return history;
+            }
+            case RESERVE_POINTS:
+                return new ReservePointsReturn(payload.getLong());
+            default:
+                return null;
+        }
+    }
+
+    private static void putTransaction(@NotNull DataOutputStream out, @NotNull GetTransactionInfoReturn transaction) throws IOException {
+        out.writeLong(transaction.getTransactionId());
+        putUuid(out, transaction.getUserId());
+        out.writeInt(transaction.getAmount());
+        putTime(out, transaction.getTime());
+        putTime(out, transaction.getExpiry_time());
+        out.writeByte(transaction.getAction().ordinal());
+    }
+
+    private static GetTransactionInfoReturn getTransaction(@NotNull ByteBuffer payload) {
+        return new GetTransactionInfoReturn(payload.getLong(),
+                                            getUuid(payload),
+                                            payload.getInt(),
+                                            getTime(payload),
+                                            getTime(payload),
+                                            TransactionAction.fromIndex(payload.get() + 1));
+    }
+
+    static void putUuid(@NotNull DataOutputStream out, @NotNull UUID uuid) throws IOException {
+        out.writeLong(uuid.getMostSignificantBits());
+        out.writeLong(uuid.getLeastSignificantBits());
+    }
+
+    static UUID getUuid(@NotNull ByteBuffer payload) {
+        return new UUID(payload.getLong(), payload.getLong());
+    }
+
+    static void putTime(@NotNull DataOutputStream out, @Nullable Timestamp time) throws IOException {
+        out.writeLong(time == null ? NULL_TIME : time.getTime());
+    }
+
+    static Timestamp getTime(@NotNull ByteBuffer payload) {
+        long time = payload.getLong();
+        return time == NULL_TIME ? null : new Timestamp(time);
+    }
+
+    static void putString(@NotNull DataOutputStream out, @NotNull String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(Math.min(bytes.length, 0xFFFF));
+        out.write(bytes, 0, Math.min(bytes.length, 0xFFFF));
+    }
+
+    static String getString(@NotNull ByteBuffer payload) {
+        byte[] bytes = new byte[payload.getShort() & 0xFFFF];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Frame whose length prefix is filled in by {@link #finish}.
+     */
+    static final class FrameBuilder {
+        FrameBuilder(long requestId, byte operationOrStatus) {
+            try {
+                data.writeInt(0);
+                data.writeLong(requestId);
+                data.writeByte(operationOrStatus);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        DataOutputStream data() {
+            return data;
+        }
+
+        ByteBuffer finish() {
+            ByteBuffer frame = ByteBuffer.wrap(bytes.toByteArray());
+            frame.putInt(0, frame.remaining() - 4);
+            return frame;
+        }
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        private final DataOutputStream data = new DataOutputStream(bytes);
+    }
+}
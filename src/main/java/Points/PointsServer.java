@@ -0,0 +1,523 @@
+package Points;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Serves the operations of a {@link PointsStore} over the protocol of {@link PointsProtocol}.
+ *
+ * One event loop thread accepts connections, reads and decodes their frames and writes the responses, the
+ * operations themselves run on an {@link AsyncPointsDriver}. Every connection pipelines: all complete frames read
+ * are dispatched at once and answered as they finish. A connection stops being read while more than
+ * {@code maxUnsentBytes} of responses wait for it, a frame longer than {@code maxFrameBytes} closes it.
+ *
+ * {@link #close} drains: it stops accepting connections and reading requests, waits up to {@code drainTimeoutMillis}
+ * for the running ones to be answered and then closes the connections. The store stays open.
+ */
+public class PointsServer implements AutoCloseable {
+    public PointsServer(@NotNull PointsStore store, @NotNull PointsServerConfiguration configuration, @NotNull Logger parentLogger) {
+        this.configuration = configuration;
+        this.async = new AsyncPointsDriver(store, configuration.getAsync());
+        logger.setParent(parentLogger);
+        logger.setLevel(null);
+    }
+
+    public synchronized void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(configuration.getHost(), configuration.getPort()), configuration.getAcceptBacklog());
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        address = (InetSocketAddress) serverChannel.getLocalAddress();
+
+        loop = new Thread(this::run, "points-server");
+        loop.start();
+        logger.info("Points server listens on " + address + "...");
+    }
+
+    /**
+     * Address the server listens on, with the actual port when the configured one is 0.
+     */
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    private void run() {
+        long drainDeadline = Long.MAX_VALUE;
+        try {
+            while (true) {
+                if (draining && drainDeadline == Long.MAX_VALUE) {
+                    drainDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(configuration.getDrainTimeoutMillis());
+                    stopAccepting();
+                }
+                if (draining && inFlight.get() == 0 && allFlushed()) {
+                    break;
+                }
+                if (draining && System.nanoTime() - drainDeadline >= 0) {
+                    logger.warning("Drain timed out, " + inFlight.get() + " requests are left unanswered!!");
+                    break;
+                }
+
+                selector.select(draining ? 10 : 0);
+                wakeupPending.set(false);
+                flushCompleted();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            write(connection);
+                        }
+                    } catch (RuntimeException ex) {
+                        // A request the decoding did not foresee costs its own connection, not the server.
+                        logger.severe("Closing a connection that failed: " + ex);
+                        closeConnection(connection);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            logger.severe("Points server loop failed: " + ex.getMessage());
+        } finally {
+            for (Connection connection : new ArrayList<>(connections)) {
+                closeConnection(connection);
+            }
+            closeQuietly(serverChannel);
+            closeQuietly(selector);
+        }
+    }
+
+    private void stopAccepting() {
+        closeQuietly(serverChannel);
+        for (Connection connection : connections) {
+            updateInterest(connection);
+        }
+    }
+
+    private boolean allFlushed() {
+        for (Connection connection : connections) {
+            if (!connection.outgoing.isEmpty() || !connection.completed.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.add(connection);
+    }
+
+    private void read(@NotNull Connection connection) {
+        int read;
+        try {
+            read = connection.channel.read(connection.incoming);
+        } catch (IOException ex) {
+            closeConnection(connection);
+            return;
+        }
+        if (read < 0) {
+            connection.inputClosed = true;
+            updateInterest(connection);
+            closeIfDone(connection);
+            return;
+        }
+
+        ByteBuffer incoming = connection.incoming;
+        incoming.flip();
+        int needed = 0;
+        while (incoming.remaining() >= 4) {
+            int length = incoming.getInt(incoming.position());
+            if (length < PointsProtocol.HEADER_SIZE || length > configuration.getMaxFrameBytes()) {
+                logger.warning("Closing a connection that sent a frame of " + length + " bytes!!");
+                closeConnection(connection);
+                return;
+            }
+            if (incoming.remaining() < 4 + length) {
+                needed = 4 + length;
+                break;
+            }
+            ByteBuffer frame = incoming.slice();
+            frame.limit(4 + length);
+            frame.position(4);
+            incoming.position(incoming.position() + 4 + length);
+            dispatch(connection, frame.getLong(), frame.get(), frame);
+        }
+        incoming.compact();
+        if (needed > incoming.capacity()) {
+            incoming.flip();
+            connection.incoming = ByteBuffer.allocate(needed).put(incoming);
+        }
+    }
+
+    /**
+     * Decodes the request in the loop thread, the frame is only valid until the next read.
+     */
+    private void dispatch(@NotNull Connection connection, long requestId, byte operation, @NotNull ByteBuffer payload) {
+        CompletableFuture<ByteBuffer> response;
+        if (operation == PointsProtocol.BATCH) {
+            response = executeBatch(requestId, payload);
+        } else {
+            response = execute(operation, payload).handle((answer, failure) -> {
+                byte status = statusOf(operation, answer, failure);
+                PointsProtocol.FrameBuilder frame = new PointsProtocol.FrameBuilder(requestId, status);
+                writePayload(frame.data(), operation, status, answer, failure);
+                return frame.finish();
+            });
+        }
+
+        inFlight.incrementAndGet();
+        connection.inFlight.incrementAndGet();
+        response.whenComplete((frame, failure) -> {
+            if (failure != null) {
+                logger.severe("Encoding a response failed: " + failure.getMessage());
+                PointsProtocol.FrameBuilder error = new PointsProtocol.FrameBuilder(requestId, PointsProtocol.ERROR);
+                writePayload(error.data(), operation, PointsProtocol.ERROR, null, failure);
+                frame = error.finish();
+            }
+            connection.completed.add(frame);
+            connection.inFlight.decrementAndGet();
+            inFlight.decrementAndGet();
+            ready.add(connection);
+            if (wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        });
+    }
+
+    private CompletableFuture<?> execute(byte operation, @NotNull ByteBuffer payload) {
+        Object parameters;
+        try {
+            parameters = PointsProtocol.readParameters(operation, payload);
+            if (payload.hasRemaining()) {
+                throw new PointsProtocol.ProtocolException("Trailing bytes after the payload of operation " + operation + "!!");
+            }
+        } catch (PointsProtocol.ProtocolException ex) {
+            return CompletableFuture.failedFuture(ex);
+        }
+        return execute(operation, parameters);
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<?> execute(byte operation, @NotNull Object parameters) {
+        switch (operation) {
+            case PointsProtocol.ADD_USER:
+                return async.addUser((AddUserParameters) parameters);
+            case PointsProtocol.ADD_POINTS:
+                return async.addPoints((AddPointsParameters) parameters);
+            case PointsProtocol.ADD_POINTS_BATCH:
+                return async.addPointsBatch((List<AddPointsParameters>) parameters);
+            case PointsProtocol.GET_USER_INFO:
+                return async.getUserInfo((GetUserInfoParameters) parameters);
+            case PointsProtocol.GET_TRANSACTION_INFO:
+                return async.getTransactionInfo((GetTransactionInfoParameters) parameters);
+            case PointsProtocol.USER_HISTORY:
+                return async.userHistoryPage((UserHistoryParameters) parameters);
+            case PointsProtocol.UPDATE_TEMPORARY_POINTS:
+                return async.updateTemporaryPoints((UpdateTemporaryPointsParameters) parameters);
+            case PointsProtocol.ADD_TEMPORARY_POINTS:
+                return async.addTemporaryPoints((AddTemporaryPointsParameters) parameters);
+            case PointsProtocol.ADD_TEMPORARY_POINTS_BATCH:
+                return async.addTemporaryPointsBatch((List<AddTemporaryPointsParameters>) parameters);
+            case PointsProtocol.RESERVE_POINTS:
+                return async.reservePoints((ReservePointsParameters) parameters);
+            case PointsProtocol.CANCEL_TRANSACTION:
+                return async.cancelTransaction((CancelTransactionParameters) parameters);
+            case PointsProtocol.WRITE_OFF_POINTS:
+                return async.writeOffPoints((WriteOffPointsParameters) parameters);
+            default:
+                throw new IllegalArgumentException("Unknown operation " + operation + "!!");
+        }
+    }
+
+    /**
+     * Runs the operations of a batch concurrently and answers them together, in request order.
+     */
+    private CompletableFuture<ByteBuffer> executeBatch(long requestId, @NotNull ByteBuffer payload) {
+        List<CompletableFuture<byte[]>> results = new ArrayList<>();
+        try {
+            int count = payload.remaining() >= 4 ? payload.getInt() : -1;
+            // Every operation takes at least its operation byte and length.
+            if (count < 0 || (long) count * 5 > payload.remaining()) {
+                throw new PointsProtocol.ProtocolException("Invalid batch size " + count + "!!");
+            }
+            for (int i = 0; i < count; ++i) {
+                // An earlier operation may have taken more than its share of the payload.
+                if (payload.remaining() < 5) {
+                    throw new PointsProtocol.ProtocolException("Batch operation " + i + " is truncated!!");
+                }
+                byte operation = payload.get();
+                int length = payload.getInt();
+                if (length < 0 || length > payload.remaining()) {
+                    throw new PointsProtocol.ProtocolException("Invalid length " + length + " of batch operation " + i + "!!");
+                }
+                ByteBuffer operationPayload = payload.slice();
+                operationPayload.limit(length);
+                payload.position(payload.position() + length);
+                CompletableFuture<?> result = operation == PointsProtocol.BATCH
+                                              ? CompletableFuture.failedFuture(new PointsProtocol.ProtocolException("Batches do not nest!!"))
+                                              : execute(operation, operationPayload);
+                results.add(result.handle((answer, failure) -> encodeBatchResult(operation, answer, failure)));
+            }
+            if (payload.hasRemaining()) {
+                throw new PointsProtocol.ProtocolException("Trailing bytes after the batch!!");
+            }
+        } catch (PointsProtocol.ProtocolException ex) {
+            // Operations already started still run, only the malformed batch is answered.
+            PointsProtocol.FrameBuilder frame = new PointsProtocol.FrameBuilder(requestId, PointsProtocol.BAD_REQUEST);
+            writePayload(frame.data(), PointsProtocol.BATCH, PointsProtocol.BAD_REQUEST, null, ex);
+            return CompletableFuture.completedFuture(frame.finish());
+        }
+
+        return CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+            PointsProtocol.FrameBuilder frame = new PointsProtocol.FrameBuilder(requestId, PointsProtocol.OK);
+            try {
+                frame.data().writeInt(results.size());
+                for (CompletableFuture<byte[]> result : results) {
+                    frame.data().write(result.join());
+                }
+            } catch (IOException ex) {
+                throw new CompletionException(ex);
+            }
+            return frame.finish();
+        });
+    }
+
+    private static byte[] encodeBatchResult(byte operation, @Nullable Object answer, @Nullable Throwable failure) {
+        byte status = statusOf(operation, answer, failure);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+        writePayload(new DataOutputStream(bytes), operation, status, answer, failure);
+        ByteBuffer result = ByteBuffer.allocate(1 + 4 + bytes.size());
+        result.put(status).putInt(bytes.size()).put(bytes.toByteArray());
+        return result.array();
+    }
+
+    private static byte statusOf(byte operation, @Nullable Object answer, @Nullable Throwable failure) {
+        Throwable cause = unwrap(failure);
+        if (cause instanceof PointsProtocol.ProtocolException) {
+            return PointsProtocol.BAD_REQUEST;
+        }
+        if (cause instanceof RejectedExecutionException || cause instanceof TimeoutException || cause instanceof PointsOverloadedException) {
+            return PointsProtocol.UNAVAILABLE;
+        }
+        if (cause != null) {
+            return PointsProtocol.ERROR;
+        }
+        if (answer == null && (operation == PointsProtocol.GET_USER_INFO ||
+                               operation == PointsProtocol.GET_TRANSACTION_INFO ||
+                               operation == PointsProtocol.RESERVE_POINTS)) {
+            return PointsProtocol.NOT_FOUND;
+        }
+        return PointsProtocol.OK;
+    }
+
+    private static void writePayload(@NotNull DataOutputStream out,
+                                     byte operation,
+                                     byte status,
+                                     @Nullable Object answer,
+                                     @Nullable Throwable failure) {
+        try {
+            if (status == PointsProtocol.OK) {
+                PointsProtocol.writeAnswer(operation, answer, out);
+            } else if (status != PointsProtocol.NOT_FOUND) {
+                Throwable cause = unwrap(failure);
+                String message = cause == null ? null : cause.getMessage();
+                PointsProtocol.putString(out, message != null ? message : String.valueOf(cause));
+            }
+        } catch (IOException ex) {
+            throw new CompletionException(ex);
+        }
+    }
+
+    private static Throwable unwrap(@Nullable Throwable failure) {
+        while ((failure instanceof CompletionException || failure instanceof ExecutionException) && failure.getCause() != null) {
+            failure = failure.getCause();
+        }
+        return failure;
+    }
+
+    private void flushCompleted() {
+        Connection connection;
+        while ((connection = ready.poll()) != null) {
+            if (!connection.open) {
+                continue;
+            }
+            ByteBuffer frame;
+            while ((frame = connection.completed.poll()) != null) {
+                connection.outgoing.add(frame);
+                connection.unsentBytes += frame.remaining();
+            }
+            write(connection);
+        }
+    }
+
+    private void write(@NotNull Connection connection) {
+        try {
+            while (!connection.outgoing.isEmpty()) {
+                long written = connection.channel.write(connection.outgoing.toArray(new ByteBuffer[0]));
+                connection.unsentBytes -= written;
+                while (!connection.outgoing.isEmpty() && !connection.outgoing.peek().hasRemaining()) {
+                    connection.outgoing.poll();
+                }
+                if (written == 0) {
+                    break;
+                }
+            }
+        } catch (IOException ex) {
+            closeConnection(connection);
+            return;
+        }
+        updateInterest(connection);
+        closeIfDone(connection);
+    }
+
+    private void updateInterest(@NotNull Connection connection) {
+        if (!connection.open || !connection.key.isValid()) {
+            return;
+        }
+        int interest = 0;
+        if (!connection.outgoing.isEmpty()) {
+            interest |= SelectionKey.OP_WRITE;
+        }
+        if (!draining && !connection.inputClosed && connection.unsentBytes < configuration.getMaxUnsentBytes()) {
+            interest |= SelectionKey.OP_READ;
+        }
+        connection.key.interestOps(interest);
+    }
+
+    private void closeIfDone(@NotNull Connection connection) {
+        if (connection.inputClosed &&
+            connection.inFlight.get() == 0 &&
+            connection.completed.isEmpty() &&
+            connection.outgoing.isEmpty()) {
+            closeConnection(connection);
+        }
+    }
+
+    private void closeConnection(@NotNull Connection connection) {
+        if (!connection.open) {
+            return;
+        }
+        connection.open = false;
+        connections.remove(connection);
+        if (connection.key != null) {
+            connection.key.cancel();
+        }
+        closeQuietly(connection.channel);
+    }
+
+    private void closeQuietly(@Nullable AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception ex) {
+            logger.warning("Closing " + closeable + " failed: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Drains the requests already read and stops the server, the store stays open.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (loop != null) {
+            draining = true;
+            selector.wakeup();
+            try {
+                loop.join(configuration.getDrainTimeoutMillis() + 1_000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        async.close();
+        logger.info("Points server stopped...");
+    }
+
+    private static final class Connection {
+        Connection(@NotNull SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        final SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer incoming = ByteBuffer.allocate(64 * 1024);
+        // Responses finished by the workers, moved to outgoing by the loop thread.
+        final ConcurrentLinkedQueue<ByteBuffer> completed = new ConcurrentLinkedQueue<>();
+        final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<>();
+        final AtomicInteger inFlight = new AtomicInteger();
+        long unsentBytes;
+        boolean inputClosed;
+        boolean open = true;
+    }
+
+    private final PointsServerConfiguration configuration;
+    private final AsyncPointsDriver async;
+    private final Set<Connection> connections = new HashSet<>();
+    private final ConcurrentLinkedQueue<Connection> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean draining;
+    private boolean closed;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private InetSocketAddress address;
+    private Thread loop;
+    private Logger logger = Logger.getLogger("PointsServer");
+}
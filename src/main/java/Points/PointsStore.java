@@ -0,0 +1,51 @@
+package Points;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Storage of points balances and their transaction ledger.
+ *
+ * {@link DatabaseDriver} keeps them in MySQL, {@link InMemoryPointsStore} in the heap and {@link JournaledPointsStore}
+ * in the heap backed by a journal on disk. All follow the same contract, checked by PointsStoreConformanceTest:
+ * operations on invalid users or transactions are ignored with a warning and return null where they return anything,
+ * {@link #reservePoints} returns transaction id -1 when the user has not got points enough, and settling a transaction
+ * in a way its state forbids throws.
+ */
+public interface PointsStore extends AutoCloseable {
+    void addUser(@NotNull AddUserParameters parameters) throws SQLException;
+
+    void addPoints(@NotNull AddPointsParameters parameters) throws SQLException;
+
+    List<BatchItemResult> addPointsBatch(@NotNull List<AddPointsParameters> parameters) throws SQLException;
+
+    List<BatchItemResult> addPointsBatch(@NotNull Iterator<AddPointsParameters> parameters, int chunkSize) throws SQLException;
+
+    GetUserInfoReturn getUserInfo(@NotNull GetUserInfoParameters parameters) throws SQLException;
+
+    GetTransactionInfoReturn getTransactionInfo(@NotNull GetTransactionInfoParameters parameters) throws SQLException;
+
+    Stream<GetTransactionInfoReturn> streamUserHistory(@NotNull UserHistoryParameters parameters);
+
+    void updateTemporaryPoints(@NotNull UpdateTemporaryPointsParameters parameters) throws SQLException;
+
+    void addTemporaryPoints(@NotNull AddTemporaryPointsParameters parameters) throws SQLException;
+
+    List<BatchItemResult> addTemporaryPointsBatch(@NotNull List<AddTemporaryPointsParameters> parameters) throws SQLException;
+
+    List<BatchItemResult> addTemporaryPointsBatch(@NotNull Iterator<AddTemporaryPointsParameters> parameters, int chunkSize) throws SQLException;
+
+    ReservePointsReturn reservePoints(@NotNull ReservePointsParameters parameters) throws SQLException;
+
+    void cancelTransaction(@NotNull CancelTransactionParameters parameters) throws SQLException;
+
+    void writeOffPoints(@NotNull WriteOffPointsParameters parameters) throws SQLException;
+
+    @Override
+    void close();
+}
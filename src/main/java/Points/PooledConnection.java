@@ -0,0 +1,111 @@
+package Points;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Connection leased from a {@link ConnectionPool}.
+ *
+ * Statements prepared through it are cached per physical connection and must not be closed by the caller.
+ * Closing the lease rolls back whatever was not committed and hands the connection back to the pool.
+ */
+public final class PooledConnection implements AutoCloseable {
+    PooledConnection(@NotNull ConnectionPool pool, @NotNull Connection connection) {
+        this.pool = pool;
+        this.connection = connection;
+    }
+
+    public PreparedStatement prepareStatement(@NotNull String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    public PreparedStatement prepareStatement(@NotNull String sql, int autoGeneratedKeys) throws SQLException {
+        PreparedStatement statement = statementsWithKeys.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql, autoGeneratedKeys);
+            statementsWithKeys.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Binary user id in a mutable buffer shared by all statements of this connection. Statements keep the buffer
+     * rather than a copy until they run, batched ones until the batch runs, and may run again with what it holds then.
+     * So a transaction binds one user from it, asking for another one before the commit or rollback throws;
+     * transactions of several users bind arrays of their own.
+     */
+    byte[] userIdBytes(@NotNull UUID userId) {
+        if (boundUserId != null && !boundUserId.equals(userId)) {
+            throw new IllegalStateException("User " + boundUserId + " is bound from the buffer of this transaction already, " + userId + " needs its own array!!");
+        }
+        boundUserId = userId;
+        return UuidBinary.toBytes(userId, userIdBuffer);
+    }
+
+    public void commit() throws SQLException {
+        long start = System.nanoTime();
+        connection.commit();
+        boundUserId = null;
+        pool.getMetrics().recordCommit(System.nanoTime() - start);
+    }
+
+    public void rollback() throws SQLException {
+        connection.rollback();
+        boundUserId = null;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public void close() {
+        boundUserId = null;
+        boolean broken = false;
+        try {
+            connection.rollback();
+        } catch (SQLException ex) {
+            broken = true;
+        }
+        pool.release(this, broken);
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    void destroy() {
+        statements.clear();
+        statementsWithKeys.clear();
+        try {
+            connection.close();
+        } catch (SQLException ex) {
+            // the connection is being discarded anyway
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final Connection connection;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final Map<String, PreparedStatement> statementsWithKeys = new HashMap<>();
+    private final byte[] userIdBuffer = new byte[16];
+    private UUID boundUserId;
+    private long lastUsed = System.currentTimeMillis();
+}
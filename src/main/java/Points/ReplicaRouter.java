@@ -0,0 +1,217 @@
+package Points;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import java.sql.SQLException;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Picks the database the public reads of a {@link DatabaseDriver} go to.
+ *
+ * Reads go to the replica with the smallest replication lag within {@code maxLagMillis}, round robin between equals,
+ * and to the primary when there is none. Every {@code lagCheckIntervalMillis} the router writes the time of its clock
+ * to its row of {@code replica_heartbeat} on the primary and reads the row back from every replica, a replica has
+ * applied everything the primary committed before the beat it returns. So the lag is the age of that beat, measured
+ * end to end with one clock and exact to the check interval. A replica whose beat cannot be read or that failed a read
+ * is skipped until the next check says otherwise, one whose replication stopped ages out by itself.
+ * Users and transactions written through the driver are pinned to the primary until a replica returns a beat written
+ * after the write, or {@code pinAfterWriteMillis} passed, which is enough when it is not below {@code maxLagMillis}.
+ * Pins live in the driver, other processes only get the {@code maxLagMillis} bound.
+ */
+final class ReplicaRouter implements AutoCloseable {
+    private static final long NO_BEAT = 0;
+    private static final long HEARTBEAT_RETENTION_MILLIS = 86_400_000;
+
+    ReplicaRouter(@NotNull ConnectionPool primary,
+                  @NotNull ReplicaConfiguration configuration,
+                  @NotNull PointsMetrics metrics,
+                  @NotNull Logger logger) {
+        if (configuration.getPinAfterWriteMillis() < configuration.getMaxLagMillis()) {
+            throw new IllegalArgumentException("Replica pins have to last at least the allowed lag!!");
+        }
+        this.primary = primary;
+        this.configuration = configuration;
+        this.logger = logger;
+        List<ConnectionPoolConfiguration> endpoints = configuration.getReplicas();
+        replicas = new ConnectionPool[endpoints.size()];
+        beats = new AtomicLongArray(endpoints.size());
+        for (int replica = 0; replica < replicas.length; ++replica) {
+            replicas[replica] = new ConnectionPool(endpoints.get(replica), metrics, logger);
+        }
+        pinnedUsers = CacheBuilder.newBuilder()
+                                  .expireAfterWrite(configuration.getPinAfterWriteMillis(), TimeUnit.MILLISECONDS)
+                                  .build();
+        pinnedTransactions = CacheBuilder.newBuilder()
+                                         .expireAfterWrite(configuration.getPinAfterWriteMillis(), TimeUnit.MILLISECONDS)
+                                         .build();
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-lag-checker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        if (replicas.length > 0) {
+            executor.execute(this::deleteOldHeartbeats);
+            executor.scheduleWithFixedDelay(this::checkLags, 0, configuration.getLagCheckIntervalMillis(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    boolean hasReplicas() {
+        return replicas.length > 0;
+    }
+
+    /**
+     * Called after the commit that changed the user.
+     */
+    void pinUser(@NotNull UUID userId) {
+        if (hasReplicas()) {
+            pinnedUsers.put(userId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Called after the commit that changed the transaction.
+     */
+    void pinTransaction(long transactionId) {
+        if (hasReplicas()) {
+            pinnedTransactions.put(transactionId, System.currentTimeMillis());
+        }
+    }
+
+    ConnectionPool forUser(@NotNull UUID userId) {
+        Long writtenAt = pinnedUsers.getIfPresent(userId);
+        return pickReplica(writtenAt != null ? writtenAt : NO_BEAT);
+    }
+
+    ConnectionPool forTransaction(long transactionId) {
+        Long writtenAt = pinnedTransactions.getIfPresent(transactionId);
+        return pickReplica(writtenAt != null ? writtenAt : NO_BEAT);
+    }
+
+    /**
+     * Takes a replica out of rotation after a failed read, until the next lag check.
+     */
+    void markFailed(@NotNull ConnectionPool replica) {
+        for (int i = 0; i < replicas.length; ++i) {
+            if (replicas[i] == replica) {
+                beats.set(i, NO_BEAT);
+                logger.warning("Replica " + i + " failed a read and is skipped until its next lag check!!");
+            }
+        }
+    }
+
+    /**
+     * The freshest replica within the allowed lag that returned a beat written after {@code writtenAt}.
+     * A beat taken on the clock after a commit is committed after it, so the replica has applied the commit.
+     */
+    private ConnectionPool pickReplica(long writtenAt) {
+        if (replicas.length == 0) {
+            return primary;
+        }
+        long oldest = Math.max(writtenAt + 1, System.currentTimeMillis() - configuration.getMaxLagMillis());
+        int start = Math.floorMod(next.getAndIncrement(), replicas.length);
+        int best = -1;
+        long bestBeat = oldest - 1;
+        for (int i = 0; i < replicas.length; ++i) {
+            int replica = (start + i) % replicas.length;
+            long beat = beats.get(replica);
+            if (beat > bestBeat) {
+                best = replica;
+                bestBeat = beat;
+            }
+        }
+        return best < 0 ? primary : replicas[best];
+    }
+
+    private static final String HEARTBEAT_WRITE = "INSERT INTO Points.replica_heartbeat " +
+                                                  "(writer, beat) " +
+                                                  "VALUES (?, ?) " +
+                                                  "ON DUPLICATE KEY UPDATE beat = VALUES(beat)";
+    private static final String HEARTBEAT_READ = "SELECT beat " +
+                                                 "FROM Points.replica_heartbeat " +
+                                                 "WHERE writer = ?";
+    private void checkLags() {
+        long beat = System.currentTimeMillis();
+        try(PooledConnection connection = primary.acquire()) {
+            PreparedStatement statement = connection.prepareStatement(HEARTBEAT_WRITE);
+            statement.setLong(1, writer);
+            statement.setLong(2, beat);
+            statement.executeUpdate();
+            connection.commit();
+        } catch (SQLException | RuntimeException ex) {
+            // Replicas keep returning older beats and age out, reads move to the primary.
+            logger.warning("Writing the replica heartbeat failed: " + ex.getMessage());
+        }
+        for (int replica = 0; replica < replicas.length; ++replica) {
+            long applied = NO_BEAT;
+            try(PooledConnection connection = replicas[replica].acquire()) {
+                PreparedStatement statement = connection.prepareStatement(HEARTBEAT_READ);
+                statement.setLong(1, writer);
+                try(ResultSet result = statement.executeQuery()) {
+                    if (result.next()) {
+                        applied = result.getLong(1);
+                    }
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException ex) {
+                logger.warning("Checking lag of replica " + replica + " failed: " + ex.getMessage());
+            }
+            if (applied == NO_BEAT && beats.get(replica) != NO_BEAT) {
+                logger.warning("Replica " + replica + " returns no heartbeat, reads skip it!!");
+            }
+            beats.set(replica, applied);
+        }
+    }
+
+    private static final String HEARTBEAT_DELETE = "DELETE FROM Points.replica_heartbeat " +
+                                                   "WHERE beat < ?";
+    /**
+     * Drops the rows left by drivers that are gone.
+     */
+    private void deleteOldHeartbeats() {
+        try(PooledConnection connection = primary.acquire()) {
+            PreparedStatement statement = connection.prepareStatement(HEARTBEAT_DELETE);
+            statement.setLong(1, System.currentTimeMillis() - HEARTBEAT_RETENTION_MILLIS);
+            statement.executeUpdate();
+            connection.commit();
+        } catch (SQLException | RuntimeException ex) {
+            logger.warning("Deleting old replica heartbeats failed: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        for (ConnectionPool replica : replicas) {
+            replica.close();
+        }
+    }
+
+    private final ConnectionPool primary;
+    private final ConnectionPool[] replicas;
+    private final long writer = UUID.randomUUID().getMostSignificantBits();
+    private final AtomicLongArray beats;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Cache<UUID, Long> pinnedUsers;
+    private final Cache<Long, Long> pinnedTransactions;
+    private final ReplicaConfiguration configuration;
+    private final ScheduledExecutorService executor;
+    private final Logger logger;
+}
@@ -0,0 +1,155 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import java.nio.ByteBuffer;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import java.sql.Timestamp;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Cancels reservations whose expiry_time has passed without a write-off or a cancel.
+ *
+ * Every batch cancels up to {@code batchSize} reservations in one transaction and returns their points
+ * with one update per user. Reservations locked by a live write-off or cancel are skipped and left to them,
+ * so workers neither wait for live traffic nor for each other.
+ */
+public class ReservationReaper implements AutoCloseable {
+    ReservationReaper(@NotNull ConnectionPool connectionPool,
+                      @NotNull UserInfoCache userInfoCache,
+                      @NotNull ReservationReaperConfiguration configuration,
+                      @NotNull Logger logger) {
+        this.connectionPool = connectionPool;
+        this.userInfoCache = userInfoCache;
+        this.configuration = configuration;
+        this.logger = logger;
+        this.executor = Executors.newScheduledThreadPool(configuration.getWorkers(), runnable -> {
+            Thread thread = new Thread(runnable, "reservation-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        for (int worker = 0; worker < configuration.getWorkers(); ++worker) {
+            executor.scheduleWithFixedDelay(this::reapAll,
+                                            0,
+                                            configuration.getPeriodMillis(),
+                                            TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Cancels every reservation expired at {@code now} in the calling thread.
+     *
+     * @return number of canceled reservations
+     */
+    public int reap(@NotNull Timestamp now) throws SQLException {
+        int reservations = 0;
+        int reaped;
+        do {
+            reaped = reapBatch(now);
+            reservations += reaped;
+        } while (reaped == configuration.getBatchSize());
+        return reservations;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+
+    private void reapAll() {
+        try {
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            int reaped;
+            do {
+                reaped = reapBatch(now);
+            } while (reaped == configuration.getBatchSize() && !closed);
+        } catch (SQLException | RuntimeException ex) {
+            logger.warning("Canceling expired reservations failed: " + ex.getMessage());
+        }
+    }
+
+    private static final String REAP_SELECT = "SELECT id, " +
+                                                     "user_id, " +
+                                                     "amount " +
+                                              "FROM Points.transaction " +
+                                              "WHERE action = \"reserve\" and expiry_time < ? " +
+                                              "ORDER BY expiry_time " +
+                                              "LIMIT ? " +
+                                              "FOR UPDATE SKIP LOCKED";
+    private static final String REAP_CANCEL = "UPDATE Points.transaction " +
+                                              "SET action = \"canceled\" " +
+                                              "WHERE id IN (%s)";
+    private static final String REAP_UPDATE_USER = "UPDATE Points.points " +
+                                                   "SET reserved = reserved - ? " +
+                                                   "WHERE user_id = ?";
+    private int reapBatch(@NotNull Timestamp now) throws SQLException {
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statementSelect = connection.prepareStatement(REAP_SELECT);
+            statementSelect.setTimestamp(1, now);
+            statementSelect.setInt(2, configuration.getBatchSize());
+            List<Long> transactionIds = new ArrayList<>();
+            // Users are updated in key order, so that concurrent workers lock them in the same order.
+            Map<ByteBuffer, Integer> reservedByUser = new TreeMap<>();
+            try(ResultSet result = statementSelect.executeQuery()) {
+                while (result.next()) {
+                    transactionIds.add(result.getLong(1));
+                    reservedByUser.merge(ByteBuffer.wrap(result.getBytes(2)), result.getInt(3), Integer::sum);
+                }
+            }
+            if (transactionIds.isEmpty()) {
+                return 0;
+            }
+
+            String placeholders = String.join(", ", Collections.nCopies(transactionIds.size(), "?"));
+            try(PreparedStatement statementCancel = connection.getConnection().prepareStatement(String.format(REAP_CANCEL, placeholders))) {
+                int index = 1;
+                for (long transactionId : transactionIds) {
+                    statementCancel.setLong(index++, transactionId);
+                }
+                statementCancel.executeUpdate();
+            }
+
+            PreparedStatement statementUser = connection.prepareStatement(REAP_UPDATE_USER);
+            statementUser.clearBatch();
+            for (Map.Entry<ByteBuffer, Integer> user : reservedByUser.entrySet()) {
+                statementUser.setInt(1, user.getValue());
+                statementUser.setBytes(2, user.getKey().array());
+                statementUser.addBatch();
+            }
+            statementUser.executeBatch();
+
+            connection.commit();
+            for (ByteBuffer userId : reservedByUser.keySet()) {
+                userInfoCache.invalidate(UuidBinary.fromBytes(userId.array()));
+            }
+            logger.fine("Canceled " + transactionIds.size() + " expired reservations of " + reservedByUser.size() + " users!");
+            return transactionIds.size();
+        }
+    }
+
+    private final ConnectionPool connectionPool;
+    private final UserInfoCache userInfoCache;
+    private final ReservationReaperConfiguration configuration;
+    private final Logger logger;
+    private final ScheduledExecutorService executor;
+    private volatile boolean closed = false;
+}
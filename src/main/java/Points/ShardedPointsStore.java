@@ -0,0 +1,503 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+import java.util.zip.CRC32;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * {@link PointsStore} spread over several MySQL databases, each with its own {@link DatabaseDriver} and connection pool.
+ *
+ * A user belongs to one of {@code buckets} buckets by the CRC-32 of its id, and every bucket lives on one shard.
+ * The map of buckets to shards is kept in the catalog database, see {@link BucketCatalog}, which every operation
+ * reads with a lock on its buckets, so stores in several processes can share the shards and move buckets.
+ * Transaction ids returned to callers carry the bucket in their upper bits, so settling a transaction goes to
+ * its shard without a lookup. Shard {@code i} draws its ids from the series {@code i + 1 + k * MAX_SHARDS},
+ * which keeps them unique when {@link #moveBucket} copies transactions to another shard.
+ */
+public class ShardedPointsStore implements PointsStore {
+    static final int MAX_SHARDS = 256;
+    static final int BUCKET_SHIFT = 48;
+    static final int MAX_BUCKETS = 1 << (63 - BUCKET_SHIFT);
+    private static final long LOCAL_ID_MASK = (1L << BUCKET_SHIFT) - 1;
+
+    public ShardedPointsStore(@NotNull ShardedDatabaseConfiguration configuration, @NotNull Logger parentLogger) {
+        logger.setParent(parentLogger);
+        logger.setLevel(null);
+        this.configuration = configuration;
+        List<DatabaseDriverConfiguration> shards = configuration.getShards();
+        if (shards.isEmpty() || shards.size() > MAX_SHARDS) {
+            throw new IllegalArgumentException("Number of shards has to be from 1 to " + MAX_SHARDS + "!!");
+        }
+        if (configuration.getBuckets() < shards.size() || configuration.getBuckets() > MAX_BUCKETS) {
+            throw new IllegalArgumentException("Number of buckets has to be from the number of shards to " + MAX_BUCKETS + "!!");
+        }
+        List<Integer> bucketShards = configuration.getBucketShards();
+        if (!bucketShards.isEmpty() && bucketShards.size() != configuration.getBuckets()) {
+            throw new IllegalArgumentException("Shards have to be given for all " + configuration.getBuckets() + " buckets!!");
+        }
+
+        List<Integer> initialShards = new ArrayList<>(configuration.getBuckets());
+        for (int bucket = 0; bucket < configuration.getBuckets(); ++bucket) {
+            int shard = bucketShards.isEmpty() ? bucket % shards.size() : bucketShards.get(bucket);
+            if (shard < 0 || shard >= shards.size()) {
+                throw new IllegalArgumentException("Bucket " + bucket + " is mapped to invalid shard " + shard + "!!");
+            }
+            initialShards.add(shard);
+        }
+        catalog = new BucketCatalog(catalogPool(configuration), configuration.getBuckets(), shards.size(), initialShards, logger);
+
+        drivers = new DatabaseDriver[shards.size()];
+        for (int shard = 0; shard < shards.size(); ++shard) {
+            drivers[shard] = new DatabaseDriver(withIdSeries(shards.get(shard), shard), logger);
+        }
+    }
+
+    /**
+     * The catalog is the first shard unless configured otherwise. Every operation holds a catalog connection
+     * while it runs on its shard, so the default pool is as large as those of all shards together.
+     */
+    private static ConnectionPoolConfiguration catalogPool(@NotNull ShardedDatabaseConfiguration configuration) {
+        if (configuration.getCatalog() != null) {
+            return configuration.getCatalog();
+        }
+        ConnectionPoolConfiguration first = configuration.getShards().get(0).getConnectionPool();
+        int maxSize = 0;
+        for (DatabaseDriverConfiguration shard : configuration.getShards()) {
+            maxSize += shard.getConnectionPool().getMaxSize();
+        }
+        return new ConnectionPoolConfiguration(first.getUrl(),
+                                               maxSize,
+                                               first.getAcquireTimeoutMillis(),
+                                               first.getValidationIntervalMillis(),
+                                               first.getValidationTimeoutSeconds());
+    }
+
+    /**
+     * Makes the connections of a shard draw transaction ids from the series of the shard only.
+     */
+    private static DatabaseDriverConfiguration withIdSeries(@NotNull DatabaseDriverConfiguration shard, int index) {
+        ConnectionPoolConfiguration pool = shard.getConnectionPool();
+        String url = pool.getUrl() + (pool.getUrl().contains("?") ? "&" : "?")
+                     + "sessionVariables=auto_increment_increment=" + MAX_SHARDS + ",auto_increment_offset=" + (index + 1);
+        return shard.withConnectionPool(new ConnectionPoolConfiguration(url,
+                                                                        pool.getMaxSize(),
+                                                                        pool.getAcquireTimeoutMillis(),
+                                                                        pool.getValidationIntervalMillis(),
+                                                                        pool.getValidationTimeoutSeconds()));
+    }
+
+    static long toTransactionId(int bucket, long localId) {
+        return localId < 0 ? localId : ((long) bucket << BUCKET_SHIFT) | localId;
+    }
+
+    static int bucketOf(long transactionId) {
+        return (int) (transactionId >>> BUCKET_SHIFT);
+    }
+
+    static long localIdOf(long transactionId) {
+        return transactionId & LOCAL_ID_MASK;
+    }
+
+    /**
+     * CRC-32 of the binary user id, as {@code user_hash} of the {@code points} table.
+     */
+    static long hashOf(@NotNull UUID userId) {
+        CRC32 crc = new CRC32();
+        crc.update(UuidBinary.toBytes(userId));
+        return crc.getValue();
+    }
+
+    /**
+     * Buckets are consecutive ranges of the hash, so the users of one are read from the index on {@code user_hash}.
+     */
+    static int bucketOf(long hash, int buckets) {
+        return (int) ((hash * buckets) >>> 32);
+    }
+
+    /**
+     * Smallest hash in the bucket, the range of the last bucket ends at {@code 2^32}.
+     */
+    static long firstHashOf(int bucket, int buckets) {
+        return (((long) bucket << 32) + buckets - 1) / buckets;
+    }
+
+    int bucketOf(@NotNull UUID userId) {
+        return bucketOf(hashOf(userId), configuration.getBuckets());
+    }
+
+    /**
+     * Current shard of every bucket, as kept in the catalog.
+     */
+    public List<Integer> getBucketShards() throws SQLException {
+        return catalog.getShards();
+    }
+
+    public DatabaseDriver getShard(int shard) {
+        return drivers[shard];
+    }
+
+    private interface ShardCall<T> {
+        T call(@NotNull DatabaseDriver driver) throws SQLException;
+    }
+
+    private interface ShardAction {
+        void run(@NotNull DatabaseDriver driver) throws SQLException;
+    }
+
+    private interface ShardBatch<P> {
+        List<BatchItemResult> apply(@NotNull DatabaseDriver driver, @NotNull List<P> parameters) throws SQLException;
+    }
+
+    private <T> T callOnBucket(int bucket, @NotNull ShardCall<T> call) throws SQLException {
+        try(BucketCatalog.Lease lease = catalog.lease(new int[]{bucket})) {
+            return call.call(drivers[lease.shardOf(bucket)]);
+        }
+    }
+
+    private void runOnBucket(int bucket, @NotNull ShardAction action) throws SQLException {
+        callOnBucket(bucket, driver -> {
+            action.run(driver);
+            return null;
+        });
+    }
+
+    private boolean isValidTransactionId(long transactionId) {
+        if (transactionId < 0 || bucketOf(transactionId) >= configuration.getBuckets()) {
+            logger.warning("Requested transaction " + transactionId + " is invalid!!");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Splits a batch by shard while the buckets of its users are locked, results keep the order of the batch.
+     */
+    private <P> List<BatchItemResult> applyBatch(@NotNull List<P> parameters,
+                                                 @NotNull Function<P, UUID> userId,
+                                                 @NotNull ShardBatch<P> batch) throws SQLException {
+        int[] buckets = new int[parameters.size()];
+        for (int i = 0; i < parameters.size(); ++i) {
+            buckets[i] = bucketOf(userId.apply(parameters.get(i)));
+        }
+        int[] locked = Arrays.stream(buckets).sorted().distinct().toArray();
+        try(BucketCatalog.Lease lease = catalog.lease(locked)) {
+            Map<Integer, List<Integer>> indexesByShard = new TreeMap<>();
+            for (int i = 0; i < parameters.size(); ++i) {
+                indexesByShard.computeIfAbsent(lease.shardOf(buckets[i]), shard -> new ArrayList<>()).add(i);
+            }
+            BatchItemResult[] results = new BatchItemResult[parameters.size()];
+            for (Map.Entry<Integer, List<Integer>> shard : indexesByShard.entrySet()) {
+                List<P> shardParameters = new ArrayList<>(shard.getValue().size());
+                for (int index : shard.getValue()) {
+                    shardParameters.add(parameters.get(index));
+                }
+                List<BatchItemResult> shardResults;
+                try {
+                    shardResults = batch.apply(drivers[shard.getKey()], shardParameters);
+                } catch (SQLException ex) {
+                    if (ex instanceof PartialBatchException) {
+                        List<BatchItemResult> partial = ((PartialBatchException) ex).getResults();
+                        for (int i = 0; i < partial.size(); ++i) {
+                            results[shard.getValue().get(i)] = partial.get(i);
+                        }
+                    }
+                    throw partialBatch(Arrays.asList(results), ex);
+                }
+                for (int i = 0; i < shardResults.size(); ++i) {
+                    results[shard.getValue().get(i)] = shardResults.get(i);
+                }
+            }
+            return Arrays.asList(results);
+        }
+    }
+
+    /**
+     * The failure of a shard, with the {@code results} of the batch so far, {@code null} for the items not applied.
+     */
+    private static SQLException partialBatch(@NotNull List<?> results, @NotNull SQLException ex) {
+        if (results.stream().allMatch(Objects::isNull)) {
+            return ex;
+        }
+        return new PartialBatchException(results, ex instanceof PartialBatchException ? ((PartialBatchException) ex).getCause() : ex);
+    }
+
+    private <P> List<BatchItemResult> applyBatchChunks(@NotNull Iterator<P> parameters,
+                                                       int chunkSize,
+                                                       @NotNull Function<P, UUID> userId,
+                                                       @NotNull ShardBatch<P> batch) throws SQLException {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Batch chunk size has to be positive!!");
+        }
+        List<BatchItemResult> results = new ArrayList<>();
+        List<P> chunk = new ArrayList<>(chunkSize);
+        while (parameters.hasNext()) {
+            chunk.add(parameters.next());
+            if (chunk.size() == chunkSize || !parameters.hasNext()) {
+                try {
+                    results.addAll(applyBatch(chunk, userId, batch));
+                } catch (SQLException ex) {
+                    if (ex instanceof PartialBatchException) {
+                        results.addAll(((PartialBatchException) ex).getResults());
+                    } else {
+                        results.addAll(Collections.nCopies(chunk.size(), null));
+                    }
+                    throw partialBatch(results, ex);
+                }
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        return results;
+    }
+
+    private GetTransactionInfoReturn withBucket(int bucket, GetTransactionInfoReturn transaction) {
+        if (transaction == null) {
+            return null;
+        }
+        return new GetTransactionInfoReturn(toTransactionId(bucket, transaction.getTransactionId()),
+                                            transaction.getUserId(),
+                                            transaction.getAmount(),
+                                            transaction.getTime(),
+                                            transaction.getExpiry_time(),
+                                            transaction.getAction());
+    }
+
+    @Override
+    public void addUser(@NotNull AddUserParameters parameters) throws SQLException {
+        runOnBucket(bucketOf(parameters.getUserId()), driver -> driver.addUser(parameters));
+    }
+
+    @Override
+    public void addPoints(@NotNull AddPointsParameters parameters) throws SQLException {
+        runOnBucket(bucketOf(parameters.getUserId()), driver -> driver.addPoints(parameters));
+    }
+
+    @Override
+    public List<BatchItemResult> addPointsBatch(@NotNull List<AddPointsParameters> parameters) throws SQLException {
+        return applyBatch(parameters, AddPointsParameters::getUserId, DatabaseDriver::addPointsBatch);
+    }
+
+    @Override
+    public List<BatchItemResult> addPointsBatch(@NotNull Iterator<AddPointsParameters> parameters, int chunkSize) throws SQLException {
+        return applyBatchChunks(parameters, chunkSize, AddPointsParameters::getUserId, DatabaseDriver::addPointsBatch);
+    }
+
+    @Override
+    public GetUserInfoReturn getUserInfo(@NotNull GetUserInfoParameters parameters) throws SQLException {
+        return callOnBucket(bucketOf(parameters.getUserId()), driver -> driver.getUserInfo(parameters));
+    }
+
+    @Override
+    public GetTransactionInfoReturn getTransactionInfo(@NotNull GetTransactionInfoParameters parameters) throws SQLException {
+        long transactionId = parameters.getTransactionId();
+        if (!isValidTransactionId(transactionId)) {
+            return null;
+        }
+        int bucket = bucketOf(transactionId);
+        return callOnBucket(bucket, driver -> withBucket(bucket, driver.getTransactionInfo(new GetTransactionInfoParameters(localIdOf(transactionId)))));
+    }
+
+    /**
+     * Streams the history page by page, every page is read from the shard of the user while its bucket is leased.
+     * Moves keep the local ids of transactions, so after a move of the bucket between pages the stream continues on
+     * the target shard after the last transaction streamed.
+     */
+    @Override
+    public Stream<GetTransactionInfoReturn> streamUserHistory(@NotNull UserHistoryParameters parameters) {
+        int bucket = bucketOf(parameters.getUserId());
+        return DatabaseDriver.streamUserHistoryPages(parameters,
+                                                     (cursorTime, cursorId) -> callOnBucket(bucket, driver -> driver.readUserHistoryPage(parameters, cursorTime, cursorId)))
+                             .map(transaction -> withBucket(bucket, transaction));
+    }
+
+    @Override
+    public void updateTemporaryPoints(@NotNull UpdateTemporaryPointsParameters parameters) throws SQLException {
+        runOnBucket(bucketOf(parameters.getUserId()), driver -> driver.updateTemporaryPoints(parameters));
+    }
+
+    @Override
+    public void addTemporaryPoints(@NotNull AddTemporaryPointsParameters parameters) throws SQLException {
+        runOnBucket(bucketOf(parameters.getUserId()), driver -> driver.addTemporaryPoints(parameters));
+    }
+
+    @Override
+    public List<BatchItemResult> addTemporaryPointsBatch(@NotNull List<AddTemporaryPointsParameters> parameters) throws SQLException {
+        return applyBatch(parameters, AddTemporaryPointsParameters::getUserId, DatabaseDriver::addTemporaryPointsBatch);
+    }
+
+    @Override
+    public List<BatchItemResult> addTemporaryPointsBatch(@NotNull Iterator<AddTemporaryPointsParameters> parameters, int chunkSize) throws SQLException {
+        return applyBatchChunks(parameters, chunkSize, AddTemporaryPointsParameters::getUserId, DatabaseDriver::addTemporaryPointsBatch);
+    }
+
+    @Override
+    public ReservePointsReturn reservePoints(@NotNull ReservePointsParameters parameters) throws SQLException {
+        int bucket = bucketOf(parameters.getUserId());
+        ReservePointsReturn reservation = callOnBucket(bucket, driver -> driver.reservePoints(parameters));
+        if (reservation == null) {
+            return null;
+        }
+        return new ReservePointsReturn(toTransactionId(bucket, reservation.getTransactionId()));
+    }
+
+    @Override
+    public void cancelTransaction(@NotNull CancelTransactionParameters parameters) throws SQLException {
+        long transactionId = parameters.getTransactionId();
+        if (isValidTransactionId(transactionId)) {
+            runOnBucket(bucketOf(transactionId), driver -> driver.cancelTransaction(new CancelTransactionParameters(localIdOf(transactionId))));
+        }
+    }
+
+    @Override
+    public void writeOffPoints(@NotNull WriteOffPointsParameters parameters) throws SQLException {
+        long transactionId = parameters.getTransactionId();
+        if (isValidTransactionId(transactionId)) {
+            runOnBucket(bucketOf(transactionId), driver -> driver.writeOffPoints(new WriteOffPointsParameters(localIdOf(transactionId))));
+        }
+    }
+
+    private interface ShardSettlement {
+        List<SettlementResult> apply(@NotNull DatabaseDriver driver, @NotNull List<Long> transactionIds) throws SQLException;
+    }
+
+    /**
+     * Splits a batch settlement by shard while the buckets of its transactions are locked,
+     * results keep the order of the batch.
+     */
+    private List<SettlementResult> settleBatch(@NotNull List<Long> transactionIds, @NotNull ShardSettlement settlement) throws SQLException {
+        SettlementResult[] results = new SettlementResult[transactionIds.size()];
+        int[] buckets = new int[transactionIds.size()];
+        for (int i = 0; i < transactionIds.size(); ++i) {
+            if (isValidTransactionId(transactionIds.get(i))) {
+                buckets[i] = bucketOf(transactionIds.get(i));
+            } else {
+                buckets[i] = -1;
+                results[i] = SettlementResult.INVALID_TRANSACTION;
+            }
+        }
+        int[] locked = Arrays.stream(buckets).filter(bucket -> bucket >= 0).sorted().distinct().toArray();
+        if (locked.length == 0) {
+            return Arrays.asList(results);
+        }
+        try(BucketCatalog.Lease lease = catalog.lease(locked)) {
+            Map<Integer, List<Integer>> indexesByShard = new TreeMap<>();
+            for (int i = 0; i < transactionIds.size(); ++i) {
+                if (buckets[i] >= 0) {
+                    indexesByShard.computeIfAbsent(lease.shardOf(buckets[i]), shard -> new ArrayList<>()).add(i);
+                }
+            }
+            for (Map.Entry<Integer, List<Integer>> shard : indexesByShard.entrySet()) {
+                List<Long> localIds = new ArrayList<>(shard.getValue().size());
+                for (int index : shard.getValue()) {
+                    localIds.add(localIdOf(transactionIds.get(index)));
+                }
+                List<SettlementResult> shardResults;
+                try {
+                    shardResults = settlement.apply(drivers[shard.getKey()], localIds);
+                } catch (SQLException ex) {
+                    boolean settled = false;
+                    if (ex instanceof PartialBatchException) {
+                        List<SettlementResult> partial = ((PartialBatchException) ex).getResults();
+                        for (int i = 0; i < partial.size(); ++i) {
+                            results[shard.getValue().get(i)] = partial.get(i);
+                        }
+                    }
+                    // Invalid ids are reported up front, only the outcomes of the shards tell if anything was committed.
+                    for (int i = 0; i < results.length; ++i) {
+                        settled |= buckets[i] >= 0 && results[i] != null;
+                    }
+                    if (!settled) {
+                        throw ex;
+                    }
+                    throw partialBatch(Arrays.asList(results), ex);
+                }
+                for (int i = 0; i < shardResults.size(); ++i) {
+                    results[shard.getValue().get(i)] = shardResults.get(i);
+                }
+            }
+            return Arrays.asList(results);
+        }
+    }
+
+    /**
+     * See {@link DatabaseDriver#writeOffPointsBatch}, every shard settles its part of the batch separately.
+     */
+    public List<SettlementResult> writeOffPointsBatch(@NotNull List<Long> transactionIds) throws SQLException {
+        return settleBatch(transactionIds, DatabaseDriver::writeOffPointsBatch);
+    }
+
+    /**
+     * See {@link DatabaseDriver#cancelTransactionBatch}, every shard settles its part of the batch separately.
+     */
+    public List<SettlementResult> cancelTransactionBatch(@NotNull List<Long> transactionIds) throws SQLException {
+        return settleBatch(transactionIds, DatabaseDriver::cancelTransactionBatch);
+    }
+
+    /**
+     * Moves the users of a bucket with their transactions and temporary points to another shard, online.
+     *
+     * The row of the bucket in the catalog stays locked for the move, so operations on the bucket wait until
+     * it is over, in every process, while other buckets are served meanwhile. A move that takes longer than
+     * {@code innodb_lock_wait_timeout} makes them fail instead, keep buckets small enough. The users are read
+     * from the {@code user_hash} range of the bucket and copied in chunks of {@code moveChunkSize}, each chunk
+     * is committed on the target, then all are deleted from the source, the bucket is mapped to the target and
+     * the source commits. A failed move leaves the bucket on its shard and can be repeated, rows copied already
+     * are replaced. Should the source fail to commit at the very end, its stale copies are logged for deletion.
+     *
+     * @return number of moved users
+     */
+    public int moveBucket(int bucket, int targetShard) throws SQLException {
+        if (targetShard < 0 || targetShard >= drivers.length) {
+            throw new IllegalArgumentException("Shard " + targetShard + " does not exist!!");
+        }
+        if (bucket < 0 || bucket >= configuration.getBuckets()) {
+            throw new IllegalArgumentException("Bucket " + bucket + " does not exist!!");
+        }
+        try(BucketCatalog.Lease lease = catalog.leaseForMove(bucket)) {
+            int sourceShard = lease.shardOf(bucket);
+            if (sourceShard == targetShard) {
+                return 0;
+            }
+            DatabaseDriver source = drivers[sourceShard];
+            DatabaseDriver target = drivers[targetShard];
+            BucketMover mover = new BucketMover(source.getConnectionPool(), target.getConnectionPool(), configuration.getMoveChunkSize(), logger);
+            // The map is flipped before the source commits, a bucket is never served from a shard its users left.
+            List<UUID> users = mover.move(firstHashOf(bucket, configuration.getBuckets()),
+                                          firstHashOf(bucket + 1, configuration.getBuckets()),
+                                          () -> catalog.moveTo(lease, bucket, targetShard));
+            for (UUID userId : users) {
+                source.userChanged(userId);
+                target.userChanged(userId);
+            }
+            logger.info("Moved bucket " + bucket + " with " + users.size() + " users from shard " + sourceShard + " to shard " + targetShard + "!");
+            return users.size();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (DatabaseDriver driver : drivers) {
+            driver.close();
+        }
+        catalog.close();
+    }
+
+    private final ShardedDatabaseConfiguration configuration;
+    private final DatabaseDriver[] drivers;
+    private final BucketCatalog catalog;
+    private Logger logger = Logger.getLogger("ShardedPointsStore");
+}
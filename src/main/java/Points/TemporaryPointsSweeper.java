@@ -0,0 +1,246 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import java.nio.ByteBuffer;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import java.sql.Timestamp;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Expires due temporary points of all users in the background.
+ *
+ * Every worker owns the users whose first user_id byte falls into its partition and sweeps them in
+ * batches ordered by earliest_expiry_date. Users locked by live operations are skipped and picked up
+ * by a later sweep, those operations expire the points of their user themselves.
+ */
+public class TemporaryPointsSweeper implements AutoCloseable {
+    TemporaryPointsSweeper(@NotNull ConnectionPool connectionPool,
+                           @NotNull UserInfoCache userInfoCache,
+                           @NotNull DailyAggregates dailyAggregates,
+                           @NotNull TemporaryPointsSweeperConfiguration configuration,
+                           @NotNull Logger logger) {
+        this.connectionPool = connectionPool;
+        this.userInfoCache = userInfoCache;
+        this.dailyAggregates = dailyAggregates;
+        this.configuration = configuration;
+        this.logger = logger;
+        this.executor = Executors.newScheduledThreadPool(configuration.getWorkers(), runnable -> {
+            Thread thread = new Thread(runnable, "temporary-points-sweeper");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        for (int partition = 0; partition < configuration.getWorkers(); ++partition) {
+            int workerPartition = partition;
+            executor.scheduleWithFixedDelay(() -> sweepPartition(workerPartition),
+                                            0,
+                                            configuration.getPeriodMillis(),
+                                            TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sweeps every partition once in the calling thread.
+     *
+     * @return number of users whose temporary points were expired
+     */
+    public int sweep(@NotNull Timestamp now) throws SQLException {
+        int users = 0;
+        for (int partition = 0; partition < configuration.getWorkers(); ++partition) {
+            int swept;
+            do {
+                swept = sweepBatch(partition, now);
+                users += swept;
+            } while (swept == configuration.getBatchSize());
+        }
+        return users;
+    }
+
+    boolean isRunning() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+
+    private void sweepPartition(int partition) {
+        try {
+            Timestamp now = new Timestamp(System.currentTimeMillis());
+            int swept;
+            do {
+                swept = sweepBatch(partition, now);
+            } while (swept == configuration.getBatchSize() && !closed);
+        } catch (SQLException | RuntimeException ex) {
+            logger.warning("Sweeping temporary points of partition " + partition + " failed: " + ex.getMessage());
+        }
+    }
+
+    private static final String SWEEP_SELECT_USERS = "SELECT user_id, " +
+                                                            "total_temporary, " +
+                                                            "payed_temporary " +
+                                                     "FROM Points.points " +
+                                                     "WHERE earliest_expiry_date < ? and ORD(user_id) % ? = ? " +
+                                                     "ORDER BY earliest_expiry_date " +
+                                                     "LIMIT ? " +
+                                                     "FOR UPDATE SKIP LOCKED";
+    private static final String SWEEP_SELECT_EXPIRED = "SELECT user_id, SUM(amount) " +
+                                                       "FROM Points.temporary_points " +
+                                                       "WHERE user_id IN (%s) and expiry_time < ? " +
+                                                       "GROUP BY user_id";
+    private static final String SWEEP_SELECT_NEW = "SELECT t.user_id, t.expiry_time, SUM(t.amount) " +
+                                                   "FROM Points.temporary_points t " +
+                                                   "JOIN (SELECT user_id, MIN(expiry_time) AS expiry_time " +
+                                                         "FROM Points.temporary_points " +
+                                                         "WHERE user_id IN (%s) and expiry_time >= ? " +
+                                                         "GROUP BY user_id) n " +
+                                                   "ON n.user_id = t.user_id and n.expiry_time = t.expiry_time " +
+                                                   "GROUP BY t.user_id, t.expiry_time";
+    private static final String SWEEP_UPDATE_USER = "UPDATE Points.points " +
+                                                    "SET total_temporary = ?, " +
+                                                        "payed_temporary = ?, " +
+                                                        "earliest_expiry_date = ?, " +
+                                                        "earliest_expiry_amount = ? " +
+                                                    "WHERE user_id = ?";
+    private static final String SWEEP_DELETE = "DELETE FROM Points.temporary_points " +
+                                               "WHERE user_id IN (%s) and expiry_time < ?";
+    private int sweepBatch(int partition, @NotNull Timestamp now) throws SQLException {
+        long start = System.nanoTime();
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statementUsers = connection.prepareStatement(SWEEP_SELECT_USERS);
+            statementUsers.setTimestamp(1, now);
+            statementUsers.setInt(2, configuration.getWorkers());
+            statementUsers.setInt(3, partition);
+            statementUsers.setInt(4, configuration.getBatchSize());
+            Map<ByteBuffer, DueUser> users = new HashMap<>();
+            List<byte[]> userIds = new ArrayList<>();
+            try(ResultSet result = statementUsers.executeQuery()) {
+                while (result.next()) {
+                    DueUser user = new DueUser(result.getInt(2), result.getInt(3));
+                    byte[] userId = result.getBytes(1);
+                    users.put(ByteBuffer.wrap(userId), user);
+                    userIds.add(userId);
+                }
+            }
+            if (userIds.isEmpty()) {
+                return 0;
+            }
+            String placeholders = String.join(", ", Collections.nCopies(userIds.size(), "?"));
+
+            try(PreparedStatement statementExpired = connection.getConnection().prepareStatement(String.format(SWEEP_SELECT_EXPIRED, placeholders))) {
+                int index = bindUserIds(statementExpired, userIds);
+                statementExpired.setTimestamp(index, now);
+                try(ResultSet result = statementExpired.executeQuery()) {
+                    while (result.next()) {
+                        users.get(ByteBuffer.wrap(result.getBytes(1))).expire(result.getInt(2));
+                    }
+                }
+            }
+
+            try(PreparedStatement statementNew = connection.getConnection().prepareStatement(String.format(SWEEP_SELECT_NEW, placeholders))) {
+                int index = bindUserIds(statementNew, userIds);
+                statementNew.setTimestamp(index, now);
+                try(ResultSet result = statementNew.executeQuery()) {
+                    while (result.next()) {
+                        DueUser user = users.get(ByteBuffer.wrap(result.getBytes(1)));
+                        user.earliestExpiryDate = result.getTimestamp(2);
+                        user.earliestExpiryAmount = result.getInt(3);
+                    }
+                }
+            }
+
+            PreparedStatement statementUpdate = connection.prepareStatement(SWEEP_UPDATE_USER);
+            DailyAggregates.Batch aggregates = dailyAggregates.newBatch();
+            statementUpdate.clearBatch();
+            for (byte[] userId : userIds) {
+                DueUser user = users.get(ByteBuffer.wrap(userId));
+                aggregates.add(UuidBinary.fromBytes(userId), DailyAction.EXPIRED, user.initialTotalTemporary - user.totalTemporary, now.getTime());
+                statementUpdate.setInt(1, user.totalTemporary);
+                statementUpdate.setInt(2, user.payedTemporary);
+                statementUpdate.setTimestamp(3, user.earliestExpiryDate);
+                statementUpdate.setInt(4, user.earliestExpiryAmount);
+                statementUpdate.setBytes(5, userId);
+                statementUpdate.addBatch();
+            }
+            statementUpdate.executeBatch();
+
+            try(PreparedStatement statementDelete = connection.getConnection().prepareStatement(String.format(SWEEP_DELETE, placeholders))) {
+                int index = bindUserIds(statementDelete, userIds);
+                statementDelete.setTimestamp(index, now);
+                statementDelete.executeUpdate();
+            }
+
+            aggregates.write(connection);
+            connection.commit();
+            for (byte[] userId : userIds) {
+                userInfoCache.invalidate(UuidBinary.fromBytes(userId));
+            }
+            connectionPool.getMetrics().recordTemporaryPointsSweep(userIds.size(), System.nanoTime() - start);
+            logger.fine("Expired temporary points of " + userIds.size() + " users in partition " + partition + "!");
+            return userIds.size();
+        }
+    }
+
+    private static int bindUserIds(@NotNull PreparedStatement statement, @NotNull List<byte[]> userIds) throws SQLException {
+        int index = 1;
+        for (byte[] userId : userIds) {
+            statement.setBytes(index++, userId);
+        }
+        return index;
+    }
+
+    private static final class DueUser {
+        DueUser(int totalTemporary, int payedTemporary) {
+            this.initialTotalTemporary = totalTemporary;
+            this.totalTemporary = totalTemporary;
+            this.payedTemporary = payedTemporary;
+        }
+
+        /**
+         * Same as expiring the rows one by one: points already payed are expired first,
+         * the rest is taken from total_temporary.
+         */
+        void expire(int expired) {
+            if (payedTemporary >= expired) {
+                payedTemporary -= expired;
+            } else {
+                totalTemporary -= expired - payedTemporary;
+                payedTemporary = 0;
+            }
+        }
+
+        final int initialTotalTemporary;
+        int totalTemporary;
+        int payedTemporary;
+        Timestamp earliestExpiryDate = null;
+        int earliestExpiryAmount = 0;
+    }
+
+    private final ConnectionPool connectionPool;
+    private final UserInfoCache userInfoCache;
+    private final DailyAggregates dailyAggregates;
+    private final TemporaryPointsSweeperConfiguration configuration;
+    private final Logger logger;
+    private final ScheduledExecutorService executor;
+    private volatile boolean closed = false;
+}
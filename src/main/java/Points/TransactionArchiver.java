@@ -0,0 +1,200 @@
+package Points;
+
+import java.util.logging.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+
+import java.sql.Timestamp;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Keeps the time partitioned transaction table small.
+ *
+ * Finished transactions older than the retention window are moved to transaction_archive in chunks of
+ * {@code chunkSize}, each chunk in a transaction of its own so locks are held only briefly. Reservations,
+ * user creations and temporary points additions stay, temporary points and open reservations refer to them.
+ * Monthly partitions are split off the empty p_future partition {@code partitionsAhead} months in advance,
+ * which does not copy any rows. The daily {@code transaction_partitions} event of the database does the same
+ * three months in advance, whether or not an archiver runs.
+ */
+public class TransactionArchiver implements AutoCloseable {
+    TransactionArchiver(@NotNull ConnectionPool connectionPool,
+                        @NotNull TransactionArchiverConfiguration configuration,
+                        @NotNull Logger logger) {
+        this.connectionPool = connectionPool;
+        this.configuration = configuration;
+        this.logger = logger;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transaction-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void start() {
+        executor.scheduleWithFixedDelay(this::maintain, 0, configuration.getPeriodMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Moves finished transactions older than {@code cutoff} to the archive in the calling thread.
+     */
+    public TransactionArchiveStatistics archive(@NotNull Timestamp cutoff) throws SQLException {
+        long start = System.nanoTime();
+        long movedRows = 0;
+        int chunks = 0;
+        long lastId = 0;
+        while (!closed) {
+            long[] chunk = archiveChunk(lastId, cutoff);
+            if (chunk == null) {
+                break;
+            }
+            lastId = chunk[0];
+            movedRows += chunk[1];
+            ++chunks;
+            if (configuration.getChunkPauseMillis() > 0) {
+                try {
+                    Thread.sleep(configuration.getChunkPauseMillis());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        TransactionArchiveStatistics statistics = new TransactionArchiveStatistics(movedRows, chunks, System.nanoTime() - start);
+        lastRun = statistics;
+        logger.info("Archived " + movedRows + " transactions older than " + cutoff + " in " + chunks + " chunks, " +
+                    String.format("%.1f", statistics.getRowsPerSecond()) + " rows/s!");
+        return statistics;
+    }
+
+    public TransactionArchiveStatistics getLastRun() {
+        return lastRun;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        executor.shutdownNow();
+    }
+
+    private void maintain() {
+        try {
+            addPartitions();
+            LocalDateTime cutoff = LocalDateTime.now(ZoneOffset.UTC).minusDays(configuration.getRetentionDays());
+            archive(Timestamp.valueOf(cutoff));
+        } catch (SQLException | RuntimeException ex) {
+            logger.warning("Transaction maintenance failed: " + ex.getMessage());
+        }
+    }
+
+    private static final String ARCHIVE_SELECT_CHUNK = "SELECT id " +
+                                                       "FROM Points.transaction " +
+                                                       "WHERE id > ? and time < ? and action IN (\"committed\", \"canceled\", \"add points\") " +
+                                                       "ORDER BY id " +
+                                                       "LIMIT ?";
+    private static final String ARCHIVE_COPY = "INSERT INTO Points.transaction_archive " +
+                                               "(id, user_id, amount, time, expiry_time, action) " +
+                                               "SELECT id, user_id, amount, time, expiry_time, action " +
+                                               "FROM Points.transaction " +
+                                               "WHERE id > ? and id <= ? and time < ? and action IN (\"committed\", \"canceled\", \"add points\")";
+    private static final String ARCHIVE_DELETE = "DELETE FROM Points.transaction " +
+                                                 "WHERE id > ? and id <= ? and time < ? and action IN (\"committed\", \"canceled\", \"add points\")";
+    /**
+     * Copies and deletes the next chunk of finished transactions after {@code afterId} in one transaction.
+     * The copy locks the rows it reads, so the delete removes exactly the copied rows.
+     *
+     * @return last id of the chunk and number of moved rows, null if there is nothing left to move
+     */
+    private long[] archiveChunk(long afterId, @NotNull Timestamp cutoff) throws SQLException {
+        try(PooledConnection connection = connectionPool.acquire()) {
+            PreparedStatement statementSelect = connection.prepareStatement(ARCHIVE_SELECT_CHUNK);
+            statementSelect.setLong(1, afterId);
+            statementSelect.setTimestamp(2, cutoff);
+            statementSelect.setInt(3, configuration.getChunkSize());
+            long lastId = -1;
+            try(ResultSet result = statementSelect.executeQuery()) {
+                while (result.next()) {
+                    lastId = result.getLong(1);
+                }
+            }
+            if (lastId < 0) {
+                return null;
+            }
+
+            PreparedStatement statementCopy = connection.prepareStatement(ARCHIVE_COPY);
+            statementCopy.setLong(1, afterId);
+            statementCopy.setLong(2, lastId);
+            statementCopy.setTimestamp(3, cutoff);
+            int copied = statementCopy.executeUpdate();
+
+            PreparedStatement statementDelete = connection.prepareStatement(ARCHIVE_DELETE);
+            statementDelete.setLong(1, afterId);
+            statementDelete.setLong(2, lastId);
+            statementDelete.setTimestamp(3, cutoff);
+            int deleted = statementDelete.executeUpdate();
+            if (copied != deleted) {
+                throw new SQLException("Archived " + copied + " transactions but deleted " + deleted + " up to " + lastId + "!!");
+            }
+
+            connection.commit();
+            logger.fine("Archived " + copied + " transactions up to " + lastId + "!");
+            return new long[]{lastId, copied};
+        }
+    }
+
+    private static final String PARTITIONS_QUERY = "SELECT COUNT(*) " +
+                                                   "FROM information_schema.PARTITIONS " +
+                                                   "WHERE TABLE_SCHEMA = \"Points\" and TABLE_NAME = \"transaction\"";
+    private static final String ADD_PARTITIONS = "CALL Points.add_transaction_partitions(?)";
+    /**
+     * Splits monthly partitions off p_future until they reach {@code partitionsAhead} months past the current one,
+     * with the procedure of the migrations, which needs EXECUTE on it rather than ALTER on the table.
+     *
+     * @return number of partitions added
+     */
+    public int addPartitions() throws SQLException {
+        try(PooledConnection connection = connectionPool.acquire()) {
+            int before = countPartitions(connection);
+            if (before <= 1) {
+                logger.warning("Transaction table is not partitioned by time!!");
+                return 0;
+            }
+            PreparedStatement statementAdd = connection.prepareStatement(ADD_PARTITIONS);
+            statementAdd.setInt(1, configuration.getPartitionsAhead());
+            statementAdd.execute();
+            int added = countPartitions(connection) - before;
+            if (added > 0) {
+                logger.info("Added " + added + " monthly transaction partitions!");
+            }
+            return added;
+        }
+    }
+
+    private static int countPartitions(@NotNull PooledConnection connection) throws SQLException {
+        int partitions;
+        try(ResultSet result = connection.prepareStatement(PARTITIONS_QUERY).executeQuery()) {
+            result.next();
+            partitions = result.getInt(1);
+        }
+        connection.commit();
+        return partitions;
+    }
+
+    private final ConnectionPool connectionPool;
+    private final TransactionArchiverConfiguration configuration;
+    private final Logger logger;
+    private final ScheduledExecutorService executor;
+    private volatile TransactionArchiveStatistics lastRun = null;
+    private volatile boolean closed = false;
+}
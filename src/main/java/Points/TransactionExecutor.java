@@ -0,0 +1,114 @@
+package Points;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Runs the write transactions of {@link DatabaseDriver}.
+ *
+ * A transaction failing on a deadlock or lock wait timeout is retried up to {@code maxAttempts} times in all, after
+ * sleeping a random time up to {@code initialBackoffMillis} doubled per attempt and capped at {@code maxBackoffMillis}.
+ * Transactions have to be safe to rerun after such a failure, which holds for the ones rolled back by closing their
+ * connection. With admission control every operation has its own {@link ConcurrencyLimiter}, a transaction over the
+ * limit fails right away with {@link PointsOverloadedException}.
+ */
+final class TransactionExecutor {
+    private static final int ER_LOCK_WAIT_TIMEOUT = 1205;
+    private static final int ER_LOCK_DEADLOCK = 1213;
+    private static final String SERIALIZATION_FAILURE = "40001";
+
+    interface Transaction<T> {
+        T run() throws SQLException;
+    }
+
+    TransactionExecutor(@NotNull TransactionExecutionConfiguration configuration, @NotNull Logger logger) {
+        if (configuration.getMaxAttempts() < 1 || configuration.getInitialBackoffMillis() < 0 || configuration.getMaxBackoffMillis() < 0) {
+            throw new IllegalArgumentException("Transactions need at least one attempt and non-negative backoff!!");
+        }
+        this.configuration = configuration;
+        this.logger = logger;
+        PointsMetrics.Operation[] operations = PointsMetrics.Operation.values();
+        limiters = new ConcurrencyLimiter[operations.length];
+        if (configuration.getAdmissionControl()) {
+            for (int i = 0; i < operations.length; ++i) {
+                limiters[i] = new ConcurrencyLimiter(configuration.getInitialLimit(),
+                                                     configuration.getMinLimit(),
+                                                     configuration.getMaxLimit(),
+                                                     configuration.getLatencyTolerance(),
+                                                     configuration.getBackoffRatio(),
+                                                     configuration.getWindowSize());
+            }
+        }
+    }
+
+    /**
+     * Deadlocks and lock wait timeouts, after which the whole transaction can be rerun.
+     */
+    static boolean isContention(@NotNull SQLException ex) {
+        return ex instanceof SQLTransactionRollbackException ||
+               ex.getErrorCode() == ER_LOCK_DEADLOCK ||
+               ex.getErrorCode() == ER_LOCK_WAIT_TIMEOUT ||
+               SERIALIZATION_FAILURE.equals(ex.getSQLState());
+    }
+
+    <T> T execute(@NotNull PointsMetrics.Operation operation, @NotNull Transaction<T> transaction) throws SQLException {
+        ConcurrencyLimiter limiter = limiters[operation.ordinal()];
+        for (int attempt = 1; ; ++attempt) {
+            if (limiter != null && !limiter.tryAcquire()) {
+                throw new PointsOverloadedException("Too many " + operation + " transactions in flight, the limit is " + limiter.getLimit() + "!!");
+            }
+            long start = System.nanoTime();
+            boolean contended = false;
+            try {
+                return transaction.run();
+            } catch (SQLException ex) {
+                contended = isContention(ex);
+                if (!contended) {
+                    throw ex;
+                }
+                if (attempt >= configuration.getMaxAttempts()) {
+                    logger.severe(operation + " transaction failed on contention " + attempt + " times: " + ex.getMessage());
+                    throw ex;
+                }
+                int failedAttempt = attempt;
+                logger.fine(() -> operation + " transaction failed on contention, attempt " + failedAttempt + ": " + ex.getMessage());
+            } finally {
+                if (limiter != null) {
+                    limiter.release(System.nanoTime() - start, contended);
+                }
+            }
+            backOff(attempt);
+        }
+    }
+
+    private void backOff(int attempt) throws SQLException {
+        long ceiling = Math.min(configuration.getMaxBackoffMillis(), configuration.getInitialBackoffMillis() << Math.min(attempt - 1, 20));
+        if (ceiling <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(ceiling + 1));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting to retry a transaction!!", ex);
+        }
+    }
+
+    /**
+     * @return current concurrency limit of the operation, 0 without admission control
+     */
+    int getLimit(@NotNull PointsMetrics.Operation operation) {
+        ConcurrencyLimiter limiter = limiters[operation.ordinal()];
+        return limiter != null ? limiter.getLimit() : 0;
+    }
+
+    private final TransactionExecutionConfiguration configuration;
+    private final Logger logger;
+    private final ConcurrencyLimiter[] limiters;
+}
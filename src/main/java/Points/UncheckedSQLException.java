@@ -0,0 +1,19 @@
+package Points;
+
+import java.sql.SQLException;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Carries a {@link SQLException} out of APIs that cannot throw checked exceptions, such as streams.
+ */
+public class UncheckedSQLException extends RuntimeException {
+    public UncheckedSQLException(@NotNull SQLException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized SQLException getCause() {
+        return (SQLException) super.getCause();
+    }
+}
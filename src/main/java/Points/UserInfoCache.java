@@ -0,0 +1,104 @@
+package Points;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Bounded in-process cache of user info, invalidated by the driver whenever it commits a change to a user.
+ *
+ * Info whose earliest temporary points expiry has passed is never served nor stored, and entries are dropped
+ * {@code expireAfterWriteMillis} after loading to bound staleness from writers in other processes.
+ * With zero {@code maxSize} caching is disabled and every call is a no-op.
+ *
+ * A load racing with an invalidation must not leave stale info behind, so loads take a stamp of the
+ * invalidation counter of the user before reading the database and drop their own entry if it changed.
+ */
+final class UserInfoCache {
+    private static final int STRIPES = 1024;
+
+    UserInfoCache(@NotNull UserInfoCacheConfiguration configuration) {
+        cache = configuration.getMaxSize() > 0
+                ? CacheBuilder.newBuilder()
+                              .maximumSize(configuration.getMaxSize())
+                              .expireAfterWrite(configuration.getExpireAfterWriteMillis(), TimeUnit.MILLISECONDS)
+                              .recordStats()
+                              .build()
+                : null;
+    }
+
+    boolean isEnabled() {
+        return cache != null;
+    }
+
+    /**
+     * @return cached info, null if there is none or its temporary points may have expired
+     */
+    @Nullable
+    GetUserInfoReturn get(@NotNull UUID userId) {
+        if (!isEnabled()) {
+            return null;
+        }
+        GetUserInfoReturn userInfo = cache.getIfPresent(userId);
+        if (userInfo != null && isExpiring(userInfo)) {
+            cache.invalidate(userId);
+            userInfo = null;
+        }
+        if (userInfo == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return userInfo;
+    }
+
+    long stamp(@NotNull UUID userId) {
+        return isEnabled() ? invalidations.get(stripe(userId)) : 0;
+    }
+
+    void put(@NotNull UUID userId, @NotNull GetUserInfoReturn userInfo, long stamp) {
+        if (!isEnabled() || isExpiring(userInfo)) {
+            return;
+        }
+        cache.put(userId, userInfo);
+        if (invalidations.get(stripe(userId)) != stamp) {
+            cache.invalidate(userId);
+        }
+    }
+
+    void invalidate(@Nullable UUID userId) {
+        if (userId != null && isEnabled()) {
+            invalidations.incrementAndGet(stripe(userId));
+            cache.invalidate(userId);
+        }
+    }
+
+    UserInfoCacheStatistics getStatistics() {
+        return new UserInfoCacheStatistics(hits.sum(),
+                                           misses.sum(),
+                                           isEnabled() ? cache.stats().evictionCount() : 0,
+                                           isEnabled() ? cache.size() : 0);
+    }
+
+    private static boolean isExpiring(@NotNull GetUserInfoReturn userInfo) {
+        return userInfo.getEarliestExpiryDate() != null
+               && userInfo.getEarliestExpiryDate().getTime() <= System.currentTimeMillis();
+    }
+
+    private static int stripe(@NotNull UUID userId) {
+        int hash = userId.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private final Cache<UUID, GetUserInfoReturn> cache;
+    private final AtomicLongArray invalidations = new AtomicLongArray(STRIPES);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+}
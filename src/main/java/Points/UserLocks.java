@@ -0,0 +1,51 @@
+package Points;
+
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Striped in-process locks keyed by user id, so that operations of one user reach the database
+ * one at a time while operations of different users mostly run in parallel.
+ *
+ * With zero stripes locking is disabled and every call is a no-op.
+ * Null user ids are not locked either.
+ */
+final class UserLocks {
+    UserLocks(int stripes) {
+        int size = 1;
+        while (size < stripes) {
+            size <<= 1;
+        }
+        locks = new ReentrantLock[stripes > 0 ? size : 0];
+        for (int i = 0; i < locks.length; ++i) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    boolean isEnabled() {
+        return locks.length > 0;
+    }
+
+    void lock(@Nullable UUID userId) {
+        if (userId != null && isEnabled()) {
+            stripe(userId).lock();
+        }
+    }
+
+    void unlock(@Nullable UUID userId) {
+        if (userId != null && isEnabled()) {
+            stripe(userId).unlock();
+        }
+    }
+
+    private ReentrantLock stripe(UUID userId) {
+        long hash = userId.getMostSignificantBits() ^ userId.getLeastSignificantBits();
+        int mixed = (int) (hash ^ (hash >>> 32));
+        mixed ^= mixed >>> 16;
+        return locks[mixed & (locks.length - 1)];
+    }
+
+    private final ReentrantLock[] locks;
+}
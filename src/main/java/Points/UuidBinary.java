@@ -0,0 +1,51 @@
+package Points;
+
+import java.util.UUID;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Conversion between {@link UUID} and the BINARY(16) user_id columns,
+ * same byte order as MySQL UUID_TO_BIN without swapping.
+ */
+final class UuidBinary {
+    private UuidBinary() {
+    }
+
+    static byte[] toBytes(@NotNull UUID uuid) {
+        return toBytes(uuid, new byte[16]);
+    }
+
+    static byte[] toBytes(@NotNull UUID uuid, @NotNull byte[] bytes) {
+        putLong(bytes, 0, uuid.getMostSignificantBits());
+        putLong(bytes, 8, uuid.getLeastSignificantBits());
+        return bytes;
+    }
+
+    static UUID fromBytes(@NotNull byte[] bytes) {
+        return new UUID(getLong(bytes, 0), getLong(bytes, 8));
+    }
+
+    /**
+     * Orders ids like MySQL orders their BINARY(16) columns.
+     */
+    static int compare(@NotNull UUID left, @NotNull UUID right) {
+        int most = Long.compareUnsigned(left.getMostSignificantBits(), right.getMostSignificantBits());
+        return most != 0 ? most : Long.compareUnsigned(left.getLeastSignificantBits(), right.getLeastSignificantBits());
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = 7; i >= 0; --i) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; ++i) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,416 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Drives a mix of operations against a {@link PointsStore} and checks the balances it leaves.
+ *
+ * Arrivals are open-loop: a Poisson process of {@code ratePerSecond} schedules operations whether or not earlier ones
+ * have finished, and latency is measured from the scheduled time, so a stalled store shows up in the percentiles
+ * instead of slowing the load down. Arrivals finding {@code maxOutstanding} operations in flight are dropped and counted.
+ * Users are picked with Zipfian skew, reservations are later written off or canceled by other operations.
+ *
+ * Every {@code reportIntervalSeconds} the report gets a line per operation: seconds since start, operation, count,
+ * rate, p50, p99, p999 and max latency in milliseconds and errors of the interval. Totals follow at the end, then a line
+ * per user whose balance is negative or has more reserved than available.
+ */
+public class WorkloadGenerator {
+    enum Operation { ADD_USER, ADD_POINTS, ADD_TEMPORARY_POINTS, RESERVE_POINTS, WRITE_OFF_POINTS, CANCEL_TRANSACTION, GET_USER_INFO }
+
+    private static final int MAX_AMOUNT = 100;
+    private static final String REPORT_FORMAT = "%d\t%s\t%d\t%.1f\t%.3f\t%.3f\t%.3f\t%.3f\t%d%n";
+
+    public WorkloadGenerator(@NotNull PointsStore store, @NotNull WorkloadConfiguration configuration, @NotNull Logger parentLogger) {
+        if (configuration.getUsers() <= 0 || configuration.getRatePerSecond() <= 0 || configuration.getWorkers() <= 0
+            || configuration.getMaxOutstanding() <= 0 || configuration.getReportIntervalSeconds() <= 0) {
+            throw new IllegalArgumentException("Users, rate, workers, outstanding operations and report interval have to be positive!!");
+        }
+        weights = new int[]{configuration.getAddUserWeight(), configuration.getAddPointsWeight(),
+                            configuration.getAddTemporaryPointsWeight(), configuration.getReservePointsWeight(),
+                            configuration.getWriteOffPointsWeight(), configuration.getCancelTransactionWeight(),
+                            configuration.getGetUserInfoWeight()};
+        if (Arrays.stream(weights).anyMatch(weight -> weight < 0) || Arrays.stream(weights).sum() == 0) {
+            throw new IllegalArgumentException("Operation weights have to be non-negative and not all zero!!");
+        }
+        logger.setParent(parentLogger);
+        logger.setLevel(null);
+        this.store = store;
+        this.configuration = configuration;
+        this.zipfian = new ZipfianGenerator(configuration.getUsers(), configuration.getZipfianTheta());
+        for (int i = 0; i < latencies.length; ++i) {
+            latencies[i] = new LatencyHistogram();
+            intervalLatencies[i] = new LatencyHistogram();
+            errors[i] = new LongAdder();
+            intervalErrors[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Creates the users, runs the workload for {@code durationSeconds}, waits for the operations in flight
+     * and checks every user, writing to {@code report} as it goes.
+     */
+    public WorkloadStatistics run(@NotNull Writer report) throws IOException, InterruptedException {
+        this.report = report;
+        lastReportNanos = 0;
+        users = new UUID[configuration.getUsers()];
+        for (int i = 0; i < users.length; ++i) {
+            users[i] = UUID.randomUUID();
+        }
+        ExecutorService workers = Executors.newFixedThreadPool(configuration.getWorkers());
+        try {
+            logger.info("Creating " + users.length + " users...");
+            List<Callable<Object>> creations = new ArrayList<>();
+            for (UUID userId : users) {
+                creations.add(Executors.callable(() -> addUser(userId, configuration.getInitialPoints())));
+            }
+            runAll(workers, creations);
+
+            logger.info("Running " + configuration.getRatePerSecond() + " operations per second for " + configuration.getDurationSeconds() + " seconds...");
+            report.write("seconds\toperation\tcount\trate\tp50\tp99\tp999\tmax\terrors\n");
+            long start = System.nanoTime();
+            schedule(workers, start);
+            workers.shutdown();
+            if (!workers.awaitTermination(1, TimeUnit.HOURS)) {
+                logger.warning("Operations in flight did not finish within an hour!!");
+            }
+            long elapsed = System.nanoTime() - start;
+            writeInterval(elapsed);
+            writeTotals(elapsed);
+
+            logger.info("Checking balances...");
+            long checked = 0;
+            long violations = 0;
+            List<UUID> everyone = new ArrayList<>(Arrays.asList(users));
+            everyone.addAll(addedUsers);
+            for (UUID userId : everyone) {
+                ++checked;
+                if (!check(userId)) {
+                    ++violations;
+                }
+            }
+            report.flush();
+
+            long operations = Arrays.stream(latencies).mapToLong(LatencyHistogram::getCount).sum();
+            long failed = Arrays.stream(errors).mapToLong(LongAdder::sum).sum();
+            WorkloadStatistics statistics = new WorkloadStatistics(operations, failed, dropped.sum(), checked, violations, elapsed);
+            logger.info("Ran " + operations + " operations, " + failed + " failed, " + dropped.sum() + " dropped, " + violations + " of " + checked + " users break invariants!");
+            return statistics;
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static void runAll(@NotNull ExecutorService workers, @NotNull List<Callable<Object>> tasks) throws InterruptedException {
+        try {
+            for (Future<Object> task : workers.invokeAll(tasks)) {
+                task.get();
+            }
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Creating users failed!!", ex.getCause());
+        }
+    }
+
+    /**
+     * Submits arrivals until the duration is over, reporting every interval. Runs on the calling thread.
+     */
+    private void schedule(@NotNull ExecutorService workers, long start) throws IOException {
+        Random random = new Random();
+        long end = start + TimeUnit.SECONDS.toNanos(configuration.getDurationSeconds());
+        long interval = TimeUnit.SECONDS.toNanos(configuration.getReportIntervalSeconds());
+        long nextReport = start + interval;
+        double meanGapNanos = 1e9 / configuration.getRatePerSecond();
+        long scheduled = start;
+        while (true) {
+            scheduled += (long) (-Math.log(1 - random.nextDouble()) * meanGapNanos);
+            if (scheduled >= end) {
+                break;
+            }
+            long now;
+            while ((now = System.nanoTime()) < scheduled) {
+                LockSupport.parkNanos(Math.min(scheduled, nextReport) - now);
+                if (System.nanoTime() >= nextReport) {
+                    writeInterval(nextReport - start);
+                    nextReport += interval;
+                }
+            }
+            if (outstanding.get() >= configuration.getMaxOutstanding()) {
+                dropped.increment();
+                continue;
+            }
+            Operation operation = pick(random);
+            int user = zipfian.next(random);
+            long intended = scheduled;
+            outstanding.incrementAndGet();
+            workers.execute(() -> {
+                try {
+                    execute(operation, user, intended);
+                } finally {
+                    outstanding.decrementAndGet();
+                }
+            });
+        }
+        LockSupport.parkNanos(end - System.nanoTime());
+    }
+
+    private Operation pick(@NotNull Random random) {
+        int draw = random.nextInt(Arrays.stream(weights).sum());
+        for (int i = 0; i < weights.length; ++i) {
+            draw -= weights[i];
+            if (draw < 0) {
+                return Operation.values()[i];
+            }
+        }
+        throw new RuntimeException("Unreacheable code!");
+    }
+
+    private void execute(@NotNull Operation operation, int user, long intended) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        UUID userId = users[user];
+        boolean failed = false;
+        try {
+            switch (operation) {
+                case ADD_USER:
+                    UUID newUserId = UUID.randomUUID();
+                    store.addUser(new AddUserParameters(newUserId, configuration.getInitialPoints()));
+                    addedUsers.add(newUserId);
+                    break;
+                case ADD_POINTS:
+                    store.addPoints(new AddPointsParameters(userId, 1 + random.nextInt(MAX_AMOUNT)));
+                    break;
+                case ADD_TEMPORARY_POINTS:
+                    store.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 1 + random.nextInt(MAX_AMOUNT),
+                                                                              new Timestamp(System.currentTimeMillis() + expiryMillis(random))));
+                    break;
+                case RESERVE_POINTS:
+                    ReservePointsReturn reservation = store.reservePoints(new ReservePointsParameters(userId, 1 + random.nextInt(MAX_AMOUNT)));
+                    if (reservation != null && reservation.getTransactionId() >= 0) {
+                        reservations.add(reservation.getTransactionId());
+                    }
+                    break;
+                case WRITE_OFF_POINTS:
+                    Long writtenOff = reservations.poll();
+                    if (writtenOff != null) {
+                        store.writeOffPoints(new WriteOffPointsParameters(writtenOff));
+                    }
+                    break;
+                case CANCEL_TRANSACTION:
+                    Long canceled = reservations.poll();
+                    if (canceled != null) {
+                        store.cancelTransaction(new CancelTransactionParameters(canceled));
+                    }
+                    break;
+                case GET_USER_INFO:
+                    store.getUserInfo(new GetUserInfoParameters(userId));
+                    break;
+            }
+        } catch (SQLException | RuntimeException ex) {
+            failed = true;
+            logger.fine(() -> "Operation " + operation + " failed: " + ex.getMessage());
+        }
+        long latency = System.nanoTime() - intended;
+        latencies[operation.ordinal()].record(latency);
+        intervalLatencies[operation.ordinal()].record(latency);
+        if (failed) {
+            errors[operation.ordinal()].increment();
+            intervalErrors[operation.ordinal()].increment();
+        }
+    }
+
+    private long expiryMillis(@NotNull Random random) {
+        long mean = configuration.getExpiryMeanMillis();
+        switch (configuration.getExpiryDistribution()) {
+            case FIXED:
+                return mean;
+            case UNIFORM:
+                return (long) (random.nextDouble() * 2 * mean);
+            case EXPONENTIAL:
+                return (long) (-Math.log(1 - random.nextDouble()) * mean);
+        }
+        throw new RuntimeException("Unreacheable code!");
+    }
+
+    private void addUser(@NotNull UUID userId, int points) {
+        try {
+            store.addUser(new AddUserParameters(userId, points));
+        } catch (SQLException ex) {
+            throw new UncheckedSQLException(ex);
+        }
+    }
+
+    private boolean check(@NotNull UUID userId) throws IOException {
+        GetUserInfoReturn info;
+        try {
+            info = store.getUserInfo(new GetUserInfoParameters(userId, true));
+        } catch (SQLException ex) {
+            report.write("violation\t" + userId + "\tunreadable: " + ex.getMessage() + "\n");
+            return false;
+        }
+        if (info == null) {
+            report.write("violation\t" + userId + "\tmissing\n");
+            return false;
+        }
+        if (info.getTotal() < 0 || info.getTotalTemporary() < 0 || info.getPayedTemporary() < 0 || info.getReserved() < 0
+            || info.getReserved() > info.getTotal() + info.getTotalTemporary()) {
+            report.write("violation\t" + userId + "\t" + info + "\n");
+            return false;
+        }
+        return true;
+    }
+
+    private void writeInterval(long elapsedNanos) throws IOException {
+        double seconds = Math.max(elapsedNanos - lastReportNanos, 1) / 1e9;
+        lastReportNanos = elapsedNanos;
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = intervalLatencies[operation.ordinal()];
+            long count = histogram.getCount();
+            if (count > 0) {
+                write(TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), operation.name(), histogram, count / seconds,
+                      intervalErrors[operation.ordinal()].sum());
+            }
+            histogram.reset();
+            intervalErrors[operation.ordinal()].reset();
+        }
+        report.flush();
+    }
+
+    private void writeTotals(long elapsedNanos) throws IOException {
+        double seconds = elapsedNanos / 1e9;
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies[operation.ordinal()];
+            write(TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), "total " + operation.name(), histogram,
+                  histogram.getCount() / seconds, errors[operation.ordinal()].sum());
+        }
+        report.write("dropped\t" + dropped.sum() + "\n");
+    }
+
+    private void write(long seconds, @NotNull String name, @NotNull LatencyHistogram histogram, double rate, long errors) throws IOException {
+        Map<String, Double> millis = histogram.toMillis();
+        report.write(String.format(REPORT_FORMAT, seconds, name, histogram.getCount(), rate, millis.get("p50"),
+                                   millis.get("p99"), millis.get("p999"), millis.get("max"), errors));
+    }
+
+    /**
+     * Usage: WorkloadGenerator [jdbc-url] [key=value ...]
+     *
+     * Keys are the properties of {@link WorkloadConfiguration}, e.g. ratePerSecond=5000 durationSeconds=600
+     * expiryDistribution=UNIFORM. Without a url the local database of {@link DatabaseDriver} is used.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String url = null;
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0 && url == null && arg.startsWith("jdbc:")) {
+                url = arg;
+            } else if (separator > 0) {
+                options.put(arg.substring(0, separator), arg.substring(separator + 1));
+            } else {
+                System.err.println("Usage: WorkloadGenerator [jdbc-url] [key=value ...]");
+                System.exit(2);
+            }
+        }
+        WorkloadConfiguration defaults = new WorkloadConfiguration();
+        WorkloadConfiguration configuration = new WorkloadConfiguration(
+            intOption(options, "users", defaults.getUsers()),
+            intOption(options, "initialPoints", defaults.getInitialPoints()),
+            doubleOption(options, "ratePerSecond", defaults.getRatePerSecond()),
+            longOption(options, "durationSeconds", defaults.getDurationSeconds()),
+            longOption(options, "reportIntervalSeconds", defaults.getReportIntervalSeconds()),
+            doubleOption(options, "zipfianTheta", defaults.getZipfianTheta()),
+            intOption(options, "addUserWeight", defaults.getAddUserWeight()),
+            intOption(options, "addPointsWeight", defaults.getAddPointsWeight()),
+            intOption(options, "addTemporaryPointsWeight", defaults.getAddTemporaryPointsWeight()),
+            intOption(options, "reservePointsWeight", defaults.getReservePointsWeight()),
+            intOption(options, "writeOffPointsWeight", defaults.getWriteOffPointsWeight()),
+            intOption(options, "cancelTransactionWeight", defaults.getCancelTransactionWeight()),
+            intOption(options, "getUserInfoWeight", defaults.getGetUserInfoWeight()),
+            ExpiryDistribution.valueOf(stringOption(options, "expiryDistribution", defaults.getExpiryDistribution().name())),
+            longOption(options, "expiryMeanMillis", defaults.getExpiryMeanMillis()),
+            intOption(options, "workers", defaults.getWorkers()),
+            intOption(options, "maxOutstanding", defaults.getMaxOutstanding()));
+        if (!options.isEmpty()) {
+            System.err.println("Unknown options " + options.keySet() + "!!");
+            System.exit(2);
+        }
+
+        Logger logger = Logger.getLogger("");
+        // Failed reservations are part of the workload, keep their warnings out of the report.
+        Logger storeLogger = Logger.getLogger("WorkloadGenerator.store");
+        storeLogger.setParent(logger);
+        storeLogger.setLevel(Level.SEVERE);
+        WorkloadStatistics statistics;
+        try(DatabaseDriver driver = url != null ? new DatabaseDriver(new ConnectionPoolConfiguration(url, configuration.getWorkers()), storeLogger)
+                                                : new DatabaseDriver(storeLogger)) {
+            WorkloadGenerator generator = new WorkloadGenerator(driver, configuration, logger);
+            statistics = generator.run(new OutputStreamWriter(System.out));
+        }
+        System.out.println(statistics);
+        System.exit(statistics.getInvariantViolations() == 0 ? 0 : 1);
+    }
+
+    private static int intOption(@NotNull Map<String, String> options, @NotNull String key, int defaultValue) {
+        String value = options.remove(key);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static double doubleOption(@NotNull Map<String, String> options, @NotNull String key, double defaultValue) {
+        String value = options.remove(key);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    private static String stringOption(@NotNull Map<String, String> options, @NotNull String key, @NotNull String defaultValue) {
+        String value = options.remove(key);
+        return value != null ? value : defaultValue;
+    }
+
+    private static long longOption(@NotNull Map<String, String> options, @NotNull String key, long defaultValue) {
+        String value = options.remove(key);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+
+    private final PointsStore store;
+    private final WorkloadConfiguration configuration;
+    private final ZipfianGenerator zipfian;
+    private final int[] weights;
+    private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+    private final LatencyHistogram[] intervalLatencies = new LatencyHistogram[Operation.values().length];
+    private final LongAdder[] errors = new LongAdder[Operation.values().length];
+    private final LongAdder[] intervalErrors = new LongAdder[Operation.values().length];
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final ConcurrentLinkedQueue<Long> reservations = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<UUID> addedUsers = new ConcurrentLinkedQueue<>();
+    private UUID[] users;
+    private Writer report;
+    private long lastReportNanos;
+    private Logger logger = Logger.getLogger("WorkloadGenerator");
+}
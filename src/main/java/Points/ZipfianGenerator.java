@@ -0,0 +1,49 @@
+package Points;
+
+import java.util.Random;
+
+/**
+ * Draws item ranks in {@code [0, items)} with Zipfian popularity, rank 0 being the most popular.
+ * Uses the rejection-free method of Gray et al., "Quickly Generating Billion-Record Synthetic Databases".
+ */
+public final class ZipfianGenerator {
+    public static final double DEFAULT_THETA = 0.99;
+
+    public ZipfianGenerator(int items) {
+        this(items, DEFAULT_THETA);
+    }
+
+    public ZipfianGenerator(int items, double theta) {
+        if (items < 1 || theta <= 0 || theta == 1) {
+            throw new IllegalArgumentException("Zipfian generator needs items >= 1 and positive theta other than 1!!");
+        }
+        this.items = items;
+        this.theta = theta;
+        double zetaN = 0;
+        for (int i = 1; i <= items; ++i) {
+            zetaN += 1 / Math.pow(i, theta);
+        }
+        this.zetaN = zetaN;
+        this.alpha = 1 / (1 - theta);
+        double zeta2 = 1 + 1 / Math.pow(2, theta);
+        this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta2 / zetaN);
+    }
+
+    public int next(Random random) {
+        double u = random.nextDouble();
+        double uz = u * zetaN;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < 1 + Math.pow(0.5, theta)) {
+            return Math.min(1, items - 1);
+        }
+        return Math.min((int) (items * Math.pow(eta * u - eta + 1, alpha)), items - 1);
+    }
+
+    private final int items;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+}
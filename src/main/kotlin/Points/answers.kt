@@ -7,4 +7,60 @@ interface TransactionReturn;
 
 data class GetUserInfoReturn(val userId: UUID, val total: Int, val totalTemporary: Int, val payedTemporary: Int, val reserved: Int, val earliestExpiryDate: Timestamp?, val earliestExpiryAmount: Int) : TransactionReturn
 data class ReservePointsReturn(val transactionId: Long) : TransactionReturn
-data class GetTransactionInfoReturn(val transactionId: Long, val userId: UUID, val amount: Int, val time: Timestamp, val expiry_time: Timestamp?, val action: String) : TransactionReturn
+data class GetTransactionInfoReturn(val transactionId: Long, val userId: UUID, val amount: Int, val time: Timestamp, val expiry_time: Timestamp?, val action: TransactionAction) : TransactionReturn
+
+/**
+ * Action of a ledger row, declared in the order of the action ENUM of the transaction tables,
+ * so `action + 0` in SQL is the ordinal plus one. [column] is the ENUM value itself.
+ */
+enum class TransactionAction(val column: String) {
+    ADD_USER("add user"),
+    ADD_POINTS("add points"),
+    RESERVE("reserve"),
+    COMMITTED("committed"),
+    CANCELED("canceled"),
+    TEMPORARY_POINTS_ADDITION("temporary points addition");
+
+    companion object {
+        private val byIndex = values()
+
+        /**
+         * Action of the 1-based index `action + 0` of the ENUM column.
+         */
+        @JvmStatic
+        fun fromIndex(index: Int): TransactionAction = byIndex[index - 1]
+    }
+}
+
+enum class BatchItemResult { APPLIED, INVALID_USER }
+
+/**
+ * Outcome of one transaction of a batch settlement. CONFLICTING_STATE is a write-off of a canceled
+ * or a cancel of a committed transaction, which the single transaction calls throw for.
+ */
+enum class SettlementResult { SETTLED, ALREADY_SETTLED, INSUFFICIENT_POINTS, INVALID_TRANSACTION, CONFLICTING_STATE }
+
+/**
+ * Points of a day and the balance of all users at its end. [outstanding] includes reserved points.
+ */
+data class DailyPointsReturn(val day: Timestamp, val issued: Long, val temporaryIssued: Long, val spent: Long, val expired: Long, val outstanding: Long)
+
+/**
+ * Flow of points counted by the daily aggregates, declared in the order of the action ENUM of the daily points tables.
+ */
+enum class DailyAction(val column: String) {
+    ISSUED("issued"),
+    TEMPORARY_ISSUED("temporary issued"),
+    SPENT("spent"),
+    EXPIRED("expired");
+
+    companion object {
+        private val byIndex = values()
+
+        /**
+         * Action of the 1-based index `action + 0` of the ENUM column.
+         */
+        @JvmStatic
+        fun fromIndex(index: Int): DailyAction = byIndex[index - 1]
+    }
+}
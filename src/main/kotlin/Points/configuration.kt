@@ -0,0 +1,144 @@
+package Points
+
+import java.sql.Timestamp
+
+data class ConnectionPoolConfiguration @JvmOverloads constructor(val url: String,
+                                                                 val maxSize: Int = 10,
+                                                                 val acquireTimeoutMillis: Long = 5_000,
+                                                                 val validationIntervalMillis: Long = 30_000,
+                                                                 val validationTimeoutSeconds: Int = 2)
+
+data class TemporaryPointsSweeperConfiguration @JvmOverloads constructor(val workers: Int = 2,
+                                                                         val periodMillis: Long = 1_000,
+                                                                         val batchSize: Int = 500)
+
+data class ReservationReaperConfiguration @JvmOverloads constructor(val workers: Int = 1,
+                                                                    val periodMillis: Long = 1_000,
+                                                                    val batchSize: Int = 1_000)
+
+data class TransactionArchiverConfiguration @JvmOverloads constructor(val retentionDays: Int = 90,
+                                                                      val chunkSize: Int = 1_000,
+                                                                      val chunkPauseMillis: Long = 10,
+                                                                      val periodMillis: Long = 3_600_000,
+                                                                      val partitionsAhead: Int = 3)
+
+data class AsyncPointsDriverConfiguration @JvmOverloads constructor(val maxConcurrency: Int = 10,
+                                                                    val maxPending: Int = 10_000,
+                                                                    val timeoutMillis: Long = 30_000,
+                                                                    val useVirtualThreads: Boolean = true)
+
+data class PointsServerConfiguration @JvmOverloads constructor(val host: String = "0.0.0.0",
+                                                               val port: Int = 7400,
+                                                               val maxFrameBytes: Int = 1024 * 1024,
+                                                               val maxUnsentBytes: Long = 4L * 1024 * 1024,
+                                                               val acceptBacklog: Int = 1024,
+                                                               val drainTimeoutMillis: Long = 10_000,
+                                                               val async: AsyncPointsDriverConfiguration = AsyncPointsDriverConfiguration())
+
+data class UserLockingConfiguration @JvmOverloads constructor(val stripes: Int = 1024,
+                                                              val coalesceAddPoints: Boolean = true)
+
+data class UserInfoCacheConfiguration @JvmOverloads constructor(val maxSize: Long = 0,
+                                                               val expireAfterWriteMillis: Long = 10_000)
+
+data class GroupCommitConfiguration @JvmOverloads constructor(val enabled: Boolean = false,
+                                                              val maxDelayMillis: Long = 2,
+                                                              val maxBatchSize: Int = 256,
+                                                              val awaitTimeoutMillis: Long = 10_000)
+
+data class ReplicaConfiguration @JvmOverloads constructor(val replicas: List<ConnectionPoolConfiguration> = emptyList(),
+                                                          val maxLagMillis: Long = 1_000,
+                                                          val pinAfterWriteMillis: Long = 2_000,
+                                                          val lagCheckIntervalMillis: Long = 500)
+
+/**
+ * Per-day points issued, spent and expired, see [DailyAggregates]. Write transactions of the driver record them from
+ * [since] on, spread over [slots] rows per day and action, and per user with [perUser]. The backfill builds the days
+ * before [since] from the ledger in chunks of [backfillChunkSize] ids, [backfillParallelism] at a time.
+ */
+data class DailyAggregatesConfiguration @JvmOverloads constructor(val enabled: Boolean = false,
+                                                                  val since: Timestamp = Timestamp(0),
+                                                                  val slots: Int = 8,
+                                                                  val perUser: Boolean = false,
+                                                                  val backfillChunkSize: Int = 100_000,
+                                                                  val backfillParallelism: Int = 4)
+
+/**
+ * Write transactions failing on deadlocks or lock wait timeouts are retried up to [maxAttempts] times in all, backing
+ * off a random time up to [initialBackoffMillis] doubled per attempt, at most [maxBackoffMillis]. With [admissionControl]
+ * the transactions in flight of every operation are limited by a [ConcurrencyLimiter] between [minLimit] and [maxLimit],
+ * lowered by [backoffRatio] when a window of [windowSize] transactions is [latencyTolerance] times slower than without load.
+ */
+data class TransactionExecutionConfiguration @JvmOverloads constructor(val maxAttempts: Int = 4,
+                                                                       val initialBackoffMillis: Long = 5,
+                                                                       val maxBackoffMillis: Long = 200,
+                                                                       val admissionControl: Boolean = false,
+                                                                       val initialLimit: Int = 20,
+                                                                       val minLimit: Int = 2,
+                                                                       val maxLimit: Int = 200,
+                                                                       val latencyTolerance: Double = 2.0,
+                                                                       val backoffRatio: Double = 0.9,
+                                                                       val windowSize: Int = 50)
+
+data class DatabaseDriverConfiguration @JvmOverloads constructor(val connectionPool: ConnectionPoolConfiguration,
+                                                                 val userLocking: UserLockingConfiguration = UserLockingConfiguration(),
+                                                                 val metrics: PointsMetrics = InProcessPointsMetrics(),
+                                                                 val userInfoCache: UserInfoCacheConfiguration = UserInfoCacheConfiguration(),
+                                                                 val reservationTtlMillis: Long = 86_400_000,
+                                                                 val groupCommit: GroupCommitConfiguration = GroupCommitConfiguration(),
+                                                                 val replicas: ReplicaConfiguration = ReplicaConfiguration(),
+                                                                 val transactions: TransactionExecutionConfiguration = TransactionExecutionConfiguration(),
+                                                                 val dailyAggregates: DailyAggregatesConfiguration = DailyAggregatesConfiguration()) {
+    fun withConnectionPool(connectionPool: ConnectionPoolConfiguration) = copy(connectionPool = connectionPool)
+    fun withUserLocking(userLocking: UserLockingConfiguration) = copy(userLocking = userLocking)
+    fun withMetrics(metrics: PointsMetrics) = copy(metrics = metrics)
+    fun withUserInfoCache(userInfoCache: UserInfoCacheConfiguration) = copy(userInfoCache = userInfoCache)
+    fun withGroupCommit(groupCommit: GroupCommitConfiguration) = copy(groupCommit = groupCommit)
+    fun withReplicas(replicas: ReplicaConfiguration) = copy(replicas = replicas)
+    fun withTransactions(transactions: TransactionExecutionConfiguration) = copy(transactions = transactions)
+    fun withDailyAggregates(dailyAggregates: DailyAggregatesConfiguration) = copy(dailyAggregates = dailyAggregates)
+}
+
+data class ShardedDatabaseConfiguration @JvmOverloads constructor(val shards: List<DatabaseDriverConfiguration>,
+                                                                  val buckets: Int = 4096,
+                                                                  val bucketShards: List<Int> = emptyList(),
+                                                                  val moveChunkSize: Int = 1_000,
+                                                                  val catalog: ConnectionPoolConfiguration? = null)
+
+data class ReconciliationConfiguration @JvmOverloads constructor(val ranges: Int = 1024,
+                                                                 val parallelism: Int = Runtime.getRuntime().availableProcessors(),
+                                                                 val chunkUsers: Int = 1_000)
+
+data class InMemoryPointsStoreConfiguration @JvmOverloads constructor(val reservationTtlMillis: Long = 86_400_000)
+
+data class JournalConfiguration @JvmOverloads constructor(val directory: String,
+                                                          val segmentBytes: Int = 256 * 1024 * 1024,
+                                                          val syncIntervalMillis: Long = 2,
+                                                          val waitForSync: Boolean = true,
+                                                          val snapshotEverySegments: Int = 4,
+                                                          val store: InMemoryPointsStoreConfiguration = InMemoryPointsStoreConfiguration())
+
+enum class ExpiryDistribution { FIXED, UNIFORM, EXPONENTIAL }
+
+/**
+ * Workload of [WorkloadGenerator]: operations arrive at [ratePerSecond] on average, drawn by their weights,
+ * for users picked with Zipfian skew [zipfianTheta]. Temporary points expire [expiryMeanMillis] after being added
+ * on average, exactly, uniformly up to twice as long or exponentially distributed.
+ */
+data class WorkloadConfiguration @JvmOverloads constructor(val users: Int = 10_000,
+                                                           val initialPoints: Int = 1_000,
+                                                           val ratePerSecond: Double = 1_000.0,
+                                                           val durationSeconds: Long = 60,
+                                                           val reportIntervalSeconds: Long = 10,
+                                                           val zipfianTheta: Double = 0.99,
+                                                           val addUserWeight: Int = 1,
+                                                           val addPointsWeight: Int = 20,
+                                                           val addTemporaryPointsWeight: Int = 10,
+                                                           val reservePointsWeight: Int = 20,
+                                                           val writeOffPointsWeight: Int = 12,
+                                                           val cancelTransactionWeight: Int = 6,
+                                                           val getUserInfoWeight: Int = 31,
+                                                           val expiryDistribution: ExpiryDistribution = ExpiryDistribution.EXPONENTIAL,
+                                                           val expiryMeanMillis: Long = 60_000,
+                                                           val workers: Int = 64,
+                                                           val maxOutstanding: Int = 10_000)
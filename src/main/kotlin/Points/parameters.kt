@@ -7,10 +7,12 @@ interface TransactionParameters;
 
 data class AddUserParameters(val userId: UUID, val total: Int) : TransactionParameters
 data class AddPointsParameters(val userId: UUID, val amount: Int) : TransactionParameters
-data class GetUserInfoParameters(val userId: UUID) : TransactionParameters
+data class GetUserInfoParameters @JvmOverloads constructor(val userId: UUID, val consistent: Boolean = false) : TransactionParameters
 data class GetTransactionInfoParameters(val transactionId: Long) : TransactionParameters
+data class UserHistoryParameters @JvmOverloads constructor(val userId: UUID, val from: Timestamp, val to: Timestamp, val pageSize: Int = 1_000) : TransactionParameters
 data class UpdateTemporaryPointsParameters(val userId: UUID, val updateTime: Timestamp = Timestamp(System.currentTimeMillis())) : TransactionParameters
 data class AddTemporaryPointsParameters(val userId: UUID, val amount: Int, val expiryDate: Timestamp) : TransactionParameters
-data class ReservePointsParameters(val userId: UUID, val amount: Int) : TransactionParameters
+data class ReservePointsParameters @JvmOverloads constructor(val userId: UUID, val amount: Int, val ttlMillis: Long = 0) : TransactionParameters
 data class CancelTransactionParameters(val transactionId: Long) : TransactionParameters
 data class WriteOffPointsParameters(val transactionId: Long) : TransactionParameters
+data class DailyPointsParameters @JvmOverloads constructor(val from: Timestamp, val to: Timestamp, val userId: UUID? = null)
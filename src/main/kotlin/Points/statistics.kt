@@ -0,0 +1,36 @@
+package Points
+
+data class ConnectionPoolStatistics(val acquireCount: Long, val acquireWaitNanos: Long, val maxAcquireWaitNanos: Long, val acquireTimeouts: Long, val activeConnections: Int, val idleConnections: Int, val openedConnections: Long, val validationFailures: Long)
+
+data class UserInfoCacheStatistics(val hitCount: Long, val missCount: Long, val evictionCount: Long, val size: Long)
+
+data class TransactionArchiveStatistics(val movedRows: Long, val chunks: Int, val elapsedNanos: Long) {
+    val rowsPerSecond: Double
+        get() = if (elapsedNanos == 0L) 0.0 else movedRows * 1e9 / elapsedNanos
+}
+
+/**
+ * [orphanedRows] are transactions without their user and temporary points without their transaction,
+ * which the partitioned transaction table has no foreign keys to prevent.
+ */
+data class ReconciliationStatistics(val users: Long, val ledgerRows: Long, val mismatchedUsers: Long, val orphanedRows: Long, val elapsedNanos: Long) {
+    val rowsPerSecond: Double
+        get() = if (elapsedNanos == 0L) 0.0 else ledgerRows * 1e9 / elapsedNanos
+}
+
+/**
+ * [dropped] arrivals found [WorkloadConfiguration.maxOutstanding] operations still running and were not sent,
+ * [invariantViolations] users ended with a negative balance or more reserved than available.
+ */
+data class WorkloadStatistics(val operations: Long, val errors: Long, val dropped: Long, val checkedUsers: Long, val invariantViolations: Long, val elapsedNanos: Long) {
+    val operationsPerSecond: Double
+        get() = if (elapsedNanos == 0L) 0.0 else operations * 1e9 / elapsedNanos
+}
+
+/**
+ * [balancingExpired] points expired before the aggregates were kept, booked on the last day before them.
+ */
+data class DailyAggregatesBackfillStatistics(val chunks: Int, val ledgerRows: Long, val balancingExpired: Long, val elapsedNanos: Long) {
+    val rowsPerSecond: Double
+        get() = if (elapsedNanos == 0L) 0.0 else ledgerRows * 1e9 / elapsedNanos
+}
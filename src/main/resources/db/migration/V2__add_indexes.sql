@@ -0,0 +1,31 @@
+USE Points;
+
+CREATE INDEX temporary_points_user_expiry ON temporary_points (user_id, expiry_time);
+CREATE INDEX transaction_user_time ON transaction (user_id, time, id);
+CREATE INDEX points_earliest_expiry ON points (earliest_expiry_date);
+
+-- Superseded by the composite indexes above, which also serve the foreign keys. The single column indexes
+-- were created implicitly for the foreign keys, so their names are looked up rather than assumed.
+SET @redundant = NULL;
+SELECT INDEX_NAME INTO @redundant
+FROM information_schema.STATISTICS
+WHERE TABLE_SCHEMA = 'Points' AND TABLE_NAME = 'temporary_points' AND NON_UNIQUE = 1
+GROUP BY INDEX_NAME
+HAVING COUNT(*) = 1 AND MAX(COLUMN_NAME) = 'user_id'
+LIMIT 1;
+SET @drop_index = IF(@redundant IS NULL, 'DO 0', CONCAT('ALTER TABLE temporary_points DROP INDEX `', @redundant, '`'));
+PREPARE drop_index FROM @drop_index;
+EXECUTE drop_index;
+DEALLOCATE PREPARE drop_index;
+
+SET @redundant = NULL;
+SELECT INDEX_NAME INTO @redundant
+FROM information_schema.STATISTICS
+WHERE TABLE_SCHEMA = 'Points' AND TABLE_NAME = 'transaction' AND NON_UNIQUE = 1
+GROUP BY INDEX_NAME
+HAVING COUNT(*) = 1 AND MAX(COLUMN_NAME) = 'user_id'
+LIMIT 1;
+SET @drop_index = IF(@redundant IS NULL, 'DO 0', CONCAT('ALTER TABLE transaction DROP INDEX `', @redundant, '`'));
+PREPARE drop_index FROM @drop_index;
+EXECUTE drop_index;
+DEALLOCATE PREPARE drop_index;
@@ -0,0 +1,37 @@
+USE Points;
+
+-- Partitioned InnoDB tables can neither have foreign keys nor be referenced by them.
+ALTER TABLE transaction DROP FOREIGN KEY transaction_ibfk_1;
+ALTER TABLE temporary_points DROP FOREIGN KEY temporary_points_ibfk_2;
+
+-- Every unique key of a partitioned table has to contain the partitioning column.
+-- Ids stay unique through AUTO_INCREMENT, the unique index implied by serial goes.
+ALTER TABLE transaction DROP PRIMARY KEY, DROP INDEX id, ADD PRIMARY KEY (id, time);
+
+-- Everything up to the end of the current month lands in one partition, TransactionArchiver
+-- splits monthly partitions off the empty p_future ahead of time.
+SET @partitions = CONCAT('ALTER TABLE transaction PARTITION BY RANGE COLUMNS(time) (',
+                         'PARTITION p', DATE_FORMAT(UTC_DATE(), '%Y%m'),
+                         ' VALUES LESS THAN (''', DATE_FORMAT(DATE_ADD(UTC_DATE(), INTERVAL 1 MONTH), '%Y-%m-01'), '''), ',
+                         'PARTITION p_future VALUES LESS THAN (MAXVALUE))');
+PREPARE partition_transactions FROM @partitions;
+EXECUTE partition_transactions;
+DEALLOCATE PREPARE partition_transactions;
+
+CREATE TABLE transaction_archive
+(
+  id bigint UNSIGNED NOT NULL,
+  user_id BINARY(16) NOT NULL,
+  amount int NOT NULL,
+  time datetime NOT NULL COMMENT 'utc',
+  expiry_time datetime COMMENT 'utc',
+  action ENUM("add user",
+  			  "add points",
+  			  "reserve",
+  			  "committed",
+  			  "canceled",
+  			  "temporary points addition") NOT NULL COMMENT 'aka description',
+  PRIMARY KEY(id)
+);
+
+CREATE INDEX transaction_archive_user_time ON transaction_archive (user_id, time, id);
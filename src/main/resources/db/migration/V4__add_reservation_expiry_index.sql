@@ -0,0 +1,4 @@
+USE Points;
+
+-- Serves ReservationReaper, which looks for reservations past their expiry_time.
+CREATE INDEX transaction_action_expiry ON transaction (action, expiry_time);
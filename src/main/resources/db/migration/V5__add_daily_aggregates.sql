@@ -0,0 +1,37 @@
+USE Points;
+
+-- Points issued, spent and expired per UTC day, kept by the write transactions of DatabaseDriver.
+-- Every day and action is spread over slots by user, so that concurrent transactions rarely update the same row.
+CREATE TABLE daily_points
+(
+  day date NOT NULL COMMENT 'utc',
+  action ENUM("issued",
+              "temporary issued",
+              "spent",
+              "expired") NOT NULL,
+  slot smallint UNSIGNED NOT NULL,
+  amount bigint NOT NULL,
+  PRIMARY KEY(day, action, slot)
+);
+
+CREATE TABLE user_daily_points
+(
+  user_id BINARY(16) NOT NULL,
+  day date NOT NULL COMMENT 'utc',
+  action ENUM("issued",
+              "temporary issued",
+              "spent",
+              "expired") NOT NULL,
+  amount bigint NOT NULL,
+  PRIMARY KEY(user_id, day, action)
+);
+
+-- Ledger chunks aggregated by the backfill, which skips them when it is run again.
+CREATE TABLE daily_points_backfill
+(
+  source ENUM("transaction",
+              "transaction_archive",
+              "expiry") NOT NULL,
+  first_id bigint UNSIGNED NOT NULL,
+  PRIMARY KEY(source, first_id)
+);
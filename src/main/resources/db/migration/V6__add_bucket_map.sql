@@ -0,0 +1,16 @@
+USE Points;
+
+-- Buckets of ShardedPointsStore are ranges of this hash, so moving one reads an index range instead of all users.
+ALTER TABLE points
+  ADD COLUMN user_hash int UNSIGNED AS (CRC32(user_id)) VIRTUAL,
+  ADD INDEX points_user_hash (user_hash);
+
+-- Shard of every bucket, only used in the catalog database of a ShardedPointsStore.
+-- version grows with every move of the bucket.
+CREATE TABLE bucket_shards
+(
+  bucket int UNSIGNED NOT NULL,
+  shard smallint UNSIGNED NOT NULL,
+  version bigint UNSIGNED NOT NULL DEFAULT 0,
+  PRIMARY KEY(bucket)
+);
@@ -0,0 +1,32 @@
+USE Points;
+
+-- Splits monthly partitions off the empty p_future until months_ahead months past the current one.
+-- Runs with the privileges of its definer, so callers need EXECUTE on it rather than ALTER on transaction.
+DELIMITER $$
+CREATE PROCEDURE add_transaction_partitions(IN months_ahead int)
+  SQL SECURITY DEFINER
+BEGIN
+  DECLARE boundary date;
+  DECLARE horizon date DEFAULT DATE_ADD(DATE_FORMAT(UTC_DATE(), '%Y-%m-01'), INTERVAL months_ahead + 1 MONTH);
+  SELECT MAX(STR_TO_DATE(SUBSTRING(REPLACE(PARTITION_DESCRIPTION, '''', ''), 1, 10), '%Y-%m-%d')) INTO boundary
+  FROM information_schema.PARTITIONS
+  WHERE TABLE_SCHEMA = 'Points' AND TABLE_NAME = 'transaction' AND PARTITION_DESCRIPTION <> 'MAXVALUE';
+  WHILE boundary IS NOT NULL AND boundary < horizon DO
+    SET @split = CONCAT('ALTER TABLE Points.transaction REORGANIZE PARTITION p_future INTO (',
+                        'PARTITION p', DATE_FORMAT(boundary, '%Y%m'),
+                        ' VALUES LESS THAN (''', DATE_ADD(boundary, INTERVAL 1 MONTH), '''), ',
+                        'PARTITION p_future VALUES LESS THAN (MAXVALUE))');
+    PREPARE split_partition FROM @split;
+    EXECUTE split_partition;
+    DEALLOCATE PREPARE split_partition;
+    SET boundary = DATE_ADD(boundary, INTERVAL 1 MONTH);
+  END WHILE;
+END$$
+DELIMITER ;
+
+CALL add_transaction_partitions(3);
+
+-- Keeps partitions ahead whether or not TransactionArchiver runs, needs the event scheduler (on by default).
+CREATE EVENT transaction_partitions
+  ON SCHEDULE EVERY 1 DAY
+  DO CALL Points.add_transaction_partitions(3);
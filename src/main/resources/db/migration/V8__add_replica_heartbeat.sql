@@ -0,0 +1,10 @@
+USE Points;
+
+-- Every DatabaseDriver with replicas writes its row on the primary and reads it back from the replicas,
+-- the difference to its clock is their lag. writer is random per driver, beat the millis of its clock.
+CREATE TABLE replica_heartbeat
+(
+  writer bigint NOT NULL,
+  beat bigint NOT NULL,
+  PRIMARY KEY(writer)
+);
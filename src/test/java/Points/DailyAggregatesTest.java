@@ -0,0 +1,193 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Needs a migrated database, run with -Ppoints.test.url=jdbc:mysql://...
+ */
+public class DailyAggregatesTest {
+    private static final String URL = System.getProperty("points.test.url");
+    private static final long DAY_MILLIS = 86_400_000L;
+
+    private DatabaseDriver driver;
+    private Logger logger;
+
+    @Before public void setUp() {
+        assumeTrue("points.test.url is not set", URL != null);
+        logger = Logger.getLogger("DailyAggregatesTest");
+        logger.setLevel(Level.SEVERE);
+        DailyAggregatesConfiguration dailyAggregates = new DailyAggregatesConfiguration(true, new Timestamp(System.currentTimeMillis() - 60_000), 8, true);
+        driver = new DatabaseDriver(new DatabaseDriverConfiguration(new ConnectionPoolConfiguration(URL)).withDailyAggregates(dailyAggregates),
+                                    logger);
+    }
+
+    @After public void tearDown() {
+        if (driver != null) {
+            driver.close();
+        }
+    }
+
+    @Test public void testUserDaysFollowWrites() throws Exception {
+        UUID userId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, 100));
+        driver.addPoints(new AddPointsParameters(userId, 20));
+        driver.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 5, new Timestamp(System.currentTimeMillis() + 60_000)));
+        long transactionId = driver.reservePoints(new ReservePointsParameters(userId, 30)).getTransactionId();
+        driver.writeOffPoints(transactionId);
+        driver.cancelTransaction(driver.reservePoints(new ReservePointsParameters(userId, 10)).getTransactionId());
+
+        long today = System.currentTimeMillis() / DAY_MILLIS * DAY_MILLIS;
+        List<DailyPointsReturn> days = driver.getDailyPoints(new DailyPointsParameters(new Timestamp(today - DAY_MILLIS),
+                                                                                       new Timestamp(today + DAY_MILLIS),
+                                                                                       userId));
+        assertEquals(2, days.size());
+        assertEquals(new DailyPointsReturn(new Timestamp(today - DAY_MILLIS), 0, 0, 0, 0, 0), days.get(0));
+        assertEquals(new DailyPointsReturn(new Timestamp(today), 120, 5, 30, 0, 95), days.get(1));
+        GetUserInfoReturn userInfo = driver.getUserInfo(new GetUserInfoParameters(userId, true));
+        assertEquals(userInfo.getTotal() + userInfo.getTotalTemporary(), days.get(1).getOutstanding());
+    }
+
+    @Test public void testSweptTemporaryPointsAreExpired() throws Exception {
+        UUID userId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, 0));
+        driver.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 5, new Timestamp(System.currentTimeMillis() + 1_000)));
+        Thread.sleep(1_100);
+
+        try(TemporaryPointsSweeper sweeper = driver.startTemporaryPointsSweeper(new TemporaryPointsSweeperConfiguration())) {
+            sweeper.sweep(new Timestamp(System.currentTimeMillis()));
+        }
+
+        long today = System.currentTimeMillis() / DAY_MILLIS * DAY_MILLIS;
+        assertEquals(new DailyPointsReturn(new Timestamp(today), 0, 5, 0, 5, 0), userDay(userId, today));
+    }
+
+    @Test public void testReadTemporaryPointsAreExpiredWithoutSweeper() throws Exception {
+        UUID userId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, 0));
+        driver.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 5, new Timestamp(System.currentTimeMillis() + 1_000)));
+        Thread.sleep(1_100);
+
+        GetUserInfoReturn userInfo = driver.getUserInfo(new GetUserInfoParameters(userId));
+
+        assertEquals(0, userInfo.getTotalTemporary());
+        assertNull(userInfo.getEarliestExpiryDate());
+        long today = System.currentTimeMillis() / DAY_MILLIS * DAY_MILLIS;
+        assertEquals(new DailyPointsReturn(new Timestamp(today), 0, 5, 0, 5, 0), userDay(userId, today));
+    }
+
+    @Test public void testUpdatedTemporaryPointsAreExpired() throws Exception {
+        UUID userId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, 10));
+        driver.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 5, new Timestamp(System.currentTimeMillis() + 1_000)));
+        driver.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 7, new Timestamp(System.currentTimeMillis() + 60_000)));
+        Thread.sleep(1_100);
+
+        driver.updateTemporaryPoints(new UpdateTemporaryPointsParameters(userId, new Timestamp(System.currentTimeMillis())));
+
+        long today = System.currentTimeMillis() / DAY_MILLIS * DAY_MILLIS;
+        assertEquals(new DailyPointsReturn(new Timestamp(today), 10, 12, 0, 5, 17), userDay(userId, today));
+    }
+
+    /**
+     * Rebuilds all aggregates, so it starts from empty aggregate tables and settles the reservations left by other tests.
+     */
+    @Test public void testBackfillAlignsChunksAndBalancesExpiries() throws Exception {
+        UUID userId = UUID.randomUUID();
+        try(DatabaseDriver plainDriver = new DatabaseDriver(new ConnectionPoolConfiguration(URL), logger)) {
+            plainDriver.addUser(new AddUserParameters(userId, 100));
+            plainDriver.addPoints(new AddPointsParameters(userId, 20));
+            plainDriver.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 5, new Timestamp(System.currentTimeMillis() + DAY_MILLIS)));
+            plainDriver.writeOffPoints(plainDriver.reservePoints(new ReservePointsParameters(userId, 30)).getTransactionId());
+            plainDriver.reservePoints(new ReservePointsParameters(userId, 10));
+            plainDriver.cancelTransactionBatch(queryLongs("SELECT id FROM Points.transaction WHERE action = \"reserve\""));
+        }
+        long today = System.currentTimeMillis() / DAY_MILLIS * DAY_MILLIS;
+        Timestamp since = new Timestamp(System.currentTimeMillis() + 1_000);
+        try(Connection connection = DriverManager.getConnection(URL);
+            Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DELETE FROM Points.daily_points");
+            statement.executeUpdate("DELETE FROM Points.user_daily_points");
+            statement.executeUpdate("DELETE FROM Points.daily_points_backfill");
+        }
+        List<Long> ranges = queryLongs("SELECT MIN(id), MAX(id) FROM Points.transaction UNION ALL " +
+                                       "SELECT MIN(id), MAX(id) FROM Points.transaction_archive");
+        // Keeps the chunks of a large test database to a couple of hundred.
+        int chunkSize = (int) Math.max(1_000, Collections.max(ranges) / 100 + 1);
+        long chunks = 0;
+        for (int i = 0; i + 1 < ranges.size(); i += 2) {
+            chunks += ranges.get(i + 1) / chunkSize - ranges.get(i) / chunkSize + 1;
+        }
+
+        DailyAggregatesConfiguration dailyAggregates = new DailyAggregatesConfiguration(true, since, 8, true, chunkSize, 4);
+        try(DatabaseDriver backfillDriver = new DatabaseDriver(new DatabaseDriverConfiguration(new ConnectionPoolConfiguration(URL)).withDailyAggregates(dailyAggregates),
+                                                               logger)) {
+            DailyAggregatesBackfillStatistics statistics = backfillDriver.backfillDailyAggregates();
+            assertEquals(chunks, statistics.getChunks());
+            assertEquals(Arrays.asList(chunks, 0L), queryLongs("SELECT COUNT(*), COALESCE(SUM(first_id MOD " + chunkSize + "), 0) " +
+                                                               "FROM Points.daily_points_backfill " +
+                                                               "WHERE source <> \"expiry\""));
+            assertEquals(Collections.singletonList(statistics.getBalancingExpired()),
+                         queryLongs("SELECT COALESCE(SUM(amount), 0) FROM Points.daily_points WHERE action = \"expired\""));
+
+            // Per-user days get no balancing expiry, the canceled reservation is not spent.
+            DailyPointsParameters userDays = new DailyPointsParameters(new Timestamp(today), new Timestamp(today + DAY_MILLIS), userId);
+            assertEquals(Collections.singletonList(new DailyPointsReturn(new Timestamp(today), 120, 5, 30, 0, 95)),
+                         backfillDriver.getDailyPoints(userDays));
+            DailyPointsParameters days = new DailyPointsParameters(new Timestamp(today), new Timestamp(today + DAY_MILLIS));
+            List<DailyPointsReturn> report = backfillDriver.getDailyPoints(days);
+            assertEquals(queryLongs("SELECT SUM(total + total_temporary) FROM Points.points"),
+                         Collections.singletonList(report.get(0).getOutstanding()));
+
+            DailyAggregatesBackfillStatistics rerun = backfillDriver.backfillDailyAggregates();
+            assertEquals(0, rerun.getChunks());
+            assertEquals(0, rerun.getLedgerRows());
+            assertEquals(0, rerun.getBalancingExpired());
+            assertEquals(report, backfillDriver.getDailyPoints(days));
+        }
+    }
+
+    @Test public void testDaysAreUtc() {
+        assertEquals("1970-01-01", DailyAggregates.day(0));
+        assertEquals("1969-12-31", DailyAggregates.day(-1));
+        assertEquals("1970-01-02", DailyAggregates.day(DAY_MILLIS));
+    }
+
+    private DailyPointsReturn userDay(UUID userId, long day) throws Exception {
+        return driver.getDailyPoints(new DailyPointsParameters(new Timestamp(day), new Timestamp(day + DAY_MILLIS), userId)).get(0);
+    }
+
+    private static List<Long> queryLongs(String query) throws Exception {
+        List<Long> values = new ArrayList<>();
+        try(Connection connection = DriverManager.getConnection(URL);
+            Statement statement = connection.createStatement();
+            ResultSet result = statement.executeQuery(query)) {
+            int columns = result.getMetaData().getColumnCount();
+            while (result.next()) {
+                for (int column = 1; column <= columns; ++column) {
+                    if (result.getObject(column) != null) {
+                        values.add(result.getLong(column));
+                    }
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,127 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Batches whose middle chunk fails: a test connection holds the row lock of a user of that chunk, the driver waits
+ * for it at most a second and does not retry.
+ * Needs a migrated database, run with -Ppoints.test.url=jdbc:mysql://...
+ */
+public class DatabaseDriverBatchTest {
+    private static final String URL = System.getProperty("points.test.url");
+    private static final int USERS = 6;
+    private static final int CHUNK_SIZE = 2;
+
+    private DatabaseDriver driver;
+    private List<UUID> userIds;
+
+    @Before public void setUp() throws Exception {
+        assumeTrue("points.test.url is not set", URL != null);
+        Logger logger = Logger.getLogger("DatabaseDriverBatchTest");
+        logger.setLevel(Level.SEVERE);
+        String url = URL + (URL.contains("?") ? "&" : "?") + "sessionVariables=innodb_lock_wait_timeout=1";
+        driver = new DatabaseDriver(new DatabaseDriverConfiguration(new ConnectionPoolConfiguration(url))
+                                        .withTransactions(new TransactionExecutionConfiguration(1)),
+                                    logger);
+        userIds = new ArrayList<>();
+        for (int i = 0; i < USERS; ++i) {
+            userIds.add(UUID.randomUUID());
+            driver.addUser(new AddUserParameters(userIds.get(i), 100));
+        }
+    }
+
+    @After public void tearDown() {
+        if (driver != null) {
+            driver.close();
+        }
+    }
+
+    @Test public void testFailedChunkReportsCommittedAdditions() throws Exception {
+        List<AddPointsParameters> grants = new ArrayList<>();
+        for (UUID userId : userIds) {
+            grants.add(new AddPointsParameters(userId, 1));
+        }
+        try(Connection lock = lockUser(userIds.get(CHUNK_SIZE))) {
+            driver.addPointsBatch(grants.iterator(), CHUNK_SIZE);
+            fail("The middle chunk has to time out");
+        } catch (PartialBatchException ex) {
+            assertEquals(Arrays.asList(BatchItemResult.APPLIED, BatchItemResult.APPLIED, null, null), ex.getResults());
+        }
+        for (int i = 0; i < USERS; ++i) {
+            assertEquals(i < CHUNK_SIZE ? 101 : 100, driver.getUserInfo(new GetUserInfoParameters(userIds.get(i), true)).getTotal());
+        }
+    }
+
+    @Test public void testFailedChunkReportsCommittedTemporaryAdditions() throws Exception {
+        List<AddTemporaryPointsParameters> grants = new ArrayList<>();
+        for (UUID userId : userIds) {
+            grants.add(new AddTemporaryPointsParameters(userId, 1, new Timestamp(System.currentTimeMillis() + 3_600_000)));
+        }
+        try(Connection lock = lockUser(userIds.get(CHUNK_SIZE))) {
+            driver.addTemporaryPointsBatch(grants.iterator(), CHUNK_SIZE);
+            fail("The middle chunk has to time out");
+        } catch (PartialBatchException ex) {
+            assertEquals(Arrays.asList(BatchItemResult.APPLIED, BatchItemResult.APPLIED, null, null), ex.getResults());
+        }
+        for (int i = 0; i < USERS; ++i) {
+            assertEquals(i < CHUNK_SIZE ? 1 : 0, driver.getUserInfo(new GetUserInfoParameters(userIds.get(i), true)).getTotalTemporary());
+        }
+    }
+
+    @Test public void testFailedChunkReportsCommittedSettlements() throws Exception {
+        List<Long> transactionIds = new ArrayList<>();
+        for (UUID userId : userIds) {
+            transactionIds.add(driver.reservePoints(new ReservePointsParameters(userId, 10)).getTransactionId());
+        }
+        try(Connection lock = lockUser(userIds.get(CHUNK_SIZE))) {
+            driver.writeOffPointsBatch(transactionIds, CHUNK_SIZE);
+            fail("The middle chunk has to time out");
+        } catch (PartialBatchException ex) {
+            assertEquals(Arrays.asList(SettlementResult.SETTLED, SettlementResult.SETTLED, null, null, null, null), ex.getResults());
+        }
+        for (int i = 0; i < USERS; ++i) {
+            GetUserInfoReturn userInfo = driver.getUserInfo(new GetUserInfoParameters(userIds.get(i), true));
+            assertEquals(i < CHUNK_SIZE ? 90 : 100, userInfo.getTotal());
+            assertEquals(i < CHUNK_SIZE ? 0 : 10, userInfo.getReserved());
+        }
+    }
+
+    @Test public void testFailedFirstChunkIsNotPartial() throws Exception {
+        try(Connection lock = lockUser(userIds.get(0))) {
+            driver.addPointsBatch(Arrays.asList(new AddPointsParameters(userIds.get(0), 1)).iterator(), CHUNK_SIZE);
+            fail("The chunk has to time out");
+        } catch (SQLException ex) {
+            assertFalse(ex instanceof PartialBatchException);
+        }
+    }
+
+    /**
+     * Locks the points row of a user until the returned connection is closed.
+     */
+    private static Connection lockUser(UUID userId) throws SQLException {
+        Connection connection = DriverManager.getConnection(URL);
+        connection.setAutoCommit(false);
+        try(PreparedStatement statement = connection.prepareStatement("SELECT total FROM Points.points WHERE user_id = ? FOR UPDATE")) {
+            statement.setBytes(1, UuidBinary.toBytes(userId));
+            statement.executeQuery().close();
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,161 @@
+package Points;
+
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import java.sql.Timestamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Stress test of reservations on a single hot user, and expiry of abandoned reservations.
+ * Needs a migrated database, run with -Ppoints.test.url=jdbc:mysql://...
+ */
+public class DatabaseDriverConcurrencyTest {
+    private static final String URL = System.getProperty("points.test.url");
+    private static final int THREADS = 16;
+    private static final int OPERATIONS_PER_THREAD = 200;
+    private static final int BALANCE = 1_000;
+
+    private DatabaseDriver driver;
+
+    @Before public void setUp() {
+        assumeTrue("points.test.url is not set", URL != null);
+        Logger logger = Logger.getLogger("DatabaseDriverConcurrencyTest");
+        logger.setLevel(Level.SEVERE);
+        driver = new DatabaseDriver(new ConnectionPoolConfiguration(URL, THREADS), logger);
+    }
+
+    @After public void tearDown() {
+        if (driver != null) {
+            driver.close();
+        }
+    }
+
+    @Test public void testConcurrentReservationsDoNotOverbook() throws Exception {
+        UUID userId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, BALANCE));
+
+        AtomicInteger reserved = new AtomicInteger();
+        runConcurrently("reserve", () -> {
+            if (driver.reservePoints(new ReservePointsParameters(userId, 1)).getTransactionId() >= 0) {
+                reserved.incrementAndGet();
+            }
+        });
+
+        GetUserInfoReturn userInfo = driver.getUserInfo(new GetUserInfoParameters(userId));
+        assertEquals(BALANCE, reserved.get());
+        assertEquals(BALANCE, userInfo.getReserved());
+        assertEquals(BALANCE, userInfo.getTotal());
+    }
+
+    @Test public void testConcurrentSettlementKeepsBalances() throws Exception {
+        UUID userId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, BALANCE));
+
+        AtomicInteger committed = new AtomicInteger();
+        AtomicInteger canceled = new AtomicInteger();
+        runConcurrently("reserve and settle", () -> {
+            long transactionId = driver.reservePoints(new ReservePointsParameters(userId, 1)).getTransactionId();
+            if (transactionId < 0) {
+                return;
+            }
+            if (transactionId % 2 == 0) {
+                driver.writeOffPoints(transactionId);
+                committed.incrementAndGet();
+            } else {
+                driver.cancelTransaction(transactionId);
+                canceled.incrementAndGet();
+            }
+        });
+
+        GetUserInfoReturn userInfo = driver.getUserInfo(new GetUserInfoParameters(userId));
+        assertTrue(committed.get() <= BALANCE);
+        assertEquals(0, userInfo.getReserved());
+        assertEquals(BALANCE - committed.get(), userInfo.getTotal());
+    }
+
+    @Test public void testExpiredReservationsAreCanceled() throws Exception {
+        UUID userId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, BALANCE));
+        long transactionId = driver.reservePoints(new ReservePointsParameters(userId, 10, 1)).getTransactionId();
+        long liveTransactionId = driver.reservePoints(new ReservePointsParameters(userId, 20, 3_600_000)).getTransactionId();
+        Thread.sleep(1_100);
+
+        try(ReservationReaper reaper = driver.startReservationReaper(new ReservationReaperConfiguration())) {
+            reaper.reap(new Timestamp(System.currentTimeMillis()));
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (driver.getUserInfo(new GetUserInfoParameters(userId, true)).getReserved() != 20
+                   && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        }
+
+        assertEquals(20, driver.getUserInfo(new GetUserInfoParameters(userId, true)).getReserved());
+        assertEquals(TransactionAction.CANCELED, driver.getTransactionInfo(new GetTransactionInfoParameters(transactionId)).getAction());
+        assertEquals(TransactionAction.RESERVE, driver.getTransactionInfo(new GetTransactionInfoParameters(liveTransactionId)).getAction());
+    }
+
+    @Test public void testGroupCommitKeepsBalances() throws Exception {
+        UUID userId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, 0));
+        Logger logger = Logger.getLogger("DatabaseDriverConcurrencyTest");
+        DatabaseDriverConfiguration configuration = new DatabaseDriverConfiguration(new ConnectionPoolConfiguration(URL, THREADS))
+                .withGroupCommit(new GroupCommitConfiguration(true));
+        try(DatabaseDriver groupDriver = new DatabaseDriver(configuration, logger)) {
+            runConcurrently("group commit", () -> {
+                groupDriver.addPoints(new AddPointsParameters(userId, 1));
+                groupDriver.addPoints(new AddPointsParameters(UUID.randomUUID(), 1));
+            });
+        }
+
+        GetUserInfoReturn userInfo = driver.getUserInfo(new GetUserInfoParameters(userId, true));
+        assertEquals(THREADS * OPERATIONS_PER_THREAD, userInfo.getTotal());
+    }
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * Fails with the first exception of any thread, later operations of that thread are skipped.
+     */
+    private void runConcurrently(String name, Operation operation) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger failures = new AtomicInteger();
+        AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        for (int thread = 0; thread < THREADS; ++thread) {
+            executor.execute(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < OPERATIONS_PER_THREAD; ++i) {
+                        operation.run();
+                    }
+                } catch (Throwable ex) {
+                    failures.incrementAndGet();
+                    firstFailure.compareAndSet(null, ex);
+                }
+            });
+        }
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.MINUTES));
+
+        if (failures.get() > 0) {
+            throw new AssertionError(name + " failed in " + failures.get() + " threads, first with " + firstFailure.get(), firstFailure.get());
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package Points;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Needs a migrated database, run with -Ppoints.test.url=jdbc:mysql://...
+ */
+public class DatabaseDriverConformanceTest extends PointsStoreConformanceTest {
+    private static final String URL = System.getProperty("points.test.url");
+
+    @Override
+    protected PointsStore createStore() {
+        assumeTrue("points.test.url is not set", URL != null);
+        Logger logger = Logger.getLogger("DatabaseDriverConformanceTest");
+        logger.setLevel(Level.SEVERE);
+        return new DatabaseDriver(new ConnectionPoolConfiguration(URL), logger);
+    }
+}
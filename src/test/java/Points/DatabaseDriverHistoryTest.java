@@ -0,0 +1,59 @@
+package Points;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import java.sql.Timestamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Reads a user history spanning many pages, most of it written within the same second.
+ * Needs a migrated database, run with -Ppoints.test.url=jdbc:mysql://...
+ */
+public class DatabaseDriverHistoryTest {
+    private static final String URL = System.getProperty("points.test.url");
+    private static final int ADDITIONS = 250;
+
+    private DatabaseDriver driver;
+
+    @Before public void setUp() {
+        assumeTrue("points.test.url is not set", URL != null);
+        Logger logger = Logger.getLogger("DatabaseDriverHistoryTest");
+        logger.setLevel(Level.SEVERE);
+        driver = new DatabaseDriver(new ConnectionPoolConfiguration(URL), logger);
+    }
+
+    @After public void tearDown() {
+        if (driver != null) {
+            driver.close();
+        }
+    }
+
+    @Test public void testHistoryIsStreamedInOrderWithoutGapsOrDuplicates() throws Exception {
+        Timestamp from = new Timestamp(System.currentTimeMillis() / 1_000 * 1_000);
+        UUID userId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, 0));
+        for (int i = 1; i <= ADDITIONS; ++i) {
+            driver.addPoints(new AddPointsParameters(userId, i));
+        }
+        Timestamp to = new Timestamp(System.currentTimeMillis() + 1_000);
+
+        List<GetTransactionInfoReturn> history = driver.streamUserHistory(userId, from, to, 7).collect(Collectors.toList());
+
+        assertEquals(ADDITIONS + 1, history.size());
+        assertEquals(TransactionAction.ADD_USER, history.get(0).getAction());
+        for (int i = 1; i <= ADDITIONS; ++i) {
+            assertEquals(i, history.get(i).getAmount());
+            assertTrue(history.get(i).getTransactionId() > history.get(i - 1).getTransactionId());
+        }
+        assertEquals(0, driver.streamUserHistory(userId, to, new Timestamp(to.getTime() + 1_000), 7).count());
+    }
+}
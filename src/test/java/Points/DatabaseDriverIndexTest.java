@@ -0,0 +1,123 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks with EXPLAIN that the lookups of the driver and its background jobs are served by the indexes of the migrations.
+ * Needs a migrated database, run with -Ppoints.test.url=jdbc:mysql://...
+ */
+public class DatabaseDriverIndexTest {
+    private static final String URL = System.getProperty("points.test.url");
+    private static final int USERS = 200;
+
+    private DatabaseDriver driver;
+    private Connection connection;
+
+    private byte[] userId;
+    private long transactionId;
+    private Timestamp now;
+
+    @Before public void setUp() throws Exception {
+        assumeTrue("points.test.url is not set", URL != null);
+        Logger logger = Logger.getLogger("DatabaseDriverIndexTest");
+        logger.setLevel(Level.SEVERE);
+        driver = new DatabaseDriver(new ConnectionPoolConfiguration(URL), logger);
+        connection = DriverManager.getConnection(URL);
+
+        now = new Timestamp(System.currentTimeMillis());
+        Timestamp later = new Timestamp(now.getTime() + 86_400_000L);
+        List<AddTemporaryPointsParameters> grants = new ArrayList<>();
+        for (int i = 0; i < USERS; ++i) {
+            UUID user = UUID.randomUUID();
+            driver.addUser(new AddUserParameters(user, 10));
+            grants.add(new AddTemporaryPointsParameters(user, 5, later));
+        }
+        driver.addTemporaryPointsBatch(grants);
+
+        UUID user = grants.get(0).getUserId();
+        userId = UuidBinary.toBytes(user);
+        transactionId = driver.reservePoints(new ReservePointsParameters(user, 1)).getTransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        if (connection != null) {
+            connection.close();
+        }
+        if (driver != null) {
+            driver.close();
+        }
+    }
+
+    @Test public void testLookupsByKeyUseThePrimaryKey() throws Exception {
+        assertUsesIndex("SELECT total FROM Points.points WHERE user_id = ?", "PRIMARY", userId);
+        assertUsesIndex("SELECT amount FROM Points.transaction WHERE id = ?", "PRIMARY", transactionId);
+        assertUsesIndex("SELECT amount FROM Points.transaction_archive WHERE id = ?", "PRIMARY", transactionId);
+    }
+
+    @Test public void testUserHistoryUsesUserTimeIndexes() throws Exception {
+        assertUsesIndex("SELECT id FROM Points.transaction WHERE user_id = ? and time <= ? ORDER BY time DESC, id DESC LIMIT 100",
+                        "transaction_user_time", userId, now);
+        assertUsesIndex("SELECT id FROM Points.transaction_archive WHERE user_id = ? and time <= ? ORDER BY time DESC, id DESC LIMIT 100",
+                        "transaction_archive_user_time", userId, now);
+    }
+
+    @Test public void testTemporaryPointsOfUserUseUserExpiryIndex() throws Exception {
+        assertUsesIndex("SELECT amount FROM Points.temporary_points WHERE user_id = ? and expiry_time <= ?",
+                        "temporary_points_user_expiry", userId, now);
+        assertUsesIndex("SELECT amount FROM Points.temporary_points WHERE user_id = ? ORDER BY expiry_time LIMIT 1",
+                        "temporary_points_user_expiry", userId);
+    }
+
+    @Test public void testBackgroundJobsUseTheirIndexes() throws Exception {
+        assertUsesIndex("SELECT user_id FROM Points.points WHERE earliest_expiry_date <= ? LIMIT 100",
+                        "points_earliest_expiry", now);
+        assertUsesIndex("SELECT id FROM Points.transaction WHERE action = 'reserve' and expiry_time <= ? LIMIT 100",
+                        "transaction_action_expiry", now);
+        assertUsesIndex("SELECT user_id FROM Points.points WHERE user_hash >= ? and user_hash < ?",
+                        "points_user_hash", 0, 1 << 20);
+    }
+
+    @Test public void testForeignKeysKeepAnIndex() throws Exception {
+        try(PreparedStatement statement = connection.prepareStatement("SELECT COUNT(*) " +
+                                                                      "FROM information_schema.KEY_COLUMN_USAGE " +
+                                                                      "WHERE TABLE_SCHEMA = 'Points' and TABLE_NAME = 'temporary_points' " +
+                                                                      "and COLUMN_NAME = 'user_id' and REFERENCED_TABLE_NAME = 'points'");
+            ResultSet result = statement.executeQuery()) {
+            result.next();
+            assertEquals(1, result.getInt(1));
+        }
+        // InnoDB refuses to drop the last index of a foreign key, the composite one has to serve it.
+        assertUsesIndex("SELECT transaction_id FROM Points.temporary_points WHERE user_id = ?", "temporary_points_user_expiry", userId);
+    }
+
+    private void assertUsesIndex(String query, String index, Object... parameters) throws Exception {
+        List<String> keys = new ArrayList<>();
+        try(PreparedStatement statement = connection.prepareStatement("EXPLAIN " + query)) {
+            for (int i = 0; i < parameters.length; ++i) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            try(ResultSet result = statement.executeQuery()) {
+                while (result.next()) {
+                    keys.add(result.getString("key"));
+                }
+            }
+        }
+        assertTrue(query + " uses " + keys + " instead of " + index, keys.contains(index));
+    }
+}
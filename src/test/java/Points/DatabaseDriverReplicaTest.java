@@ -0,0 +1,129 @@
+package Points;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Needs a migrated primary and its replica, e.g. from make replicadb, run with
+ * -Ppoints.test.url=jdbc:mysql://localhost:3307/... -Ppoints.test.replica.url=jdbc:mysql://localhost:3308/...
+ */
+public class DatabaseDriverReplicaTest {
+    private static final String URL = System.getProperty("points.test.url");
+    private static final String REPLICA_URL = System.getProperty("points.test.replica.url");
+
+    private DatabaseDriver writer;
+    private DatabaseDriver reader;
+
+    @Before public void setUp() {
+        assumeTrue("points.test.url or points.test.replica.url is not set", URL != null && REPLICA_URL != null);
+        Logger logger = Logger.getLogger("DatabaseDriverReplicaTest");
+        logger.setLevel(Level.SEVERE);
+        // Pins outlast the test, so reads of own writes only reach the replica once its heartbeat shows them.
+        ReplicaConfiguration replicas = new ReplicaConfiguration(Collections.singletonList(new ConnectionPoolConfiguration(REPLICA_URL)),
+                                                                 10_000, 60_000, 50);
+        metrics = new InProcessPointsMetrics();
+        readerConfiguration = new DatabaseDriverConfiguration(new ConnectionPoolConfiguration(URL)).withMetrics(metrics)
+                                                                                                     .withReplicas(replicas);
+        writer = new DatabaseDriver(new ConnectionPoolConfiguration(URL), logger);
+        reader = new DatabaseDriver(readerConfiguration, logger);
+    }
+
+    @After public void tearDown() {
+        if (writer != null) {
+            writer.close();
+        }
+        if (reader != null) {
+            reader.close();
+        }
+    }
+
+    @Test public void testReadsOwnWrites() throws Exception {
+        UUID userId = UUID.randomUUID();
+        reader.addUser(new AddUserParameters(userId, 100));
+        long transactionId = reader.reservePoints(new ReservePointsParameters(userId, 30)).getTransactionId();
+        reader.writeOffPoints(new WriteOffPointsParameters(transactionId));
+
+        assertEquals(70, reader.getUserInfo(new GetUserInfoParameters(userId)).getTotal());
+        assertEquals(TransactionAction.COMMITTED, reader.getTransactionInfo(new GetTransactionInfoParameters(transactionId)).getAction());
+    }
+
+    @Test public void testOwnWritesMoveToReplicaOnceApplied() throws Exception {
+        UUID userId = UUID.randomUUID();
+        reader.addUser(new AddUserParameters(userId, 100));
+        reader.addPoints(new AddPointsParameters(userId, 5));
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (metrics.getReplicaReads() == 0 && System.currentTimeMillis() < deadline) {
+            assertEquals(105, reader.getUserInfo(new GetUserInfoParameters(userId)).getTotal());
+            Thread.sleep(50);
+        }
+        assertTrue(metrics.getReplicaReads() > 0);
+        assertEquals(105, reader.getUserInfo(new GetUserInfoParameters(userId)).getTotal());
+    }
+
+    @Test public void testCancelWithoutLocksOrCachePinsUser() throws Exception {
+        try(DatabaseDriver unlockedReader = new DatabaseDriver(readerConfiguration.withUserLocking(new UserLockingConfiguration(0)),
+                                                               Logger.getLogger("DatabaseDriverReplicaTest"))) {
+            UUID userId = UUID.randomUUID();
+            unlockedReader.addUser(new AddUserParameters(userId, 100));
+            long transactionId = unlockedReader.reservePoints(new ReservePointsParameters(userId, 30)).getTransactionId();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (metrics.getReplicaReads() == 0 && System.currentTimeMillis() < deadline) {
+                assertEquals(30, unlockedReader.getUserInfo(new GetUserInfoParameters(userId)).getReserved());
+                Thread.sleep(50);
+            }
+            assertTrue(metrics.getReplicaReads() > 0);
+
+            unlockedReader.cancelTransaction(transactionId);
+            assertEquals(0, unlockedReader.getUserInfo(new GetUserInfoParameters(userId)).getReserved());
+        }
+    }
+
+    @Test public void testReadsWritesOfOthersFromReplica() throws Exception {
+        UUID userId = UUID.randomUUID();
+        writer.addUser(new AddUserParameters(userId, 100));
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        GetUserInfoReturn userInfo = reader.getUserInfo(new GetUserInfoParameters(userId));
+        while (userInfo == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+            userInfo = reader.getUserInfo(new GetUserInfoParameters(userId));
+        }
+        assertNotNull(userInfo);
+        assertEquals(100, userInfo.getTotal());
+        assertTrue(metrics.getReplicaReads() > 0);
+        assertEquals(100, reader.getUserInfo(new GetUserInfoParameters(userId, true)).getTotal());
+    }
+
+    @Test public void testReplicaReadsAreNotCached() throws Exception {
+        UUID userId = UUID.randomUUID();
+        writer.addUser(new AddUserParameters(userId, 100));
+
+        try(DatabaseDriver cachingReader = new DatabaseDriver(readerConfiguration.withUserInfoCache(new UserInfoCacheConfiguration(1_000)),
+                                                              Logger.getLogger("DatabaseDriverReplicaTest"))) {
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (cachingReader.getUserInfo(new GetUserInfoParameters(userId)) == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            long replicaReads = metrics.getReplicaReads();
+            assertEquals(100, cachingReader.getUserInfo(new GetUserInfoParameters(userId)).getTotal());
+            assertEquals(replicaReads + 1, metrics.getReplicaReads());
+
+            // What the primary answers is cached.
+            assertEquals(100, cachingReader.getUserInfo(new GetUserInfoParameters(userId, true)).getTotal());
+            assertEquals(100, cachingReader.getUserInfo(new GetUserInfoParameters(userId)).getTotal());
+            assertEquals(replicaReads + 1, metrics.getReplicaReads());
+        }
+    }
+
+    private InProcessPointsMetrics metrics;
+    private DatabaseDriverConfiguration readerConfiguration;
+}
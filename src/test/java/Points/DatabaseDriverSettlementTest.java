@@ -0,0 +1,83 @@
+package Points;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Needs a migrated database, run with -Ppoints.test.url=jdbc:mysql://...
+ */
+public class DatabaseDriverSettlementTest {
+    private static final String URL = System.getProperty("points.test.url");
+
+    private DatabaseDriver driver;
+
+    @Before public void setUp() {
+        assumeTrue("points.test.url is not set", URL != null);
+        Logger logger = Logger.getLogger("DatabaseDriverSettlementTest");
+        logger.setLevel(Level.SEVERE);
+        driver = new DatabaseDriver(new ConnectionPoolConfiguration(URL), logger);
+    }
+
+    @After public void tearDown() {
+        if (driver != null) {
+            driver.close();
+        }
+    }
+
+    private long reserve(UUID userId, int amount) throws Exception {
+        return driver.reservePoints(new ReservePointsParameters(userId, amount)).getTransactionId();
+    }
+
+    @Test public void testWriteOffBatchSettlesEveryTransaction() throws Exception {
+        UUID userId = UUID.randomUUID();
+        UUID otherUserId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, 100));
+        driver.addUser(new AddUserParameters(otherUserId, 50));
+        long first = reserve(userId, 30);
+        long second = reserve(userId, 20);
+        long other = reserve(otherUserId, 50);
+        long canceled = reserve(userId, 10);
+        driver.cancelTransaction(canceled);
+
+        List<SettlementResult> results = driver.writeOffPointsBatch(Arrays.asList(first, other, second, canceled, -5L, first));
+
+        assertEquals(Arrays.asList(SettlementResult.SETTLED,
+                                   SettlementResult.SETTLED,
+                                   SettlementResult.SETTLED,
+                                   SettlementResult.CONFLICTING_STATE,
+                                   SettlementResult.INVALID_TRANSACTION,
+                                   SettlementResult.SETTLED),
+                     results);
+        GetUserInfoReturn userInfo = driver.getUserInfo(new GetUserInfoParameters(userId, true));
+        assertEquals(50, userInfo.getTotal());
+        assertEquals(0, userInfo.getReserved());
+        assertEquals(0, driver.getUserInfo(new GetUserInfoParameters(otherUserId, true)).getTotal());
+        assertEquals(TransactionAction.COMMITTED, driver.getTransactionInfo(new GetTransactionInfoParameters(second)).getAction());
+        assertEquals(Arrays.asList(SettlementResult.ALREADY_SETTLED), driver.writeOffPointsBatch(Arrays.asList(first)));
+    }
+
+    @Test public void testCancelBatchReleasesReservations() throws Exception {
+        UUID userId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, 100));
+        long first = reserve(userId, 30);
+        long second = reserve(userId, 20);
+        long committed = reserve(userId, 10);
+        driver.writeOffPoints(committed);
+
+        assertEquals(Arrays.asList(SettlementResult.SETTLED, SettlementResult.SETTLED, SettlementResult.CONFLICTING_STATE),
+                     driver.cancelTransactionBatch(Arrays.asList(first, second, committed)));
+        GetUserInfoReturn userInfo = driver.getUserInfo(new GetUserInfoParameters(userId, true));
+        assertEquals(90, userInfo.getTotal());
+        assertEquals(0, userInfo.getReserved());
+        assertEquals(TransactionAction.CANCELED, driver.getTransactionInfo(new GetTransactionInfoParameters(first)).getAction());
+    }
+}
@@ -0,0 +1,32 @@
+package Points;
+
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.sql.Timestamp;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InMemoryPointsStoreTest extends PointsStoreConformanceTest {
+    @Override
+    protected PointsStore createStore() {
+        Logger logger = Logger.getLogger("InMemoryPointsStoreTest");
+        logger.setLevel(Level.SEVERE);
+        return new InMemoryPointsStore(logger);
+    }
+
+    @Test public void testExpiredReservationsAreReaped() throws Exception {
+        UUID userId = UUID.randomUUID();
+        store.addUser(new AddUserParameters(userId, 10));
+        long transactionId = store.reservePoints(new ReservePointsParameters(userId, 4, 1)).getTransactionId();
+        store.reservePoints(new ReservePointsParameters(userId, 3));
+
+        int reaped = ((InMemoryPointsStore) store).reapExpiredReservations(new Timestamp(System.currentTimeMillis() + 1_000));
+
+        assertEquals(1, reaped);
+        assertEquals(3, store.getUserInfo(new GetUserInfoParameters(userId)).getReserved());
+        assertEquals(TransactionAction.CANCELED, store.getTransactionInfo(new GetTransactionInfoParameters(transactionId)).getAction());
+    }
+}
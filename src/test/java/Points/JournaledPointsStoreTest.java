@@ -0,0 +1,138 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.RandomAccessFile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.sql.Timestamp;
+
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class JournaledPointsStoreTest extends PointsStoreConformanceTest {
+    private Path directory;
+
+    private Logger logger() {
+        Logger logger = Logger.getLogger("JournaledPointsStoreTest");
+        logger.setLevel(Level.SEVERE);
+        return logger;
+    }
+
+    private JournalConfiguration configuration(int segmentBytes) {
+        return new JournalConfiguration(directory.toString(), segmentBytes, 1, true, 1);
+    }
+
+    @Override
+    protected PointsStore createStore() {
+        try {
+            directory = Files.createTempDirectory("points-journal");
+            return new JournaledPointsStore(configuration(PointsJournal.RECORD_SIZE * 16), logger());
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    @Override
+    @After public void tearDown() {
+        super.tearDown();
+        // Best effort, the compactor of the closed journal may still be finishing a snapshot.
+        try(Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException ex) {
+            logger().warning("Removing " + directory + " failed: " + ex.getMessage());
+        }
+    }
+
+    private JournaledPointsStore reopen() throws IOException {
+        store.close();
+        store = new JournaledPointsStore(configuration(PointsJournal.RECORD_SIZE * 16), logger());
+        return (JournaledPointsStore) store;
+    }
+
+    @Test public void testReopenedStoreHasTheSameState() throws Exception {
+        UUID userId = UUID.randomUUID();
+        store.addUser(new AddUserParameters(userId, 100));
+        store.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 30, new Timestamp(System.currentTimeMillis() + 86_400_000L)));
+        for (int i = 0; i < 100; ++i) {
+            store.addPoints(new AddPointsParameters(userId, 1));
+        }
+        long committed = store.reservePoints(new ReservePointsParameters(userId, 50)).getTransactionId();
+        store.writeOffPoints(new WriteOffPointsParameters(committed));
+        long reserved = store.reservePoints(new ReservePointsParameters(userId, 20)).getTransactionId();
+        GetUserInfoReturn before = store.getUserInfo(new GetUserInfoParameters(userId));
+
+        // Snapshots are written in the background, the reopened store may start from any of them.
+        Thread.sleep(100);
+        PointsStore reopened = reopen();
+
+        assertEquals(before, reopened.getUserInfo(new GetUserInfoParameters(userId)));
+        assertEquals(TransactionAction.COMMITTED, reopened.getTransactionInfo(new GetTransactionInfoParameters(committed)).getAction());
+        assertEquals(TransactionAction.RESERVE, reopened.getTransactionInfo(new GetTransactionInfoParameters(reserved)).getAction());
+        long next = reopened.reservePoints(new ReservePointsParameters(userId, 1)).getTransactionId();
+        assertTrue(next > reserved);
+    }
+
+    @Test public void testReservationsReapedRightAwayAreReplayed() throws Exception {
+        UUID userId = UUID.randomUUID();
+        store.addUser(new AddUserParameters(userId, 1_000_000));
+        JournaledPointsStore journaled = (JournaledPointsStore) store;
+        Thread reaper = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                journaled.reapExpiredReservations(new Timestamp(System.currentTimeMillis() + 10));
+            }
+        });
+        reaper.start();
+        List<Long> reserved = new ArrayList<>();
+        try {
+            for (int i = 0; i < 2_000; ++i) {
+                reserved.add(store.reservePoints(new ReservePointsParameters(userId, 1, 2)).getTransactionId());
+            }
+        } finally {
+            reaper.interrupt();
+            reaper.join();
+        }
+        journaled.reapExpiredReservations(new Timestamp(System.currentTimeMillis() + 10));
+        GetUserInfoReturn before = store.getUserInfo(new GetUserInfoParameters(userId));
+        assertEquals(0, before.getReserved());
+
+        PointsStore reopened = reopen();
+
+        assertEquals(before, reopened.getUserInfo(new GetUserInfoParameters(userId)));
+        for (long transactionId : reserved) {
+            assertEquals(TransactionAction.CANCELED, reopened.getTransactionInfo(new GetTransactionInfoParameters(transactionId)).getAction());
+        }
+    }
+
+    @Test public void testTornEntryEndsTheJournal() throws Exception {
+        store.close();
+        store = new JournaledPointsStore(configuration(PointsJournal.RECORD_SIZE * 1_024), logger());
+        UUID userId = UUID.randomUUID();
+        store.addUser(new AddUserParameters(userId, 0));
+        store.addPoints(new AddPointsParameters(userId, 1));
+        store.addPoints(new AddPointsParameters(userId, 2));
+        store.close();
+
+        Path segment = directory.resolve(String.format("journal-%020d.log", 0));
+        try(RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw")) {
+            file.seek(2L * PointsJournal.RECORD_SIZE + 10);
+            file.write(0xFF);
+        }
+        store = new JournaledPointsStore(configuration(PointsJournal.RECORD_SIZE * 1_024), logger());
+
+        assertEquals(1, store.getUserInfo(new GetUserInfoParameters(userId)).getTotal());
+        store.addPoints(new AddPointsParameters(userId, 4));
+        assertEquals(5, reopen().getUserInfo(new GetUserInfoParameters(userId)).getTotal());
+    }
+}
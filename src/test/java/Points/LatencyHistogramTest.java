@@ -0,0 +1,31 @@
+package Points;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    @Test public void testBucketsBoundRecordedValuesWithinAnEighth() {
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; ++value) {
+            int index = LatencyHistogram.index(value);
+            long upperBound = LatencyHistogram.upperBound(index);
+            assertTrue(index >= previous);
+            assertTrue(upperBound >= value);
+            assertTrue(upperBound <= value + value / 8);
+            previous = index;
+        }
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.index(Long.MAX_VALUE)));
+    }
+
+    @Test public void testQuantilesFollowRecordedValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getValueAtQuantile(0.5));
+        for (long value = 1; value <= 1000; ++value) {
+            histogram.record(value * 1_000);
+        }
+        assertEquals(1000, histogram.getCount());
+        long median = histogram.getValueAtQuantile(0.5);
+        assertTrue(median >= 500_000 && median <= 500_000 + 500_000 / 8);
+        assertEquals(1_000_000, histogram.getValueAtQuantile(1.0));
+    }
+}
@@ -0,0 +1,109 @@
+package Points;
+
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.io.StringWriter;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Needs a migrated database, run with -Ppoints.test.url=jdbc:mysql://...
+ */
+public class LedgerReconcilerTest {
+    private static final String URL = System.getProperty("points.test.url");
+
+    private DatabaseDriver driver;
+    private Logger logger;
+
+    @Before public void setUp() {
+        assumeTrue("points.test.url is not set", URL != null);
+        logger = Logger.getLogger("LedgerReconcilerTest");
+        logger.setLevel(Level.SEVERE);
+        driver = new DatabaseDriver(new ConnectionPoolConfiguration(URL), logger);
+    }
+
+    @After public void tearDown() {
+        if (driver != null) {
+            driver.close();
+        }
+    }
+
+    @Test public void testDriftIsReportedAndRepaired() throws Exception {
+        UUID userId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, 100));
+        long transactionId = driver.reservePoints(new ReservePointsParameters(userId, 30)).getTransactionId();
+        driver.writeOffPoints(transactionId);
+        driver.reservePoints(new ReservePointsParameters(userId, 20));
+
+        try(Connection connection = DriverManager.getConnection(URL);
+            PreparedStatement statement = connection.prepareStatement("UPDATE Points.points SET reserved = reserved + 5, total = total + 1 WHERE user_id = ?")) {
+            statement.setBytes(1, UuidBinary.toBytes(userId));
+            statement.executeUpdate();
+        }
+
+        LedgerReconciler reconciler = new LedgerReconciler(new ConnectionPoolConfiguration(URL), new ReconciliationConfiguration(16, 4, 100), logger);
+        StringWriter report = new StringWriter();
+        StringWriter repairScript = new StringWriter();
+        ReconciliationStatistics statistics = reconciler.reconcile(report, repairScript);
+
+        assertTrue(statistics.getMismatchedUsers() >= 1);
+        assertTrue(report.toString().contains(userId + "\treserved\t25\t20\n"));
+        assertTrue(report.toString().contains(userId + "\ttotal\t71\t70\n"));
+        String hexUserId = userId.toString().replace("-", "").toUpperCase();
+        assertTrue(repairScript.toString().contains("UPDATE Points.points SET reserved = 20 WHERE user_id = X'" + hexUserId + "' and reserved <=> 25;"));
+    }
+
+    @Test public void testRowsWithoutForeignKeysAreChecked() throws Exception {
+        UUID userId = UUID.randomUUID();
+        UUID missingUserId = UUID.randomUUID();
+        driver.addUser(new AddUserParameters(userId, 100));
+
+        try(Connection connection = DriverManager.getConnection(URL)) {
+            long transactionId;
+            try(PreparedStatement statement = connection.prepareStatement("INSERT INTO Points.transaction (user_id, amount, action) VALUES (?, 5, 'add points')",
+                                                                          Statement.RETURN_GENERATED_KEYS)) {
+                statement.setBytes(1, UuidBinary.toBytes(missingUserId));
+                statement.executeUpdate();
+                try(ResultSet keys = statement.getGeneratedKeys()) {
+                    keys.next();
+                    transactionId = keys.getLong(1);
+                }
+            }
+            try(PreparedStatement statement = connection.prepareStatement("INSERT INTO Points.temporary_points VALUES (?, ?, 5, UTC_TIMESTAMP() + INTERVAL 1 DAY)")) {
+                statement.setBytes(1, UuidBinary.toBytes(userId));
+                statement.setLong(2, Long.MAX_VALUE);
+                statement.executeUpdate();
+            }
+            try {
+                LedgerReconciler reconciler = new LedgerReconciler(new ConnectionPoolConfiguration(URL), new ReconciliationConfiguration(16, 4, 100), logger);
+                StringWriter report = new StringWriter();
+                ReconciliationStatistics statistics = reconciler.reconcile(report, null);
+
+                assertTrue(statistics.getOrphanedRows() >= 2);
+                assertTrue(report.toString().contains(missingUserId + "\ttransaction\t" + transactionId + "\torphaned\n"));
+                assertTrue(report.toString().contains(userId + "\ttemporary_points\t" + Long.MAX_VALUE + "\torphaned\n"));
+            } finally {
+                try(PreparedStatement statement = connection.prepareStatement("DELETE FROM Points.temporary_points WHERE transaction_id = ?")) {
+                    statement.setLong(1, Long.MAX_VALUE);
+                    statement.executeUpdate();
+                }
+                try(PreparedStatement statement = connection.prepareStatement("DELETE FROM Points.transaction WHERE id = ?")) {
+                    statement.setLong(1, transactionId);
+                    statement.executeUpdate();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import java.sql.Timestamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PointsServerTest {
+    @Before
+    public void setUp() throws IOException {
+        logger = Logger.getLogger("PointsServerTest");
+        logger.setLevel(Level.SEVERE);
+        store = new InMemoryPointsStore(logger);
+        server = new PointsServer(store, new PointsServerConfiguration("127.0.0.1", 0), logger);
+        server.start();
+        client = new PointsClient(address(), logger);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        server.close();
+        store.close();
+    }
+
+    private InetSocketAddress address() {
+        return new InetSocketAddress("127.0.0.1", server.getAddress().getPort());
+    }
+
+    @Test public void testOperationsRoundTrip() throws Exception {
+        UUID userId = UUID.randomUUID();
+        client.addUser(new AddUserParameters(userId, 100)).get();
+        client.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 5, new Timestamp(System.currentTimeMillis() + 60_000))).get();
+        long transactionId = client.reservePoints(new ReservePointsParameters(userId, 30)).get().getTransactionId();
+        client.writeOffPoints(new WriteOffPointsParameters(transactionId)).get();
+
+        assertEquals(store.getUserInfo(new GetUserInfoParameters(userId)), client.getUserInfo(new GetUserInfoParameters(userId, true)).get());
+        assertEquals(store.getTransactionInfo(new GetTransactionInfoParameters(transactionId)),
+                     client.getTransactionInfo(new GetTransactionInfoParameters(transactionId)).get());
+        UserHistoryParameters history = new UserHistoryParameters(userId, new Timestamp(0), new Timestamp(System.currentTimeMillis() + 1_000), 10);
+        assertEquals(store.streamUserHistory(history).collect(Collectors.toList()), client.userHistoryPage(history).get());
+        assertEquals(Arrays.asList(BatchItemResult.APPLIED, BatchItemResult.INVALID_USER),
+                     client.addPointsBatch(Arrays.asList(new AddPointsParameters(userId, 1),
+                                                         new AddPointsParameters(UUID.randomUUID(), 1))).get());
+
+        assertNull(client.getUserInfo(new GetUserInfoParameters(UUID.randomUUID())).get());
+        assertNull(client.reservePoints(new ReservePointsParameters(UUID.randomUUID(), 1)).get());
+        try {
+            client.cancelTransaction(new CancelTransactionParameters(transactionId)).get();
+            fail("Canceling a committed transaction has to fail");
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof PointsClient.ServerException);
+        }
+    }
+
+    @Test public void testPipelinedCallsAndBatches() throws Exception {
+        UUID userId = UUID.randomUUID();
+        client.addUser(new AddUserParameters(userId, 0)).get();
+
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int i = 0; i < 1_000; ++i) {
+            calls.add(client.addPoints(new AddPointsParameters(userId, 1)));
+        }
+        PointsClient.Batch batch = client.newBatch();
+        List<CompletableFuture<ReservePointsReturn>> reservations = new ArrayList<>();
+        for (int i = 0; i < 10; ++i) {
+            reservations.add(batch.reservePoints(new ReservePointsParameters(userId, 1)));
+        }
+        CompletableFuture<GetUserInfoReturn> unknown = batch.getUserInfo(new GetUserInfoParameters(UUID.randomUUID()));
+        CompletableFuture<Void> canceled = batch.cancelTransaction(new CancelTransactionParameters(Long.MAX_VALUE));
+        CompletableFuture.allOf(calls.toArray(new CompletableFuture<?>[0])).get();
+        batch.send().get();
+
+        for (CompletableFuture<ReservePointsReturn> reservation : reservations) {
+            assertTrue(reservation.get().getTransactionId() >= 0);
+        }
+        assertNull(unknown.get());
+        assertNull(canceled.get());
+        GetUserInfoReturn info = client.getUserInfo(new GetUserInfoParameters(userId)).get();
+        assertEquals(1_000, info.getTotal());
+        assertEquals(10, info.getReserved());
+    }
+
+    @Test public void testMalformedRequestIsRejected() throws Exception {
+        try(Socket socket = new Socket(address().getAddress(), address().getPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(PointsProtocol.HEADER_SIZE + 2);
+            out.writeLong(7);
+            out.writeByte(PointsProtocol.ADD_POINTS);
+            out.writeShort(0);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            in.readInt();
+            assertEquals(7, in.readLong());
+            assertEquals(PointsProtocol.BAD_REQUEST, in.readByte());
+        }
+    }
+
+    @Test public void testTruncatedBatchKeepsServerUp() throws Exception {
+        try(Socket socket = new Socket(address().getAddress(), address().getPort())) {
+            // Two operations announced, the first one takes the rest of the payload.
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(PointsProtocol.HEADER_SIZE + 4 + 1 + 4 + 5);
+            out.writeLong(9);
+            out.writeByte(PointsProtocol.BATCH);
+            out.writeInt(2);
+            out.writeByte(PointsProtocol.ADD_POINTS);
+            out.writeInt(5);
+            out.write(new byte[5]);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            in.readInt();
+            assertEquals(9, in.readLong());
+            assertEquals(PointsProtocol.BAD_REQUEST, in.readByte());
+        }
+
+        UUID userId = UUID.randomUUID();
+        try(PointsClient other = new PointsClient(address(), logger)) {
+            other.addUser(new AddUserParameters(userId, 7)).get();
+            assertEquals(7, other.getUserInfo(new GetUserInfoParameters(userId)).get().getTotal());
+        }
+    }
+
+    @Test public void testCloseDrainsPipelinedCalls() throws Exception {
+        UUID userId = UUID.randomUUID();
+        client.addUser(new AddUserParameters(userId, 0)).get();
+        List<CompletableFuture<Void>> calls = new ArrayList<>();
+        for (int i = 0; i < 1_000; ++i) {
+            calls.add(client.addPoints(new AddPointsParameters(userId, 1)));
+        }
+        // Wait for the last request to be read, then close while the rest may still run.
+        client.getUserInfo(new GetUserInfoParameters(userId)).get();
+        server.close();
+
+        for (CompletableFuture<Void> call : calls) {
+            call.get();
+        }
+        assertEquals(1_000, store.getUserInfo(new GetUserInfoParameters(userId)).getTotal());
+    }
+
+    private Logger logger;
+    private InMemoryPointsStore store;
+    private PointsServer server;
+    private PointsClient client;
+}
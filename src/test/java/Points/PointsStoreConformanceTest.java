@@ -0,0 +1,196 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Behaviour every {@link PointsStore} has to share, run against each implementation by a subclass.
+ */
+public abstract class PointsStoreConformanceTest {
+    private static final int THREADS = 8;
+    private static final int RESERVATIONS_PER_THREAD = 50;
+
+    protected PointsStore store;
+
+    protected abstract PointsStore createStore();
+
+    @Before public void setUp() {
+        store = createStore();
+    }
+
+    @After public void tearDown() {
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    private UUID newUser(int total) throws SQLException {
+        UUID userId = UUID.randomUUID();
+        store.addUser(new AddUserParameters(userId, total));
+        return userId;
+    }
+
+    private GetUserInfoReturn info(UUID userId) throws SQLException {
+        return store.getUserInfo(new GetUserInfoParameters(userId, true));
+    }
+
+    @Test public void testAddUserAndPoints() throws Exception {
+        UUID userId = newUser(10);
+        store.addUser(new AddUserParameters(userId, 100));
+        store.addPoints(new AddPointsParameters(userId, 5));
+
+        GetUserInfoReturn info = info(userId);
+        assertEquals(15, info.getTotal());
+        assertEquals(0, info.getReserved());
+        assertNull(info.getEarliestExpiryDate());
+    }
+
+    @Test public void testInvalidUser() throws Exception {
+        UUID userId = UUID.randomUUID();
+        store.addPoints(new AddPointsParameters(userId, 5));
+
+        assertNull(info(userId));
+        assertNull(store.reservePoints(new ReservePointsParameters(userId, 1)));
+        assertNull(store.getTransactionInfo(new GetTransactionInfoParameters(Long.MAX_VALUE)));
+    }
+
+    @Test public void testReserveAndWriteOff() throws Exception {
+        UUID userId = newUser(10);
+        long transactionId = store.reservePoints(new ReservePointsParameters(userId, 7)).getTransactionId();
+        assertEquals(-1, store.reservePoints(new ReservePointsParameters(userId, 4)).getTransactionId());
+        assertEquals(7, info(userId).getReserved());
+
+        store.writeOffPoints(new WriteOffPointsParameters(transactionId));
+        store.writeOffPoints(new WriteOffPointsParameters(transactionId));
+
+        GetUserInfoReturn info = info(userId);
+        assertEquals(3, info.getTotal());
+        assertEquals(0, info.getReserved());
+        assertEquals(TransactionAction.COMMITTED, store.getTransactionInfo(new GetTransactionInfoParameters(transactionId)).getAction());
+        try {
+            store.cancelTransaction(new CancelTransactionParameters(transactionId));
+            fail("Canceling a committed transaction has to fail");
+        } catch (SQLException expected) {
+        }
+    }
+
+    @Test public void testCancel() throws Exception {
+        UUID userId = newUser(10);
+        long transactionId = store.reservePoints(new ReservePointsParameters(userId, 7)).getTransactionId();
+
+        store.cancelTransaction(new CancelTransactionParameters(transactionId));
+        store.cancelTransaction(new CancelTransactionParameters(transactionId));
+
+        GetUserInfoReturn info = info(userId);
+        assertEquals(10, info.getTotal());
+        assertEquals(0, info.getReserved());
+        assertEquals(TransactionAction.CANCELED, store.getTransactionInfo(new GetTransactionInfoParameters(transactionId)).getAction());
+        try {
+            store.writeOffPoints(new WriteOffPointsParameters(transactionId));
+            fail("Committing a canceled transaction has to fail");
+        } catch (SQLException expected) {
+        }
+    }
+
+    @Test public void testTemporaryPointsAreSpentFirst() throws Exception {
+        UUID userId = newUser(10);
+        Timestamp expiryDate = new Timestamp((System.currentTimeMillis() + TimeUnit.DAYS.toMillis(1)) / 1_000 * 1_000);
+        store.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 5, expiryDate));
+        long transactionId = store.reservePoints(new ReservePointsParameters(userId, 8)).getTransactionId();
+
+        store.writeOffPoints(new WriteOffPointsParameters(transactionId));
+
+        GetUserInfoReturn info = info(userId);
+        assertEquals(7, info.getTotal());
+        assertEquals(0, info.getTotalTemporary());
+        assertEquals(5, info.getPayedTemporary());
+        assertEquals(5, info.getEarliestExpiryAmount());
+    }
+
+    @Test public void testExpiredTemporaryPointsCannotBeReserved() throws Exception {
+        UUID userId = newUser(2);
+        Timestamp expiryDate = new Timestamp((System.currentTimeMillis() + 2_000) / 1_000 * 1_000);
+        store.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 5, expiryDate));
+        assertEquals(7, info(userId).getTotal() + info(userId).getTotalTemporary());
+
+        Thread.sleep(expiryDate.getTime() - System.currentTimeMillis() + 1_000);
+
+        assertEquals(-1, store.reservePoints(new ReservePointsParameters(userId, 3)).getTransactionId());
+        GetUserInfoReturn info = info(userId);
+        assertEquals(0, info.getTotalTemporary());
+        assertNull(info.getEarliestExpiryDate());
+    }
+
+    @Test public void testBatchReportsInvalidUsers() throws Exception {
+        UUID userId = newUser(0);
+        List<BatchItemResult> results = store.addPointsBatch(Arrays.asList(new AddPointsParameters(userId, 1),
+                                                                           new AddPointsParameters(UUID.randomUUID(), 1),
+                                                                           new AddPointsParameters(userId, 2)));
+
+        assertEquals(Arrays.asList(BatchItemResult.APPLIED, BatchItemResult.INVALID_USER, BatchItemResult.APPLIED), results);
+        assertEquals(3, info(userId).getTotal());
+    }
+
+    @Test public void testHistoryIsOrdered() throws Exception {
+        Timestamp from = new Timestamp(System.currentTimeMillis() / 1_000 * 1_000);
+        UUID userId = newUser(0);
+        for (int i = 1; i <= 10; ++i) {
+            store.addPoints(new AddPointsParameters(userId, i));
+        }
+        Timestamp to = new Timestamp(System.currentTimeMillis() + 1_000);
+
+        List<GetTransactionInfoReturn> history = store.streamUserHistory(new UserHistoryParameters(userId, from, to, 3))
+                                                      .collect(Collectors.toList());
+
+        assertEquals(11, history.size());
+        assertEquals(TransactionAction.ADD_USER, history.get(0).getAction());
+        for (int i = 1; i <= 10; ++i) {
+            assertEquals(i, history.get(i).getAmount());
+        }
+    }
+
+    @Test public void testConcurrentReservationsOfHotUserNeverOverdraw() throws Exception {
+        int total = THREADS * RESERVATIONS_PER_THREAD / 2;
+        UUID userId = newUser(total);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> reserved = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; ++thread) {
+            reserved.add(executor.submit(() -> {
+                int succeeded = 0;
+                for (int i = 0; i < RESERVATIONS_PER_THREAD; ++i) {
+                    long transactionId = store.reservePoints(new ReservePointsParameters(userId, 1)).getTransactionId();
+                    if (transactionId >= 0) {
+                        store.writeOffPoints(new WriteOffPointsParameters(transactionId));
+                        ++succeeded;
+                    }
+                }
+                return succeeded;
+            }));
+        }
+        int succeeded = 0;
+        for (Future<Integer> future : reserved) {
+            succeeded += future.get();
+        }
+        executor.shutdown();
+
+        GetUserInfoReturn info = info(userId);
+        assertEquals(total, succeeded);
+        assertEquals(0, info.getTotal());
+        assertEquals(0, info.getReserved());
+    }
+}
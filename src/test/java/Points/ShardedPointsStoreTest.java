@@ -0,0 +1,125 @@
+package Points;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import java.sql.Timestamp;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Needs at least two migrated databases, run with -Ppoints.test.shard.urls=jdbc:mysql://...,jdbc:mysql://...
+ */
+public class ShardedPointsStoreTest extends PointsStoreConformanceTest {
+    private static final String URLS = System.getProperty("points.test.shard.urls");
+
+    @Override
+    protected PointsStore createStore() {
+        assumeTrue("points.test.shard.urls is not set", URLS != null);
+        Logger logger = Logger.getLogger("ShardedPointsStoreTest");
+        logger.setLevel(Level.SEVERE);
+        List<DatabaseDriverConfiguration> shards = new ArrayList<>();
+        for (String url : URLS.split(",")) {
+            shards.add(new DatabaseDriverConfiguration(new ConnectionPoolConfiguration(url)));
+        }
+        return new ShardedPointsStore(new ShardedDatabaseConfiguration(shards, 64), logger);
+    }
+
+    @Test public void testBucketsAreHashRanges() {
+        Random random = new Random(17);
+        for (int buckets : new int[]{1, 64, 4_096, 1_000}) {
+            assertEquals(0, ShardedPointsStore.firstHashOf(0, buckets));
+            assertEquals(1L << 32, ShardedPointsStore.firstHashOf(buckets, buckets));
+            for (int i = 0; i < 10_000; ++i) {
+                long hash = random.nextInt() & 0xffffffffL;
+                int bucket = ShardedPointsStore.bucketOf(hash, buckets);
+                assertTrue(hash >= ShardedPointsStore.firstHashOf(bucket, buckets));
+                assertTrue(hash < ShardedPointsStore.firstHashOf(bucket + 1, buckets));
+            }
+        }
+    }
+
+    @Test public void testTransactionIdsCarryTheBucket() {
+        long transactionId = ShardedPointsStore.toTransactionId(4_321, 1_234_567);
+        assertEquals(4_321, ShardedPointsStore.bucketOf(transactionId));
+        assertEquals(1_234_567, ShardedPointsStore.localIdOf(transactionId));
+        assertEquals(-1, ShardedPointsStore.toTransactionId(4_321, -1));
+    }
+
+    @Test public void testMovedUserKeepsBalanceAndReservation() throws Exception {
+        assumeTrue("moving needs two shards", URLS.split(",").length > 1);
+        ShardedPointsStore sharded = (ShardedPointsStore) store;
+        UUID userId = UUID.randomUUID();
+        sharded.addUser(new AddUserParameters(userId, 100));
+        long transactionId = sharded.reservePoints(new ReservePointsParameters(userId, 30)).getTransactionId();
+
+        int bucket = sharded.bucketOf(userId);
+        int targetShard = (sharded.getBucketShards().get(bucket) + 1) % URLS.split(",").length;
+        assertTrue(sharded.moveBucket(bucket, targetShard) >= 1);
+        assertEquals(targetShard, (int) sharded.getBucketShards().get(bucket));
+
+        sharded.writeOffPoints(new WriteOffPointsParameters(transactionId));
+        GetUserInfoReturn info = sharded.getUserInfo(new GetUserInfoParameters(userId, true));
+        assertEquals(70, info.getTotal());
+        assertEquals(0, info.getReserved());
+        assertEquals(TransactionAction.COMMITTED, sharded.getTransactionInfo(new GetTransactionInfoParameters(transactionId)).getAction());
+    }
+
+    @Test public void testHistoryContinuesAfterMove() throws Exception {
+        assumeTrue("moving needs two shards", URLS.split(",").length > 1);
+        ShardedPointsStore sharded = (ShardedPointsStore) store;
+        UUID userId = UUID.randomUUID();
+        sharded.addUser(new AddUserParameters(userId, 100));
+        for (int i = 0; i < 4; ++i) {
+            sharded.addPoints(new AddPointsParameters(userId, 1));
+        }
+        UserHistoryParameters parameters = new UserHistoryParameters(userId,
+                                                                     new Timestamp(System.currentTimeMillis() - 60_000),
+                                                                     new Timestamp(System.currentTimeMillis() + 60_000),
+                                                                     2);
+        List<Long> expected = sharded.streamUserHistory(parameters).map(GetTransactionInfoReturn::getTransactionId).collect(Collectors.toList());
+        assertEquals(5, expected.size());
+
+        Iterator<GetTransactionInfoReturn> history = sharded.streamUserHistory(parameters).iterator();
+        List<Long> streamed = new ArrayList<>();
+        streamed.add(history.next().getTransactionId());
+        int bucket = sharded.bucketOf(userId);
+        assertTrue(sharded.moveBucket(bucket, (sharded.getBucketShards().get(bucket) + 1) % URLS.split(",").length) >= 1);
+        history.forEachRemaining(transaction -> streamed.add(transaction.getTransactionId()));
+        assertEquals(expected, streamed);
+    }
+
+    @Test public void testMovesAreSharedThroughTheCatalog() throws Exception {
+        assumeTrue("moving needs two shards", URLS.split(",").length > 1);
+        ShardedPointsStore sharded = (ShardedPointsStore) store;
+        UUID userId = UUID.randomUUID();
+        sharded.addUser(new AddUserParameters(userId, 100));
+        sharded.addTemporaryPoints(new AddTemporaryPointsParameters(userId, 5, new Timestamp(System.currentTimeMillis() + 60_000)));
+
+        try(ShardedPointsStore other = (ShardedPointsStore) createStore()) {
+            int bucket = sharded.bucketOf(userId);
+            int sourceShard = sharded.getBucketShards().get(bucket);
+            int targetShard = (sourceShard + 1) % URLS.split(",").length;
+            assertTrue(sharded.moveBucket(bucket, targetShard) >= 1);
+            assertEquals(sharded.getBucketShards(), other.getBucketShards());
+
+            other.addPoints(new AddPointsParameters(userId, 10));
+            assertNull(sharded.getShard(sourceShard).getUserInfo(new GetUserInfoParameters(userId, true)));
+            assertEquals(110, sharded.getUserInfo(new GetUserInfoParameters(userId, true)).getTotal());
+            assertEquals(5, sharded.getUserInfo(new GetUserInfoParameters(userId, true)).getTotalTemporary());
+
+            // And back, from the other process.
+            assertTrue(other.moveBucket(bucket, sourceShard) >= 1);
+            assertTrue(sharded.moveBucket(bucket, targetShard) >= 1);
+            assertEquals(110, other.getUserInfo(new GetUserInfoParameters(userId, true)).getTotal());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package Points;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.sql.SQLException;
+import java.sql.SQLTransactionRollbackException;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TransactionExecutorTest {
+    @Before
+    public void setUp() {
+        logger = Logger.getLogger("TransactionExecutorTest");
+        logger.setLevel(Level.OFF);
+    }
+
+    @Test public void testDeadlocksAreRetried() throws Exception {
+        TransactionExecutor executor = new TransactionExecutor(new TransactionExecutionConfiguration(3, 1, 2), logger);
+        AtomicInteger attempts = new AtomicInteger();
+        int result = executor.execute(PointsMetrics.Operation.RESERVE_POINTS, () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new SQLTransactionRollbackException("Deadlock found when trying to get lock", "40001", 1213);
+            }
+            return 42;
+        });
+        assertEquals(42, result);
+        assertEquals(3, attempts.get());
+
+        attempts.set(0);
+        try {
+            executor.execute(PointsMetrics.Operation.RESERVE_POINTS, () -> {
+                attempts.incrementAndGet();
+                throw new SQLException("Lock wait timeout exceeded", "HY000", 1205);
+            });
+            fail("Contention has to be thrown after the last attempt");
+        } catch (SQLException ex) {
+            assertEquals(1205, ex.getErrorCode());
+        }
+        assertEquals(3, attempts.get());
+    }
+
+    @Test public void testOtherErrorsAreNotRetried() {
+        TransactionExecutor executor = new TransactionExecutor(new TransactionExecutionConfiguration(3, 1, 2), logger);
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            executor.execute(PointsMetrics.Operation.WRITE_OFF_POINTS, () -> {
+                attempts.incrementAndGet();
+                throw new SQLException("Commiting canceled transaction 1!!");
+            });
+            fail("The error has to be thrown");
+        } catch (SQLException ex) {
+            assertEquals(1, attempts.get());
+        }
+    }
+
+    @Test public void testSaturatedOperationIsShed() throws Exception {
+        TransactionExecutor executor = new TransactionExecutor(new TransactionExecutionConfiguration(1, 0, 0, true, 2, 1, 4), logger);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread[] holders = new Thread[2];
+        for (int i = 0; i < holders.length; ++i) {
+            holders[i] = new Thread(() -> {
+                try {
+                    executor.execute(PointsMetrics.Operation.ADD_POINTS, () -> {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return null;
+                    });
+                } catch (Exception ex) {
+                    throw new RuntimeException(ex);
+                }
+            });
+            holders[i].start();
+        }
+        started.await();
+        try {
+            executor.execute(PointsMetrics.Operation.ADD_POINTS, () -> null);
+            fail("A third transaction has to be shed");
+        } catch (PointsOverloadedException ex) {
+            assertTrue(ex.getMessage().contains("ADD_POINTS"));
+        }
+        // Other operations have their own limits.
+        assertNull(executor.execute(PointsMetrics.Operation.RESERVE_POINTS, () -> null));
+        release.countDown();
+        for (Thread holder : holders) {
+            holder.join();
+        }
+        assertNull(executor.execute(PointsMetrics.Operation.ADD_POINTS, () -> null));
+    }
+
+    @Test public void testLimitFollowsLatency() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 20, 2.0, 0.5, 10);
+        // Busy and fast: one more.
+        runWindow(limiter, 10, 1_000_000);
+        assertEquals(11, limiter.getLimit());
+        // Over twice the no-load latency: halved, but not below the minimum.
+        runWindow(limiter, 10, 5_000_000);
+        assertEquals(5, limiter.getLimit());
+        runWindow(limiter, 5, 5_000_000);
+        runWindow(limiter, 2, 5_000_000);
+        assertEquals(2, limiter.getLimit());
+        // Fast again, but mostly idle: stays.
+        runWindow(limiter, 1, 1_000_000);
+        runWindow(limiter, 1, 1_000_000);
+        assertEquals(3, limiter.getLimit());
+        // Contention halves it even when fast.
+        for (int i = 0; i < 9; ++i) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(1_000_000, false);
+        }
+        assertTrue(limiter.tryAcquire());
+        limiter.release(1_000_000, true);
+        assertEquals(2, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * Completes a window of 10 calls, {@code concurrency} at a time.
+     */
+    private static void runWindow(ConcurrencyLimiter limiter, int concurrency, long latencyNanos) {
+        for (int done = 0; done < 10; done += concurrency) {
+            for (int i = 0; i < concurrency; ++i) {
+                assertTrue(limiter.tryAcquire());
+            }
+            for (int i = 0; i < concurrency; ++i) {
+                limiter.release(latencyNanos, false);
+            }
+        }
+    }
+
+    private Logger logger;
+}
@@ -0,0 +1,47 @@
+package Points;
+
+import java.util.UUID;
+
+import java.sql.Timestamp;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UserInfoCacheTest {
+    private final UUID userId = UUID.randomUUID();
+    private final UserInfoCache cache = new UserInfoCache(new UserInfoCacheConfiguration(100));
+
+    private GetUserInfoReturn userInfo(int total, Timestamp earliestExpiryDate) {
+        return new GetUserInfoReturn(userId, total, 0, 0, 0, earliestExpiryDate, 0);
+    }
+
+    @Test public void testServesLoadedInfoUntilInvalidated() {
+        GetUserInfoReturn loaded = userInfo(10, null);
+        cache.put(userId, loaded, cache.stamp(userId));
+        assertEquals(loaded, cache.get(userId));
+
+        cache.invalidate(userId);
+        assertNull(cache.get(userId));
+        assertEquals(1, cache.getStatistics().getHitCount());
+        assertEquals(1, cache.getStatistics().getMissCount());
+    }
+
+    @Test public void testDropsLoadRacingWithInvalidation() {
+        long stamp = cache.stamp(userId);
+        cache.invalidate(userId);
+        cache.put(userId, userInfo(10, null), stamp);
+        assertNull(cache.get(userId));
+    }
+
+    @Test public void testNeverServesExpiredTemporaryPoints() {
+        cache.put(userId, userInfo(10, new Timestamp(System.currentTimeMillis() - 1)), cache.stamp(userId));
+        assertNull(cache.get(userId));
+    }
+
+    @Test public void testDisabledWithZeroSize() {
+        UserInfoCache disabled = new UserInfoCache(new UserInfoCacheConfiguration());
+        assertFalse(disabled.isEnabled());
+        disabled.put(userId, userInfo(10, null), disabled.stamp(userId));
+        assertNull(disabled.get(userId));
+    }
+}
@@ -0,0 +1,41 @@
+package Points;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import java.io.StringWriter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class WorkloadGeneratorTest {
+    @Before
+    public void setUp() {
+        logger = Logger.getLogger("WorkloadGeneratorTest");
+        logger.setLevel(Level.SEVERE);
+        store = new InMemoryPointsStore(logger);
+    }
+
+    @After
+    public void tearDown() {
+        store.close();
+    }
+
+    @Test public void testShortRunKeepsInvariants() throws Exception {
+        WorkloadConfiguration configuration = new WorkloadConfiguration(200, 50, 2_000.0, 2, 1, 0.99,
+                                                                         1, 20, 10, 30, 12, 6, 21,
+                                                                         ExpiryDistribution.UNIFORM, 60_000, 8, 1_000);
+        StringWriter report = new StringWriter();
+        WorkloadStatistics statistics = new WorkloadGenerator(store, configuration, logger).run(report);
+
+        assertTrue(statistics.getOperations() > 1_000);
+        assertTrue(statistics.getCheckedUsers() >= 200);
+        assertEquals(report.toString(), 0, statistics.getInvariantViolations());
+        assertTrue(report.toString().contains("total RESERVE_POINTS"));
+    }
+
+    private Logger logger;
+    private InMemoryPointsStore store;
+}